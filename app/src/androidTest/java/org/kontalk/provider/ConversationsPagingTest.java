@@ -0,0 +1,188 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.database.Cursor;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import io.requery.android.database.sqlite.SQLiteDatabase;
+import io.requery.android.database.sqlite.SQLiteStatement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Checks that keyset paging of the conversation list returns every
+ * conversation exactly once and in list order, in both directions.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ConversationsPagingTest {
+
+    private static final int THREADS = 1000;
+    private static final int PAGE_SIZE = 30;
+
+    private static final String QUERY = "SELECT _id, sticky, timestamp FROM threads " +
+        "WHERE archived = 0";
+    private static final String ORDER_DESC = " ORDER BY sticky DESC, timestamp DESC, _id DESC";
+    private static final String ORDER_ASC = " ORDER BY sticky ASC, timestamp ASC, _id ASC";
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        new MessagesProvider.DatabaseHelper(InstrumentationRegistry
+            .getInstrumentation().getTargetContext()).onCreate(mDb);
+
+        SQLiteStatement stm = mDb.compileStatement("INSERT INTO threads " +
+            "(msg_id, peer, direction, timestamp, content, sticky, archived) " +
+            "VALUES (?, ?, 0, ?, 'Lorem ipsum dolor sit amet', ?, ?)");
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < THREADS; i++) {
+                stm.bindString(1, "msg" + i);
+                stm.bindString(2, "user" + i + "@kontalk.net");
+                // a few timestamps collide, so the _id tie breaker is exercised
+                stm.bindLong(3, i / 3);
+                stm.bindLong(4, i % 50 == 0 ? 1 : 0);
+                // some archived conversations, excluded from the list
+                stm.bindLong(5, i % 20 == 0 ? 1 : 0);
+                stm.executeInsert();
+            }
+            mDb.setTransactionSuccessful();
+        }
+        finally {
+            mDb.endTransaction();
+        }
+        stm.close();
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    @Test
+    public void testPageForward() {
+        List<Long> expected = queryAll(ORDER_DESC);
+
+        List<Long> loaded = new ArrayList<>();
+        String[] key = null;
+        while (true) {
+            List<String[]> page = loadPage(key, false, false);
+            for (String[] row : page)
+                loaded.add(Long.parseLong(row[0]));
+            if (page.size() < PAGE_SIZE)
+                break;
+            key = page.get(page.size() - 1);
+        }
+
+        assertOnce(expected, loaded);
+    }
+
+    @Test
+    public void testPageBackward() {
+        List<Long> expected = queryAll(ORDER_DESC);
+
+        // from the bottom of the list up, as after a refresh at the end
+        List<Long> loaded = new ArrayList<>();
+        String[] key = null;
+        while (true) {
+            List<String[]> page = loadPage(key, true, false);
+            for (String[] row : page)
+                loaded.add(Long.parseLong(row[0]));
+            if (page.size() < PAGE_SIZE)
+                break;
+            key = page.get(page.size() - 1);
+        }
+        Collections.reverse(loaded);
+
+        assertOnce(expected, loaded);
+    }
+
+    @Test
+    public void testRestartFromKey() {
+        List<Long> expected = queryAll(ORDER_DESC);
+
+        // a refresh restarts from the visible item, which must be included
+        String[] key = loadPage(null, false, false).get(PAGE_SIZE / 2);
+        List<String[]> page = loadPage(key, false, true);
+        assertEquals(key[0], page.get(0)[0]);
+
+        int start = expected.indexOf(Long.parseLong(key[0]));
+        for (int i = 0; i < page.size(); i++)
+            assertEquals(expected.get(start + i), Long.valueOf(page.get(i)[0]));
+    }
+
+    private List<Long> queryAll(String order) {
+        List<Long> ids = new ArrayList<>();
+        Cursor c = mDb.rawQuery(QUERY + order, null);
+        try {
+            while (c.moveToNext())
+                ids.add(c.getLong(0));
+        }
+        finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    /** Same selection as ConversationsDataSource, arguments bound as strings. */
+    private List<String[]> loadPage(String[] key, boolean reverse, boolean inclusive) {
+        String sql = QUERY;
+        if (key != null) {
+            sql += " AND (sticky, timestamp, _id)" + (reverse ? " >" : " <") +
+                (inclusive ? "= " : " ") + "(?, ?, ?)";
+        }
+        sql += (reverse ? ORDER_ASC : ORDER_DESC) + " LIMIT " + PAGE_SIZE;
+
+        List<String[]> rows = new ArrayList<>();
+        Cursor c = mDb.rawQuery(sql, key != null ?
+            new Object[] { key[1], key[2], key[0] } : null);
+        try {
+            while (c.moveToNext())
+                rows.add(new String[] { c.getString(0), c.getString(1), c.getString(2) });
+        }
+        finally {
+            c.close();
+        }
+        return rows;
+    }
+
+    private static void assertOnce(List<Long> expected, List<Long> loaded) {
+        Set<Long> seen = new HashSet<>();
+        for (Long id : loaded)
+            assertTrue("duplicate conversation " + id, seen.add(id));
+        assertEquals(expected, loaded);
+    }
+
+}
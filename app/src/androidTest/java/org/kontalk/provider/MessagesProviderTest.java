@@ -19,6 +19,7 @@
 package org.kontalk.provider;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 
 import org.jivesoftware.smack.util.StringUtils;
 import org.junit.Before;
@@ -28,7 +29,9 @@ import org.junit.runner.RunWith;
 import org.jxmpp.util.XmppStringUtils;
 
 import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
@@ -38,6 +41,7 @@ import androidx.test.rule.provider.ProviderTestRule;
 
 import org.kontalk.provider.MyMessages.Groups;
 import org.kontalk.provider.MyMessages.Messages;
+import org.kontalk.provider.MyMessages.Messages.Fulltext;
 import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.util.DataUtils;
 import org.kontalk.util.MessageUtils;
@@ -87,6 +91,115 @@ public class MessagesProviderTest {
             Messages.DIRECTION, String.valueOf(Messages.DIRECTION_OUT));
     }
 
+    @Test
+    public void testIncomingMessageCounters() {
+        // a new peer so we get a new thread
+        String peer = XmppStringUtils.completeJidFrom(StringUtils.randomString(20), "prime.kontalk.net");
+        String[] msgIds = new String[5];
+        for (int i = 0; i < msgIds.length; i++) {
+            msgIds[i] = MessageUtils.messageId();
+            assertNotNull(MessagesProviderClient.newIncomingMessage(mContext,
+                incomingMessage(peer, msgIds[i], "Test message " + i, i)));
+        }
+
+        // duplicates are skipped
+        assertNull(MessagesProviderClient.newIncomingMessage(mContext,
+            incomingMessage(peer, msgIds[0], "Test message 0", 0)));
+
+        long threadId = MessagesProviderClient.findThread(mContext, peer);
+        assertTrue(threadId > 0);
+        assertQueryValues(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId),
+            Threads.COUNT, String.valueOf(msgIds.length),
+            Threads.UNREAD, String.valueOf(msgIds.length),
+            Threads.MESSAGE_ID, msgIds[msgIds.length - 1]);
+
+        MessagesProviderClient.deleteThread(mContext, threadId, false);
+    }
+
+    @Test
+    public void testBatchIncomingMessages() {
+        // a new peer so we get a new thread
+        String peer = XmppStringUtils.completeJidFrom(StringUtils.randomString(20), "prime.kontalk.net");
+        String[] msgIds = new String[5];
+        ContentValues[] values = new ContentValues[msgIds.length + 1];
+        for (int i = 0; i < msgIds.length; i++) {
+            msgIds[i] = MessageUtils.messageId();
+            values[i] = incomingMessage(peer, msgIds[i], "Test message " + i, i);
+        }
+        // one duplicate in the same batch
+        values[msgIds.length] = incomingMessage(peer, msgIds[0], "Test message 0", 0);
+
+        Uri[] uris = MessagesProviderClient.newIncomingMessages(mContext, values);
+        assertEquals(values.length, uris.length);
+        for (int i = 0; i < msgIds.length; i++)
+            assertNotNull(uris[i]);
+        assertNull(uris[msgIds.length]);
+
+        // already stored messages are skipped too
+        uris = MessagesProviderClient.newIncomingMessages(mContext, new ContentValues[] {
+            incomingMessage(peer, msgIds[1], "Test message 1", 1)
+        });
+        assertNull(uris[0]);
+
+        long threadId = MessagesProviderClient.findThread(mContext, peer);
+        assertTrue(threadId > 0);
+        assertQueryValues(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId),
+            Threads.COUNT, String.valueOf(msgIds.length),
+            Threads.UNREAD, String.valueOf(msgIds.length),
+            Threads.MESSAGE_ID, msgIds[msgIds.length - 1]);
+
+        MessagesProviderClient.deleteThread(mContext, threadId, false);
+    }
+
+    @Test
+    public void testBatchStatusUpdates() throws Exception {
+        // a new peer so we get a new thread
+        String peer = XmppStringUtils.completeJidFrom(StringUtils.randomString(20), "prime.kontalk.net");
+        long[] ids = new long[3];
+        for (int i = 0; i < ids.length; i++) {
+            Uri msg = MessagesProviderClient.newOutgoingMessage(mContext,
+                MessageUtils.messageId(), peer, "Test message " + i, true, 0);
+            assertNotNull(msg);
+            ids[i] = ContentUris.parseId(msg);
+        }
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        for (long id : ids) {
+            ops.add(MessagesProviderClient.MessageUpdater.forMessage(mContext, id)
+                .setStatus(Messages.STATUS_SENT, System.currentTimeMillis())
+                .commitLater());
+        }
+        // receipt for the last message
+        ops.add(MessagesProviderClient.MessageUpdater.forMessage(mContext, ids[ids.length - 1])
+            .setStatus(Messages.STATUS_RECEIVED, System.currentTimeMillis())
+            .commitLater());
+        mContext.getContentResolver().applyBatch(MessagesProvider.AUTHORITY, ops);
+
+        assertQueryValues(ContentUris.withAppendedId(Messages.CONTENT_URI, ids[0]),
+            Messages.STATUS, String.valueOf(Messages.STATUS_SENT));
+        long threadId = MessagesProviderClient.findThread(mContext, peer);
+        assertQueryValues(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId),
+            Threads.STATUS, String.valueOf(Messages.STATUS_RECEIVED));
+
+        MessagesProviderClient.deleteThread(mContext, threadId, false);
+    }
+
+    private static ContentValues incomingMessage(String peer, String msgId, String text, int offset) {
+        byte[] bytes = text.getBytes();
+        ContentValues values = new ContentValues();
+        values.put(Messages.MESSAGE_ID, msgId);
+        values.put(Messages.PEER, peer);
+        values.put(Messages.BODY_MIME, "text/plain");
+        values.put(Messages.BODY_CONTENT, bytes);
+        values.put(Messages.BODY_LENGTH, bytes.length);
+        values.put(Messages.UNREAD, true);
+        values.put(Messages.NEW, true);
+        values.put(Messages.DIRECTION, Messages.DIRECTION_IN);
+        values.put(Messages.TIMESTAMP, System.currentTimeMillis() + offset);
+        values.put(Messages.STATUS, Messages.STATUS_INCOMING);
+        return values;
+    }
+
     @Test
     public void testDeleteMessage() {
         String msgId = MessageUtils.messageId();
@@ -111,6 +224,31 @@ public class MessagesProviderTest {
         assertQueryCount(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId), 0);
     }
 
+    @Test
+    public void testFulltextSearch() {
+        // a word no other message has
+        String word = "kontalk" + StringUtils.randomString(10).toLowerCase();
+        Uri msg = MessagesProviderClient.newOutgoingMessage(mContext,
+            MessageUtils.messageId(), TEST_USERID, "Searching for " + word + " here", true, 0);
+        assertNotNull(msg);
+
+        // prefix match
+        Uri search = Fulltext.CONTENT_URI.buildUpon()
+            .appendQueryParameter("pattern", "\"" + word.substring(0, 10) + "\"*")
+            .build();
+        Cursor c = mProviderRule.getResolver().query(search,
+            new String[] { Fulltext._ID, Fulltext.SNIPPET }, null, null, Fulltext.DEFAULT_SORT_ORDER);
+        assertNotNull(c);
+        assertTrue(c.moveToFirst());
+        assertEquals(ContentUris.parseId(msg), c.getLong(0));
+        assertTrue(c.getString(1).contains(Fulltext.HIGHLIGHT_START + word + Fulltext.HIGHLIGHT_END));
+        c.close();
+
+        // deleting the message removes it from the index
+        MessagesProviderClient.deleteMessage(mContext, ContentUris.parseId(msg));
+        assertQueryCount(search, 0);
+    }
+
     @Test
     public void testCreateGroup() {
         String groupId = StringUtils.randomString(20);
@@ -0,0 +1,212 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.database.Cursor;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import io.requery.android.database.sqlite.SQLiteDatabase;
+import io.requery.android.database.sqlite.SQLiteStatement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Pages through a conversation from several threads while messages are
+ * being written, with the messages database in write-ahead logging mode:
+ * readers must never fail and must see every message exactly once.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessagesWalTest {
+
+    private static final String DATABASE_NAME = "wal-test.db";
+
+    private static final int MESSAGES = 1000;
+    private static final int READERS = 3;
+    private static final int PAGE_SIZE = 30;
+    private static final int WRITES = 300;
+
+    private static final String FIRST_PAGE = "SELECT _id FROM messages " +
+        "WHERE thread_id = 1 ORDER BY _id DESC LIMIT ?";
+    private static final String PAGE = "SELECT _id FROM messages " +
+        "WHERE thread_id = 1 AND _id < ? ORDER BY _id DESC LIMIT ?";
+
+    private Context mContext;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        File path = mContext.getDatabasePath(DATABASE_NAME);
+        path.getParentFile().mkdirs();
+
+        mDb = SQLiteDatabase.openOrCreateDatabase(path, null);
+        MessagesProvider.DatabaseHelper helper = new MessagesProvider.DatabaseHelper(mContext);
+        helper.onCreate(mDb);
+        helper.onOpen(mDb);
+        mDb.execSQL("INSERT INTO threads (msg_id, peer, direction, timestamp) " +
+            "VALUES ('', 'test@kontalk.net', 0, 0)");
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void testJournalMode() {
+        Cursor c = mDb.rawQuery("PRAGMA journal_mode", null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals("wal", c.getString(0).toLowerCase());
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void testPagingWhileWriting() throws Exception {
+        final SQLiteStatement stm = mDb.compileStatement("INSERT INTO messages " +
+            "(thread_id, msg_id, peer, direction, timestamp, body_content, status) " +
+            "VALUES (1, ?, 'test@kontalk.net', 0, ?, ?, 0)");
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < MESSAGES; i++)
+                insert(stm, i);
+            mDb.setTransactionSuccessful();
+        }
+        finally {
+            mDb.endTransaction();
+        }
+
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final int[] scrolls = new int[READERS];
+        List<Thread> readers = new ArrayList<>(READERS);
+        for (int i = 0; i < READERS; i++) {
+            final int reader = i;
+            readers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (writing.get()) {
+                            scroll();
+                            scrolls[reader]++;
+                        }
+                    }
+                    catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        for (Thread reader : readers)
+            reader.start();
+
+        // incoming messages, one transaction each like the provider does
+        try {
+            for (int i = MESSAGES; i < MESSAGES + WRITES; i++) {
+                mDb.beginTransactionNonExclusive();
+                try {
+                    insert(stm, i);
+                    mDb.setTransactionSuccessful();
+                }
+                finally {
+                    mDb.endTransaction();
+                }
+            }
+        }
+        finally {
+            writing.set(false);
+            for (Thread reader : readers)
+                reader.join();
+            stm.close();
+        }
+
+        assertNull(error.get());
+        for (int count : scrolls)
+            assertTrue(count > 0);
+        // what the readers see in the end
+        assertEquals(MESSAGES + WRITES, scroll());
+    }
+
+    private void insert(SQLiteStatement stm, int i) {
+        stm.bindString(1, "msg" + i);
+        stm.bindLong(2, i);
+        stm.bindBlob(3, ("Lorem ipsum dolor sit amet " + i).getBytes());
+        stm.executeInsert();
+    }
+
+    /**
+     * Loads the whole conversation page by page, as the user scrolling up,
+     * checking that messages come in order and only once.
+     * @return the number of messages loaded
+     */
+    private int scroll() {
+        int total = 0;
+        long last = Long.MAX_VALUE;
+        Object[] args = new Object[] { PAGE_SIZE };
+        String sql = FIRST_PAGE;
+        while (true) {
+            Cursor c = mDb.rawQuery(sql, args);
+            try {
+                int count = 0;
+                while (c.moveToNext()) {
+                    long id = c.getLong(0);
+                    assertTrue("message " + id + " out of order", id < last);
+                    last = id;
+                    count++;
+                }
+                total += count;
+                if (count < PAGE_SIZE)
+                    break;
+
+                // key of the last item
+                sql = PAGE;
+                args = new Object[] { last, PAGE_SIZE };
+            }
+            finally {
+                c.close();
+            }
+        }
+
+        // messages written before the readers started are never missed
+        assertTrue(total >= MESSAGES);
+        return total;
+    }
+
+}
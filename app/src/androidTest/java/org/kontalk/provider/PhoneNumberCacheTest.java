@@ -0,0 +1,175 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import io.requery.android.database.sqlite.SQLiteDatabase;
+import io.requery.android.database.sqlite.SQLiteStatement;
+
+import org.kontalk.service.registration.RegistrationService;
+import org.kontalk.util.XMPPUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+
+/**
+ * Checks that cached phone numbers match a full normalization and that
+ * entries are reused or dropped across resync passes.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PhoneNumberCacheTest {
+
+    private static final int CONTACTS = 500;
+    private static final String MY_NUMBER = "+393351234567";
+    private static final String INVALID_NUMBER = "not a number";
+
+    private Context mContext;
+    private SQLiteDatabase mDb;
+    private String[] mNumbers;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mDb = SQLiteDatabase.create(null);
+        new UsersProvider.DatabaseHelper(mContext).onCreate(mDb);
+
+        // mix of national and international formats
+        Random random = new Random(42);
+        mNumbers = new String[CONTACTS];
+        for (int i = 0; i < CONTACTS; i++) {
+            String national = String.format(Locale.US, "3%02d %03d %04d",
+                random.nextInt(100), random.nextInt(1000), random.nextInt(10000));
+            mNumbers[i] = (i % 2 == 0) ? national : "+39 " + national;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    @Test
+    public void testMatchesNormalization() throws Exception {
+        PhoneNumberCache cache = begin();
+        try {
+            for (String number : mNumbers) {
+                String fixed = RegistrationService.fixNumber(mContext, number, MY_NUMBER, 0);
+                PhoneNumberCache.Entry entry = cache.get(number);
+                assertNotNull(entry);
+                assertEquals(fixed, entry.number);
+                assertEquals(XMPPUtils.createLocalpart(fixed), entry.localpart);
+            }
+            assertNull(cache.get(INVALID_NUMBER));
+        }
+        finally {
+            end(cache);
+        }
+    }
+
+    @Test
+    public void testReusedAcrossPasses() {
+        String[] first = new String[CONTACTS];
+        PhoneNumberCache cache = begin();
+        try {
+            for (int i = 0; i < CONTACTS; i++)
+                first[i] = cache.get(mNumbers[i]).localpart;
+            assertNull(cache.get(INVALID_NUMBER));
+            assertEquals(0, cache.getHits());
+        }
+        finally {
+            end(cache);
+        }
+
+        // everything is loaded from the database, invalid numbers included
+        cache = begin();
+        try {
+            for (int i = 0; i < CONTACTS; i++)
+                assertEquals(first[i], cache.get(mNumbers[i]).localpart);
+            assertNull(cache.get(INVALID_NUMBER));
+            assertEquals(0, cache.getMisses());
+        }
+        finally {
+            end(cache);
+        }
+    }
+
+    @Test
+    public void testUnusedDropped() {
+        PhoneNumberCache cache = begin();
+        try {
+            for (String number : mNumbers)
+                cache.get(number);
+        }
+        finally {
+            end(cache);
+        }
+
+        // half of the contacts were deleted
+        String[] kept = Arrays.copyOf(mNumbers, CONTACTS / 2);
+        cache = begin();
+        try {
+            for (String number : kept)
+                cache.get(number);
+        }
+        finally {
+            end(cache);
+        }
+
+        SQLiteStatement count = mDb.compileStatement("SELECT COUNT(*) FROM " +
+            PhoneNumberCache.TABLE_PHONE_NUMBERS);
+        try {
+            assertEquals(new HashSet<>(Arrays.asList(kept)).size(), count.simpleQueryForLong());
+        }
+        finally {
+            count.close();
+        }
+    }
+
+    private PhoneNumberCache begin() {
+        mDb.beginTransaction();
+        return new PhoneNumberCache(mDb,
+            RegistrationService.createNumberNormalizer(mContext, MY_NUMBER, 0));
+    }
+
+    private void end(PhoneNumberCache cache) {
+        try {
+            cache.commit();
+            mDb.setTransactionSuccessful();
+        }
+        finally {
+            mDb.endTransaction();
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.database.Cursor;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import io.requery.android.database.sqlite.SQLiteDatabase;
+import io.requery.android.database.sqlite.SQLiteStatement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Checks that the incrementally updated thread counters always match a
+ * full recount of the messages.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ThreadCountersTest {
+
+    private static final int THREADS = 2;
+    private static final int MESSAGES = 50;
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        new MessagesProvider.DatabaseHelper(InstrumentationRegistry
+            .getInstrumentation().getTargetContext()).onCreate(mDb);
+        for (int i = 1; i <= THREADS; i++) {
+            mDb.execSQL("INSERT INTO threads (msg_id, peer, direction, timestamp) " +
+                "VALUES ('', ?, 0, 0)", new Object[] { "test" + i + "@kontalk.net" });
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    @Test
+    public void testCounters() {
+        Random random = new Random(42);
+        SQLiteStatement stm = mDb.compileStatement("INSERT INTO messages " +
+            "(thread_id, msg_id, peer, direction, unread, \"new\", timestamp, status) " +
+            "VALUES (?, ?, 'test@kontalk.net', 0, ?, ?, ?, ?)");
+        try {
+            // timestamps out of insertion order
+            for (int i = 0; i < MESSAGES; i++) {
+                stm.bindLong(1, 1 + random.nextInt(THREADS));
+                stm.bindString(2, "msg" + i);
+                stm.bindLong(3, random.nextInt(2));
+                stm.bindLong(4, random.nextInt(2));
+                stm.bindLong(5, random.nextInt(1000000) * 100L + i);
+                stm.bindLong(6, random.nextInt(5));
+                stm.executeInsert();
+            }
+        }
+        finally {
+            stm.close();
+        }
+        assertCounters(true);
+
+        // status updates, only the latest message counts
+        for (int i = 0; i < MESSAGES; i += 3) {
+            mDb.execSQL("UPDATE messages SET status = ? WHERE msg_id = ?",
+                new Object[] { random.nextInt(5), "msg" + i });
+        }
+        assertCounters(true);
+
+        // deleted messages are subtracted (status is not updated on delete)
+        for (int i = 0; i < MESSAGES; i += 4) {
+            mDb.execSQL("DELETE FROM messages WHERE msg_id = ?", new Object[] { "msg" + i });
+        }
+        assertCounters(false);
+    }
+
+    private void assertCounters(boolean checkStatus) {
+        Cursor c = mDb.rawQuery("SELECT _id, count, unread, \"new\", status, " +
+            "(SELECT COUNT(*) FROM messages WHERE thread_id = threads._id), " +
+            "(SELECT COUNT(*) FROM messages WHERE thread_id = threads._id AND unread <> 0), " +
+            "(SELECT COUNT(*) FROM messages WHERE thread_id = threads._id AND \"new\" <> 0), " +
+            "(SELECT status FROM messages WHERE thread_id = threads._id ORDER BY timestamp DESC LIMIT 1) " +
+            "FROM threads", null);
+        try {
+            assertEquals(THREADS, c.getCount());
+            while (c.moveToNext()) {
+                long threadId = c.getLong(0);
+                assertTrue(c.getInt(5) > 0);
+                assertEquals("count of thread " + threadId, c.getInt(5), c.getInt(1));
+                assertEquals("unread of thread " + threadId, c.getInt(6), c.getInt(2));
+                assertEquals("new of thread " + threadId, c.getInt(7), c.getInt(3));
+                if (checkStatus)
+                    assertEquals("status of thread " + threadId, c.getInt(8), c.getInt(4));
+            }
+        }
+        finally {
+            c.close();
+        }
+    }
+
+}
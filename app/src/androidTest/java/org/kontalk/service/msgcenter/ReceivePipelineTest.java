@@ -0,0 +1,126 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.os.PowerManager;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Submits a group creation from the owner followed by a message from a
+ * member, with the creation taking longer to decrypt: the member message
+ * must still be committed after the group exists. Deferred writes must be
+ * flushed once everything was committed.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ReceivePipelineTest {
+
+    private static final String GROUP = "group@kontalk.net";
+
+    private ReceivePipeline mPipeline;
+    private CountDownLatch mFlushed;
+
+    /** Groups "stored" by commit stages. */
+    private final Set<String> mGroups = Collections.synchronizedSet(new HashSet<String>());
+    /** Messages "stored" by commit stages, in commit order. */
+    private final List<String> mMessages = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        PowerManager.WakeLock wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+            "kontalk:ReceivePipelineTest");
+        wakeLock.setReferenceCounted(true);
+        mFlushed = new CountDownLatch(1);
+        mPipeline = new ReceivePipeline(wakeLock, new ReceivePipeline.Commit() {
+            @Override
+            public void commit() {
+                mMessages.add("flush");
+                mFlushed.countDown();
+            }
+        });
+    }
+
+    @Test
+    public void testGroupCreateBeforeMemberMessage() throws Exception {
+        final CountDownLatch memberProcessed = new CountDownLatch(1);
+        final CountDownLatch committed = new CountDownLatch(2);
+
+        // group creation from the owner: slow to decrypt
+        mPipeline.submit(new ReceivePipeline.Task() {
+            @Override
+            public ReceivePipeline.Commit process() throws Exception {
+                // wait for the member message to be processed first
+                // (it won't happen with a single worker thread)
+                memberProcessed.await(5, TimeUnit.SECONDS);
+                return new ReceivePipeline.Commit() {
+                    @Override
+                    public void commit() {
+                        mGroups.add(GROUP);
+                        mMessages.add("create");
+                        committed.countDown();
+                    }
+                };
+            }
+        });
+
+        // message from a member: fast to decrypt
+        mPipeline.submit(new ReceivePipeline.Task() {
+            @Override
+            public ReceivePipeline.Commit process() {
+                memberProcessed.countDown();
+                return new ReceivePipeline.Commit() {
+                    @Override
+                    public void commit() {
+                        // like canHandleGroupCommand: drop messages for unknown groups
+                        if (mGroups.contains(GROUP))
+                            mMessages.add("member");
+                        committed.countDown();
+                    }
+                };
+            }
+        });
+
+        assertTrue(committed.await(10, TimeUnit.SECONDS));
+        assertTrue(mFlushed.await(10, TimeUnit.SECONDS));
+        assertEquals(3, mMessages.size());
+        assertEquals("create", mMessages.get(0));
+        assertEquals("member", mMessages.get(1));
+        assertEquals("flush", mMessages.get(2));
+    }
+
+}
@@ -71,6 +71,7 @@ import org.kontalk.util.CustomSimpleXmppStringprep;
 import org.kontalk.util.DataUtils;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.Showcase;
+import org.kontalk.util.StartupMetrics;
 import org.kontalk.util.SystemUtils;
 
 
@@ -154,6 +155,7 @@ public class Kontalk extends MultiDexApplication {
     @Override
     public void onCreate() {
         super.onCreate();
+        StartupMetrics.start();
         sInstance = this;
 
         // init preferences
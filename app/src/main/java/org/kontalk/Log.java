@@ -19,7 +19,10 @@
 package org.kontalk;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -27,6 +30,7 @@ import java.util.Locale;
 
 import android.content.Context;
 
+import org.kontalk.util.AsyncLogWriter;
 import org.kontalk.util.DataUtils;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.RotatingFileWriter;
@@ -41,30 +45,49 @@ public final class Log {
 
     private static final String LOG_DIRECTORY = "debug";
     private static final String LOG_FILENAME = "kontalk-android.log";
-    private static DateFormat DATE_FORMAT;  // created on demand
+    private static final String LOG_EXPORT_FILENAME = "kontalk-android-export.log";
+    /** Same tag used by the system for crashes. */
+    private static final String CRASH_TAG = "AndroidRuntime";
+    private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        }
+    };
 
     /** A lock to fight race conditions when switching the debug log on and off. */
     private static final Object sDebugLock = new Object();
 
-    private static RotatingFileWriter sLogFileWriter;
+    /** Lines are written to file in the background. */
+    private static volatile AsyncLogWriter sLogFileWriter;
     private static File sLogFile;
+    /** True once the crash handler has been chained. */
+    private static boolean sCrashHandlerInstalled;
 
     public static void init(Context context) {
         try {
             synchronized (sDebugLock) {
                 if (Preferences.isDebugLogEnabled(context)) {
-                    DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
-                    File logDir = new File(context.getCacheDir(), LOG_DIRECTORY);
-                    logDir.mkdirs();
-                    sLogFile = new File(logDir, LOG_FILENAME);
-                    sLogFileWriter = new RotatingFileWriter(sLogFile);
+                    if (sLogFileWriter == null) {
+                        File logDir = new File(context.getCacheDir(), LOG_DIRECTORY);
+                        logDir.mkdirs();
+                        // left over by a previous export
+                        new File(logDir, LOG_EXPORT_FILENAME).delete();
+                        sLogFile = new File(logDir, LOG_FILENAME);
+                        sLogFileWriter = new AsyncLogWriter(sLogFile);
+                    }
+                    if (!sCrashHandlerInstalled) {
+                        installCrashHandler();
+                        sCrashHandlerInstalled = true;
+                    }
                 }
                 else {
-                    if (sLogFileWriter != null) {
-                        sLogFileWriter.abort();
+                    AsyncLogWriter writer = sLogFileWriter;
+                    if (writer != null) {
                         sLogFileWriter = null;
+                        writer.abort();
+                        new File(sLogFile.getParentFile(), LOG_EXPORT_FILENAME).delete();
                     }
-                    DATE_FORMAT = null;
                 }
             }
         }
@@ -73,10 +96,71 @@ public final class Log {
         }
     }
 
+    /**
+     * Writes the stack trace of uncaught exceptions to the log file before
+     * the process dies, then lets the previous handler do its job.
+     */
+    private static void installCrashHandler() {
+        final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                if (sLogFileWriter != null) {
+                    log(CRASH_TAG, android.util.Log.ERROR, "FATAL EXCEPTION: " + t.getName());
+                    log(CRASH_TAG, android.util.Log.ERROR, e);
+                    flush();
+                }
+                if (previous != null)
+                    previous.uncaughtException(t, e);
+            }
+        });
+    }
+
     public static File getLogFile() {
         return sLogFile;
     }
 
+    /** Waits for all lines logged so far to be written to the log file. */
+    public static void flush() {
+        AsyncLogWriter writer = sLogFileWriter;
+        if (writer != null) {
+            try {
+                writer.flush();
+            }
+            catch (IOException e) {
+                // the writer failed, logging will be disabled with the next line
+            }
+        }
+    }
+
+    /**
+     * Merges all log segments into a single file, e.g. for sending it.
+     * The same file is overwritten by every export and deleted when the
+     * debug log is disabled or on next start. Don't call from the UI thread.
+     * @return the merged file, or null if there is no log
+     */
+    public static File exportLogFile() throws IOException {
+        File logFile = sLogFile;
+        if (logFile == null)
+            return null;
+
+        // include everything logged so far
+        flush();
+
+        File exportFile = new File(logFile.getParentFile(), LOG_EXPORT_FILENAME);
+        InputStream in = RotatingFileWriter.openLog(logFile);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(exportFile);
+            DataUtils.copy(in, out);
+        }
+        finally {
+            DataUtils.close(in);
+            DataUtils.close(out);
+        }
+        return exportFile;
+    }
+
     public static boolean isDebug() {
         return BuildConfig.DEBUG || sLogFileWriter != null;
     }
@@ -103,32 +187,25 @@ public final class Log {
                 strLevel = "?";
                 break;
         }
-        String timestamp;
-        synchronized (DATE_FORMAT) {
-            timestamp = DATE_FORMAT.format(new Date());
-        }
+        String timestamp = DATE_FORMAT.get().format(new Date());
         return timestamp + " " + strLevel + "/" + tag + ": " + msg;
     }
 
     private static void log(String tag, int level, Throwable tr) {
-        synchronized (sDebugLock) {
-            if (sLogFileWriter != null && tr != null) {
-                log(tag, level, android.util.Log.getStackTraceString(tr));
-            }
+        if (sLogFileWriter != null && tr != null) {
+            log(tag, level, android.util.Log.getStackTraceString(tr));
         }
     }
 
     private static void log(String tag, int level, String msg) {
-        synchronized (sDebugLock) {
-            if (sLogFileWriter != null) {
-                try {
-                    sLogFileWriter.println(buildLog(tag, level, msg));
-                    sLogFileWriter.flush();
-                }
-                catch (IOException e) {
-                    // disable logging but keep the file
-                    DataUtils.close(sLogFileWriter);
-                    sLogFileWriter = null;
+        AsyncLogWriter writer = sLogFileWriter;
+        if (writer != null) {
+            // the writer might have been closed by an I/O error
+            if (!writer.println(buildLog(tag, level, msg))) {
+                // disable logging but keep the file
+                synchronized (sDebugLock) {
+                    if (sLogFileWriter == writer)
+                        sLogFileWriter = null;
                 }
             }
         }
@@ -314,52 +314,9 @@ public class MessagesController {
      * Process an incoming message.
      */
     public Uri incoming(CompositeMessage msg) {
-        final String sender = msg.getSender(true);
-
-        // save to local storage
-        ContentValues values = new ContentValues();
-        values.put(MyMessages.Messages.MESSAGE_ID, msg.getId());
-        values.put(MyMessages.Messages.PEER, sender);
-
-        MessageUtils.fillContentValues(values, msg);
+        ContentValues values = incomingValues(msg);
 
         GroupCommandComponent group = msg.getComponent(GroupCommandComponent.class);
-        // notify for 1-to-1 messages and group creation and part group commands
-        boolean notify = (group == null || group.isCreateCommand() || group.isPartCommand());
-
-        values.put(MyMessages.Messages.STATUS, msg.getStatus());
-        // group commands don't get notifications
-        values.put(MyMessages.Messages.UNREAD, notify);
-        values.put(MyMessages.Messages.NEW, notify);
-        values.put(MyMessages.Messages.DIRECTION, MyMessages.Messages.DIRECTION_IN);
-        values.put(MyMessages.Messages.TIMESTAMP, System.currentTimeMillis());
-
-        LocationComponent loc = msg.getComponent(LocationComponent.class);
-        if (loc != null) {
-            values.put(MyMessages.Messages.BODY_MIME, LocationComponent.MIME_TYPE);
-            values.put(MyMessages.Messages.GEO_LATITUDE, loc.getLatitude());
-            values.put(MyMessages.Messages.GEO_LONGITUDE, loc.getLongitude());
-            if (!TextUtils.isEmpty(loc.getText()))
-                values.put(MyMessages.Messages.GEO_TEXT, loc.getText());
-            if (!TextUtils.isEmpty(loc.getStreet()))
-                values.put(MyMessages.Messages.GEO_STREET, loc.getStreet());
-        }
-
-        InReplyToComponent inReplyTo = msg.getComponent(InReplyToComponent.class);
-        if (inReplyTo != null) {
-            values.put(MyMessages.Messages.IN_REPLY_TO, inReplyTo.getContent().getId());
-        }
-
-        GroupComponent groupInfo = msg.getComponent(GroupComponent.class);
-        if (groupInfo != null) {
-            values.put(MyMessages.Groups.GROUP_JID, groupInfo.getContent().getJid().toString());
-            values.put(MyMessages.Groups.GROUP_TYPE, KontalkGroupController.GROUP_TYPE);
-
-            String groupSubject = groupInfo.getContent().getSubject();
-            if (groupSubject != null)
-                values.put(MyMessages.Groups.SUBJECT, groupSubject);
-        }
-
         if (group != null) {
             // the following operations will work because we are operating with
             // groups and group_members table directly (that is, no foreign keys)
@@ -428,6 +385,86 @@ public class MessagesController {
 
         // will be null if something went wrong
         Uri msgUri = MessagesProviderClient.newIncomingMessage(mContext, values);
+        incomingStored(msg, msgUri);
+        return msgUri;
+    }
+
+    /**
+     * Process several incoming messages, storing them in a single transaction
+     * (e.g. the offline messages backlog). Group commands are not supported.
+     * @return the new message Uris, null for messages that were not stored
+     */
+    public Uri[] incoming(List<CompositeMessage> msgs) {
+        ContentValues[] values = new ContentValues[msgs.size()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = incomingValues(msgs.get(i));
+
+        // will be null for duplicates
+        Uri[] msgUris = MessagesProviderClient.newIncomingMessages(mContext, values);
+        for (int i = 0; i < msgUris.length; i++)
+            incomingStored(msgs.get(i), msgUris[i]);
+        return msgUris;
+    }
+
+    /** Notify for 1-to-1 messages and group creation and part group commands. */
+    private static boolean isNotifying(CompositeMessage msg) {
+        GroupCommandComponent group = msg.getComponent(GroupCommandComponent.class);
+        return (group == null || group.isCreateCommand() || group.isPartCommand());
+    }
+
+    private ContentValues incomingValues(CompositeMessage msg) {
+        final String sender = msg.getSender(true);
+
+        // save to local storage
+        ContentValues values = new ContentValues();
+        values.put(MyMessages.Messages.MESSAGE_ID, msg.getId());
+        values.put(MyMessages.Messages.PEER, sender);
+
+        MessageUtils.fillContentValues(values, msg);
+
+        boolean notify = isNotifying(msg);
+
+        values.put(MyMessages.Messages.STATUS, msg.getStatus());
+        // group commands don't get notifications
+        values.put(MyMessages.Messages.UNREAD, notify);
+        values.put(MyMessages.Messages.NEW, notify);
+        values.put(MyMessages.Messages.DIRECTION, MyMessages.Messages.DIRECTION_IN);
+        values.put(MyMessages.Messages.TIMESTAMP, System.currentTimeMillis());
+
+        LocationComponent loc = msg.getComponent(LocationComponent.class);
+        if (loc != null) {
+            values.put(MyMessages.Messages.BODY_MIME, LocationComponent.MIME_TYPE);
+            values.put(MyMessages.Messages.GEO_LATITUDE, loc.getLatitude());
+            values.put(MyMessages.Messages.GEO_LONGITUDE, loc.getLongitude());
+            if (!TextUtils.isEmpty(loc.getText()))
+                values.put(MyMessages.Messages.GEO_TEXT, loc.getText());
+            if (!TextUtils.isEmpty(loc.getStreet()))
+                values.put(MyMessages.Messages.GEO_STREET, loc.getStreet());
+        }
+
+        InReplyToComponent inReplyTo = msg.getComponent(InReplyToComponent.class);
+        if (inReplyTo != null) {
+            values.put(MyMessages.Messages.IN_REPLY_TO, inReplyTo.getContent().getId());
+        }
+
+        GroupComponent groupInfo = msg.getComponent(GroupComponent.class);
+        if (groupInfo != null) {
+            values.put(MyMessages.Groups.GROUP_JID, groupInfo.getContent().getJid().toString());
+            values.put(MyMessages.Groups.GROUP_TYPE, KontalkGroupController.GROUP_TYPE);
+
+            String groupSubject = groupInfo.getContent().getSubject();
+            if (groupSubject != null)
+                values.put(MyMessages.Groups.SUBJECT, groupSubject);
+        }
+
+        return values;
+    }
+
+    /** Updates notifications and starts automatic download for a stored message. */
+    private void incomingStored(CompositeMessage msg, Uri msgUri) {
+        final String sender = msg.getSender(true);
+        boolean notify = isNotifying(msg);
+        GroupComponent groupInfo = msg.getComponent(GroupComponent.class);
 
         if (groupInfo == null) {
             // mark sender as registered in the users database
@@ -447,11 +484,10 @@ public class MessagesController {
         // and the conversation is not open already
         String paused = groupInfo != null ? groupInfo.getContent().getJid().toString() : sender;
         if (notify && msgUri != null) {
-            if (!MessagingNotification.isPaused(paused)) {
-                // update notifications (delayed)
-                MessagingNotification.delayedUpdateMessagesNotification(mContext.getApplicationContext(), true);
-            }
-            else {
+            boolean isPaused = MessagingNotification.isPaused(paused);
+            // update notifications (delayed)
+            MessagingNotification.messageReceived(mContext.getApplicationContext(), !isPaused);
+            if (isPaused) {
                 // play in-conversation sound
                 MediaStorage.playNotificationSound(mContext.getApplicationContext(), R.raw.sound_incoming);
             }
@@ -481,8 +517,6 @@ public class MessagesController {
                 break;
             }
         }
-
-        return msgUri;
     }
 
     private final class MessageCenterListener extends BroadcastReceiver {
@@ -44,21 +44,25 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import androidx.annotation.Nullable;
 import android.util.Base64;
 import android.widget.Toast;
 
 import org.kontalk.BuildConfig;
+import org.kontalk.Kontalk;
 import org.kontalk.R;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.ServerList;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.crypto.PersonalKeyExporter;
+import org.kontalk.crypto.X509Bridge;
 import org.kontalk.provider.Keyring;
 import org.kontalk.ui.MainActivity;
 import org.kontalk.ui.NumberValidation;
 import org.kontalk.util.DataUtils;
+import org.kontalk.util.StartupMetrics;
 
 
 /**
@@ -161,12 +165,29 @@ public class Authenticator extends AbstractAccountAuthenticator {
         String bridgeCertData = am.getUserData(account, DATA_BRIDGECERT);
 
         if (privKeyData != null && pubKeyData != null && bridgeCertData != null) {
-            return PersonalKey
-                .load(Base64.decode(privKeyData, Base64.DEFAULT),
-                    Base64.decode(pubKeyData, Base64.DEFAULT),
-                    passphrase,
-                    Base64.decode(bridgeCertData, Base64.DEFAULT)
-                );
+            long start = SystemClock.elapsedRealtime();
+            byte[] bridgeCert = Base64.decode(bridgeCertData, Base64.DEFAULT);
+
+            // try the local cache first to skip key decryption
+            Context context = Kontalk.get();
+            byte[] binding = PersonalKeyCache.binding(passphrase, privKeyData, pubKeyData, bridgeCertData);
+            PersonalKey key = PersonalKeyCache.load(context, binding);
+            boolean cached = key != null;
+            if (cached) {
+                key = key.copy(X509Bridge.load(bridgeCert));
+            }
+            else {
+                key = PersonalKey
+                    .load(Base64.decode(privKeyData, Base64.DEFAULT),
+                        Base64.decode(pubKeyData, Base64.DEFAULT),
+                        passphrase,
+                        bridgeCert
+                    );
+                PersonalKeyCache.store(context, binding, key);
+            }
+
+            StartupMetrics.keyLoaded(SystemClock.elapsedRealtime() - start, cached);
+            return key;
         }
         else {
             return null;
@@ -287,6 +308,9 @@ public class Authenticator extends AbstractAccountAuthenticator {
         if (account == null)
             return;
 
+        // unlocked key material must not survive the account
+        PersonalKeyCache.clear(ctx);
+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
             final boolean result = am.removeAccountExplicitly(account);
             callback.run(new AccountManagerFuture<Boolean>() {
@@ -0,0 +1,222 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.authenticator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import android.content.Context;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import androidx.annotation.RequiresApi;
+import androidx.core.content.ContextCompat;
+
+import org.kontalk.Log;
+import org.kontalk.crypto.PersonalKey;
+import org.kontalk.util.DataUtils;
+
+
+/**
+ * Local cache of the unlocked personal key, so that process restarts don't
+ * have to go through passphrase derivation and secret key decryption again.
+ * Key material is sealed with an AES/GCM key that never leaves the Android
+ * Keystore. A digest of the account key data and passphrase is bound to the
+ * ciphertext as additional authenticated data: any change to the account key
+ * (or tampering with the file) makes the cache unusable and it will be
+ * discarded.
+ * @author Daniele Ricci
+ */
+final class PersonalKeyCache {
+    private static final String TAG = Authenticator.class.getSimpleName();
+
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String KEY_ALIAS = "org.kontalk.personalKeyCache";
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int GCM_TAG_LENGTH = 128;
+
+    private static final String FILENAME = "personalkey.cache";
+    private static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private PersonalKeyCache() {
+    }
+
+    static boolean isSupported() {
+        // AES keys in the Android Keystore
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /** Digest of the data the cached key was derived from. */
+    static byte[] binding(String passphrase, String privateKeyData, String publicKeyData, String bridgeCertData) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (String data : new String[] { passphrase, privateKeyData, publicKeyData, bridgeCertData }) {
+                byte[] bytes = data != null ? data.getBytes(UTF8) : new byte[0];
+                // length prefix to avoid ambiguities
+                md.update(new byte[] {
+                    (byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16),
+                    (byte) (bytes.length >>> 8), (byte) bytes.length });
+                md.update(bytes);
+            }
+            return md.digest();
+        }
+        catch (GeneralSecurityException e) {
+            // SHA-256 is always available
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Loads the cached key. The returned key has no bridge certificate.
+     * @return the personal key or null if not available or not valid anymore
+     */
+    static PersonalKey load(Context context, byte[] binding) {
+        if (!isSupported())
+            return null;
+
+        File file = getFile(context);
+        if (!file.isFile())
+            return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != VERSION)
+                throw new IOException("unsupported cache version");
+
+            byte[] iv = new byte[in.readUnsignedByte()];
+            in.readFully(iv);
+            byte[] sealed = new byte[in.readInt()];
+            in.readFully(sealed);
+
+            SecretKey key = getSecretKey(false);
+            if (key == null)
+                throw new GeneralSecurityException("cache key not found");
+
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            cipher.updateAAD(binding);
+            byte[] data = cipher.doFinal(sealed);
+
+            return PersonalKey.fromBase64(new String(data, UTF8));
+        }
+        catch (Exception e) {
+            // account key changed, keystore was reset, corrupted file...
+            Log.w(TAG, "discarding personal key cache", e);
+            DataUtils.close(in);
+            in = null;
+            clear(context);
+            return null;
+        }
+        finally {
+            DataUtils.close(in);
+        }
+    }
+
+    /** Seals the given key into the cache. Errors are just logged. */
+    static void store(Context context, byte[] binding, PersonalKey personalKey) {
+        if (!isSupported())
+            return;
+
+        File file = getFile(context);
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, getSecretKey(true));
+            cipher.updateAAD(binding);
+            byte[] sealed = cipher.doFinal(personalKey.toBase64().getBytes(UTF8));
+            byte[] iv = cipher.getIV();
+
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(sealed.length + iv.length + 16);
+            out = new DataOutputStream(buf);
+            out.writeInt(VERSION);
+            out.writeByte(iv.length);
+            out.write(iv);
+            out.writeInt(sealed.length);
+            out.write(sealed);
+            out.close();
+            out = null;
+
+            FileOutputStream fout = new FileOutputStream(tmp);
+            try {
+                fout.write(buf.toByteArray());
+                fout.getFD().sync();
+            }
+            finally {
+                fout.close();
+            }
+            if (!tmp.renameTo(file))
+                throw new IOException("unable to write cache file");
+        }
+        catch (Exception e) {
+            Log.w(TAG, "unable to cache personal key", e);
+            tmp.delete();
+        }
+        finally {
+            DataUtils.close(out);
+        }
+    }
+
+    /** Deletes the cached key. */
+    static void clear(Context context) {
+        getFile(context).delete();
+    }
+
+    private static File getFile(Context context) {
+        // this must never end up in a backup
+        return new File(ContextCompat.getNoBackupFilesDir(context), FILENAME);
+    }
+
+    @RequiresApi(Build.VERSION_CODES.M)
+    private static SecretKey getSecretKey(boolean create) throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        keyStore.load(null);
+        if (keyStore.containsAlias(KEY_ALIAS))
+            return (SecretKey) keyStore.getKey(KEY_ALIAS, null);
+        if (!create)
+            return null;
+
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+            .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+            .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+            .setKeySize(256)
+            .build());
+        return generator.generateKey();
+    }
+
+}
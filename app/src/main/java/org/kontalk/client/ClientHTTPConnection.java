@@ -56,7 +56,9 @@ import info.guardianproject.netcipher.client.TlsOnlySocketFactory;
 
 import org.kontalk.Log;
 import org.kontalk.message.CompositeMessage;
+import org.kontalk.service.DownloadDecryptor;
 import org.kontalk.service.DownloadListener;
+import org.kontalk.util.DataUtils;
 import org.kontalk.util.InternalTrustStore;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.ProgressOutputStreamEntity;
@@ -213,10 +215,21 @@ public class ClientHTTPConnection {
      * determining the file name from the Content-Disposition header.
      */
     public void downloadAutofilename(String url, @NonNull File defaultFile, Date timestamp, DownloadListener listener) throws IOException {
-        _download(url, defaultFile, timestamp, listener);
+        _download(url, defaultFile, timestamp, listener, null);
     }
 
-    private void _download(String url, @NonNull File defaultFile, Date timestamp, DownloadListener listener) throws IOException {
+    /**
+     * Downloads to a directory represented by a {@link File} object,
+     * determining the file name from the Content-Disposition header and
+     * decrypting data while it's being downloaded.
+     */
+    public void downloadAutofilename(String url, @NonNull File defaultFile, Date timestamp,
+            DownloadListener listener, DownloadDecryptor decryptor) throws IOException {
+        _download(url, defaultFile, timestamp, listener, decryptor);
+    }
+
+    private void _download(String url, @NonNull File defaultFile, Date timestamp,
+            DownloadListener listener, DownloadDecryptor decryptor) throws IOException {
         boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
         currentRequest = prepareURLDownload(url, acceptAnyCertificate);
 
@@ -250,9 +263,20 @@ public class ClientHTTPConnection {
 
             // we need to wrap the entity to monitor the download progress
             ProgressOutputStreamEntity entity =
-                new ProgressOutputStreamEntity(currentRequest, url, destination, listener, PROGRESS_PUBLISH_DELAY);
+                new ProgressOutputStreamEntity(currentRequest, url, destination, listener,
+                    decryptor, PROGRESS_PUBLISH_DELAY);
             FileOutputStream out = new FileOutputStream(destination);
-            entity.writeTo(out);
+            try {
+                entity.writeTo(out);
+            }
+            catch (IOException e) {
+                if (decryptor != null) {
+                    // don't leave partially decrypted data around
+                    DataUtils.close(out);
+                    destination.delete();
+                }
+                throw e;
+            }
             out.close();
             return;
         }
@@ -0,0 +1,132 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Connection history of endpoint servers, used to pick the servers to try
+ * first. Servers are ranked by average connection time, with a penalty for
+ * recent consecutive failures. History is kept in memory only.
+ * @author Daniele Ricci
+ */
+public class ServerRanking {
+
+    /** Weight of the latest sample in the connection time average. */
+    private static final float LATENCY_WEIGHT = 0.3f;
+    /** Connection time assumed for servers never connected to. */
+    static final long UNKNOWN_LATENCY = 2000;
+    /** Penalty for each consecutive failure. */
+    static final long FAILURE_PENALTY = 10000;
+    /** Failures older than this are forgotten. */
+    static final long FAILURE_EXPIRATION = TimeUnit.MINUTES.toMillis(30);
+
+    private static final class Stats {
+        /** Average connection time, -1 if unknown. */
+        long latency = -1;
+        /** Consecutive failures. */
+        int failures;
+        long lastFailure;
+    }
+
+    private static ServerRanking sInstance;
+
+    private final Map<EndpointServer, Stats> mStats = new HashMap<>();
+
+    ServerRanking() {
+    }
+
+    public static synchronized ServerRanking getInstance() {
+        if (sInstance == null)
+            sInstance = new ServerRanking();
+        return sInstance;
+    }
+
+    private Stats getStats(EndpointServer server) {
+        Stats stats = mStats.get(server);
+        if (stats == null) {
+            stats = new Stats();
+            mStats.put(server, stats);
+        }
+        return stats;
+    }
+
+    /** Records a successful connection that took the given time in milliseconds. */
+    public synchronized void success(EndpointServer server, long latency) {
+        Stats stats = getStats(server);
+        stats.latency = stats.latency < 0 ? latency :
+            (long) (LATENCY_WEIGHT * latency + (1 - LATENCY_WEIGHT) * stats.latency);
+        stats.failures = 0;
+    }
+
+    public void failure(EndpointServer server) {
+        failure(server, System.currentTimeMillis());
+    }
+
+    /** Records a failed connection. */
+    synchronized void failure(EndpointServer server, long now) {
+        Stats stats = getStats(server);
+        stats.failures++;
+        stats.lastFailure = now;
+    }
+
+    /** The lower, the better. */
+    synchronized long score(EndpointServer server, long now) {
+        Stats stats = mStats.get(server);
+        if (stats == null)
+            return UNKNOWN_LATENCY;
+
+        long score = stats.latency >= 0 ? stats.latency : UNKNOWN_LATENCY;
+        if (stats.failures > 0 && now - stats.lastFailure < FAILURE_EXPIRATION)
+            score += stats.failures * FAILURE_PENALTY;
+        return score;
+    }
+
+    public List<EndpointServer> rank(Collection<EndpointServer> servers, int max) {
+        return rank(servers, max, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns at most max servers from the given ones, best first.
+     * Servers with the same score keep their original order.
+     */
+    synchronized List<EndpointServer> rank(Collection<EndpointServer> servers, int max, final long now) {
+        List<EndpointServer> ranked = new ArrayList<>(servers);
+        final Map<EndpointServer, Long> scores = new HashMap<>(ranked.size());
+        for (EndpointServer server : ranked)
+            scores.put(server, score(server, now));
+
+        Collections.sort(ranked, new Comparator<EndpointServer>() {
+            @Override
+            public int compare(EndpointServer o1, EndpointServer o2) {
+                return scores.get(o1).compareTo(scores.get(o2));
+            }
+        });
+        return ranked.size() > max ? new ArrayList<>(ranked.subList(0, max)) : ranked;
+    }
+
+}
@@ -94,6 +94,24 @@ public abstract class Coder {
     /** Encrypts a file. */
     public abstract void encryptFile(InputStream input, OutputStream output) throws GeneralSecurityException;
 
+    /**
+     * Encrypts a file.
+     * @param mime MIME type of the file, if known (used to choose compression)
+     */
+    public abstract void encryptFile(InputStream input, OutputStream output, String mime)
+        throws GeneralSecurityException;
+
+    /**
+     * Prepares a file for encryption while streaming it. The input is read
+     * once to compute the signature; the file will be read again when
+     * streaming the returned object.
+     * @param mime MIME type of the file, if known (used to choose compression)
+     * @return the prepared file, or null if the file should be compressed
+     * (compressed length is not known in advance)
+     */
+    public abstract EncryptedFile prepareEncryptFile(InputStream input, String mime)
+        throws GeneralSecurityException;
+
     /** Decrypts a file. */
     public abstract void decryptFile(InputStream input, boolean verify,
         OutputStream output, List<DecryptException> errors) throws GeneralSecurityException;
@@ -0,0 +1,130 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.util.Locale;
+
+import org.bouncycastle.openpgp.PGPCompressedData;
+
+
+/**
+ * Chooses the compression algorithm for encrypted payloads.
+ * Already compressed data (images, audio, video, archives) is stored
+ * uncompressed: deflating it again costs CPU time for no size gain.
+ * Data is always wrapped in a compressed data packet (possibly with the
+ * uncompressed algorithm) for compatibility with older clients.
+ * @author Daniele Ricci
+ */
+public final class CompressionPolicy {
+
+    /** How many bytes to sample for the entropy probe. */
+    public static final int PROBE_SIZE = 4096;
+
+    /**
+     * Entropy threshold in bits per byte. Data above this is considered
+     * incompressible (deflate output usually scores around 7.9).
+     */
+    static final double ENTROPY_THRESHOLD = 7.5;
+
+    /** Below this many bytes the probe is not reliable, so we just compress. */
+    private static final int MIN_PROBE_SIZE = 512;
+
+    private static final String[] INCOMPRESSIBLE_TYPES = {
+        "image/jpeg",
+        "image/png",
+        "image/gif",
+        "image/webp",
+        "image/heic",
+        "image/heif",
+        "application/zip",
+        "application/gzip",
+        "application/x-gzip",
+        "application/x-7z-compressed",
+        "application/x-rar-compressed",
+        "application/x-bzip2",
+        "application/x-xz",
+        "application/vnd.android.package-archive",
+        "application/pdf",
+    };
+
+    private CompressionPolicy() {
+    }
+
+    /**
+     * Returns the compression algorithm for the given MIME type, or -1 if
+     * the MIME type alone is not enough to decide.
+     */
+    public static int forMime(String mime) {
+        if (mime == null)
+            return -1;
+
+        mime = mime.toLowerCase(Locale.US);
+        if (mime.startsWith("text/") || mime.endsWith("+xml") || mime.endsWith("/xml") ||
+                mime.endsWith("/json"))
+            return PGPCompressedData.ZIP;
+
+        // compressed media formats
+        if (mime.startsWith("video/") || mime.startsWith("audio/"))
+            return PGPCompressedData.UNCOMPRESSED;
+
+        for (String type : INCOMPRESSIBLE_TYPES) {
+            if (type.equals(mime))
+                return PGPCompressedData.UNCOMPRESSED;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the compression algorithm for the given data.
+     * @param mime MIME type of the data, if known
+     * @param probe the first bytes of the data
+     * @param length number of valid bytes in probe
+     */
+    public static int select(String mime, byte[] probe, int length) {
+        int algorithm = forMime(mime);
+        if (algorithm >= 0)
+            return algorithm;
+
+        if (length >= MIN_PROBE_SIZE && entropy(probe, 0, length) > ENTROPY_THRESHOLD)
+            return PGPCompressedData.UNCOMPRESSED;
+
+        return PGPCompressedData.ZIP;
+    }
+
+    /** Shannon entropy of the given bytes, in bits per byte. */
+    public static double entropy(byte[] data, int offset, int length) {
+        if (length <= 0)
+            return 0;
+
+        int[] counts = new int[256];
+        for (int i = offset; i < offset + length; i++)
+            counts[data[i] & 0xff]++;
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.bouncycastle.bcpg.PacketTags;
+import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
+import org.bouncycastle.openpgp.PGPException;
+
+
+/**
+ * A file prepared for encryption while streaming it.
+ * Session key packets and signature are generated in advance and all
+ * packets use definite lengths, so the exact length of the encrypted data
+ * is known before reading the file again (e.g. to request an upload slot).
+ * The file can be streamed only once.
+ * @author Daniele Ricci
+ */
+public final class EncryptedFile {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final PGPEncryptedDataGenerator mGenerator;
+    private final OutputStream mEncryptedOut;
+    private final Sink mSink;
+    private final long mDataLength;
+    private final byte[] mTrailer;
+    private final long mLength;
+
+    private boolean mOpened;
+
+    /**
+     * @param generator the encrypted data generator, with recipients set
+     * @param header packets preceding the file data
+     * @param dataLength length of the file data
+     * @param trailer packets following the file data
+     */
+    EncryptedFile(PGPEncryptedDataGenerator generator, byte[] header, long dataLength, byte[] trailer)
+            throws IOException, PGPException {
+        mGenerator = generator;
+        mDataLength = dataLength;
+        mTrailer = trailer;
+        mSink = new Sink();
+        mEncryptedOut = generator.open(mSink, header.length + dataLength + trailer.length);
+        // session key packets and the encrypted data packet header are written by now
+        mLength = mSink.packetEnd(PacketTags.SYM_ENC_INTEGRITY_PRO);
+        mEncryptedOut.write(header);
+    }
+
+    /** Returns the exact length of the encrypted data. */
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Returns a stream encrypting the given file data while reading it.
+     * The data must be the same that was used to prepare this object.
+     */
+    public synchronized InputStream open(InputStream input) {
+        if (mOpened)
+            throw new IllegalStateException("encrypted file already opened");
+        mOpened = true;
+        return new EncryptingInputStream(input);
+    }
+
+    private final class EncryptingInputStream extends InputStream {
+        private final InputStream mInput;
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private long mRemaining = mDataLength;
+        private boolean mFinished;
+
+        EncryptingInputStream(InputStream input) {
+            mInput = input;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) > 0 ? (b[0] & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+
+            while (mSink.available() == 0 && !mFinished)
+                fill();
+
+            return mSink.available() > 0 ? mSink.drain(b, off, len) : -1;
+        }
+
+        /** Encrypts the next chunk of data into the sink. */
+        private void fill() throws IOException {
+            if (mRemaining > 0) {
+                int len = mInput.read(mBuffer, 0, (int) Math.min(mBuffer.length, mRemaining));
+                if (len < 0)
+                    throw new IOException("file is shorter than expected");
+                mEncryptedOut.write(mBuffer, 0, len);
+                mRemaining -= len;
+            }
+            else {
+                // length was already declared and signature computed
+                if (mInput.read() >= 0)
+                    throw new IOException("file is longer than expected");
+                mEncryptedOut.write(mTrailer);
+                mGenerator.close();
+                mFinished = true;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInput.close();
+        }
+    }
+
+    /** Collects the encrypted data until it is read by the stream. */
+    private static final class Sink extends ByteArrayOutputStream {
+        private int mPosition;
+
+        int available() {
+            return count - mPosition;
+        }
+
+        int drain(byte[] b, int off, int len) {
+            len = Math.min(len, count - mPosition);
+            System.arraycopy(buf, mPosition, b, off, len);
+            mPosition += len;
+            if (mPosition == count) {
+                reset();
+                mPosition = 0;
+            }
+            return len;
+        }
+
+        /**
+         * Parses the packet headers written so far and returns the offset
+         * of the end of the first packet with the given tag.
+         */
+        long packetEnd(int tag) throws IOException {
+            int pos = mPosition;
+            while (pos < count) {
+                int hdr = buf[pos] & 0xff;
+                if ((hdr & 0x80) == 0)
+                    throw new IOException("invalid packet header");
+
+                int packetTag;
+                int headerLength;
+                long bodyLength;
+                if ((hdr & 0x40) != 0) {
+                    // new format
+                    packetTag = hdr & 0x3f;
+                    int first = buf[pos + 1] & 0xff;
+                    if (first < 192) {
+                        bodyLength = first;
+                        headerLength = 2;
+                    }
+                    else if (first < 224) {
+                        bodyLength = ((first - 192) << 8) + (buf[pos + 2] & 0xff) + 192;
+                        headerLength = 3;
+                    }
+                    else if (first == 255) {
+                        bodyLength = readLength(pos + 2, 4);
+                        headerLength = 6;
+                    }
+                    else {
+                        throw new IOException("partial packet length");
+                    }
+                }
+                else {
+                    // old format
+                    packetTag = (hdr >> 2) & 0xf;
+                    int lengthType = hdr & 0x3;
+                    if (lengthType == 3)
+                        throw new IOException("indeterminate packet length");
+                    int size = 1 << lengthType;
+                    bodyLength = readLength(pos + 1, size);
+                    headerLength = 1 + size;
+                }
+
+                if (packetTag == tag)
+                    return pos + headerLength + bodyLength;
+                pos += headerLength + bodyLength;
+            }
+            throw new IOException("packet not found");
+        }
+
+        private long readLength(int offset, int size) {
+            long length = 0;
+            for (int i = 0; i < size; i++)
+                length = (length << 8) | (buf[offset + i] & 0xff);
+            return length;
+        }
+    }
+
+}
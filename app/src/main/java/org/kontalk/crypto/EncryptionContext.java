@@ -0,0 +1,62 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+
+/**
+ * Recipients of an encrypted message with their keys and user IDs already
+ * resolved. Meant to be reused for consecutive messages to the same
+ * recipients (e.g. a group chat), so the per-recipient work is done once.
+ * Instances are immutable and can be shared among threads.
+ * @author Daniele Ricci
+ */
+public final class EncryptionContext {
+
+    private final String mNetwork;
+    private final PGPParsedKeyRing[] mRecipients;
+    private final String[] mUserIds;
+
+    public EncryptionContext(String network, PGPParsedKeyRing[] recipients) {
+        mNetwork = network;
+        mRecipients = recipients;
+        mUserIds = new String[recipients.length];
+        for (int i = 0; i < recipients.length; i++)
+            mUserIds[i] = recipients[i].getUserId(network);
+    }
+
+    /** The network the user IDs were resolved for. */
+    public String getNetwork() {
+        return mNetwork;
+    }
+
+    /** Recipient keys. The returned array must not be modified. */
+    PGPParsedKeyRing[] getRecipients() {
+        return mRecipients;
+    }
+
+    /** Recipient user IDs, in the same order as the keys. The returned array must not be modified. */
+    String[] getUserIds() {
+        return mUserIds;
+    }
+
+    public int size() {
+        return mRecipients.length;
+    }
+
+}
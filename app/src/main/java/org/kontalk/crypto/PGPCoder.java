@@ -18,7 +18,6 @@
 
 package org.kontalk.crypto;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -85,31 +84,91 @@ public class PGPCoder extends Coder {
     private static final KeyFingerPrintCalculator sFingerprintCalculator =
         PGP.sFingerprintCalculator;
 
-    /** Buffer size. It should always be a power of 2. */
-    private static final int BUFFER_SIZE = 1 << 8;
+    /** Buffer size for text and stanza payloads. It should always be a power of 2. */
+    private static final int TEXT_BUFFER_SIZE = 1 << 12;
+    /** Buffer size for file payloads. It should always be a power of 2. */
+    private static final int FILE_BUFFER_SIZE = 1 << 16;
+
+    /** Estimated size of the encryption envelope, excluding recipients. */
+    private static final int ENVELOPE_OVERHEAD = 512;
+    /** Estimated size of a public key encrypted session key packet. */
+    private static final int RECIPIENT_OVERHEAD = 320;
+
+    /**
+     * Buffers for the encryption pipeline. Each stream needs its own buffer
+     * since they are all in use at the same time. The buffer size is also
+     * the partial packet size used by the generators.
+     */
+    private static final class Buffers {
+        final byte[] encrypted;
+        final byte[] compressed;
+        final byte[] literal;
+        final byte[] copy;
+
+        Buffers(int size) {
+            encrypted = new byte[size];
+            compressed = new byte[size];
+            literal = new byte[size];
+            copy = new byte[size];
+        }
+    }
+
+    /**
+     * Text buffers are reused by each thread since messages are small and
+     * frequent. File buffers are allocated per file instead, to avoid keeping
+     * big chunks of memory around in every thread.
+     */
+    private static final ThreadLocal<Buffers> sTextBuffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers(TEXT_BUFFER_SIZE);
+        }
+    };
 
     private final EndpointServer mServer;
     private final PersonalKey mKey;
 
     // either one of these two has a value
 
-    private final PGPPublicKeyRing[] mRecipients;
-    private final PGPPublicKeyRing mSender;
+    private final EncryptionContext mRecipients;
+    private final PGPParsedKeyRing mSender;
 
     public PGPCoder(EndpointServer server, PersonalKey key, PGPPublicKeyRing[] recipients) {
+        this(server, key, parse(recipients));
+    }
+
+    public PGPCoder(EndpointServer server, PersonalKey key, PGPPublicKeyRing sender) {
+        this(server, key, sender != null ? new PGPParsedKeyRing(sender) : null);
+    }
+
+    public PGPCoder(EndpointServer server, PersonalKey key, PGPParsedKeyRing[] recipients) {
+        this(server, key, new EncryptionContext(server.getNetwork(), recipients));
+    }
+
+    public PGPCoder(EndpointServer server, PersonalKey key, EncryptionContext recipients) {
+        if (!recipients.getNetwork().equals(server.getNetwork()))
+            throw new IllegalArgumentException("encryption context is for another network");
+
         mServer = server;
         mKey = key;
         mRecipients = recipients;
         mSender = null;
     }
 
-    public PGPCoder(EndpointServer server, PersonalKey key, PGPPublicKeyRing sender) {
+    public PGPCoder(EndpointServer server, PersonalKey key, PGPParsedKeyRing sender) {
         mServer = server;
         mKey = key;
         mRecipients = null;
         mSender = sender;
     }
 
+    private static PGPParsedKeyRing[] parse(PGPPublicKeyRing[] keyRings) {
+        PGPParsedKeyRing[] parsed = new PGPParsedKeyRing[keyRings.length];
+        for (int i = 0; i < keyRings.length; i++)
+            parsed[i] = new PGPParsedKeyRing(keyRings[i]);
+        return parsed;
+    }
+
     @Override
     public byte[] encryptText(CharSequence text) throws GeneralSecurityException {
         try {
@@ -147,21 +206,8 @@ public class PGPCoder extends Coder {
         }
     }
 
-    private byte[] encryptData(String mime, CharSequence data)
-            throws PGPException, IOException, SignatureException {
-
-        String from = mKey.getUserId(mServer.getNetwork());
-        String[] to = new String[mRecipients.length];
-        for (int i = 0; i < to.length; i++)
-            to[i] = PGP.getUserId(PGP.getMasterKey(mRecipients[i]), mServer.getNetwork());
-
-        // secure the message against the most basic attacks using Message/CPIM
-        CPIMMessage cpim = new CPIMMessage(from, to, new Date(), mime, data);
-        byte[] plainText = cpim.toByteArray();
-
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ByteArrayInputStream in = new ByteArrayInputStream(plainText);
-
+    /** Creates an encrypted data generator for our recipients. */
+    private PGPEncryptedDataGenerator createEncryptedDataGenerator() {
         // setup data encryptor & generator
         BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
         encryptor.setWithIntegrityPacket(true);
@@ -169,16 +215,13 @@ public class PGPCoder extends Coder {
 
         // add public key recipients
         PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-        for (PGPPublicKeyRing rcpt : mRecipients)
-            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
-
-        OutputStream encryptedOut = encGen.open(out, new byte[BUFFER_SIZE]);
-
-        // setup compressed data generator
-        PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-        OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
+        for (PGPParsedKeyRing rcpt : mRecipients.getRecipients())
+            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(rcpt.getEncryptionKey()));
+        return encGen;
+    }
 
-        // setup signature generator
+    /** Creates a signature generator with our signing key. */
+    private PGPSignatureGenerator createSignatureGenerator() throws PGPException {
         PGPSignatureGenerator sigGen = new PGPSignatureGenerator
                 (new BcPGPContentSignerBuilder(mKey.getSignKeyPair()
                     .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256));
@@ -187,6 +230,33 @@ public class PGPCoder extends Coder {
         PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
         spGen.setSignerUserID(false, mKey.getUserId(mServer.getNetwork()));
         sigGen.setUnhashedSubpackets(spGen.generate());
+        return sigGen;
+    }
+
+    private byte[] encryptData(String mime, CharSequence data)
+            throws PGPException, IOException, SignatureException {
+
+        String from = mKey.getUserId(mServer.getNetwork());
+        String[] to = mRecipients.getUserIds();
+
+        // secure the message against the most basic attacks using Message/CPIM
+        CPIMMessage cpim = new CPIMMessage(from, to, new Date(), mime, data);
+        byte[] plainText = cpim.toByteArray();
+
+        Buffers buffers = sTextBuffers.get();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(plainText.length +
+            ENVELOPE_OVERHEAD + RECIPIENT_OVERHEAD * mRecipients.size());
+
+        PGPEncryptedDataGenerator encGen = createEncryptedDataGenerator();
+
+        OutputStream encryptedOut = encGen.open(out, buffers.encrypted);
+
+        // setup compressed data generator
+        PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(
+            CompressionPolicy.select(mime, plainText, plainText.length));
+        OutputStream compressedOut = compGen.open(encryptedOut, buffers.compressed);
+
+        PGPSignatureGenerator sigGen = createSignatureGenerator();
 
         sigGen.generateOnePassVersion(false)
             .encode(compressedOut);
@@ -198,19 +268,12 @@ public class PGPCoder extends Coder {
             PGPLiteralData.BINARY,
             "",
             new Date(),
-            new byte[BUFFER_SIZE]);
+            buffers.literal);
 
-        // read the "in" stream, compress, encrypt and write to the "out" stream
-        // this must be done if clear data is bigger than the buffer size
-        // but there are other ways to optimize...
-        byte[] buf = new byte[BUFFER_SIZE];
-        int len;
-        while ((len = in.read(buf)) > 0) {
-            literalOut.write(buf, 0, len);
-            sigGen.update(buf, 0, len);
-        }
+        // data is already in memory: no need for a copy loop
+        literalOut.write(plainText);
+        sigGen.update(plainText);
 
-        in.close();
         literalGen.close();
         // Generate the signature, compress, encrypt and write to the "out" stream
         sigGen.generate().encode(compressedOut);
@@ -287,12 +350,12 @@ public class PGPCoder extends Coder {
                     if (verify && mSender != null) {
                         ops = ((PGPOnePassSignatureList) message).get(0);
                         try {
-                            ops.init(new BcPGPContentVerifierBuilderProvider(), PGP.getSigningKey(mSender));
+                            ops.init(new BcPGPContentVerifierBuilderProvider(), mSender.getSigningKey());
                         }
                         catch (ClassCastException e) {
                             try {
                                 // workaround for backward compatibility
-                                ops.init(new BcPGPContentVerifierBuilderProvider(), PGP.getMasterKey(mSender));
+                                ops.init(new BcPGPContentVerifierBuilderProvider(), mSender.getMasterKey());
                             }
                             catch (ClassCastException e2) {
                                 // peer used new ECC key to sign, but we still have the old RSA one
@@ -309,9 +372,10 @@ public class PGPCoder extends Coder {
                     PGPLiteralData ld = (PGPLiteralData) message;
 
                     InputStream unc = ld.getInputStream();
-                    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                    // compressed text usually expands to a few times its size
+                    ByteArrayOutputStream bout = new ByteArrayOutputStream(encrypted.length * 2);
 
-                    byte[] buf = new byte[4096];
+                    byte[] buf = sTextBuffers.get().copy;
                     int num;
 
                     while ((num = unc.read(buf)) >= 0) {
@@ -411,7 +475,7 @@ public class PGPCoder extends Coder {
 
                             // check that the sender matches the full uid of the sender's key
                             if (mSender != null) {
-                                String otherUid = PGP.getUserId(PGP.getMasterKey(mSender), mServer.getNetwork());
+                                String otherUid = mSender.getUserId(mServer.getNetwork());
                                 if (!otherUid.equals(msg.getFrom())) {
                                     errors.add(new DecryptException(
                                         DECRYPT_EXCEPTION_INVALID_SENDER,
@@ -503,32 +567,29 @@ public class PGPCoder extends Coder {
 
     @Override
     public void encryptFile(InputStream input, OutputStream output) throws GeneralSecurityException {
+        encryptFile(input, output, null);
+    }
+
+    @Override
+    public void encryptFile(InputStream input, OutputStream output, String mime)
+            throws GeneralSecurityException {
         try {
-            // setup data encryptor & generator
-            BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
-            encryptor.setWithIntegrityPacket(true);
-            encryptor.setSecureRandom(new SecureRandom());
+            // sample the beginning of the file to choose compression
+            byte[] probe = new byte[CompressionPolicy.PROBE_SIZE];
+            int probeLength = readFully(input, probe);
 
-            // add public key recipients
-            PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-            for (PGPPublicKeyRing rcpt : mRecipients)
-                encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
+            Buffers buffers = new Buffers(FILE_BUFFER_SIZE);
 
-            OutputStream encryptedOut = encGen.open(output, new byte[BUFFER_SIZE]);
+            PGPEncryptedDataGenerator encGen = createEncryptedDataGenerator();
 
-            // setup compressed data generator
-            PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-            OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
+            OutputStream encryptedOut = encGen.open(output, buffers.encrypted);
 
-            // setup signature generator
-            PGPSignatureGenerator sigGen = new PGPSignatureGenerator
-                (new BcPGPContentSignerBuilder(mKey.getSignKeyPair()
-                    .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256));
-            sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getSignKeyPair().getPrivateKey());
+            // setup compressed data generator
+            PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(
+                CompressionPolicy.select(mime, probe, probeLength));
+            OutputStream compressedOut = compGen.open(encryptedOut, buffers.compressed);
 
-            PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-            spGen.setSignerUserID(false, mKey.getUserId(mServer.getNetwork()));
-            sigGen.setUnhashedSubpackets(spGen.generate());
+            PGPSignatureGenerator sigGen = createSignatureGenerator();
 
             sigGen.generateOnePassVersion(false)
                 .encode(compressedOut);
@@ -540,12 +601,16 @@ public class PGPCoder extends Coder {
                 PGPLiteralData.BINARY,
                 "",
                 new Date(),
-                new byte[BUFFER_SIZE]);
+                buffers.literal);
+
+            // write the sampled data first
+            literalOut.write(probe, 0, probeLength);
+            sigGen.update(probe, 0, probeLength);
 
             // read the "in" stream, compress, encrypt and write to the "out" stream
             // this must be done if clear data is bigger than the buffer size
             // but there are other ways to optimize...
-            byte[] buf = new byte[BUFFER_SIZE];
+            byte[] buf = buffers.copy;
             int len;
             while ((len = input.read(buf)) > 0) {
                 literalOut.write(buf, 0, len);
@@ -567,6 +632,67 @@ public class PGPCoder extends Coder {
         }
     }
 
+    @Override
+    public EncryptedFile prepareEncryptFile(InputStream input, String mime)
+            throws GeneralSecurityException {
+        try {
+            // sample the beginning of the file to choose compression
+            byte[] probe = new byte[CompressionPolicy.PROBE_SIZE];
+            int probeLength = readFully(input, probe);
+
+            // we can't know the compressed length without compressing
+            if (CompressionPolicy.select(mime, probe, probeLength) != PGPCompressedData.UNCOMPRESSED)
+                return null;
+
+            // the signature goes at the end, but we need its length now
+            PGPSignatureGenerator sigGen = createSignatureGenerator();
+            sigGen.update(probe, 0, probeLength);
+            long length = probeLength;
+
+            byte[] buf = new byte[FILE_BUFFER_SIZE];
+            int len;
+            while ((len = input.read(buf)) > 0) {
+                sigGen.update(buf, 0, len);
+                length += len;
+            }
+
+            // same packets as encryptFile, with definite lengths
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            new PGPCompressedDataGenerator(PGPCompressedData.UNCOMPRESSED)
+                .open(header);
+            sigGen.generateOnePassVersion(false)
+                .encode(header);
+            new PGPLiteralDataGenerator().open(
+                header,
+                PGPLiteralData.BINARY,
+                "",
+                length,
+                new Date());
+
+            ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+            sigGen.generate().encode(trailer);
+
+            return new EncryptedFile(createEncryptedDataGenerator(),
+                header.toByteArray(), length, trailer.toByteArray());
+        }
+        catch (PGPException e) {
+            throw new GeneralSecurityException(e);
+        }
+
+        catch (IOException e) {
+            throw new GeneralSecurityException(e);
+        }
+    }
+
+    /** Reads until the buffer is full or the stream ends. */
+    private static int readFully(InputStream in, byte[] buf) throws IOException {
+        int total = 0;
+        int len;
+        while (total < buf.length && (len = in.read(buf, total, buf.length - total)) > 0)
+            total += len;
+        return total;
+    }
+
     /** Decrypts a file. */
     @SuppressWarnings("unchecked")
     public void decryptFile(InputStream input, boolean verify,
@@ -625,7 +751,7 @@ public class PGPCoder extends Coder {
                 if (message instanceof PGPOnePassSignatureList) {
                     if (verify && mSender != null) {
                         ops = ((PGPOnePassSignatureList) message).get(0);
-                        ops.init(new BcPGPContentVerifierBuilderProvider(), PGP.getSigningKey(mSender));
+                        ops.init(new BcPGPContentVerifierBuilderProvider(), mSender.getSigningKey());
                     }
 
                     message = pgpFact.nextObject();
@@ -635,7 +761,7 @@ public class PGPCoder extends Coder {
                     PGPLiteralData ld = (PGPLiteralData) message;
 
                     InputStream unc = ld.getInputStream();
-                    byte[] buf = new byte[8192];
+                    byte[] buf = new byte[FILE_BUFFER_SIZE];
                     int num;
 
                     while ((num = unc.read(buf)) >= 0) {
@@ -751,12 +877,12 @@ public class PGPCoder extends Coder {
                     if (verify && mSender != null) {
                         ops = ((PGPOnePassSignatureList) message).get(0);
                         try {
-                            ops.init(new BcPGPContentVerifierBuilderProvider(), PGP.getSigningKey(mSender));
+                            ops.init(new BcPGPContentVerifierBuilderProvider(), mSender.getSigningKey());
                         }
                         catch (ClassCastException e) {
                             try {
                                 // workaround for backward compatibility
-                                ops.init(new BcPGPContentVerifierBuilderProvider(), PGP.getMasterKey(mSender));
+                                ops.init(new BcPGPContentVerifierBuilderProvider(), mSender.getMasterKey());
                             }
                             catch (ClassCastException e2) {
                                 // peer used new ECC key to sign, but we still have the old RSA one
@@ -774,9 +900,9 @@ public class PGPCoder extends Coder {
 
                     timestamp = ld.getModificationTime();
                     InputStream unc = ld.getInputStream();
-                    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                    ByteArrayOutputStream bout = new ByteArrayOutputStream(signed.length * 2);
 
-                    byte[] buf = new byte[4096];
+                    byte[] buf = sTextBuffers.get().copy;
                     int num;
 
                     while ((num = unc.read(buf)) >= 0) {
@@ -0,0 +1,91 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.IOException;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+
+
+/**
+ * A parsed public keyring with its master, encryption and signing keys
+ * already resolved. Instances are immutable and can be shared among threads.
+ * @author Daniele Ricci
+ */
+public final class PGPParsedKeyRing {
+
+    private final PGPPublicKeyRing mKeyRing;
+    private final PGPPublicKey mMasterKey;
+    private final PGPPublicKey mEncryptionKey;
+    private final PGPPublicKey mSigningKey;
+    private final String mFingerprint;
+
+    /** Last resolved user ID, together with the host it was resolved for. */
+    private volatile String[] mUserId;
+
+    public PGPParsedKeyRing(PGPPublicKeyRing keyRing) {
+        mKeyRing = keyRing;
+        mMasterKey = PGP.getMasterKey(keyRing);
+        mEncryptionKey = PGP.getEncryptionKey(keyRing);
+        mSigningKey = PGP.getSigningKey(keyRing);
+        mFingerprint = mMasterKey != null ? PGP.getFingerprint(mMasterKey) : null;
+    }
+
+    public static PGPParsedKeyRing parse(byte[] keyData) throws IOException, PGPException {
+        return new PGPParsedKeyRing(PGP.readPublicKeyring(keyData));
+    }
+
+    public PGPPublicKeyRing getPublicKeyRing() {
+        return mKeyRing;
+    }
+
+    public PGPPublicKey getMasterKey() {
+        return mMasterKey;
+    }
+
+    public PGPPublicKey getEncryptionKey() {
+        return mEncryptionKey;
+    }
+
+    public PGPPublicKey getSigningKey() {
+        return mSigningKey;
+    }
+
+    public String getFingerprint() {
+        return mFingerprint;
+    }
+
+    /**
+     * Returns the user ID matching the given host.
+     * The last computed value is kept since the host is usually always the same.
+     * @see PGP#getUserId(PGPPublicKey, String)
+     */
+    public String getUserId(String host) {
+        String[] cached = mUserId;
+        if (cached != null && (host != null ? host.equals(cached[0]) : cached[0] == null))
+            return cached[1];
+
+        String uid = PGP.getUserId(mMasterKey, host);
+        mUserId = new String[] { host, uid };
+        return uid;
+    }
+
+}
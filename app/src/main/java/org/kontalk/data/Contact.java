@@ -20,11 +20,18 @@ package org.kontalk.data;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.amulyakhare.textdrawable.TextDrawable;
 import com.amulyakhare.textdrawable.util.ColorGenerator;
@@ -35,6 +42,7 @@ import org.jxmpp.stringprep.XmppStringprepException;
 import org.jxmpp.util.XmppStringUtils;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
 
+import android.app.ActivityManager;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -52,6 +60,7 @@ import android.os.Handler;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
+import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
 import androidx.collection.LruCache;
@@ -159,61 +168,213 @@ public class Contact {
 
     /**
      * Contact cache.
+     * Contacts are loaded outside of any lock and concurrent requests for the
+     * same user share a single load. An invalidation of the same user (or of
+     * the whole cache) happening while a contact is being loaded prevents the
+     * (possibly stale) result from being cached; changes to the user record
+     * prevent it only if the loaded contact doesn't reflect them.
      * @author Daniele Ricci
      */
     private final static class ContactCache extends LruCache<String, Contact> {
-        private static final int MAX_ENTRIES = 20;
+        private static final int MIN_ENTRIES = 50;
+        private static final int MAX_ENTRIES = 500;
+
+        /** A contact being loaded. Fields are guarded by the cache lock. */
+        private static final class Load {
+            final FutureTask<Contact> task;
+            /** The contact was invalidated during the load. */
+            boolean invalidated;
+            /** Changes to the user record received during the load. */
+            List<ContentValues> changes;
+
+            Load(FutureTask<Contact> task) {
+                this.task = task;
+            }
+
+            /** Returns true if the loaded contact can be cached. */
+            boolean isValid(Contact c) {
+                if (invalidated)
+                    return false;
+                if (changes != null) {
+                    for (ContentValues values : changes) {
+                        if (c.isStale(values))
+                            return false;
+                    }
+                }
+                return true;
+            }
+        }
+
+        /** Loads in progress. */
+        private final ConcurrentHashMap<String, Load> mLoading = new ConcurrentHashMap<>();
+
+        private final AtomicLong mHits = new AtomicLong();
+        private final AtomicLong mMisses = new AtomicLong();
+        private final AtomicLong mSharedLoads = new AtomicLong();
 
         public ContactCache() {
-            super(MAX_ENTRIES);
+            super(MIN_ENTRIES);
         }
 
-        public synchronized Contact get(Context context, String userId, String numberHint) {
+        /** Cache capacity for the given memory class (in megabytes). */
+        static int capacityFor(int memoryClass) {
+            return Math.max(MIN_ENTRIES, Math.min(MAX_ENTRIES, memoryClass * 2));
+        }
+
+        public Contact get(final Context context, final String userId, final String numberHint) {
             Contact c = get(userId);
-            if (c == null) {
-                c = _findByUserId(context, userId);
-                if (c != null) {
-                    // put the contact in the cache
-                    put(userId, c);
+            if (c != null) {
+                mHits.incrementAndGet();
+                return c;
+            }
+            mMisses.incrementAndGet();
+
+            FutureTask<Contact> task = new FutureTask<>(new Callable<Contact>() {
+                @Override
+                public Contact call() {
+                    return load(context, userId, numberHint);
                 }
-                // try system contacts lookup
-                else if (numberHint != null) {
-                    Log.v(TAG, "contact not found, trying with system contacts (" + numberHint + ")");
-                    ContentResolver resolver = context.getContentResolver();
-                    Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(numberHint));
-                    Cursor cur = resolver.query(uri, new String[] {
-                                PhoneLookup.DISPLAY_NAME,
-                                PhoneLookup.LOOKUP_KEY,
-                                PhoneLookup._ID,
-                            }, null, null, null);
-                    if (cur.moveToFirst()) {
-                        String name = cur.getString(0);
-                        String lookupKey = cur.getString(1);
-                        long cid = cur.getLong(2);
-
-                        c = new Contact(cid, lookupKey, name, numberHint, userId, false);
-                        Uri contactUri = c.getUri();
-                        if (contactUri != null) {
-                            c.loadStructuredNameAsync(context);
-                        }
-
-                        put(userId, c);
-
-                        // insert result into users database immediately
-                        ContentValues values = new ContentValues(5);
-                        values.put(Users.NUMBER, numberHint);
-                        values.put(Users.DISPLAY_NAME, name);
-                        values.put(Users.JID, userId);
-                        values.put(Users.LOOKUP_KEY, lookupKey);
-                        values.put(Users.CONTACT_ID, cid);
-                        resolver.insert(Users.CONTENT_URI, values);
+            });
+            Load load = new Load(task);
+            Load running = mLoading.putIfAbsent(userId, load);
+            if (running != null) {
+                // someone else is loading this contact already
+                mSharedLoads.incrementAndGet();
+                return await(running.task);
+            }
+
+            try {
+                task.run();
+                c = await(task);
+                if (c != null) {
+                    synchronized (this) {
+                        if (load.isValid(c))
+                            put(userId, c);
                     }
-                    cur.close();
+                }
+                return c;
+            }
+            finally {
+                mLoading.remove(userId, load);
+            }
+        }
+
+        /** Caches a contact unless one is cached already. Returns the cached contact. */
+        public synchronized Contact putIfAbsent(String userId, Contact c) {
+            Contact cached = get(userId);
+            if (cached != null)
+                return cached;
+            put(userId, c);
+            return c;
+        }
+
+        public synchronized void invalidate(String userId) {
+            remove(userId);
+            Load load = mLoading.get(userId);
+            if (load != null)
+                load.invalidated = true;
+        }
+
+        public synchronized void invalidateAll() {
+            evictAll();
+            for (Load load : mLoading.values())
+                load.invalidated = true;
+        }
+
+        /**
+         * Drops a cached contact if the given changes to its users table
+         * record make it stale. If the contact is being loaded, the changes
+         * are checked against it when the load is done: this includes the
+         * changes made by the load itself.
+         */
+        public synchronized void invalidate(String userId, ContentValues values) {
+            Contact c = get(userId);
+            if (c != null) {
+                if (c.isStale(values))
+                    invalidate(userId);
+            }
+            else {
+                Load load = mLoading.get(userId);
+                if (load != null) {
+                    if (load.changes == null)
+                        load.changes = new ArrayList<>(1);
+                    // values might be reused by the caller
+                    load.changes.add(new ContentValues(values));
                 }
             }
+        }
+
+        private static Contact load(Context context, String userId, String numberHint) {
+            Contact c = _findByUserId(context, userId);
+            // try system contacts lookup
+            if (c == null && numberHint != null) {
+                Log.v(TAG, "contact not found, trying with system contacts (" + numberHint + ")");
+                ContentResolver resolver = context.getContentResolver();
+                Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(numberHint));
+                Cursor cur = resolver.query(uri, new String[] {
+                            PhoneLookup.DISPLAY_NAME,
+                            PhoneLookup.LOOKUP_KEY,
+                            PhoneLookup._ID,
+                        }, null, null, null);
+                if (cur.moveToFirst()) {
+                    String name = cur.getString(0);
+                    String lookupKey = cur.getString(1);
+                    long cid = cur.getLong(2);
+
+                    c = new Contact(cid, lookupKey, name, numberHint, userId, false);
+                    Uri contactUri = c.getUri();
+                    if (contactUri != null) {
+                        c.loadStructuredNameAsync(context);
+                    }
 
+                    // insert result into users database immediately
+                    ContentValues values = new ContentValues(5);
+                    values.put(Users.NUMBER, numberHint);
+                    values.put(Users.DISPLAY_NAME, name);
+                    values.put(Users.JID, userId);
+                    values.put(Users.LOOKUP_KEY, lookupKey);
+                    values.put(Users.CONTACT_ID, cid);
+                    resolver.insert(Users.CONTENT_URI, values);
+                }
+                cur.close();
+            }
             return c;
         }
+
+        private static Contact await(FutureTask<Contact> task) {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return task.get();
+                    }
+                    catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new RuntimeException(cause);
+            }
+            finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+
+        public String getStats() {
+            long hits = mHits.get();
+            long misses = mMisses.get();
+            long total = hits + misses;
+            return String.format(Locale.US, "%d hits, %d misses (%d shared loads), hit rate %d%%, %d/%d entries",
+                hits, misses, mSharedLoads.get(), total > 0 ? (int) (hits * 100 / total) : 0,
+                size(), maxSize());
+        }
     }
 
     private final static ContactCache cache = new ContactCache();
@@ -282,6 +443,9 @@ public class Contact {
 
     public static void init(Context context, Handler handler) {
         sHandler = handler;
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am != null)
+            cache.resize(ContactCache.capacityFor(am.getMemoryClass()));
         init(context);
     }
 
@@ -643,15 +807,70 @@ public class Contact {
     }
 
     public static void invalidate(String userId) {
-        cache.remove(userId);
+        cache.invalidate(userId);
         fireContactInvalidated(userId);
     }
 
     public static void invalidate() {
-        cache.evictAll();
+        Log.v(TAG, "invalidating contact cache: " + cache.getStats());
+        cache.invalidateAll();
         fireContactInvalidated(null);
     }
 
+    /**
+     * Called by {@link org.kontalk.provider.UsersProvider} when a user record
+     * is changed: the cached contact is dropped only if it's affected.
+     */
+    public static void onUserChanged(String userId, ContentValues values) {
+        cache.invalidate(XmppStringUtils.parseBareJid(userId), values);
+    }
+
+    /** Contact cache statistics, for debugging. */
+    public static String getCacheStats() {
+        return cache.getStats();
+    }
+
+    /** Returns true if the given users table changes are not reflected by this contact. */
+    boolean isStale(ContentValues values) {
+        for (String key : values.keySet()) {
+            switch (key) {
+                case Users.REGISTERED:
+                    if (!Boolean.valueOf(mRegistered).equals(values.getAsBoolean(key)))
+                        return true;
+                    break;
+                case Users.BLOCKED:
+                    if (!Boolean.valueOf(mBlocked).equals(values.getAsBoolean(key)))
+                        return true;
+                    break;
+                case Users.STATUS:
+                    if (!TextUtils.equals(mStatus, values.getAsString(key)))
+                        return true;
+                    break;
+                case Users.DISPLAY_NAME:
+                    if (!TextUtils.equals(mName, values.getAsString(key)))
+                        return true;
+                    break;
+                case Users.NUMBER:
+                    if (!TextUtils.equals(mNumber, values.getAsString(key)))
+                        return true;
+                    break;
+                case Users.LOOKUP_KEY:
+                    if (!TextUtils.equals(mLookupKey, values.getAsString(key)))
+                        return true;
+                    break;
+                case Users.CONTACT_ID:
+                    Long contactId = values.getAsLong(key);
+                    if (contactId == null || contactId != mContactId)
+                        return true;
+                    break;
+                default:
+                    // not part of contact data (e.g. last seen)
+                    break;
+            }
+        }
+        return false;
+    }
+
     /** Invalidates cached data for all contacts. Does not delete contact information. */
     public static void invalidateData() {
         synchronized (cache) {
@@ -720,7 +939,7 @@ public class Contact {
 
             retrieveKeyInfo(context, c);
 
-            cache.put(jid, c);
+            c = cache.putIfAbsent(jid, c);
         }
         return c;
     }
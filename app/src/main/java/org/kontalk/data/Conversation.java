@@ -533,7 +533,7 @@ public class Conversation {
                 @Override
                 public void run() {
                     MessagesProviderClient.markThreadAsRead(mContext, mThreadId);
-                    MessagingNotification.updateMessagesNotification(mContext.getApplicationContext(), false);
+                    MessagingNotification.threadRead(mContext.getApplicationContext(), mThreadId);
                 }
             }).start();
         }
@@ -22,7 +22,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
-import androidx.paging.PositionalDataSource;
+import androidx.paging.ItemKeyedDataSource;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.ContentObserver;
@@ -34,14 +34,31 @@ import org.kontalk.provider.MyMessages;
 
 
 /**
- * Data source for conversations (threads table)
+ * Data source for conversations (threads table).
+ * Pages are loaded by key (sticky, timestamp, _id) instead of by offset, so
+ * loading a page doesn't depend on how deep it is in the list and no count
+ * query is needed.
  */
-public class ConversationsDataSource extends PositionalDataSource<Conversation> {
+public class ConversationsDataSource extends ItemKeyedDataSource<ConversationsDataSource.Key, Conversation> {
 
     private static final String[] COUNT_PROJECTION = new String[] {
         MyMessages.Threads._COUNT,
     };
 
+    private static final String KEYSET_COLUMNS = "(" +
+        MyMessages.Threads.STICKY + ", " +
+        MyMessages.Threads.TIMESTAMP + ", " +
+        MyMessages.Threads._ID + ")";
+
+    private static final String SORT_ORDER_DESC =
+        MyMessages.Threads.STICKY + " DESC, " +
+        MyMessages.Threads.TIMESTAMP + " DESC, " +
+        MyMessages.Threads._ID + " DESC";
+    private static final String SORT_ORDER_ASC =
+        MyMessages.Threads.STICKY + " ASC, " +
+        MyMessages.Threads.TIMESTAMP + " ASC, " +
+        MyMessages.Threads._ID + " ASC";
+
     private final Context mContext;
     private final ContentResolver mContentResolver;
     private final boolean mArchived;
@@ -50,58 +67,77 @@ public class ConversationsDataSource extends PositionalDataSource<Conversation>
         mContext = context.getApplicationContext();
         mArchived = archived;
         mContentResolver = mContext.getContentResolver();
+
+        final ChangeObserver observer = new ChangeObserver(handler);
         mContentResolver.registerContentObserver(MyMessages.Threads.CONTENT_URI,
-            true, new ChangeObserver(handler));
+            true, observer);
+        addInvalidatedCallback(new InvalidatedCallback() {
+            @Override
+            public void onInvalidated() {
+                mContentResolver.unregisterContentObserver(observer);
+            }
+        });
     }
 
+    @NonNull
     @Override
-    public void loadInitial(@NonNull LoadInitialParams params, @NonNull LoadInitialCallback<Conversation> callback) {
-        final int totalCount = countItems(mArchived);
-        final int archivedCount = !mArchived ? countItems(true) : 0;
-        if (totalCount == 0) {
-            // archived count only
-            if (archivedCount > 0) {
-                List<Conversation> list = new ArrayList<>(1);
-                list.add(new Conversation(archivedCount));
-                callback.onResult(list, 0, 1);
-                return;
-            }
-
-            callback.onResult(Collections.emptyList(), 0, 0);
-            return;
-        }
-
-        // bound the size requested, based on known count
-        final int firstLoadPosition = computeInitialLoadPosition(params, totalCount);
-        final int firstLoadSize = computeInitialLoadSize(params, firstLoadPosition, totalCount);
+    public Key getKey(@NonNull Conversation item) {
+        return item.isCountOnly() ? Key.END :
+            new Key(item.isSticky(), item.getDate(), item.getThreadId());
+    }
 
-        List<Conversation> list = loadRange(firstLoadPosition, firstLoadSize);
-        if (list != null && list.size() == firstLoadSize) {
-            int reportedCount = totalCount;
-            // take into account the footer item if we have archived conversations
-            if (archivedCount > 0) {
-                // add the footer item
-                list.add(new Conversation(archivedCount));
-                reportedCount++;
-            }
-            callback.onResult(list, firstLoadPosition, reportedCount);
+    @Override
+    public void loadInitial(@NonNull LoadInitialParams<Key> params, @NonNull LoadInitialCallback<Conversation> callback) {
+        final Key key = params.requestedInitialKey;
+        final int loadSize = params.requestedLoadSize;
+
+        List<Conversation> list;
+        if (key == Key.END) {
+            // list was refreshed while scrolled to the bottom
+            list = getConversations(null, true, false, loadSize);
+            Collections.reverse(list);
         }
         else {
-            // null list, or size doesn't match request - DB modified between count and load
-            invalidate();
+            // refresh restarts from the given item, included
+            list = getConversations(key, false, true, loadSize);
+        }
+
+        if (list.size() < loadSize) {
+            appendFooter(list);
         }
+        callback.onResult(list);
     }
 
     @Override
-    public void loadRange(@NonNull LoadRangeParams params, @NonNull LoadRangeCallback<Conversation> callback) {
-        List<Conversation> list = loadRange(params.startPosition, params.loadSize);
-        if (list != null) {
-            callback.onResult(list);
+    public void loadAfter(@NonNull LoadParams<Key> params, @NonNull LoadCallback<Conversation> callback) {
+        if (params.key == Key.END) {
+            callback.onResult(Collections.<Conversation>emptyList());
+            return;
         }
-        else {
-            invalidate();
+
+        List<Conversation> list = getConversations(params.key, false, false, params.requestedLoadSize);
+        if (list.size() < params.requestedLoadSize) {
+            appendFooter(list);
         }
+        callback.onResult(list);
+    }
+
+    @Override
+    public void loadBefore(@NonNull LoadParams<Key> params, @NonNull LoadCallback<Conversation> callback) {
+        List<Conversation> list = getConversations(params.key == Key.END ? null : params.key,
+            true, false, params.requestedLoadSize);
+        Collections.reverse(list);
+        callback.onResult(list);
+    }
 
+    /** Adds the archived conversations footer item, if any. */
+    private void appendFooter(List<Conversation> list) {
+        if (!mArchived) {
+            int archivedCount = countItems(true);
+            if (archivedCount > 0) {
+                list.add(new Conversation(archivedCount));
+            }
+        }
     }
 
     private int countItems(boolean archived) {
@@ -119,13 +155,32 @@ public class ConversationsDataSource extends PositionalDataSource<Conversation>
         }
     }
 
-    private List<Conversation> getConversations(boolean archived, int limit, int offset) {
+    /**
+     * Loads a page of conversations starting from the given key.
+     * @param key the key to start from, null to start from either end
+     * @param reverse true to load items preceding the key, in reverse order
+     * @param inclusive true to include the item with the given key
+     * @param limit maximum number of items to load
+     */
+    private List<Conversation> getConversations(Key key, boolean reverse, boolean inclusive, int limit) {
+        String selection = MyMessages.Threads.ARCHIVED + " = " + (mArchived ? "1" : "0");
+        String[] selectionArgs = null;
+        if (key != null) {
+            selection += " AND " + KEYSET_COLUMNS + (reverse ? " >" : " <") +
+                (inclusive ? "= " : " ") + "(?, ?, ?)";
+            selectionArgs = new String[] {
+                key.sticky ? "1" : "0",
+                String.valueOf(key.timestamp),
+                String.valueOf(key.id),
+            };
+        }
+
         Cursor cursor = mContentResolver.query(MyMessages.Threads.CONTENT_URI.buildUpon()
-                .appendQueryParameter("limit", offset + "," + limit).build(),
-            Conversation.PROJECTION, MyMessages.Threads.ARCHIVED + " = " + (archived ? "1" : "0"),
-            null, MyMessages.Threads.DEFAULT_SORT_ORDER);
+                .appendQueryParameter("limit", String.valueOf(limit)).build(),
+            Conversation.PROJECTION, selection, selectionArgs,
+            reverse ? SORT_ORDER_ASC : SORT_ORDER_DESC);
 
-        List<Conversation> conversations = new ArrayList<>();
+        List<Conversation> conversations = new ArrayList<>(limit);
         try {
             while (cursor.moveToNext()) {
                 conversations.add(Conversation.createFromCursor(mContext, cursor));
@@ -137,16 +192,34 @@ public class ConversationsDataSource extends PositionalDataSource<Conversation>
         return conversations;
     }
 
-    /**
-     * Return the rows from startPos to startPos + loadCount
-     */
-    private List<Conversation> loadRange(int startPosition, int loadCount) {
-        return getConversations(mArchived, loadCount, startPosition);
+    /** Position of a conversation in the list. */
+    public static final class Key {
+        /** Key of the archived conversations footer, always at the end of the list. */
+        static final Key END = new Key(false, 0, 0);
+
+        final boolean sticky;
+        final long timestamp;
+        final long id;
+
+        Key(boolean sticky, long timestamp, long id) {
+            this.sticky = sticky;
+            this.timestamp = timestamp;
+            this.id = id;
+        }
     }
 
     class ChangeObserver extends ContentObserver {
+        private final Handler mHandler;
+        private final Runnable mInvalidate = new Runnable() {
+            @Override
+            public void run() {
+                invalidate();
+            }
+        };
+
         public ChangeObserver(Handler handler) {
             super(handler);
+            mHandler = handler;
         }
 
         @Override
@@ -156,7 +229,9 @@ public class ConversationsDataSource extends PositionalDataSource<Conversation>
 
         @Override
         public void onChange(boolean selfChange) {
-            invalidate();
+            // coalesce bursts of notifications (e.g. a batch of incoming messages)
+            mHandler.removeCallbacks(mInvalidate);
+            mHandler.post(mInvalidate);
         }
     }
 
@@ -23,7 +23,7 @@ import android.content.Context;
 import android.os.Handler;
 
 
-public class ConversationsDataSourceFactory extends DataSource.Factory<Integer, Conversation> {
+public class ConversationsDataSourceFactory extends DataSource.Factory<ConversationsDataSource.Key, Conversation> {
 
     private final Context mContext;
     private final boolean mArchived;
@@ -36,7 +36,7 @@ public class ConversationsDataSourceFactory extends DataSource.Factory<Integer,
     }
 
     @Override
-    public DataSource<Integer, Conversation> create() {
+    public DataSource<ConversationsDataSource.Key, Conversation> create() {
         return new ConversationsDataSource(mContext, mArchived, mHandler);
     }
 }
@@ -0,0 +1,433 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.collection.LongSparseArray;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+
+import org.kontalk.Log;
+import org.kontalk.message.CompositeMessage;
+import org.kontalk.message.GroupCommandComponent;
+import org.kontalk.provider.MyMessages.Messages;
+import org.kontalk.provider.MyMessages.Threads.Conversations;
+import org.kontalk.util.MessageUtils;
+
+
+/**
+ * Loads the messages of a conversation in pages, newest first, and keeps
+ * them up to date. On content changes the loaded messages are queried again
+ * without their bodies (only the body length is read) and compared column by
+ * column with the loaded rows: full rows are queried and messages are built
+ * again only if new or changed, the others are reused as they are.
+ * @author Daniele Ricci
+ */
+public class MessageListLoader {
+    private static final String TAG = MessageListLoader.class.getSimpleName();
+
+    private static final int MSG_LOAD = 1;
+    private static final int MSG_LOAD_PREVIOUS = 2;
+    private static final int MSG_RESET = 3;
+
+    /** A message in the list. */
+    public static final class Row {
+        final long id;
+        /** Column values the message was built from, with the body length in place of the body. */
+        private final Object[] values;
+
+        public final CompositeMessage message;
+        public final int direction;
+        public final boolean event;
+        public final boolean groupChat;
+        /** Server timestamp if available, local timestamp otherwise. */
+        public final long timestamp;
+        public final String peer;
+
+        Row(Context context, Cursor c) {
+            this.id = c.getLong(CompositeMessage.COLUMN_ID);
+            this.values = values(c);
+            this.message = CompositeMessage.fromCursor(context, c);
+            this.direction = MessageUtils.getMessageDirection(c);
+            this.event = GroupCommandComponent.supportsMimeType(c
+                .getString(CompositeMessage.COLUMN_BODY_MIME));
+            this.groupChat = c.getString(CompositeMessage.COLUMN_GROUP_JID) != null;
+            this.timestamp = MessageUtils.getMessageTimestamp(c);
+            this.peer = MessageUtils.getMessagePeer(c);
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /** MyMessages.DIRECTION_* OR-ed with 2 for group events. */
+        public int getItemViewType() {
+            return event ? direction | 2 : direction;
+        }
+
+        /**
+         * Returns true if the cursor row has the same values this message was built from.
+         * @param c a cursor from {@link CompositeMessage#queryWithoutBody}
+         */
+        boolean matches(Cursor c) {
+            if (c.getColumnCount() != values.length)
+                return false;
+            for (int i = 0; i < values.length; i++) {
+                if (!equals(values[i], value(c, i)))
+                    return false;
+            }
+            return true;
+        }
+
+        private static Object[] values(Cursor c) {
+            Object[] values = new Object[c.getColumnCount()];
+            for (int i = 0; i < values.length; i++)
+                values[i] = value(c, i);
+            values[CompositeMessage.COLUMN_BODY_CONTENT] =
+                length(values[CompositeMessage.COLUMN_BODY_CONTENT]);
+            return values;
+        }
+
+        /** Same as SQLite length(): bytes for blobs, characters for text. */
+        private static Long length(Object body) {
+            if (body instanceof byte[])
+                return (long) ((byte[]) body).length;
+            if (body instanceof String)
+                return (long) ((String) body).codePointCount(0, ((String) body).length());
+            return null;
+        }
+
+        private static Object value(Cursor c, int index) {
+            switch (c.getType(index)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    return null;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return c.getLong(index);
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return c.getDouble(index);
+                case Cursor.FIELD_TYPE_BLOB:
+                    return c.getBlob(index);
+                default:
+                    return c.getString(index);
+            }
+        }
+
+        private static boolean equals(Object a, Object b) {
+            if (a instanceof byte[] && b instanceof byte[])
+                return Arrays.equals((byte[]) a, (byte[]) b);
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    public interface Callback {
+        /** The newest page was loaded or the loaded messages have changed. */
+        void onMessagesLoaded(List<Row> messages, boolean hasMore);
+
+        /** Older messages were added at the top of the list. */
+        void onPageLoaded(List<Row> messages, int added, boolean hasMore);
+    }
+
+    public interface OnContentChangedListener {
+        void onContentChanged(MessageListLoader loader);
+    }
+
+    private final Context mContext;
+    private final Callback mCallback;
+    private final Handler mMainHandler;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    private final ContentObserver mObserver;
+    private OnContentChangedListener mOnContentChangedListener;
+    private long mObservedThreadId;
+
+    private volatile boolean mClosed;
+    /** Incremented by {@link #reset()}: results of older loads are discarded. */
+    private volatile int mGeneration;
+
+    // accessed only by the loader thread
+    private long mThreadId;
+    private int mPageSize;
+    private List<Row> mRows = Collections.emptyList();
+    private boolean mHasMore;
+
+    public MessageListLoader(Context context, Callback callback) {
+        mContext = context.getApplicationContext();
+        mCallback = callback;
+        mMainHandler = new Handler(Looper.getMainLooper());
+
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                try {
+                    switch (msg.what) {
+                        case MSG_LOAD:
+                            load((Long) msg.obj, msg.arg1, msg.arg2);
+                            break;
+                        case MSG_LOAD_PREVIOUS:
+                            loadPrevious(msg.arg2);
+                            break;
+                        case MSG_RESET:
+                            mThreadId = 0;
+                            mPageSize = 0;
+                            mRows = Collections.emptyList();
+                            mHasMore = false;
+                            break;
+                    }
+                }
+                catch (RuntimeException e) {
+                    Log.w(TAG, "error loading messages", e);
+                }
+            }
+        };
+
+        mObserver = new ContentObserver(mMainHandler) {
+            @Override
+            public boolean deliverSelfNotifications() {
+                return true;
+            }
+
+            @Override
+            public void onChange(boolean selfChange) {
+                if (!mClosed && mOnContentChangedListener != null)
+                    mOnContentChangedListener.onContentChanged(MessageListLoader.this);
+            }
+        };
+    }
+
+    public void setOnContentChangedListener(OnContentChangedListener l) {
+        mOnContentChangedListener = l;
+    }
+
+    /**
+     * Loads the newest page of a conversation, or refreshes the messages
+     * loaded so far if the conversation didn't change.
+     * @param pageSize number of messages per page, 0 to load everything
+     */
+    public void load(long threadId, int pageSize) {
+        if (mClosed)
+            return;
+
+        if (threadId != mObservedThreadId) {
+            mContext.getContentResolver().unregisterContentObserver(mObserver);
+            mContext.getContentResolver().registerContentObserver(getUri(threadId), true, mObserver);
+            mObservedThreadId = threadId;
+        }
+
+        // a pending load will be superseded by this one
+        mHandler.removeMessages(MSG_LOAD);
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_LOAD, pageSize, mGeneration, threadId));
+    }
+
+    /** Loads the page before the oldest loaded message. */
+    public void loadPrevious() {
+        if (!mClosed)
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_LOAD_PREVIOUS, 0, mGeneration));
+    }
+
+    /**
+     * Forgets the loaded messages, e.g. when the list has been cleared:
+     * the next load will start from the newest page and will be delivered
+     * even if nothing changed. Pending loads are discarded.
+     */
+    public void reset() {
+        if (mClosed)
+            return;
+
+        mGeneration++;
+        mHandler.removeMessages(MSG_LOAD);
+        mHandler.removeMessages(MSG_LOAD_PREVIOUS);
+        mHandler.sendEmptyMessage(MSG_RESET);
+    }
+
+    /** Stops watching for changes and discards any pending load. */
+    public void close() {
+        mClosed = true;
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quit();
+    }
+
+    private static Uri getUri(long threadId) {
+        return ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId);
+    }
+
+    private void load(long threadId, int pageSize, int generation) {
+        if (threadId != mThreadId || pageSize != mPageSize || mRows.isEmpty()) {
+            mThreadId = threadId;
+            mPageSize = pageSize;
+            loadInitial(generation);
+        }
+        else {
+            refresh(generation);
+        }
+    }
+
+    private void loadInitial(int generation) {
+        List<Row> rows = new ArrayList<>();
+        Cursor c = CompositeMessage.query(mContext, mThreadId, mPageSize, 0, null, null);
+        if (c == null)
+            return;
+        try {
+            while (c.moveToNext())
+                rows.add(new Row(mContext, c));
+        }
+        finally {
+            c.close();
+        }
+
+        mRows = Collections.unmodifiableList(rows);
+        mHasMore = mPageSize > 0 && rows.size() >= mPageSize;
+        postMessagesLoaded(mRows, mHasMore, generation);
+    }
+
+    private void loadPrevious(final int generation) {
+        if (mRows.isEmpty() || mPageSize <= 0)
+            return;
+
+        List<Row> rows = new ArrayList<>();
+        Cursor c = CompositeMessage.query(mContext, mThreadId, mPageSize,
+            mRows.get(0).id, null, null);
+        if (c == null)
+            return;
+        try {
+            while (c.moveToNext())
+                rows.add(new Row(mContext, c));
+        }
+        finally {
+            c.close();
+        }
+
+        int added = rows.size();
+        rows.addAll(mRows);
+        mRows = Collections.unmodifiableList(rows);
+        mHasMore = added >= mPageSize;
+
+        final List<Row> result = mRows;
+        final int count = added;
+        final boolean hasMore = mHasMore;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mClosed && generation == mGeneration)
+                    mCallback.onPageLoaded(result, count, hasMore);
+            }
+        });
+    }
+
+    /** Builds again only the messages that were added or changed since the last load. */
+    private void refresh(int generation) {
+        LongSparseArray<Row> old = new LongSparseArray<>(mRows.size());
+        for (Row row : mRows)
+            old.put(row.id, row);
+
+        // everything from the oldest loaded message, without bodies
+        List<Long> ids = new ArrayList<>(mRows.size());
+        // unchanged rows, null for new and changed messages
+        List<Row> unchanged = new ArrayList<>(mRows.size());
+        StringBuilder changedIds = new StringBuilder();
+        Cursor c = CompositeMessage.queryWithoutBody(mContext, mThreadId,
+            Messages._ID + " >= " + mRows.get(0).id, null);
+        if (c == null)
+            return;
+        try {
+            while (c.moveToNext()) {
+                long id = c.getLong(CompositeMessage.COLUMN_ID);
+                Row row = old.get(id);
+                if (row == null || !row.matches(c)) {
+                    if (changedIds.length() > 0)
+                        changedIds.append(',');
+                    changedIds.append(id);
+                    row = null;
+                }
+                ids.add(id);
+                unchanged.add(row);
+            }
+        }
+        finally {
+            c.close();
+        }
+
+        if (ids.isEmpty()) {
+            // everything we had was deleted
+            loadInitial(generation);
+            return;
+        }
+        if (changedIds.length() == 0 && ids.size() == mRows.size()) {
+            // nothing to do
+            return;
+        }
+
+        // full rows of new and changed messages only
+        LongSparseArray<Row> changed = new LongSparseArray<>();
+        if (changedIds.length() > 0) {
+            c = CompositeMessage.query(mContext, mThreadId, 0, 0,
+                Messages._ID + " IN (" + changedIds + ")", null);
+            if (c == null)
+                return;
+            try {
+                while (c.moveToNext()) {
+                    Row row = new Row(mContext, c);
+                    changed.put(row.id, row);
+                }
+            }
+            finally {
+                c.close();
+            }
+        }
+
+        List<Row> rows = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            Row row = unchanged.get(i);
+            if (row == null)
+                row = changed.get(ids.get(i));
+            // deleted in the meantime
+            if (row != null)
+                rows.add(row);
+        }
+
+        mRows = Collections.unmodifiableList(rows);
+        postMessagesLoaded(mRows, mHasMore, generation);
+    }
+
+    private void postMessagesLoaded(final List<Row> rows, final boolean hasMore, final int generation) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mClosed && generation == mGeneration)
+                    mCallback.onMessagesLoaded(rows, hasMore);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.collection.LongSparseArray;
+import androidx.core.content.ContentResolverCompat;
+import androidx.core.os.CancellationSignal;
+import androidx.core.os.OperationCanceledException;
+import androidx.paging.PositionalDataSource;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+
+import org.kontalk.provider.MyMessages.Messages.Fulltext;
+import org.kontalk.reporting.ReportingManager;
+
+
+/**
+ * Data source for search results, best matches first.
+ * Invalidating the data source cancels the running query, so a new search
+ * doesn't have to wait for the previous one.
+ * @author Daniele Ricci
+ */
+public class SearchDataSource extends PositionalDataSource<SearchItem> {
+
+    private final Context mContext;
+    /** Full text query, null if there is nothing to search. */
+    private final String mMatch;
+
+    /** Conversations of the items loaded so far. Accessed by the loading thread only. */
+    private final LongSparseArray<Conversation> mConversations = new LongSparseArray<>();
+
+    private CancellationSignal mCancellationSignal;
+
+    public SearchDataSource(Context context, String query) {
+        mContext = context.getApplicationContext();
+        mMatch = SearchItem.toMatchQuery(query);
+
+        addInvalidatedCallback(new InvalidatedCallback() {
+            @Override
+            public void onInvalidated() {
+                synchronized (SearchDataSource.this) {
+                    if (mCancellationSignal != null) {
+                        mCancellationSignal.cancel();
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void loadInitial(@NonNull LoadInitialParams params, @NonNull LoadInitialCallback<SearchItem> callback) {
+        // results are not refreshed, always start from the top
+        List<SearchItem> list = getItems(0, params.requestedLoadSize);
+        if (list != null) {
+            callback.onResult(list, 0);
+        }
+    }
+
+    @Override
+    public void loadRange(@NonNull LoadRangeParams params, @NonNull LoadRangeCallback<SearchItem> callback) {
+        List<SearchItem> list = getItems(params.startPosition, params.loadSize);
+        if (list != null) {
+            callback.onResult(list);
+        }
+    }
+
+    /**
+     * Loads a page of results.
+     * @return the results, or null if loading was canceled
+     */
+    private List<SearchItem> getItems(int offset, int limit) {
+        if (mMatch == null)
+            return Collections.emptyList();
+
+        CancellationSignal signal;
+        synchronized (this) {
+            if (isInvalid())
+                return null;
+            mCancellationSignal = signal = new CancellationSignal();
+        }
+
+        Uri uri = Fulltext.CONTENT_URI.buildUpon()
+            .appendQueryParameter("pattern", mMatch)
+            .appendQueryParameter("offset", String.valueOf(offset))
+            .appendQueryParameter("limit", String.valueOf(limit))
+            .build();
+
+        try {
+            Cursor cursor = ContentResolverCompat.query(mContext.getContentResolver(), uri,
+                SearchItem.SEARCH_PROJECTION, null, null, Fulltext.DEFAULT_SORT_ORDER, signal);
+            if (cursor == null)
+                return Collections.emptyList();
+
+            List<SearchItem> items = new ArrayList<>(cursor.getCount());
+            try {
+                while (cursor.moveToNext()) {
+                    items.add(SearchItem.fromCursor(cursor, getConversation(cursor.getLong(1))));
+                }
+            }
+            finally {
+                cursor.close();
+            }
+            return items;
+        }
+        catch (OperationCanceledException e) {
+            return null;
+        }
+        catch (SQLiteException e) {
+            ReportingManager.logException(e);
+            return Collections.emptyList();
+        }
+        finally {
+            synchronized (this) {
+                mCancellationSignal = null;
+            }
+        }
+    }
+
+    private Conversation getConversation(long threadId) {
+        Conversation conv = mConversations.get(threadId);
+        if (conv == null) {
+            conv = Conversation.loadFromId(mContext, threadId);
+            if (conv != null)
+                mConversations.put(threadId, conv);
+        }
+        return conv;
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.data;
+
+import androidx.paging.DataSource;
+import android.content.Context;
+
+
+public class SearchDataSourceFactory extends DataSource.Factory<Integer, SearchItem> {
+
+    private final Context mContext;
+    private final String mQuery;
+    private volatile SearchDataSource mDataSource;
+
+    public SearchDataSourceFactory(Context context, String query) {
+        mContext = context.getApplicationContext();
+        mQuery = query;
+    }
+
+    @Override
+    public DataSource<Integer, SearchItem> create() {
+        mDataSource = new SearchDataSource(mContext, mQuery);
+        return mDataSource;
+    }
+
+    /** Stops loading results, canceling any running query. */
+    public void invalidate() {
+        SearchDataSource dataSource = mDataSource;
+        if (dataSource != null)
+            dataSource.invalidate();
+    }
+}
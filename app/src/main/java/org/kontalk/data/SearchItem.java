@@ -18,13 +18,12 @@
 
 package org.kontalk.data;
 
-import org.kontalk.provider.MyMessages.Messages;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.kontalk.provider.MyMessages.Messages.Fulltext;
-import org.kontalk.reporting.ReportingManager;
 
-import android.content.Context;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteException;
 
 
 /**
@@ -32,22 +31,26 @@ import android.database.sqlite.SQLiteException;
  * @author Daniele Ricci
  */
 public class SearchItem {
-    private static final String[] SEARCH_PROJECTION = {
-        Fulltext._ID + " AS " + Messages._ID,
+    static final String[] SEARCH_PROJECTION = {
+        Fulltext._ID,
         Fulltext.THREAD_ID,
-        Fulltext.CONTENT
+        Fulltext.SNIPPET,
     };
 
     private final long mId;
     private final long mThreadId;
     private final String mText;
+    private final int[] mHighlights;
     private final Conversation mConversation;
 
-    private SearchItem(Context context, long id, long threadId, String text) {
+    private SearchItem(long id, long threadId, String snippet, Conversation conversation) {
         mId = id;
         mThreadId = threadId;
-        mText = text;
-        mConversation = Conversation.loadFromId(context, threadId);
+        mConversation = conversation;
+
+        StringBuilder text = new StringBuilder();
+        mHighlights = parseSnippet(snippet, text);
+        mText = text.toString();
     }
 
     public long getMessageId() {
@@ -76,27 +79,71 @@ public class SearchItem {
         return null;
     }
 
+    /** Part of the message text around the matching terms. */
     public String getText() {
         return mText;
     }
 
-    public static SearchItem fromCursor(Context context, Cursor cursor) {
+    /** Start and end offsets of the matching terms in {@link #getText()}, in pairs. */
+    public int[] getHighlights() {
+        return mHighlights;
+    }
+
+    static SearchItem fromCursor(Cursor cursor, Conversation conversation) {
         long id = cursor.getLong(0);
         long threadId = cursor.getLong(1);
-        String text = cursor.getString(2);
-        return new SearchItem(context, id, threadId, text);
+        String snippet = cursor.getString(2);
+        return new SearchItem(id, threadId, snippet, conversation);
     }
 
-    public static Cursor query(Context context, String query) {
-        try {
-            // TODO enhanced queries?
-            return context.getContentResolver().query(Fulltext.CONTENT_URI
-                    .buildUpon().appendQueryParameter("pattern", query).build(),
-                SEARCH_PROJECTION, null, null, Fulltext.DEFAULT_SORT_ORDER);
+    /**
+     * Strips the highlight markers from a snippet.
+     * @param snippet snippet with highlight markers
+     * @param text the snippet text will be appended here
+     * @return start and end offsets of the highlighted terms, in pairs
+     */
+    static int[] parseSnippet(String snippet, StringBuilder text) {
+        if (snippet == null)
+            return new int[0];
+
+        List<Integer> offsets = new ArrayList<>();
+        for (int i = 0; i < snippet.length(); i++) {
+            char c = snippet.charAt(i);
+            if (c == Fulltext.HIGHLIGHT_START || c == Fulltext.HIGHLIGHT_END) {
+                offsets.add(text.length());
+            }
+            else {
+                text.append(c);
+            }
         }
-        catch (SQLiteException e) {
-            ReportingManager.logException(e);
+
+        // unbalanced markers should never happen, but just in case
+        int[] highlights = new int[offsets.size() & ~1];
+        for (int i = 0; i < highlights.length; i++)
+            highlights[i] = offsets.get(i);
+        return highlights;
+    }
+
+    /**
+     * Converts what the user typed into a full text query. Every word is
+     * matched as a prefix, so results are found while typing. Search
+     * syntax is not supported: words are quoted.
+     * @return the query, or null if there is nothing to search
+     */
+    static String toMatchQuery(String query) {
+        if (query == null)
             return null;
+
+        StringBuilder match = new StringBuilder();
+        for (String word : query.trim().split("\\s+")) {
+            if (word.length() == 0)
+                continue;
+            if (match.length() > 0)
+                match.append(' ');
+            match.append('"')
+                .append(word.replace("\"", "\"\""))
+                .append("\"*");
         }
+        return match.length() > 0 ? match.toString() : null;
     }
 }
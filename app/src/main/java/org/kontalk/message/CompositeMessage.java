@@ -129,6 +129,14 @@ public class CompositeMessage {
     public static final int COLUMN_GROUP_TYPE = 27;
     public static final int COLUMN_GROUP_MEMBERSHIP = 28;
 
+    /** Same as {@link #MESSAGE_LIST_PROJECTION}, with the length of message bodies. */
+    private static final String[] MESSAGE_LIST_PROJECTION_NO_BODY;
+    static {
+        MESSAGE_LIST_PROJECTION_NO_BODY = MESSAGE_LIST_PROJECTION.clone();
+        MESSAGE_LIST_PROJECTION_NO_BODY[COLUMN_BODY_CONTENT] =
+            "length(" + Messages.BODY_CONTENT + ") AS " + Messages.BODY_CONTENT;
+    }
+
     private static final int SUFFIX_LENGTH = "Component".length();
 
     protected Context mContext;
@@ -529,10 +537,21 @@ public class CompositeMessage {
             id = cursor.getLong(COLUMN_ID);
             String filePath = cursor.getString(COLUMN_ATTACHMENT_LOCAL_URI);
             if (filePath != null) {
-                Uri fileUri = Uri.parse(filePath);
-                if ("file".equals(fileUri.getScheme())) {
-                    mediaFiles = new File[] { new File(fileUri.getPath()) };
-                }
+                setMediaFile(Uri.parse(filePath));
+            }
+        }
+
+        public DeleteMessageHolder(CompositeMessage msg) {
+            id = msg.getDatabaseId();
+            AttachmentComponent attachment = msg.getComponent(AttachmentComponent.class);
+            if (attachment != null && attachment.getLocalUri() != null) {
+                setMediaFile(attachment.getLocalUri());
+            }
+        }
+
+        private void setMediaFile(Uri fileUri) {
+            if ("file".equals(fileUri.getScheme())) {
+                mediaFiles = new File[] { new File(fileUri.getPath()) };
             }
         }
     }
@@ -568,7 +587,29 @@ public class CompositeMessage {
         }
     }
 
-    public static void startQuery(AsyncQueryHandler handler, int token, long threadId, long count, long lastId) {
+    /**
+     * Queries the messages of a conversation, oldest first.
+     * @param count number of messages to load, 0 for all
+     * @param lastId load messages older than this, 0 to load the newest
+     */
+    public static Cursor query(Context context, long threadId, long count, long lastId,
+            String selection, String[] selectionArgs) {
+        return query(context, threadId, count, lastId, MESSAGE_LIST_PROJECTION,
+            selection, selectionArgs);
+    }
+
+    /**
+     * Same as {@link #query}, with the length of message bodies in place of
+     * the bodies. Useful to check for changes without reading the bodies.
+     */
+    public static Cursor queryWithoutBody(Context context, long threadId,
+            String selection, String[] selectionArgs) {
+        return query(context, threadId, 0, 0, MESSAGE_LIST_PROJECTION_NO_BODY,
+            selection, selectionArgs);
+    }
+
+    private static Cursor query(Context context, long threadId, long count, long lastId,
+            String[] projection, String selection, String[] selectionArgs) {
         Uri.Builder builder = ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId)
             .buildUpon()
             .appendQueryParameter("count", String.valueOf(count));
@@ -576,10 +617,8 @@ public class CompositeMessage {
             builder.appendQueryParameter("last", String.valueOf(lastId));
         }
 
-        // cancel previous operations
-        handler.cancelOperation(token);
-        handler.startQuery(token, lastId > 0 ? "append" : null, builder.build(),
-                MESSAGE_LIST_PROJECTION, null, null, Messages.DEFAULT_SORT_ORDER);
+        return context.getContentResolver().query(builder.build(),
+            projection, selection, selectionArgs, Messages.DEFAULT_SORT_ORDER);
     }
 
     /** A sample text content from class name and mime type. */
@@ -19,25 +19,38 @@
 package org.kontalk.provider;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import androidx.annotation.VisibleForTesting;
 import android.text.TextUtils;
 
+import androidx.collection.LruCache;
+
 import org.kontalk.client.EndpointServer;
 import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.EncryptionContext;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PGPCoder;
+import org.kontalk.crypto.PGPParsedKeyRing;
 import org.kontalk.crypto.PersonalKey;
 
 
@@ -54,33 +67,131 @@ public class Keyring {
     @VisibleForTesting
     static final String VALUE_AUTOTRUST = "<autotrust>";
 
+    /** Max number of JIDs in a single query (stays below SQLite variable limit). */
+    private static final int MAX_QUERY_JIDS = 500;
+
+    /**
+     * Parsed public keys cache, keyed by JID and fingerprint.
+     * Trust levels are always resolved through the database, so an entry is
+     * valid for as long as the key data for that fingerprint doesn't change.
+     */
+    private static final class PublicKeyCache extends LruCache<String, PGPParsedKeyRing> {
+        private static final int MAX_ENTRIES = 100;
+
+        PublicKeyCache() {
+            super(MAX_ENTRIES);
+        }
+
+        static String key(String jid, String fingerprint) {
+            // JIDs are compared case-insensitively by the provider
+            return jid.toLowerCase(Locale.US) + '|' + fingerprint;
+        }
+
+        PGPParsedKeyRing get(String jid, String fingerprint) {
+            return get(key(jid, fingerprint));
+        }
+
+        void put(String jid, String fingerprint, PGPParsedKeyRing key) {
+            put(key(jid, fingerprint), key);
+        }
+
+        void invalidate(String jid) {
+            String prefix = jid.toLowerCase(Locale.US) + '|';
+            for (String key : snapshot().keySet()) {
+                if (key.startsWith(prefix))
+                    remove(key);
+            }
+        }
+    }
+
+    private static final PublicKeyCache sCache = new PublicKeyCache();
+
+    /**
+     * Encryption contexts cache, keyed by network and recipients.
+     * A change in group membership yields a different key, while any change
+     * to the keys table bumps {@link #sKeysGeneration}, making all entries stale.
+     */
+    private static final class EncryptionContextCache extends LruCache<String, EncryptionContextCache.Entry> {
+        private static final int MAX_ENTRIES = 20;
+
+        static final class Entry {
+            final EncryptionContext context;
+            final int generation;
+
+            Entry(EncryptionContext context, int generation) {
+                this.context = context;
+                this.generation = generation;
+            }
+        }
+
+        EncryptionContextCache() {
+            super(MAX_ENTRIES);
+        }
+
+        static String key(String network, String[] recipients) {
+            String[] sorted = new String[recipients.length];
+            for (int i = 0; i < recipients.length; i++)
+                sorted[i] = recipients[i].toLowerCase(Locale.US);
+            Arrays.sort(sorted);
+            return network + '|' + TextUtils.join(",", sorted);
+        }
+    }
+
+    private static final EncryptionContextCache sContextCache = new EncryptionContextCache();
+
+    /** Incremented every time something in the keys table changes. */
+    private static final AtomicInteger sKeysGeneration = new AtomicInteger();
+
     private Keyring() {
     }
 
-    /** Returns a {@link Coder} instance for encrypting data. */
+    /**
+     * Returns a {@link Coder} instance for encrypting data.
+     * Recipient keys and user IDs are resolved once and reused for consecutive
+     * messages to the same recipients.
+     */
     public static Coder getEncryptCoder(Context context, EndpointServer server, PersonalKey key, String[] recipients) {
+        return new PGPCoder(server, key, getEncryptionContext(context, server.getNetwork(), recipients));
+    }
+
+    private static EncryptionContext getEncryptionContext(Context context, String network, String[] recipients) {
+        String cacheKey = EncryptionContextCache.key(network, recipients);
+        // read the generation before loading keys so a concurrent change won't be missed
+        int generation = sKeysGeneration.get();
+
+        EncryptionContextCache.Entry entry = sContextCache.get(cacheKey);
+        if (entry != null && entry.generation == generation)
+            return entry.context;
+
         // get recipients public keys from users database
-        PGPPublicKeyRing[] keys = new PGPPublicKeyRing[recipients.length];
+        PGPParsedKeyRing[] keys = new PGPParsedKeyRing[recipients.length];
         for (int i = 0; i < recipients.length; i++) {
-            PGPPublicKeyRing ring = getPublicKey(context, recipients[i], MyUsers.Keys.TRUST_UNKNOWN);
+            PGPParsedKeyRing ring = getParsedPublicKey(context, recipients[i], MyUsers.Keys.TRUST_UNKNOWN);
             if (ring == null)
                 throw new IllegalArgumentException("public key not found for user " + recipients[i]);
 
             keys[i] = ring;
         }
 
-        return new PGPCoder(server, key, keys);
+        EncryptionContext encryptionContext = new EncryptionContext(network, keys);
+        sContextCache.put(cacheKey, new EncryptionContextCache.Entry(encryptionContext, generation));
+        return encryptionContext;
+    }
+
+    /** Marks all encryption contexts as stale. Call after any change to the keys table. */
+    private static void keysChanged() {
+        sKeysGeneration.incrementAndGet();
     }
 
     /** Returns a {@link Coder} instance for decrypting data. */
     public static Coder getDecryptCoder(Context context, EndpointServer server, PersonalKey key, String sender) {
-        PGPPublicKeyRing senderKey = getPublicKey(context, sender, MyUsers.Keys.TRUST_IGNORED);
+        PGPParsedKeyRing senderKey = getParsedPublicKey(context, sender, MyUsers.Keys.TRUST_IGNORED);
         return new PGPCoder(server, key, senderKey);
     }
 
     /** Returns a {@link Coder} instance for verifying data. */
     public static Coder getVerifyCoder(Context context, EndpointServer server, String sender) {
-        PGPPublicKeyRing senderKey = getPublicKey(context, sender, MyUsers.Keys.TRUST_UNKNOWN);
+        PGPParsedKeyRing senderKey = getParsedPublicKey(context, sender, MyUsers.Keys.TRUST_UNKNOWN);
         return new PGPCoder(server, null, senderKey);
     }
 
@@ -109,6 +220,9 @@ public class Keyring {
             values.put(MyUsers.Keys.TRUST_LEVEL, autoTrustedLevel);
         }
         context.getContentResolver().insert(MyUsers.Keys.getUri(jid, fingerprint), values);
+        // key data might have changed (e.g. new signatures or user IDs)
+        sCache.invalidate(jid);
+        keysChanged();
 
         if (autoTrustedLevel >= 0) {
             // delete the autotrust entry
@@ -136,6 +250,27 @@ public class Keyring {
         context.getContentResolver().insert(MyUsers.Keys.getUri(jid, fingerprint)
             // since we are handling data from a presence, insert only if it doesn't exist
             .buildUpon().appendQueryParameter(MyUsers.Keys.INSERT_ONLY, "true").build(), values);
+        // a new fingerprint might now be the latest one
+        keysChanged();
+    }
+
+    /**
+     * Same as {@link #setKey(Context, String, String, Date)}, for use in a
+     * batch. {@link #fingerprintsChanged()} must be called after applying it.
+     */
+    public static ContentProviderOperation newFingerprintOperation(String jid, String fingerprint, Date date) {
+        if (fingerprint == null)
+            throw new NullPointerException("fingerprint");
+
+        return ContentProviderOperation.newInsert(MyUsers.Keys.getUri(jid, fingerprint)
+                .buildUpon().appendQueryParameter(MyUsers.Keys.INSERT_ONLY, "true").build())
+            .withValue(MyUsers.Keys.TIMESTAMP, date.getTime())
+            .build();
+    }
+
+    /** To be called after applying operations from {@link #newFingerprintOperation}. */
+    public static void fingerprintsChanged() {
+        keysChanged();
     }
 
     /** Sets the trust level for the given key. */
@@ -147,12 +282,15 @@ public class Keyring {
         values.put(MyUsers.Keys.TRUST_LEVEL, trustLevel);
         values.put(MyUsers.Keys.MANUAL_TRUST, true);
         context.getContentResolver().insert(MyUsers.Keys.getUri(jid, fingerprint), values);
+        sCache.invalidate(jid);
+        keysChanged();
     }
 
     public static void setAutoTrustLevel(Context context, String jid, int trustLevel) {
         ContentValues values = new ContentValues(1);
         values.put(MyUsers.Keys.TRUST_LEVEL, trustLevel);
         context.getContentResolver().insert(MyUsers.Keys.getUri(jid, VALUE_AUTOTRUST), values);
+        keysChanged();
     }
 
     /**
@@ -170,21 +308,128 @@ public class Keyring {
         return fingerprint;
     }
 
+    /**
+     * Retrieves the latest fingerprint with the minimum given trust level for
+     * each of the given users, without loading any key data.
+     * @return a map keyed by lower case JID
+     */
+    public static Map<String, LatestFingerprint> getLatestFingerprints(Context context, Collection<String> jids, int trustLevel) {
+        Map<String, LatestFingerprint> result = new HashMap<>(jids.size());
+        Set<String> withKey = new HashSet<>();
+
+        List<String> list = new ArrayList<>(jids);
+        for (int start = 0; start < list.size(); start += MAX_QUERY_JIDS) {
+            List<String> chunk = list.subList(start, Math.min(start + MAX_QUERY_JIDS, list.size()));
+            String[] args = new String[chunk.size() + 1];
+            StringBuilder where = new StringBuilder(MyUsers.Keys.JID)
+                .append(" COLLATE NOCASE IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                if (i > 0)
+                    where.append(',');
+                where.append('?');
+                args[i] = chunk.get(i);
+            }
+            where.append(") AND ")
+                .append(MyUsers.Keys.TRUST_LEVEL).append(" >= ").append(trustLevel)
+                .append(" AND ")
+                .append(MyUsers.Keys.FINGERPRINT).append(" <> ?");
+            args[chunk.size()] = VALUE_AUTOTRUST;
+
+            String[] projection = { MyUsers.Keys.JID, MyUsers.Keys.FINGERPRINT };
+            Cursor c = context.getContentResolver().query(MyUsers.Keys.CONTENT_URI, projection,
+                where.toString(), args, MyUsers.Keys.TIMESTAMP + " DESC");
+            if (c != null) {
+                while (c.moveToNext()) {
+                    String jid = c.getString(0).toLowerCase(Locale.US);
+                    // first one is the latest
+                    if (!result.containsKey(jid))
+                        result.put(jid, new LatestFingerprint(c.getString(1), false));
+                }
+                c.close();
+            }
+
+            // keys with data available
+            c = context.getContentResolver().query(MyUsers.Keys.CONTENT_URI, projection,
+                where + " AND " + MyUsers.Keys.PUBLIC_KEY + " IS NOT NULL", args, null);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    withKey.add(c.getString(0).toLowerCase(Locale.US) + '|' + c.getString(1));
+                }
+                c.close();
+            }
+        }
+
+        for (Map.Entry<String, LatestFingerprint> e : result.entrySet()) {
+            String fingerprint = e.getValue().fingerprint;
+            if (withKey.contains(e.getKey() + '|' + fingerprint))
+                e.setValue(new LatestFingerprint(fingerprint, true));
+        }
+        return result;
+    }
+
     /**
      * Retrieves the latest public key with the minimum given trust level.
      * @param trustLevel the minimum trust level to consider
      */
     public static PGPPublicKeyRing getPublicKey(Context context, String jid, int trustLevel) {
-        TrustedPublicKeyData key = getPublicKeyData(context, jid, trustLevel);
+        PGPParsedKeyRing key = getParsedPublicKey(context, jid, trustLevel);
+        return key != null ? key.getPublicKeyRing() : null;
+    }
 
-        try {
-            return PGP.readPublicKeyring(key.keyData);
+    /**
+     * Retrieves the latest public key with the minimum given trust level,
+     * already parsed. Parsed keys are cached.
+     * @param trustLevel the minimum trust level to consider
+     */
+    public static PGPParsedKeyRing getParsedPublicKey(Context context, String jid, int trustLevel) {
+        // resolve the fingerprint first, it's way cheaper than loading the key data
+        String fingerprint = getFingerprint(context, jid, trustLevel);
+        if (fingerprint == null)
+            return null;
+
+        PGPParsedKeyRing key = sCache.get(jid, fingerprint);
+        if (key != null)
+            return key;
+
+        byte[] keyData = null;
+        Cursor c = context.getContentResolver().query(MyUsers.Keys.getUri(jid),
+            new String[] { MyUsers.Keys.PUBLIC_KEY },
+            MyUsers.Keys.FINGERPRINT + " = ?",
+            new String[] { fingerprint }, null);
+        if (c != null) {
+            if (c.moveToFirst())
+                keyData = c.getBlob(0);
+            c.close();
         }
-        catch (Exception e) {
-            // ignored
+
+        if (keyData != null) {
+            try {
+                key = PGPParsedKeyRing.parse(keyData);
+                sCache.put(jid, fingerprint, key);
+            }
+            catch (Exception e) {
+                // ignored
+            }
         }
 
-        return null;
+        return key;
+    }
+
+    /** Number of parsed public key cache hits. */
+    public static int getPublicKeyCacheHitCount() {
+        return sCache.hitCount();
+    }
+
+    /** Number of parsed public key cache misses. */
+    public static int getPublicKeyCacheMissCount() {
+        return sCache.missCount();
+    }
+
+    /** Drops all parsed public keys and encryption contexts from memory. */
+    public static void invalidatePublicKeyCache() {
+        sCache.evictAll();
+        sContextCache.evictAll();
+        keysChanged();
     }
 
     /**
@@ -260,7 +505,9 @@ public class Keyring {
             values[i].put(MyUsers.Keys.FINGERPRINT, e.getValue().fingerprint);
             values[i].put(MyUsers.Keys.TRUST_LEVEL, e.getValue().trustLevel);
         }
-        return context.getContentResolver().bulkInsert(MyUsers.Keys.CONTENT_URI, values);
+        int rows = context.getContentResolver().bulkInsert(MyUsers.Keys.CONTENT_URI, values);
+        invalidatePublicKeyCache();
+        return rows;
     }
 
     /** Returns a JID-fingerprint map of trusted keys. */
@@ -309,6 +556,18 @@ public class Keyring {
         return keys;
     }
 
+    /** Latest known fingerprint of a user. */
+    public static final class LatestFingerprint {
+        public final String fingerprint;
+        /** True if the public key data is available. */
+        public final boolean hasKey;
+
+        LatestFingerprint(String fingerprint, boolean hasKey) {
+            this.fingerprint = fingerprint;
+            this.hasKey = hasKey;
+        }
+    }
+
     public static final class TrustedFingerprint {
         public final String fingerprint;
         public final int trustLevel;
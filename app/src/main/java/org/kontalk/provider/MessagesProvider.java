@@ -21,14 +21,19 @@ package org.kontalk.provider;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -37,10 +42,13 @@ import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabaseLockedException;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
 import android.provider.BaseColumns;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
+import androidx.core.os.CancellationSignal;
 
 import io.requery.android.database.sqlite.SQLiteDatabase;
 import io.requery.android.database.sqlite.SQLiteOpenHelper;
@@ -97,9 +105,26 @@ public class MessagesProvider extends ContentProvider {
     private static final int IMPORT_LOCK = 15;
     private static final int IMPORT_UNLOCK = 16;
     private static final int RELOAD = 17;
+    private static final int CHECKPOINT = 18;
 
     private DatabaseHelper dbHelper;
     private static final UriMatcher sUriMatcher;
+
+    /** Provider method for inserting several incoming messages. */
+    static final String METHOD_INSERT_MESSAGES = "insertMessages";
+    /** Messages to insert ({@link ContentValues} array). */
+    static final String EXTRA_VALUES = "values";
+    /** Inserted message Uris ({@link Uri} array, null for skipped messages). */
+    static final String EXTRA_URIS = "uris";
+
+    /** Work deferred until the end of a batch. */
+    private static final class Batch {
+        final Set<Long> threads = new LinkedHashSet<>();
+        final List<Uri> notifications = new ArrayList<>();
+    }
+
+    /** The batch being applied by the current thread, if any. */
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<>();
     private static HashMap<String, String> messagesProjectionMap;
     private static HashMap<String, String> threadsProjectionMap;
     private static HashMap<String, String> fulltextProjectionMap;
@@ -109,7 +134,7 @@ public class MessagesProvider extends ContentProvider {
     @VisibleForTesting
     static class DatabaseHelper extends SQLiteOpenHelper {
         @VisibleForTesting
-        static final int DATABASE_VERSION = 20;
+        static final int DATABASE_VERSION = 23;
         @VisibleForTesting
         static final String DATABASE_NAME = "messages.db";
 
@@ -231,15 +256,61 @@ public class MessagesProvider extends ContentProvider {
             TABLE_THREADS + "." + Threads._ID + "=" +
             TABLE_GROUPS + "." + Groups.THREAD_ID;
 
-        /** This table will contain every text message to speed-up full text searches. */
+        /**
+         * Full text index of text messages. Text is not copied: the index
+         * reads it from the messages table when needed (external content).
+         * Prefix indexes speed up search-as-you-type.
+         */
         private static final String SCHEMA_FULLTEXT =
-            "CREATE VIRTUAL TABLE " + TABLE_FULLTEXT + " USING fts3 (" +
-            "msg_id INTEGER PRIMARY KEY," +
-            "thread_id INTEGER NOT NULL, " +
-            "timestamp INTEGER NOT NULL," +
-            "content TEXT" +
+            "CREATE VIRTUAL TABLE " + TABLE_FULLTEXT + " USING fts5 (" +
+            Messages.THREAD_ID + " UNINDEXED, " +
+            Messages.TIMESTAMP + " UNINDEXED, " +
+            Messages.BODY_CONTENT + ", " +
+            "content='" + TABLE_MESSAGES + "', " +
+            "content_rowid='" + Messages._ID + "', " +
+            "prefix='2 3', " +
+            "tokenize='unicode61 remove_diacritics 2'" +
             ")";
 
+        /** Messages that go into the full text index. */
+        private static String fulltextIndexed(String row) {
+            return row + "." + Messages.BODY_MIME + " = '" + TextComponent.MIME_TYPE + "' AND " +
+                row + "." + Messages.ENCRYPTED + " = 0 AND " +
+                row + "." + Messages.THREAD_ID + " > 0";
+        }
+
+        private static final String FULLTEXT_INSERT_NEW =
+            "INSERT INTO " + TABLE_FULLTEXT + " (rowid, " +
+                Messages.THREAD_ID + ", " + Messages.TIMESTAMP + ", " + Messages.BODY_CONTENT + ") " +
+            "SELECT new._id, new.thread_id, new.timestamp, new.body_content " +
+            "WHERE " + fulltextIndexed("new");
+        /** Removing from an external content index needs the values that were indexed. */
+        private static final String FULLTEXT_DELETE_OLD =
+            "INSERT INTO " + TABLE_FULLTEXT + " (" + TABLE_FULLTEXT + ", rowid, " +
+                Messages.THREAD_ID + ", " + Messages.TIMESTAMP + ", " + Messages.BODY_CONTENT + ") " +
+            "SELECT 'delete', old._id, old.thread_id, old.timestamp, old.body_content " +
+            "WHERE " + fulltextIndexed("old");
+
+        /** These triggers keep the full text index in sync with the messages table. */
+        private static final String TRIGGER_FULLTEXT_INSERT =
+            "CREATE TRIGGER fulltext_on_insert AFTER INSERT ON " + TABLE_MESSAGES +
+            " BEGIN " +
+            FULLTEXT_INSERT_NEW + ";" +
+            "END";
+        private static final String TRIGGER_FULLTEXT_UPDATE =
+            "CREATE TRIGGER fulltext_on_update AFTER UPDATE OF " +
+                Messages.THREAD_ID + ", " + Messages.TIMESTAMP + ", " + Messages.BODY_MIME + ", " +
+                Messages.BODY_CONTENT + ", " + Messages.ENCRYPTED + " ON " + TABLE_MESSAGES +
+            " BEGIN " +
+            FULLTEXT_DELETE_OLD + ";" +
+            FULLTEXT_INSERT_NEW + ";" +
+            "END";
+        private static final String TRIGGER_FULLTEXT_DELETE =
+            "CREATE TRIGGER fulltext_on_delete AFTER DELETE ON " + TABLE_MESSAGES +
+            " BEGIN " +
+            FULLTEXT_DELETE_OLD + ";" +
+            "END";
+
         private static final String SCHEMA_MESSAGES_INDEX =
             "CREATE UNIQUE INDEX IF NOT EXISTS unique_message ON " + TABLE_MESSAGES +
             " (msg_id, direction)";
@@ -252,28 +323,50 @@ public class MessagesProvider extends ContentProvider {
             "CREATE INDEX IF NOT EXISTS idx_messages_thread_id ON " + TABLE_MESSAGES +
             "(" + Messages.THREAD_ID + ")";
 
-        /** Updates the thread messages count. */
-        private static final String UPDATE_MESSAGES_COUNT_NEW =
-            "UPDATE " + TABLE_THREADS + " SET count = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id" +
-            ") WHERE _id = new.thread_id";
-        private static final String UPDATE_MESSAGES_COUNT_OLD =
-            "UPDATE " + TABLE_THREADS + " SET count = (" +
-            "SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id" +
-            ") WHERE _id = old.thread_id";
-
-        /** Updates the thread unread/new count. */
-        private static final String UPDATE_UNREAD_COUNT_NEW =
+        /** Used for computing thread status and for paging through a thread. */
+        private static final String SCHEMA_MESSAGES_THREAD_TIMESTAMP_IDX =
+            "CREATE INDEX IF NOT EXISTS idx_messages_thread_timestamp ON " + TABLE_MESSAGES +
+            "(" + Messages.THREAD_ID + ", " + Messages.TIMESTAMP + ")";
+
+        /** Covering indexes for counting unread and new messages in a thread. */
+        private static final String SCHEMA_MESSAGES_THREAD_UNREAD_IDX =
+            "CREATE INDEX IF NOT EXISTS idx_messages_thread_unread ON " + TABLE_MESSAGES +
+            "(" + Messages.THREAD_ID + ", " + Messages.UNREAD + ")";
+        private static final String SCHEMA_MESSAGES_THREAD_NEW_IDX =
+            "CREATE INDEX IF NOT EXISTS idx_messages_thread_new ON " + TABLE_MESSAGES +
+            "(" + Messages.THREAD_ID + ", \"" + Messages.NEW + "\")";
+
+        /** Used for keyset paging through the conversation list. */
+        private static final String SCHEMA_THREADS_KEYSET_IDX =
+            "CREATE INDEX IF NOT EXISTS idx_threads_keyset ON " + TABLE_THREADS +
+            "(" + Threads.ARCHIVED + ", " + Threads.STICKY + ", " + Threads.TIMESTAMP + ", " + Threads._ID + ")";
+
+        /**
+         * Updates the thread counters for an inserted message.
+         * Counters are kept up to date incrementally, so the cost doesn't
+         * depend on the thread size.
+         */
+        private static final String UPDATE_COUNTERS_NEW =
             "UPDATE " + TABLE_THREADS + " SET " +
-                "unread = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id AND unread <> 0), " +
-                "\"new\" = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id AND \"new\" <> 0) " +
+                "count = count + 1, " +
+                "unread = unread + (new.unread <> 0), " +
+                "\"new\" = \"new\" + (new.\"new\" <> 0) " +
                 "WHERE _id = new.thread_id";
-        private static final String UPDATE_UNREAD_COUNT_OLD =
+        /** Updates the thread counters for a deleted message. */
+        private static final String UPDATE_COUNTERS_OLD =
             "UPDATE " + TABLE_THREADS + " SET " +
-                "unread = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id AND unread <> 0), " +
-                "\"new\" = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = old.thread_id AND \"new\" <> 0) " +
+                "count = count - 1, " +
+                "unread = unread - (old.unread <> 0), " +
+                "\"new\" = \"new\" - (old.\"new\" <> 0) " +
                 "WHERE _id = old.thread_id";
 
+        /** Recomputes all thread counters from scratch. */
+        private static final String UPDATE_COUNTERS_ALL =
+            "UPDATE " + TABLE_THREADS + " SET " +
+                "count = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = " + TABLE_THREADS + "._id), " +
+                "unread = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = " + TABLE_THREADS + "._id AND unread <> 0), " +
+                "\"new\" = (SELECT COUNT(_id) FROM " + TABLE_MESSAGES + " WHERE thread_id = " + TABLE_THREADS + "._id AND \"new\" <> 0)";
+
         /** Updates the thread status reflected by the latest message. */
         /*
         private static final String UPDATE_STATUS_OLD =
@@ -282,16 +375,15 @@ public class MessagesProvider extends ContentProvider {
             " WHERE _id = old.thread_id";
         */
         private static final String UPDATE_STATUS_NEW =
-            "UPDATE " + TABLE_THREADS + " SET status = (" +
-            "SELECT status FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id ORDER BY timestamp DESC LIMIT 1)" +
-            " WHERE _id = new.thread_id";
+            "UPDATE " + TABLE_THREADS + " SET status = new.status" +
+            " WHERE _id = new.thread_id AND NOT EXISTS (" +
+            "SELECT 1 FROM " + TABLE_MESSAGES + " WHERE thread_id = new.thread_id AND timestamp > new.timestamp)";
 
         /** This trigger will update the threads table counters on INSERT. */
         private static final String TRIGGER_THREADS_INSERT_COUNT =
             "CREATE TRIGGER update_thread_on_insert AFTER INSERT ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_NEW + ";" +
-            UPDATE_UNREAD_COUNT_NEW   + ";" +
+            UPDATE_COUNTERS_NEW       + ";" +
             UPDATE_STATUS_NEW         + ";" +
             "END";
 
@@ -311,8 +403,7 @@ public class MessagesProvider extends ContentProvider {
         private static final String TRIGGER_THREADS_DELETE_COUNT =
             "CREATE TRIGGER update_thread_on_delete AFTER DELETE ON " + TABLE_MESSAGES +
             " BEGIN " +
-            UPDATE_MESSAGES_COUNT_OLD + ";" +
-            UPDATE_UNREAD_COUNT_OLD   + ";" +
+            UPDATE_COUNTERS_OLD       + ";" +
             // do not call this here -- UPDATE_STATUS_OLD         + ";" +
             "END";
 
@@ -457,6 +548,43 @@ public class MessagesProvider extends ContentProvider {
                 "where EXISTS (SELECT timestamp FROM messages WHERE _id = fulltext.msg_id)",
         };
 
+        // incremental thread counters
+        private static final String[] SCHEMA_UPGRADE_V20 = {
+            SCHEMA_MESSAGES_THREAD_TIMESTAMP_IDX,
+            SCHEMA_MESSAGES_THREAD_UNREAD_IDX,
+            SCHEMA_MESSAGES_THREAD_NEW_IDX,
+            "DROP TRIGGER IF EXISTS update_thread_on_insert",
+            TRIGGER_THREADS_INSERT_COUNT,
+            "DROP TRIGGER IF EXISTS update_thread_on_update",
+            TRIGGER_THREADS_UPDATE_COUNT,
+            "DROP TRIGGER IF EXISTS update_thread_on_delete",
+            TRIGGER_THREADS_DELETE_COUNT,
+            // start from exact values
+            UPDATE_COUNTERS_ALL,
+        };
+
+        // keyset paging for the conversation list
+        private static final String[] SCHEMA_UPGRADE_V21 = {
+            SCHEMA_THREADS_KEYSET_IDX,
+        };
+
+        // fts5 full text index
+        private static final String[] SCHEMA_UPGRADE_V22 = {
+            "DROP TABLE " + TABLE_FULLTEXT,
+            SCHEMA_FULLTEXT,
+            TRIGGER_FULLTEXT_INSERT,
+            TRIGGER_FULLTEXT_UPDATE,
+            TRIGGER_FULLTEXT_DELETE,
+            // not using 'rebuild', it would index every message
+            "INSERT INTO " + TABLE_FULLTEXT + " (rowid, " +
+                Messages.THREAD_ID + ", " + Messages.TIMESTAMP + ", " + Messages.BODY_CONTENT + ") " +
+            "SELECT _id, thread_id, timestamp, body_content FROM " + TABLE_MESSAGES + " " +
+            "WHERE " + fulltextIndexed(TABLE_MESSAGES),
+        };
+
+        /** Size the write-ahead log is truncated to after a checkpoint. */
+        private static final int WAL_SIZE_LIMIT = 1024 * 1024;
+
         /** If true, fail all operations. */
         private boolean mLocked;
 
@@ -464,6 +592,14 @@ public class MessagesProvider extends ContentProvider {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
         }
 
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            // readers (lists, paging) won't wait for incoming messages to be written
+            db.enableWriteAheadLogging();
+            // keep the log from growing forever after a big checkpoint
+            pragma(db, "PRAGMA journal_size_limit = " + WAL_SIZE_LIMIT);
+        }
+
         @Override
         public void onCreate(SQLiteDatabase db) {
             db.execSQL(SCHEMA_MESSAGES);
@@ -475,10 +611,17 @@ public class MessagesProvider extends ContentProvider {
             db.execSQL(SCHEMA_MESSAGES_INDEX);
             db.execSQL(SCHEMA_MESSAGES_TIMESTAMP_IDX);
             db.execSQL(SCHEMA_MESSAGES_THREAD_ID_IDX);
+            db.execSQL(SCHEMA_MESSAGES_THREAD_TIMESTAMP_IDX);
+            db.execSQL(SCHEMA_MESSAGES_THREAD_UNREAD_IDX);
+            db.execSQL(SCHEMA_MESSAGES_THREAD_NEW_IDX);
+            db.execSQL(SCHEMA_THREADS_KEYSET_IDX);
             db.execSQL(TRIGGER_THREADS_INSERT_COUNT);
             db.execSQL(TRIGGER_THREADS_UPDATE_COUNT);
             db.execSQL(TRIGGER_THREADS_DELETE_COUNT);
             db.execSQL(TRIGGER_GROUPS_DELETE_MEMBERS);
+            db.execSQL(TRIGGER_FULLTEXT_INSERT);
+            db.execSQL(TRIGGER_FULLTEXT_UPDATE);
+            db.execSQL(TRIGGER_FULLTEXT_DELETE);
         }
 
         @Override
@@ -547,6 +690,21 @@ public class MessagesProvider extends ContentProvider {
                         db.execSQL(sql);
                     }
                     // fall through
+                case 20:
+                    for (String sql : SCHEMA_UPGRADE_V20) {
+                        db.execSQL(sql);
+                    }
+                    // fall through
+                case 21:
+                    for (String sql : SCHEMA_UPGRADE_V21) {
+                        db.execSQL(sql);
+                    }
+                    // fall through
+                case 22:
+                    for (String sql : SCHEMA_UPGRADE_V22) {
+                        db.execSQL(sql);
+                    }
+                    // fall through
             }
         }
 
@@ -558,6 +716,32 @@ public class MessagesProvider extends ContentProvider {
             mLocked = false;
         }
 
+        /**
+         * Copies the write-ahead log into the database file. Passive mode
+         * won't wait for readers or writers.
+         */
+        public void checkpoint() {
+            pragma(getWritableDatabase(), "PRAGMA wal_checkpoint(PASSIVE)");
+        }
+
+        /** Some pragmas return a result, which execSQL won't allow. */
+        private static void pragma(SQLiteDatabase db, String sql) {
+            Cursor c = db.rawQuery(sql, null);
+            try {
+                c.moveToFirst();
+            }
+            finally {
+                c.close();
+            }
+        }
+
+        /** Deletes the write-ahead log files of the database. Database must be closed. */
+        static void deleteLog(Context context) {
+            File db = context.getDatabasePath(DATABASE_NAME);
+            new File(db.getPath() + "-wal").delete();
+            new File(db.getPath() + "-shm").delete();
+        }
+
         @Override
         public SQLiteDatabase getReadableDatabase() {
             if (mLocked)
@@ -587,6 +771,28 @@ public class MessagesProvider extends ContentProvider {
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, (CancellationSignal) null);
+    }
+
+    @Override
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, android.os.CancellationSignal cancellationSignal) {
+        CancellationSignal signal = null;
+        if (cancellationSignal != null) {
+            signal = new CancellationSignal();
+            final CancellationSignal querySignal = signal;
+            cancellationSignal.setOnCancelListener(new android.os.CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    querySignal.cancel();
+                }
+            });
+        }
+        return query(uri, projection, selection, selectionArgs, sortOrder, signal);
+    }
+
+    private Cursor query(@NonNull Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, CancellationSignal cancellationSignal) {
         SQLitePagedQueryBuilder qb = new SQLitePagedQueryBuilder();
 
         switch (sUriMatcher.match(uri)) {
@@ -654,7 +860,7 @@ public class MessagesProvider extends ContentProvider {
             case FULLTEXT_ID:
                 qb.setTables(TABLE_FULLTEXT);
                 qb.setProjectionMap(fulltextProjectionMap);
-                qb.appendWhere(Fulltext.CONTENT + " MATCH ?");
+                qb.appendWhere(TABLE_FULLTEXT + " MATCH ?");
                 selectionArgs = new String[] { uri.getQueryParameter("pattern") };
                 break;
 
@@ -692,6 +898,9 @@ public class MessagesProvider extends ContentProvider {
         }
 
         String limit = uri.getQueryParameter("limit");
+        String offset = uri.getQueryParameter("offset");
+        if (limit != null && offset != null)
+            limit = offset + "," + limit;
 
         SQLiteDatabase db = dbHelper.getReadableDatabase();
         Cursor c;
@@ -700,7 +909,7 @@ public class MessagesProvider extends ContentProvider {
                 selection, selectionArgs, null, null, sortOrder, limit);
         }
         else {
-            c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder, limit);
+            c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder, limit, cancellationSignal);
         }
 
         c.setNotificationUri(getContext().getContentResolver(), uri);
@@ -717,9 +926,6 @@ public class MessagesProvider extends ContentProvider {
         if (match != MESSAGES && match != REQUESTS && match != GROUPS && match != GROUPS_MEMBERS)
             throw new IllegalArgumentException("Unknown URI " + uri);
 
-        // if this column is present, we'll insert the thread only
-        String draft = initialValues.getAsString(Threads.DRAFT);
-
         ContentValues values = new ContentValues(initialValues);
 
         SQLiteDatabase db = dbHelper.getWritableDatabase();
@@ -744,109 +950,172 @@ public class MessagesProvider extends ContentProvider {
                     return null;
             }
 
-            // we need to know if there previously was a pending request
-            // so we can decide if we have to fire a notification or not
-            boolean requestExists = false;
-            if (match == REQUESTS) {
-                requestExists = isRequestPending(db, initialValues.getAsString(Threads.PEER));
-            }
+            Uri result = insertMessage(db, uri, match, initialValues, values, notifications);
+            db.setTransactionSuccessful();
+            return result;
+        }
+        finally {
+            db.endTransaction();
+            ContentResolver cr = getContext().getContentResolver();
+            for (Uri nuri : notifications)
+                cr.notifyChange(nuri, null);
+        }
+    }
 
-            // create the thread first
-            long threadId = updateThreads(db, values, notifications, match == REQUESTS);
-            values.put(Messages.THREAD_ID, threadId);
+    /**
+     * Inserts a message (or a request) and updates its thread.
+     * Must be called inside a transaction.
+     * @return the new message Uri, or the conversation Uri for drafts and new requests
+     */
+    private Uri insertMessage(SQLiteDatabase db, Uri uri, int match,
+            ContentValues initialValues, ContentValues values, List<Uri> notifications) {
+        // if this column is present, we'll insert the thread only
+        String draft = initialValues.getAsString(Threads.DRAFT);
 
-            if (threadId != Messages.NO_THREAD && (draft != null || match == REQUESTS)) {
-                // notify thread change
-                notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
-                // notify conversation change
-                notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+        // we need to know if there previously was a pending request
+        // so we can decide if we have to fire a notification or not
+        boolean requestExists = false;
+        if (match == REQUESTS) {
+            requestExists = isRequestPending(db, initialValues.getAsString(Threads.PEER));
+        }
 
-                db.setTransactionSuccessful();
+        // create the thread first
+        long threadId = updateThreads(db, values, notifications, match == REQUESTS);
+        values.put(Messages.THREAD_ID, threadId);
 
-                // draft or request - return conversation
-                return (draft != null || !requestExists) ?
-                    ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId) : null;
-            }
+        if (threadId != Messages.NO_THREAD && (draft != null || match == REQUESTS)) {
+            // notify thread change
+            notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
+            // notify conversation change
+            notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
+
+            // draft or request - return conversation
+            return (draft != null || !requestExists) ?
+                ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId) : null;
+        }
 
-            // remove reserved columns
-            values.remove(Groups.GROUP_JID);
-            values.remove(Groups.SUBJECT);
-            values.remove(Groups.GROUP_TYPE);
-            values.remove(Threads.ENCRYPTION);
+        // remove reserved columns
+        values.remove(Groups.GROUP_JID);
+        values.remove(Groups.SUBJECT);
+        values.remove(Groups.GROUP_TYPE);
+        values.remove(Threads.ENCRYPTION);
 
-            // insert the new message now!
-            long rowId = db.insertOrThrow(TABLE_MESSAGES, null, values);
+        // insert the new message now!
+        long rowId = db.insertOrThrow(TABLE_MESSAGES, null, values);
 
-            /*
-             * this will be useful one day perhaps :)
-            long rowId = 0;
+        /*
+         * this will be useful one day perhaps :)
+        long rowId = 0;
+        try {
+            rowId = db.insert(TABLE_MESSAGES, null, values);
+        }
+        catch (SQLiteConstraintException e) {
+            // unique constraint is on msg_id, direction
+            // already stored message, skip it and return uri
+            Cursor c = null;
             try {
-                rowId = db.insert(TABLE_MESSAGES, null, values);
+                c = db.query(TABLE_MESSAGES, new String[] { Messages._ID },
+                    Messages.MESSAGE_ID + " = ? AND " + Messages.DIRECTION + " = ?",
+                    new String[] {
+                        values.getAsString(Messages.MESSAGE_ID),
+                        values.getAsString(Messages.DIRECTION)
+                    }, null, null, null, "1");
+                if (c.moveToFirst()) {
+                    rowId = c.getLong(0);
+                    return ContentUris.withAppendedId(uri, rowId);
+                }
             }
-            catch (SQLiteConstraintException e) {
-                // unique constraint is on msg_id, direction
-                // already stored message, skip it and return uri
-                Cursor c = null;
+            finally {
                 try {
-                    c = db.query(TABLE_MESSAGES, new String[] { Messages._ID },
-                        Messages.MESSAGE_ID + " = ? AND " + Messages.DIRECTION + " = ?",
-                        new String[] {
-                            values.getAsString(Messages.MESSAGE_ID),
-                            values.getAsString(Messages.DIRECTION)
-                        }, null, null, null, "1");
-                    if (c.moveToFirst()) {
-                        rowId = c.getLong(0);
-                        return ContentUris.withAppendedId(uri, rowId);
-                    }
+                    c.close();
                 }
-                finally {
-                    try {
-                        c.close();
-                    }
-                    catch (Exception eClose) {
-                        // ignore exception
-                    }
+                catch (Exception eClose) {
+                    // ignore exception
                 }
+            }
+
+            // message not found (WHAT???)
+            throw e;
+        }
+        */
 
-                // message not found (WHAT???)
-                throw e;
+        if (rowId > 0) {
+            Uri msgUri = ContentUris.withAppendedId(uri, rowId);
+            notifications.add(msgUri);
+
+            if (threadId != Messages.NO_THREAD) {
+                // notify thread change
+                notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
+                // notify conversation change
+                notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
             }
-            */
-
-            if (rowId > 0) {
-                if (threadId != Messages.NO_THREAD) {
-                    // update fulltext table
-                    byte[] content = values.getAsByteArray(Messages.BODY_CONTENT);
-                    String mime = values.getAsString(Messages.BODY_MIME);
-                    Boolean encrypted = values.getAsBoolean(Messages.ENCRYPTED);
-                    long timestamp = values.getAsLong(Messages.TIMESTAMP);
-                    if (content != null && content.length > 0 && TextComponent.MIME_TYPE.equals(mime) &&
-                            (encrypted == null || !encrypted)) {
-                        updateFulltext(db, rowId, threadId, content, timestamp);
-                    }
-                }
 
-                Uri msgUri = ContentUris.withAppendedId(uri, rowId);
-                notifications.add(msgUri);
+            return msgUri;
+        }
 
-                if (threadId != Messages.NO_THREAD) {
-                    // notify thread change
-                    notifications.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
-                    // notify conversation change
-                    notifications.add(ContentUris.withAppendedId(Conversations.CONTENT_URI, threadId));
-                }
+        throw new SQLException("Failed to insert row into " + uri);
+    }
 
-                db.setTransactionSuccessful();
-                return msgUri;
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        if (METHOD_INSERT_MESSAGES.equals(method) && extras != null) {
+            Bundle result = new Bundle();
+            result.putParcelableArray(EXTRA_URIS,
+                insertMessages(extras.getParcelableArray(EXTRA_VALUES)));
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Inserts several messages in a single transaction. Already existing
+     * messages are skipped. Change notifications are fired once per Uri
+     * (e.g. once per thread) after the transaction is committed.
+     * @return the new message Uris, null for skipped messages
+     */
+    private Uri[] insertMessages(Parcelable[] values) {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        List<Uri> notifications = new ArrayList<>();
+        Uri[] uris = new Uri[values.length];
+
+        db.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                ContentValues initialValues = (ContentValues) values[i];
+                // a failed insert would roll back the whole transaction
+                if (isMessageExisting(db, initialValues.getAsString(Messages.MESSAGE_ID),
+                        initialValues.getAsInteger(Messages.DIRECTION)))
+                    continue;
+
+                uris[i] = insertMessage(db, Messages.CONTENT_URI, MESSAGES, initialValues,
+                    new ContentValues(initialValues), notifications);
             }
 
-            throw new SQLException("Failed to insert row into " + uri);
+            db.setTransactionSuccessful();
         }
         finally {
             db.endTransaction();
-            ContentResolver cr = getContext().getContentResolver();
-            for (Uri nuri : notifications)
-                cr.notifyChange(nuri, null);
+        }
+
+        // notify only if the changes were actually committed
+        ContentResolver cr = getContext().getContentResolver();
+        for (Uri nuri : new LinkedHashSet<>(notifications))
+            cr.notifyChange(nuri, null);
+        return uris;
+    }
+
+    private boolean isMessageExisting(SQLiteDatabase db, String msgId, Integer direction) {
+        if (msgId == null || direction == null)
+            return false;
+
+        Cursor c = db.query(TABLE_MESSAGES, new String[] { Messages._ID },
+            Messages.MESSAGE_ID + " = ? AND " + Messages.DIRECTION + " = ?",
+            new String[] { msgId, String.valueOf(direction) }, null, null, null, "1");
+        try {
+            return c.moveToFirst();
+        }
+        finally {
+            c.close();
         }
     }
 
@@ -1149,6 +1418,8 @@ public class MessagesProvider extends ContentProvider {
 
             case IMPORT_LOCK: {
                 dbHelper.lock();
+                // closing checkpoints the log, so the database file is complete
+                dbHelper.close();
                 return 0;
             }
 
@@ -1159,6 +1430,8 @@ public class MessagesProvider extends ContentProvider {
 
             case RELOAD: {
                 dbHelper.close();
+                // the log of the old database must not be applied to the new one
+                DatabaseHelper.deleteLog(getContext());
                 try {
                     onCreate();
                     dbHelper.getReadableDatabase();
@@ -1172,6 +1445,11 @@ public class MessagesProvider extends ContentProvider {
                 return 0;
             }
 
+            case CHECKPOINT: {
+                dbHelper.checkpoint();
+                return 0;
+            }
+
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -1196,8 +1474,7 @@ public class MessagesProvider extends ContentProvider {
             boolean skipUpdate = false;
             String[] msgIdList = null;
             if (table.equals(TABLE_MESSAGES)) {
-                // preserve a list of the matching messages for notification and
-                // fulltext update later
+                // preserve a list of the matching messages for notification
                 Cursor old = db.query(TABLE_MESSAGES, new String[] { Messages._ID },
                         where, args, null, null, null);
                 int msgCount = old.getCount();
@@ -1230,21 +1507,8 @@ public class MessagesProvider extends ContentProvider {
                 notifications.add(uri);
 
                 if (table.equals(TABLE_MESSAGES)) {
-                    // update fulltext only if content actually changed
-                    boolean doUpdateFulltext;
-                    String[] projection;
-
-                    byte[] oldContent = values.getAsByteArray(Messages.BODY_CONTENT);
-                    if (oldContent != null) {
-                        doUpdateFulltext = true;
-                        projection = new String[] { Messages.THREAD_ID, Messages._ID,
-                                Messages.DIRECTION, Messages.ENCRYPTED,
-                                Messages.BODY_CONTENT, Messages.TIMESTAMP };
-                    }
-                    else {
-                        doUpdateFulltext = false;
-                        projection = new String[] { Messages.THREAD_ID };
-                    }
+                    // fulltext is updated by triggers
+                    String[] projection = new String[] { Messages.THREAD_ID };
 
                     // build new IN where condition
                     if (msgIdList != null) {    // a non-null array means at least 1 element
@@ -1256,21 +1520,18 @@ public class MessagesProvider extends ContentProvider {
                         Cursor c = db.query(TABLE_MESSAGES, projection,
                                 whereBuilder.toString(), msgIdList, null, null, Messages.THREAD_ID);
 
+                        Batch batch = mBatch.get();
                         long oldThreadId = 0;
                         while (c.moveToNext()) {
                             long threadId = c.getLong(0);
                             if (oldThreadId != threadId) {
-                                updateThreadInfo(db, threadId, notifications);
+                                // batches will update each thread once at the end
+                                if (batch != null)
+                                    batch.threads.add(threadId);
+                                else
+                                    updateThreadInfo(db, threadId, notifications);
                                 oldThreadId = threadId;
                             }
-
-                            // update fulltext if necessary
-                            if (doUpdateFulltext) {
-                                int direction = c.getInt(2);
-                                int encrypted = c.getInt(3);
-                                if (direction != Messages.DIRECTION_IN || encrypted == 0)
-                                    updateFulltext(db, c.getLong(1), threadId, c.getBlob(4), c.getLong(5));
-                            }
                         }
 
                         c.close();
@@ -1297,30 +1558,56 @@ public class MessagesProvider extends ContentProvider {
         finally {
             db.endTransaction();
             if (notifications != null) {
-                ContentResolver cr = getContext().getContentResolver();
-                for (Uri nuri : notifications)
-                    cr.notifyChange(nuri, null);
+                Batch batch = mBatch.get();
+                if (batch != null) {
+                    batch.notifications.addAll(notifications);
+                }
+                else {
+                    ContentResolver cr = getContext().getContentResolver();
+                    for (Uri nuri : notifications)
+                        cr.notifyChange(nuri, null);
+                }
             }
         }
     }
 
+    /**
+     * Applies all operations in a single transaction. Thread metadata of
+     * updated messages is refreshed once per thread at the end of the batch,
+     * and change notifications from updates are coalesced.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        Batch batch = new Batch();
+        ContentProviderResult[] results;
+        db.beginTransactionNonExclusive();
+        try {
+            mBatch.set(batch);
+            results = super.applyBatch(operations);
+            for (long threadId : batch.threads)
+                updateThreadInfo(db, threadId, batch.notifications);
+            db.setTransactionSuccessful();
+        }
+        finally {
+            mBatch.remove();
+            db.endTransaction();
+        }
+
+        // notify only if the changes were actually committed
+        ContentResolver cr = getContext().getContentResolver();
+        for (Uri nuri : new LinkedHashSet<>(batch.notifications))
+            cr.notifyChange(nuri, null);
+        return results;
+    }
+
     /** Updates group status pending flags. */
     private void updatePendingFlags(SQLiteDatabase db, int flags, String where, String[] args) {
         db.execSQL("UPDATE " + TABLE_GROUP_MEMBERS + " SET pending = pending & ~("+flags+") WHERE " + where, args);
     }
 
-    private void updateFulltext(SQLiteDatabase db, long id, long threadId, byte[] content, long timestamp) {
-        // use the binary content converted to string
-        String text = new String(content);
-
-        ContentValues fulltext = new ContentValues();
-        fulltext.put(Fulltext._ID, id);
-        fulltext.put(Fulltext.THREAD_ID, threadId);
-        fulltext.put(Fulltext.CONTENT, text);
-        fulltext.put(Fulltext.TIMESTAMP, timestamp);
-        db.replace(TABLE_FULLTEXT, null, fulltext);
-    }
-
     @Override
     public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
         String table;
@@ -1436,9 +1723,8 @@ public class MessagesProvider extends ContentProvider {
                 try {
                     // rows count will be conversations
                     num = db.delete(TABLE_THREADS, null, null);
+                    // fulltext is updated by triggers
                     db.delete(TABLE_MESSAGES, null, null);
-                    // update fulltext
-                    db.delete(TABLE_FULLTEXT, null, null);
                     if (!keepGroup) {
                         // delete groups (members will cascade)
                         db.delete(TABLE_GROUPS, null, null);
@@ -1476,25 +1762,16 @@ public class MessagesProvider extends ContentProvider {
 
             long threadId = -1;
             if (table.equals(TABLE_MESSAGES)) {
-                // retrieve the thread id for later use by updateThreadInfo(), and
-                // also update fulltext table
+                // retrieve the thread id for later use by updateThreadInfo()
+                // (fulltext is updated by triggers)
                 Cursor c = db.query(TABLE_MESSAGES, new String[] {
                         Messages.THREAD_ID,
-                        Messages._ID,
-                        Messages.DIRECTION,
-                        Messages.ENCRYPTED
                     },
                     where, args, null, null, null);
                 if (c != null) {
                     while (c.moveToNext()) {
                         // FIXME this way we'll only get one threadId...
                         threadId = c.getLong(0);
-
-                        // update fulltext
-                        int direction = c.getInt(2);
-                        int encrypted = c.getInt(3);
-                        if (direction != Messages.DIRECTION_IN || encrypted == 0)
-                            db.delete(TABLE_FULLTEXT, Fulltext._ID + " = " + c.getLong(1), null);
                     }
 
                     c.close();
@@ -1563,9 +1840,6 @@ public class MessagesProvider extends ContentProvider {
                     // delete group if requested
                     num += db.delete(TABLE_GROUPS, Groups.THREAD_ID + " = " + threadId, null);
 
-                // update fulltext
-                db.delete(TABLE_FULLTEXT, Messages.THREAD_ID + " = " + threadId, null);
-
                 // update thread information
                 updateThreadAfterDelete(db, threadId, null);
 
@@ -1624,9 +1898,10 @@ public class MessagesProvider extends ContentProvider {
             }
             c.close();
 
-            // extract counters now
-            c = db.rawQuery("SELECT SUM(unread), SUM(\"new\") FROM " + TABLE_MESSAGES + " WHERE " +
-                    Messages.THREAD_ID + " = ?",
+            // extract counters now (from the covering indexes)
+            c = db.rawQuery("SELECT " +
+                    "(SELECT COUNT(*) FROM " + TABLE_MESSAGES + " WHERE thread_id = ?1 AND unread <> 0), " +
+                    "(SELECT COUNT(*) FROM " + TABLE_MESSAGES + " WHERE thread_id = ?1 AND \"new\" <> 0)",
                 new String[] { String.valueOf(threadId) });
             if (c != null) {
                 if (c.moveToFirst()) {
@@ -1679,6 +1954,13 @@ public class MessagesProvider extends ContentProvider {
             null, null, null);
     }
 
+    /** Checkpoints the write-ahead log. Meant to be called when the app is idle. */
+    public static void checkpoint(Context context) {
+        context.getContentResolver().update(Uri
+                .parse("content://" + MessagesProvider.AUTHORITY + "/" + Messages.CHECKPOINT),
+            null, null, null);
+    }
+
     public static void lockForImport(Context context) {
         context.getContentResolver().update(Uri
                 .parse("content://" + MessagesProvider.AUTHORITY + "/" + Messages.IMPORT_LOCK),
@@ -1710,6 +1992,7 @@ public class MessagesProvider extends ContentProvider {
         sUriMatcher.addURI(AUTHORITY, Messages.IMPORT_LOCK, IMPORT_LOCK);
         sUriMatcher.addURI(AUTHORITY, Messages.IMPORT_UNLOCK, IMPORT_UNLOCK);
         sUriMatcher.addURI(AUTHORITY, Messages.RELOAD, RELOAD);
+        sUriMatcher.addURI(AUTHORITY, Messages.CHECKPOINT, CHECKPOINT);
 
         messagesProjectionMap = new HashMap<>();
         messagesProjectionMap.put(Messages._ID, Messages._ID);
@@ -1775,10 +2058,15 @@ public class MessagesProvider extends ContentProvider {
         threadsProjectionMap.put(Groups.MEMBERSHIP, Groups.MEMBERSHIP);
 
         fulltextProjectionMap = new HashMap<>();
-        fulltextProjectionMap.put(Fulltext._ID, Fulltext._ID);
+        fulltextProjectionMap.put(Fulltext._ID, "rowid AS " + Fulltext._ID);
         fulltextProjectionMap.put(Fulltext.THREAD_ID, Fulltext.THREAD_ID);
         fulltextProjectionMap.put(Fulltext.TIMESTAMP, Fulltext.TIMESTAMP);
-        fulltextProjectionMap.put(Fulltext.CONTENT, Fulltext.CONTENT);
+        fulltextProjectionMap.put(Fulltext.CONTENT, "CAST(" + Messages.BODY_CONTENT + " AS TEXT) AS " + Fulltext.CONTENT);
+        // matching terms are enclosed by the highlight markers
+        fulltextProjectionMap.put(Fulltext.SNIPPET, "snippet(" + TABLE_FULLTEXT + ", 2, '" +
+            Fulltext.HIGHLIGHT_START + "', '" + Fulltext.HIGHLIGHT_END + "', '\u2026', " +
+            Fulltext.SNIPPET_TOKENS + ") AS " + Fulltext.SNIPPET);
+        fulltextProjectionMap.put(Fulltext.RANK, Fulltext.RANK);
 
         groupsProjectionMap = new HashMap<>();
         groupsProjectionMap.put(Groups.GROUP_JID, Groups.GROUP_JID);
@@ -23,6 +23,7 @@ import java.util.Random;
 
 import org.jxmpp.jid.impl.JidCreate;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -31,6 +32,8 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteConstraintException;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
 
 import org.kontalk.Log;
 import org.kontalk.crypto.Coder;
@@ -185,6 +188,23 @@ public class MessagesProviderClient {
         }
     }
 
+    /**
+     * Inserts several incoming messages in a single transaction (e.g. the
+     * offline messages backlog). Duplicated messages are skipped.
+     * @return the new message Uris, null for duplicated messages
+     */
+    public static Uri[] newIncomingMessages(Context context, ContentValues[] values) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(MessagesProvider.EXTRA_VALUES, values);
+        Bundle result = context.getContentResolver().call(Messages.CONTENT_URI,
+            MessagesProvider.METHOD_INSERT_MESSAGES, null, extras);
+
+        Parcelable[] uris = result.getParcelableArray(MessagesProvider.EXTRA_URIS);
+        Uri[] msgUris = new Uri[uris.length];
+        System.arraycopy(uris, 0, msgUris, 0, uris.length);
+        return msgUris;
+    }
+
     public static Uri newChatRequest(Context context, String jid) {
         ContentValues values = new ContentValues(2);
         values.put(Threads.PEER, jid);
@@ -393,10 +413,26 @@ public class MessagesProviderClient {
         }
 
         public void commit() {
+            playSound();
+            mContext.getContentResolver().update(mUri, mValues, mWhere, null);
+        }
+
+        /**
+         * Same as {@link #commit()}, but the update is returned as an
+         * operation to be applied later in a batch.
+         */
+        public ContentProviderOperation commitLater() {
+            playSound();
+            return ContentProviderOperation.newUpdate(mUri)
+                .withValues(mValues)
+                .withSelection(mWhere, null)
+                .build();
+        }
+
+        private void playSound() {
             if (mSound > 0 && Preferences.getOutgoingSoundEnabled(mContext) &&
                     MessagingNotification.isPaused(mCheckPaused))
                 MediaStorage.playNotificationSound(mContext, mSound);
-            mContext.getContentResolver().update(mUri, mValues, mWhere, null);
         }
 
         public void clear() {
@@ -88,8 +88,20 @@ public final class MyMessages {
             public static final String THREAD_ID = "thread_id";
             public static final String TIMESTAMP = "timestamp";
             public static final String CONTENT = "content";
-
-            public static final String DEFAULT_SORT_ORDER = "timestamp DESC";
+            /** Part of the content around the matching terms. */
+            public static final String SNIPPET = "snippet";
+            /** Relevance of the match, lower is better. */
+            public static final String RANK = "rank";
+
+            /** Matching terms in {@link #SNIPPET} start with this character. */
+            public static final char HIGHLIGHT_START = '\u0002';
+            /** Matching terms in {@link #SNIPPET} end with this character. */
+            public static final char HIGHLIGHT_END = '\u0003';
+            /** Maximum number of words in {@link #SNIPPET}. */
+            public static final int SNIPPET_TOKENS = 12;
+
+            /** Best matches first, then newest. */
+            public static final String DEFAULT_SORT_ORDER = RANK + ", " + TIMESTAMP + " DESC";
         }
 
         private static final String ITEM_TYPE = BuildConfig.APPLICATION_ID + ".message";
@@ -151,6 +163,7 @@ public final class MyMessages {
         public static final String IMPORT_LOCK = "ilock";
         public static final String IMPORT_UNLOCK = "iunlock";
         public static final String RELOAD = "reload";
+        public static final String CHECKPOINT = "checkpoint";
 
         // special thread_id value for not creating a new thread
         public static final long NO_THREAD = -1;
@@ -0,0 +1,195 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import android.database.Cursor;
+
+import io.requery.android.database.sqlite.SQLiteDatabase;
+import io.requery.android.database.sqlite.SQLiteStatement;
+
+import org.kontalk.Log;
+import org.kontalk.service.registration.RegistrationService;
+import org.kontalk.sync.SyncAdapter;
+import org.kontalk.util.XMPPUtils;
+
+
+/**
+ * Persistent cache of normalized phone numbers and their JID local parts,
+ * used while resyncing the users database.
+ * Entries are keyed by raw number and region code: when a pass begins,
+ * entries for other regions are dropped; when it ends, entries that were
+ * not used (e.g. deleted contacts or a changed dial prefix) are dropped.
+ * @author Daniele Ricci
+ */
+class PhoneNumberCache {
+
+    static final String TABLE_PHONE_NUMBERS = "phone_numbers";
+
+    static final String SCHEMA_PHONE_NUMBERS =
+        "CREATE TABLE " + TABLE_PHONE_NUMBERS + " (" +
+        "number TEXT NOT NULL," +
+        "region TEXT NOT NULL," +
+        // null for invalid numbers
+        "e164 TEXT," +
+        "localpart TEXT," +
+        "PRIMARY KEY (number, region)" +
+        ")";
+
+    static final class Entry {
+        /** Phone number in E.164 format. */
+        final String number;
+        /** JID local part for the number. */
+        final String localpart;
+
+        Entry(String number, String localpart) {
+            this.number = number;
+            this.localpart = localpart;
+        }
+    }
+
+    /** Marks numbers that couldn't be normalized. */
+    private static final Entry INVALID = new Entry(null, null);
+
+    private final SQLiteDatabase mDb;
+    private final RegistrationService.NumberNormalizer mNormalizer;
+    private final String mRegion;
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private final Set<String> mUsed = new HashSet<>();
+    private final Map<String, Entry> mAdded = new HashMap<>();
+
+    private int mHits;
+    private int mMisses;
+    private long mMissTime;
+
+    /** Loads the cache for the normalizer region. Must be called inside a transaction. */
+    PhoneNumberCache(SQLiteDatabase db, RegistrationService.NumberNormalizer normalizer) {
+        mDb = db;
+        mNormalizer = normalizer;
+        String region = normalizer.getRegionCode();
+        mRegion = region != null ? region : "";
+
+        // region changed: everything must be normalized again
+        db.delete(TABLE_PHONE_NUMBERS, "region <> ?", new String[] { mRegion });
+
+        Cursor c = db.query(TABLE_PHONE_NUMBERS, new String[] { "number", "e164", "localpart" },
+            "region = ?", new String[] { mRegion }, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                String e164 = c.getString(1);
+                mEntries.put(c.getString(0), e164 != null ?
+                    new Entry(e164, c.getString(2)) : INVALID);
+            }
+        }
+        finally {
+            c.close();
+        }
+    }
+
+    /** Returns the normalized number and its local part, or null if the number is not valid. */
+    Entry get(String number) {
+        mUsed.add(number);
+
+        Entry entry = mEntries.get(number);
+        if (entry == null)
+            entry = mAdded.get(number);
+
+        if (entry != null) {
+            mHits++;
+        }
+        else {
+            mMisses++;
+            long start = System.nanoTime();
+            try {
+                String fixed = mNormalizer.fixNumber(number);
+                entry = new Entry(fixed, XMPPUtils.createLocalpart(fixed));
+            }
+            catch (Exception e) {
+                Log.e(SyncAdapter.TAG, "unable to normalize number: " + number + " - skipping", e);
+                entry = INVALID;
+            }
+            mMissTime += System.nanoTime() - start;
+            mAdded.put(number, entry);
+        }
+
+        return entry != INVALID ? entry : null;
+    }
+
+    /** Stores new entries and drops the ones that were not used. */
+    void commit() {
+        SQLiteStatement insert = mDb.compileStatement("INSERT OR REPLACE INTO " + TABLE_PHONE_NUMBERS +
+            " (number, region, e164, localpart) VALUES (?, ?, ?, ?)");
+        try {
+            for (Map.Entry<String, Entry> e : mAdded.entrySet()) {
+                Entry entry = e.getValue();
+                insert.clearBindings();
+                insert.bindString(1, e.getKey());
+                insert.bindString(2, mRegion);
+                if (entry != INVALID) {
+                    insert.bindString(3, entry.number);
+                    insert.bindString(4, entry.localpart);
+                }
+                insert.executeInsert();
+            }
+        }
+        finally {
+            insert.close();
+        }
+
+        SQLiteStatement delete = mDb.compileStatement("DELETE FROM " + TABLE_PHONE_NUMBERS +
+            " WHERE number = ? AND region = ?");
+        try {
+            for (String number : mEntries.keySet()) {
+                if (!mUsed.contains(number)) {
+                    delete.bindString(1, number);
+                    delete.bindString(2, mRegion);
+                    delete.executeUpdateDelete();
+                }
+            }
+        }
+        finally {
+            delete.close();
+        }
+
+        mEntries.putAll(mAdded);
+        mAdded.clear();
+        mUsed.clear();
+    }
+
+    int getHits() {
+        return mHits;
+    }
+
+    int getMisses() {
+        return mMisses;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d hits, %d misses (%.1f ms normalizing)",
+            mHits, mMisses, mMissTime / 1e6);
+    }
+
+}
@@ -18,6 +18,7 @@
 
 package org.kontalk.provider;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -30,10 +31,13 @@ import org.jxmpp.util.XmppStringUtils;
 
 import android.annotation.SuppressLint;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -78,7 +82,7 @@ public class UsersProvider extends ContentProvider {
     public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".users";
 
     @VisibleForTesting
-    static final int DATABASE_VERSION = 14;
+    static final int DATABASE_VERSION = 15;
     @VisibleForTesting
     static final String DATABASE_NAME = "users.db";
     private static final String TABLE_USERS = "users";
@@ -167,6 +171,11 @@ public class UsersProvider extends ContentProvider {
             "ALTER TABLE keys ADD COLUMN manual_trust INTEGER NOT NULL DEFAULT 0",
         };
 
+        /** Upgrade: phone number normalization cache */
+        private static final String[] SCHEMA_UPGRADE_V14 = {
+            PhoneNumberCache.SCHEMA_PHONE_NUMBERS,
+        };
+
         // any upgrade - just re-create all tables
         private static final String[] SCHEMA_UPGRADE = {
             "DROP TABLE IF EXISTS " + TABLE_USERS,
@@ -175,6 +184,8 @@ public class UsersProvider extends ContentProvider {
             SCHEMA_USERS_OFFLINE,
             "DROP TABLE IF EXISTS " + TABLE_KEYS,
             SCHEMA_KEYS,
+            "DROP TABLE IF EXISTS " + PhoneNumberCache.TABLE_PHONE_NUMBERS,
+            PhoneNumberCache.SCHEMA_PHONE_NUMBERS,
         };
 
         /** This will be set to true when database is new. */
@@ -194,6 +205,7 @@ public class UsersProvider extends ContentProvider {
             db.execSQL(SCHEMA_USERS);
             db.execSQL(SCHEMA_USERS_OFFLINE);
             db.execSQL(SCHEMA_KEYS);
+            db.execSQL(PhoneNumberCache.SCHEMA_PHONE_NUMBERS);
             mNew = true;
         }
 
@@ -221,6 +233,10 @@ public class UsersProvider extends ContentProvider {
                     catch (SQLException e) {
                         Log.i(Kontalk.TAG, "ignoring database fix error", e);
                     }
+                    // fall through
+                case 14:
+                    for (String sql : SCHEMA_UPGRADE_V14)
+                        db.execSQL(sql);
                     break;
                 default:
                     for (String sql : SCHEMA_UPGRADE)
@@ -545,14 +561,17 @@ public class UsersProvider extends ContentProvider {
 
             try {
                 db.insert(offline ? TABLE_USERS_OFFLINE : TABLE_USERS, null, insertValues);
-                return 1;
+                rc = 1;
             }
             catch (SQLiteConstraintException e) {
                 // nothing was updated but the row exists
-                return 0;
             }
         }
 
+        // user updates are always selected by JID
+        if (!offline && rc > 0 && selectionArgs != null && selectionArgs.length > 0)
+            Contact.onUserChanged(selectionArgs[0], values);
+
         return rc;
     }
 
@@ -620,6 +639,11 @@ public class UsersProvider extends ContentProvider {
             String dialPrefix = Preferences.getDialPrefix();
             int dialPrefixLen = dialPrefix != null ? dialPrefix.length() : 0;
 
+            // numbers are normalized only once, and only when they change
+            long startTime = System.currentTimeMillis();
+            PhoneNumberCache numbers = new PhoneNumberCache(db, RegistrationService
+                .createNumberNormalizer(context, myAccount != null ? myAccount.getPhoneNumber() : null, 0));
+
             try {
                 String where = !Preferences.getSyncInvisibleContacts(context) ?
                     ContactsContract.Contacts.IN_VISIBLE_GROUP + "=1 AND " :
@@ -637,7 +661,6 @@ public class UsersProvider extends ContentProvider {
                     }, null);
 
                 if (phones != null) {
-                    String myNumber = myAccount != null ? myAccount.getPhoneNumber() : null;
                     while (phones.moveToNext()) {
                         String number = phones.getString(0);
                         String name = phones.getString(1);
@@ -655,18 +678,15 @@ public class UsersProvider extends ContentProvider {
                             continue;
 
                         // fix number
-                        try {
-                            number = RegistrationService.fixNumber(context, number,
-                                myNumber, 0);
-                        }
-                        catch (Exception e) {
-                            Log.e(SyncAdapter.TAG, "unable to normalize number: " + number + " - skipping", e);
+                        PhoneNumberCache.Entry fixed = numbers.get(number);
+                        if (fixed == null) {
                             // skip number
                             continue;
                         }
+                        number = fixed.number;
 
                         try {
-                            String hash = XMPPUtils.createLocalpart(number);
+                            String hash = fixed.localpart;
                             String lookupKey = phones.getString(2);
                             long contactId = phones.getLong(3);
                             String jid = myAccount != null ?
@@ -713,7 +733,6 @@ public class UsersProvider extends ContentProvider {
                     }
 
                     if (phones != null) {
-                        String myNumber = myAccount != null ? myAccount.getPhoneNumber() : null;
                         while (phones.moveToNext()) {
                             String name = phones.getString(phones.getColumnIndex("name"));
                             String number = phones.getString(phones.getColumnIndex("number"));
@@ -730,18 +749,15 @@ public class UsersProvider extends ContentProvider {
                                 continue;
 
                             // fix number
-                            try {
-                                number = RegistrationService.fixNumber(context, number,
-                                    myNumber, 0);
-                            }
-                            catch (Exception e) {
-                                Log.e(SyncAdapter.TAG, "unable to normalize number: " + number + " - skipping", e);
+                            PhoneNumberCache.Entry fixed = numbers.get(number);
+                            if (fixed == null) {
                                 // skip number
                                 continue;
                             }
+                            number = fixed.number;
 
                             try {
-                                String hash = XMPPUtils.createLocalpart(number);
+                                String hash = fixed.localpart;
                                 String jid = myAccount != null ?
                                     myAccount.createLocalJID(hash) :
                                     XmppStringUtils.completeJidFrom(hash, xmppDomain);
@@ -760,6 +776,12 @@ public class UsersProvider extends ContentProvider {
                     }
                 }
 
+                numbers.commit();
+                if (Log.isDebug()) {
+                    Log.d(SyncAdapter.TAG, "phone numbers: " + numbers + ", resync took " +
+                        (System.currentTimeMillis() - startTime) + " ms");
+                }
+
                 // try to add account number with display name
                 if (myAccount == null) {
                     Log.w(SyncAdapter.TAG, "no account found?!?");
@@ -947,6 +969,12 @@ public class UsersProvider extends ContentProvider {
             }
         }
 
+        if (!offline) {
+            String jid = values.getAsString(Users.JID);
+            if (jid != null)
+                Contact.onUserChanged(jid, values);
+        }
+
         if (id >= 0)
             return ContentUris.withAppendedId(Users.CONTENT_URI, id);
         return null;
@@ -997,6 +1025,23 @@ public class UsersProvider extends ContentProvider {
         return null;
     }
 
+    /** Applies all operations in a single transaction. */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        }
+        finally {
+            db.endTransaction();
+        }
+    }
+
     private int insertKeys(ContentValues[] values) {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
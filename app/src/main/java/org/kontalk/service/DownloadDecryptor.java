@@ -0,0 +1,127 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.bouncycastle.openpgp.PGPException;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.kontalk.Kontalk;
+import org.kontalk.client.EndpointServer;
+import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.DecryptException;
+import org.kontalk.crypto.PersonalKey;
+import org.kontalk.provider.Keyring;
+
+
+/**
+ * Decrypts an attachment while it's being downloaded, so that only the
+ * plaintext is written to disk.
+ * @author Daniele Ricci
+ */
+public class DownloadDecryptor {
+
+    private final Coder mCoder;
+    private final List<DecryptException> mErrors = new LinkedList<>();
+
+    private DownloadDecryptor(Coder coder) {
+        mCoder = coder;
+    }
+
+    public static DownloadDecryptor create(Context context, String sender)
+            throws GeneralSecurityException, IOException, PGPException {
+        EndpointServer server = Kontalk.get().getEndpointServer();
+        PersonalKey key = Kontalk.get().getPersonalKey();
+        return new DownloadDecryptor(Keyring.getDecryptCoder(context, server, key, sender));
+    }
+
+    /**
+     * Decrypts the input stream to the output stream.
+     * Network errors are thrown as-is; decryption errors are thrown as a
+     * {@link DecryptionFailedException}.
+     */
+    public void decrypt(InputStream in, OutputStream out) throws IOException {
+        ErrorTrackingInputStream tracker = new ErrorTrackingInputStream(in);
+        try {
+            mCoder.decryptFile(tracker, true, out, mErrors);
+        }
+        catch (GeneralSecurityException e) {
+            // the coder doesn't tell read errors from invalid data
+            if (tracker.error != null)
+                throw tracker.error;
+            throw new DecryptionFailedException(e);
+        }
+    }
+
+    /** Non-fatal errors found while decrypting (e.g. signature verification). */
+    public List<DecryptException> getErrors() {
+        return mErrors;
+    }
+
+    /** Thrown when the downloaded data could not be decrypted. */
+    public static final class DecryptionFailedException extends IOException {
+        DecryptionFailedException(Throwable cause) {
+            super("decryption failed", cause);
+        }
+    }
+
+    /** Keeps the first read error coming from the network stream. */
+    private static final class ErrorTrackingInputStream extends FilterInputStream {
+        IOException error;
+
+        ErrorTrackingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            }
+            catch (IOException e) {
+                if (error == null)
+                    error = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            }
+            catch (IOException e) {
+                if (error == null)
+                    error = e;
+                throw e;
+            }
+        }
+    }
+
+}
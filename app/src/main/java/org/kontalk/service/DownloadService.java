@@ -19,15 +19,8 @@
 package org.kontalk.service;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.Date;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 
 import org.greenrobot.eventbus.EventBus;
@@ -45,16 +38,10 @@ import androidx.core.app.JobIntentService;
 import androidx.core.app.NotificationCompat;
 
 import org.kontalk.BuildConfig;
-import org.kontalk.Kontalk;
 import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.client.ClientHTTPConnection;
-import org.kontalk.client.EndpointServer;
-import org.kontalk.crypto.Coder;
-import org.kontalk.crypto.DecryptException;
-import org.kontalk.crypto.PersonalKey;
 import org.kontalk.message.CompositeMessage;
-import org.kontalk.provider.Keyring;
 import org.kontalk.provider.MessagesProviderClient;
 import org.kontalk.reporting.ReportingManager;
 import org.kontalk.service.msgcenter.MessageCenterService;
@@ -191,10 +178,31 @@ public class DownloadService extends JobIntentService implements DownloadListene
                 defaultFile = MediaStorage.getIncomingFile(this, date, "bin");
             }
 
+            // encrypted data will be decrypted while downloading
+            DownloadDecryptor decryptor = null;
+            if (mEncrypted) {
+                try {
+                    decryptor = DownloadDecryptor.create(this, mPeer);
+                }
+                catch (Exception e) {
+                    Log.e(TAG, "decryption failed!", e);
+                    stopForeground();
+                    errorNotification(getString(R.string.notify_ticker_download_error),
+                        getString(R.string.notify_text_decryption_error));
+                    return;
+                }
+            }
+
             BUS.post(new DownloadStarted(mMessageId));
 
             // download content
-            mDownloadClient.downloadAutofilename(url, defaultFile, date, this);
+            mDownloadClient.downloadAutofilename(url, defaultFile, date, this, decryptor);
+        }
+        catch (DownloadDecryptor.DecryptionFailedException e) {
+            Log.e(TAG, "decryption failed!", e);
+            stopForeground();
+            errorNotification(getString(R.string.notify_ticker_download_error),
+                getString(R.string.notify_text_decryption_error));
         }
         catch (Exception e) {
             error(url, null, e);
@@ -267,67 +275,10 @@ public class DownloadService extends JobIntentService implements DownloadListene
     public void completed(String url, String mime, File destination) {
         Uri uri = Uri.fromFile(destination);
 
-        boolean destinationEncrypted = mEncrypted;
-        long destinationLength = -1;
-
-        // encrypted file?
-        if (mEncrypted) {
-            mCurrentNotification = mNotificationBuilder
-                .progress(-1,
-                    R.string.attachment_download,
-                    R.string.decrypting_attachment)
-                .build();
-            // send the updates to the notification manager
-            mNotificationManager.notify(NOTIFICATION_ID_DOWNLOADING, mCurrentNotification);
-
-            InputStream in = null;
-            OutputStream out = null;
-            try {
-                EndpointServer server = Kontalk.get().getEndpointServer();
-                PersonalKey key = Kontalk.get().getPersonalKey();
-                Coder coder = Keyring.getDecryptCoder(this, server, key, mPeer);
-                if (coder != null) {
-                    in = new FileInputStream(destination);
-
-                    File outFile = new File(destination + ".new");
-                    out = new FileOutputStream(outFile);
-                    List<DecryptException> errors = new LinkedList<>();
-                    coder.decryptFile(in, true, out, errors);
-
-                    // TODO process errors
-
-                    // delete old file and rename the decrypted one
-                    destination.delete();
-                    outFile.renameTo(destination);
-
-                    // save this for later
-                    destinationEncrypted = false;
-                    destinationLength = destination.length();
-                }
-            }
-            catch (Exception e) {
-                Log.e(TAG, "decryption failed!", e);
-                errorNotification(getString(R.string.notify_ticker_download_error),
-                    getString(R.string.notify_text_decryption_error));
-                return;
-            }
-            finally {
-                try {
-                    if (in != null)
-                        in.close();
-                }
-                catch (IOException e) {
-                    // ignored
-                }
-                try {
-                    if (out != null)
-                        out.close();
-                }
-                catch (IOException e) {
-                    // ignored
-                }
-            }
-        }
+        // encrypted files have already been decrypted while downloading
+        // TODO process decryption errors
+        boolean destinationEncrypted = false;
+        long destinationLength = mEncrypted ? destination.length() : -1;
 
         // mark file as downloaded
         MessagesProviderClient.downloaded(this, mMessageId, uri,
@@ -60,9 +60,11 @@ public class NotificationActionReceiver extends BroadcastReceiver {
                 ReportingManager.logException(new IllegalArgumentException("notification action data is null"));
             }
             else {
-                for (Parcelable uri : threads)
-                    MessagesProviderClient.markThreadAsOld(context, ContentUris.parseId((Uri) uri));
-                MessagingNotification.delayedUpdateMessagesNotification(context, false);
+                for (Parcelable uri : threads) {
+                    long threadId = ContentUris.parseId((Uri) uri);
+                    MessagesProviderClient.markThreadAsOld(context, threadId);
+                    MessagingNotification.threadRead(context, threadId);
+                }
             }
         }
         else if (MessagingNotification.ACTION_NOTIFICATION_REPLY.equals(action)) {
@@ -90,22 +92,23 @@ public class NotificationActionReceiver extends BroadcastReceiver {
             // TODO show notification with the reply for a short time
             // https://developer.android.com/guide/topics/ui/notifiers/notifications.html#direct
 
-            MessagingNotification.delayedUpdateMessagesNotification(context, false);
+            MessagingNotification.threadRead(context, threadId);
         }
         else if (MessagingNotification.ACTION_NOTIFICATION_MARK_READ.equals(action)) {
             // do not crash on buggy firmware
             if (intent.getData() == null) {
                 // mark all threads as read instead
                 MessagesProviderClient.markAllThreadsAsRead(context);
+                MessagingNotification.delayedUpdateMessagesNotification(context, false);
 
                 ReportingManager.logException(new IllegalArgumentException("notification action data is null"));
             }
             else {
                 // mark threads as read
-                MessagesProviderClient.markThreadAsRead(context, ContentUris.parseId(intent.getData()));
+                long threadId = ContentUris.parseId(intent.getData());
+                MessagesProviderClient.markThreadAsRead(context, threadId);
+                MessagingNotification.threadRead(context, threadId);
             }
-
-            MessagingNotification.delayedUpdateMessagesNotification(context, false);
         }
     }
 
@@ -24,8 +24,11 @@ package org.kontalk.service;
  */
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -41,6 +44,7 @@ import androidx.core.app.NotificationCompat;
 
 import org.kontalk.Log;
 import org.kontalk.R;
+import org.kontalk.crypto.EncryptedFile;
 import org.kontalk.provider.MessagesProviderClient;
 import org.kontalk.reporting.ReportingManager;
 import org.kontalk.service.msgcenter.MessageCenterService;
@@ -50,6 +54,7 @@ import org.kontalk.ui.MessagingNotification;
 import org.kontalk.ui.ProgressNotificationBuilder;
 import org.kontalk.upload.HTPPFileUploadConnection;
 import org.kontalk.upload.UploadConnection;
+import org.kontalk.util.DataUtils;
 import org.kontalk.util.MediaStorage;
 
 import static org.kontalk.ui.MessagingNotification.NOTIFICATION_ID_UPLOADING;
@@ -69,6 +74,12 @@ public class UploadService extends JobIntentService implements ProgressListener
     /** A map to avoid duplicate uploads. */
     private static final Map<String, Long> queue = new LinkedHashMap<>();
 
+    /**
+     * Files to be encrypted while uploading, by message database ID.
+     * They can't travel in the intent since they hold the session key.
+     */
+    private static final Map<Long, EncryptedFile> encryptQueue = new ConcurrentHashMap<>();
+
     public static final String ACTION_UPLOAD = "org.kontalk.action.UPLOAD";
     public static final String ACTION_UPLOAD_ABORT = "org.kontalk.action.UPLOAD_ABORT";
 
@@ -82,6 +93,8 @@ public class UploadService extends JobIntentService implements ProgressListener
     public static final String EXTRA_MIME = "org.kontalk.upload.MIME";
     /** Delete local file after sending attempt. */
     public static final String EXTRA_DELETE_ORIGINAL = "org.kontalk.upload.DELETE_ORIGINAL";
+    /** Encrypt the file while uploading it. */
+    public static final String EXTRA_ENCRYPT = "org.kontalk.upload.ENCRYPT";
     // Intent data is the local file Uri
 
     private ProgressNotificationBuilder mNotificationBuilder;
@@ -156,13 +169,23 @@ public class UploadService extends JobIntentService implements ProgressListener
         String mime = args.getString(EXTRA_MIME);
         // delete original
         boolean deleteOriginal = args.getBoolean(EXTRA_DELETE_ORIGINAL, false);
+        // encrypt while uploading
+        boolean encrypt = args.getBoolean(EXTRA_ENCRYPT, false);
+        EncryptedFile encrypted = encryptQueue.remove(databaseId);
 
         // check if upload has already been queued
         if (queue.get(filename) != null) return;
 
+        InputStream in = null;
         try {
+            if (encrypt && encrypted == null) {
+                // we might have been restarted: never upload the plain file
+                throw new IOException("encryption data not available");
+            }
+
             // notify user about upload immediately
-            long length = MediaStorage.getLength(this, file);
+            long length = encrypted != null ? encrypted.getLength() :
+                MediaStorage.getLength(this, file);
             Log.v(TAG, "file size is " + length + " bytes");
 
             mTotalBytes = length;
@@ -177,7 +200,14 @@ public class UploadService extends JobIntentService implements ProgressListener
             queue.put(filename, mMessageId);
 
             // upload content
-            String mediaUrl = mConn.upload(file, length, mime, this);
+            String mediaUrl;
+            if (encrypted != null) {
+                in = encrypted.open(getContentResolver().openInputStream(file));
+                mediaUrl = mConn.upload(in, length, mime, this);
+            }
+            else {
+                mediaUrl = mConn.upload(file, length, mime, this);
+            }
             if (mediaUrl == null)
                 mediaUrl = fetchUrl;
             Log.d(TAG, "uploaded with media URL: " + mediaUrl);
@@ -196,6 +226,7 @@ public class UploadService extends JobIntentService implements ProgressListener
             error(url, null, e);
         }
         finally {
+            DataUtils.close(in);
             // only file uri are supported for delete
             if (deleteOriginal && "file".equals(file.getScheme()))
                 new File(file.getPath()).delete();
@@ -341,9 +372,16 @@ public class UploadService extends JobIntentService implements ProgressListener
         return queue.containsKey(url);
     }
 
+    /**
+     * Starts an upload.
+     * @param encrypted if not null, the media will be encrypted while uploading
+     */
     public static void start(Context context, Uri mediaUri,
             String putUrl, String getUrl, long databaseId,
-            String mime, boolean deleteOriginal) {
+            String mime, boolean deleteOriginal, EncryptedFile encrypted) {
+        if (encrypted != null)
+            encryptQueue.put(databaseId, encrypted);
+
         Intent i = new Intent(context, UploadService.class);
         i.setData(mediaUri);
         i.setAction(UploadService.ACTION_UPLOAD);
@@ -353,6 +391,7 @@ public class UploadService extends JobIntentService implements ProgressListener
         i.putExtra(UploadService.EXTRA_MIME, mime);
         // delete original (actually it's the encrypted temp file) if we already encrypted it
         i.putExtra(UploadService.EXTRA_DELETE_ORIGINAL, deleteOriginal);
+        i.putExtra(UploadService.EXTRA_ENCRYPT, encrypted != null);
         enqueueWork(context, UploadService.class, JOB_ID, i);
     }
 }
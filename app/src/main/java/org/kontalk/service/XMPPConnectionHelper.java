@@ -24,7 +24,18 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.segment.backo.Backo;
 
@@ -39,12 +50,14 @@ import org.bouncycastle.openpgp.PGPException;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.os.SystemClock;
 import android.provider.Settings;
 
 import org.kontalk.Kontalk;
 import org.kontalk.Log;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.KontalkConnection;
+import org.kontalk.client.ServerRanking;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.service.msgcenter.MessageCenterService;
 import org.kontalk.util.InternalTrustStore;
@@ -70,9 +83,14 @@ public class XMPPConnectionHelper extends Thread {
     /** Max number of retries after stopping ourselves out of desperation. */
     private static final int MAX_RETRY_STRUGGLING = 10;
 
+    /** Max number of servers to connect to concurrently. */
+    private static final int MAX_RACE_SERVERS = 3;
+
     private final Context mContext;
     private EndpointServer mServer;
     private boolean mServerDirty;
+    /** Other servers we can connect to. */
+    private List<EndpointServer> mCandidates;
 
     /** Connection retry count for exponential backoff. */
     private int mRetryCount;
@@ -127,6 +145,14 @@ public class XMPPConnectionHelper extends Thread {
         mListener = listener;
     }
 
+    /**
+     * Sets other servers to connect to concurrently with the main one.
+     * Only servers from the same network of the main server will be used.
+     */
+    public void setServerCandidates(List<EndpointServer> servers) {
+        mCandidates = servers;
+    }
+
     public void setRetryEnabled(boolean enabled) {
         mRetryEnabled = enabled;
     }
@@ -145,8 +171,6 @@ public class XMPPConnectionHelper extends Thread {
             PGPException, KeyStoreException, NoSuchProviderException,
             NoSuchAlgorithmException, CertificateException, IOException, InterruptedException {
 
-        Log.d(TAG, "using server " + mServer.toString());
-
         if (mServerDirty) {
             // reset dirty server status
             mServerDirty = false;
@@ -168,28 +192,29 @@ public class XMPPConnectionHelper extends Thread {
 
             String resource = getResource(mContext);
 
-            if (key == null) {
-                mConn = new KontalkConnection(resource, mServer, !USE_STARTTLS,
-                    acceptAnyCertificate, trustStore);
-            }
+            List<EndpointServer> servers = getRaceServers();
+            if (servers.size() > 1) {
+                // connect to the best servers at once and keep the fastest
+                mConn = raceConnect(servers, resource, key, acceptAnyCertificate, trustStore);
+                mServer = mConn.getServer();
 
-            else {
-                mConn = new KontalkConnection(resource, mServer, !USE_STARTTLS,
-                    key.getBridgePrivateKey(),
-                    key.getBridgeCertificate(),
-                    acceptAnyCertificate,
-                    trustStore);
+                if (mListener != null)
+                    mListener.created(mConn);
             }
+            else {
+                Log.d(TAG, "using server " + mServer.toString());
+                mConn = createConnection(mServer, resource, key, acceptAnyCertificate, trustStore);
 
-            // apply packet timeout based on retry count
-            mConn.setReplyTimeout((mRetryCount + 1) * KontalkConnection.DEFAULT_PACKET_TIMEOUT);
+                if (mListener != null)
+                    mListener.created(mConn);
 
-            if (mListener != null)
-                mListener.created(mConn);
+                connectServer(mConn);
+            }
+        }
+        else {
+            Log.d(TAG, "using server " + mServer.toString());
+            connectServer(mConn);
         }
-
-        // connect
-        mConn.connect();
 
         if (mListener != null) {
             mConn.addConnectionListener(mListener);
@@ -203,6 +228,171 @@ public class XMPPConnectionHelper extends Thread {
 
     }
 
+    private KontalkConnection createConnection(EndpointServer server, String resource, PersonalKey key,
+            boolean acceptAnyCertificate, KeyStore trustStore) throws IOException, PGPException {
+
+        KontalkConnection conn;
+        if (key == null) {
+            conn = new KontalkConnection(resource, server, !USE_STARTTLS,
+                acceptAnyCertificate, trustStore);
+        }
+
+        else {
+            conn = new KontalkConnection(resource, server, !USE_STARTTLS,
+                key.getBridgePrivateKey(),
+                key.getBridgeCertificate(),
+                acceptAnyCertificate,
+                trustStore);
+        }
+
+        // apply packet timeout based on retry count
+        conn.setReplyTimeout((mRetryCount + 1) * KontalkConnection.DEFAULT_PACKET_TIMEOUT);
+        return conn;
+    }
+
+    /** Connects to the server, recording the outcome in the server ranking. */
+    private static void connectServer(KontalkConnection conn)
+            throws XMPPException, SmackException, IOException, InterruptedException {
+        EndpointServer server = conn.getServer();
+        long start = SystemClock.elapsedRealtime();
+        try {
+            conn.connect();
+        }
+        catch (InterruptedException e) {
+            // not the server's fault
+            throw e;
+        }
+        catch (XMPPException | SmackException | IOException e) {
+            ServerRanking.getInstance().failure(server);
+            throw e;
+        }
+        ServerRanking.getInstance().success(server, SystemClock.elapsedRealtime() - start);
+    }
+
+    /** Returns the servers to connect to, best first. */
+    private List<EndpointServer> getRaceServers() {
+        if (mCandidates == null || mCandidates.isEmpty())
+            return Collections.singletonList(mServer);
+
+        // only servers from our network can authenticate us
+        List<EndpointServer> servers = new ArrayList<>(mCandidates.size() + 1);
+        servers.add(mServer);
+        for (EndpointServer server : mCandidates) {
+            if (server.getNetwork().equalsIgnoreCase(mServer.getNetwork()) && !servers.contains(server))
+                servers.add(server);
+        }
+        // spread load among servers with the same rank
+        Collections.shuffle(servers);
+        return ServerRanking.getInstance().rank(servers, MAX_RACE_SERVERS);
+    }
+
+    /**
+     * Connects to all the given servers concurrently. The first connection to
+     * complete the stream negotiation is returned, the others are cancelled.
+     */
+    private KontalkConnection raceConnect(List<EndpointServer> servers, String resource, PersonalKey key,
+            boolean acceptAnyCertificate, KeyStore trustStore)
+            throws XMPPException, SmackException, IOException, InterruptedException, PGPException {
+
+        Log.d(TAG, "racing servers " + servers);
+
+        // set by the first connection to succeed or by us when giving up
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(servers.size());
+        CompletionService<KontalkConnection> completion = new ExecutorCompletionService<>(executor);
+        int pending = 0;
+        KontalkConnection winner = null;
+        try {
+            for (EndpointServer server : servers) {
+                final KontalkConnection conn = createConnection(server, resource, key,
+                    acceptAnyCertificate, trustStore);
+                completion.submit(new Callable<KontalkConnection>() {
+                    @Override
+                    public KontalkConnection call() throws Exception {
+                        try {
+                            connectServer(conn);
+                        }
+                        catch (Exception e) {
+                            conn.instantShutdown();
+                            throw e;
+                        }
+                        if (done.compareAndSet(false, true))
+                            return conn;
+
+                        // someone was faster
+                        conn.instantShutdown();
+                        return null;
+                    }
+                });
+                pending++;
+            }
+
+            Exception error = null;
+            while (pending > 0) {
+                Future<KontalkConnection> result = completion.take();
+                pending--;
+                try {
+                    winner = result.get();
+                    if (winner != null) {
+                        Log.d(TAG, "connected to server " + winner.getServer());
+                        return winner;
+                    }
+                }
+                catch (ExecutionException e) {
+                    Log.w(TAG, "connection error", e.getCause());
+                    error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+
+            // all connections failed
+            if (error instanceof XMPPException)
+                throw (XMPPException) error;
+            if (error instanceof SmackException)
+                throw (SmackException) error;
+            if (error instanceof IOException)
+                throw (IOException) error;
+            if (error instanceof InterruptedException)
+                throw (InterruptedException) error;
+            throw new IOException("unable to connect", error);
+        }
+        finally {
+            // late connections will shut themselves down
+            boolean won = done.getAndSet(true);
+            // interrupt pending connections
+            executor.shutdownNow();
+            // a connection won the race but we gave up on it (e.g. interrupted)
+            if (won && winner == null)
+                shutdownWinner(completion, pending);
+        }
+    }
+
+    /**
+     * Waits for the connection that won a race to be returned and shuts it down.
+     * The winner returns right after winning, so this won't block for long.
+     */
+    private static void shutdownWinner(CompletionService<KontalkConnection> completion, int pending) {
+        boolean interrupted = false;
+        while (pending > 0) {
+            try {
+                Future<KontalkConnection> result = completion.take();
+                pending--;
+                KontalkConnection conn = result.get();
+                if (conn != null) {
+                    conn.instantShutdown();
+                    break;
+                }
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+            catch (ExecutionException ignored) {
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
     public void connect() {
         PersonalKey key = null;
 
@@ -239,6 +429,9 @@ public class XMPPConnectionHelper extends Thread {
                     if (mConn != null) {
                         // forcibly close connection, no matter what
                         mConn.instantShutdown();
+                        // race the servers again on next attempt
+                        if (mCandidates != null)
+                            mConn = null;
                     }
 
                     // SASL: not authorized
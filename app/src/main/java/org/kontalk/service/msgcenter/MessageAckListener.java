@@ -56,19 +56,17 @@ class MessageAckListener extends MessageCenterPacketListener {
             if (receipt != null) {
                 // ack received for outgoing delivery receipt
                 // mark message as confirmed
-                MessageUpdater.forMessage(getContext(), mDatabaseId)
-                    .setStatus(Messages.STATUS_CONFIRMED)
-                    .commit();
+                queueStatusUpdate(MessageUpdater.forMessage(getContext(), mDatabaseId)
+                    .setStatus(Messages.STATUS_CONFIRMED));
             }
             else {
                 // we have a message awaiting ack from server
-                MessageUpdater.forMessage(getContext(), mDatabaseId)
+                queueStatusUpdate(MessageUpdater.forMessage(getContext(), mDatabaseId)
                     .setStatus(Messages.STATUS_SENT, now)
                     .setServerTimestamp(now)
                     .notifyOutgoing(packet.getTo().asBareJid().toString())
                     // this will handle receipts that came before the message was acked by the server
-                    .appendWhere(SELECTION_SENT_EXCLUDE)
-                    .commit();
+                    .appendWhere(SELECTION_SENT_EXCLUDE));
             }
 
             // remove the packet from the waiting list
@@ -36,6 +36,7 @@ import androidx.annotation.Nullable;
 
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.KontalkConnection;
+import org.kontalk.provider.MessagesProviderClient.MessageUpdater;
 import org.kontalk.service.msgcenter.MessageCenterService.IdleConnectionHandler;
 import org.kontalk.util.WakefulHashSet;
 
@@ -93,6 +94,22 @@ public abstract class MessageCenterPacketListener implements StanzaListener {
             instance.queueTask(task);
     }
 
+    /** Returns false if the task could not be queued. */
+    protected boolean queueTask(Runnable task, long delayMillis) {
+        MessageCenterService instance = mInstance.get();
+        return instance != null && instance.queueTask(task, delayMillis);
+    }
+
+    /** Queues a message status update for writing in the next batch. */
+    protected void queueStatusUpdate(MessageUpdater updater) {
+        MessageCenterService instance = mInstance.get();
+        StatusUpdateQueue queue = instance != null ? instance.mStatusUpdates : null;
+        if (queue != null)
+            queue.add(updater.commitLater());
+        else
+            updater.commit();
+    }
+
     /** @deprecated Use service bus. */
     @Deprecated
     protected void sendBroadcast(Intent intent) {
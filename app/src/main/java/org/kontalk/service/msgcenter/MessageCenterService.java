@@ -133,6 +133,7 @@ import org.kontalk.client.ServerlistCommand;
 import org.kontalk.client.SmackInitializer;
 import org.kontalk.client.UserLocation;
 import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.EncryptedFile;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.data.Contact;
 import org.kontalk.data.Conversation;
@@ -147,6 +148,7 @@ import org.kontalk.message.LocationComponent;
 import org.kontalk.message.ReferencedMessage;
 import org.kontalk.message.TextComponent;
 import org.kontalk.provider.Keyring;
+import org.kontalk.provider.MessagesProvider;
 import org.kontalk.provider.MessagesProviderClient;
 import org.kontalk.provider.MessagesProviderClient.MessageUpdater;
 import org.kontalk.provider.MyMessages.Messages;
@@ -200,6 +202,7 @@ import org.kontalk.util.EventBusIndex;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
+import org.kontalk.util.StartupMetrics;
 import org.kontalk.util.SystemUtils;
 import org.kontalk.util.WakefulHashSet;
 import org.kontalk.util.XMPPUtils;
@@ -405,6 +408,12 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
      */
     WakefulHashSet<Long> mWaitingReceipt;
 
+    /**
+     * Write-behind queue for message status updates. Created when the
+     * service is created, it writes updates directly once closed.
+     */
+    volatile StatusUpdateQueue mStatusUpdates;
+
     private RegenerateKeyPairListener mKeyPairRegenerator;
     private ImportKeyPairListener mKeyPairImporter;
 
@@ -485,6 +494,13 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             }
             else if (msg.what == MSG_INACTIVE) {
                 service.inactive();
+                // good time for writing the messages log to the database
+                try {
+                    MessagesProvider.checkpoint(service);
+                }
+                catch (Exception e) {
+                    Log.w(TAG, "unable to checkpoint messages database", e);
+                }
                 return true;
             }
             else if (msg.what == MSG_TEST) {
@@ -701,6 +717,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         // create main thread handler
         mHandler = new Handler();
 
+        mStatusUpdates = new StatusUpdateQueue(this);
+        mStatusUpdates.start();
+
         // register screen off listener for manual inactivation
         registerInactivity();
 
@@ -714,6 +733,20 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         }
     }
 
+    /**
+     * Queues a task after the given delay.
+     * @return false if the service is stopping and the task was dropped
+     */
+    boolean queueTask(final Runnable task, long delayMillis) {
+        Handler handler = mHandler;
+        return handler != null && handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                queueTask(task);
+            }
+        }, delayMillis);
+    }
+
     private void createIdleHandler() {
         HandlerThread thread = new HandlerThread("IdleThread", Process.THREAD_PRIORITY_BACKGROUND);
         thread.start();
@@ -859,6 +892,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
         quit(false);
 
+        // write pending status updates
+        mStatusUpdates.close();
+
         // deactivate ping manager
         AndroidAdaptiveServerPingManager.onDestroy();
 
@@ -1321,6 +1357,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
             Uri preMediaUri = attachment.getLocalUri();
             long fileLength;
+            EncryptedFile preEncrypted = null;
+            boolean encryptedTemp = false;
 
             try {
                 // encrypt the file if necessary
@@ -1347,10 +1385,22 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                             encryptTo = new String[] { message.getRecipient() };
                         }
 
-                        File encrypted = MessageUtils.encryptFile(this, in,
-                            DataUtils.toString(encryptTo));
-                        fileLength = encrypted.length();
-                        preMediaUri = Uri.fromFile(encrypted);
+                        // sign now and encrypt while uploading, if we can know the length
+                        preEncrypted = MessageUtils.prepareEncryptFile(this, in,
+                            DataUtils.toString(encryptTo), attachment.getMime());
+                        if (preEncrypted != null) {
+                            fileLength = preEncrypted.getLength();
+                        }
+                        else {
+                            // compressed data must be encrypted to a temporary file first
+                            DataUtils.close(in);
+                            in = getContentResolver().openInputStream(preMediaUri);
+                            File encrypted = MessageUtils.encryptFile(this, in,
+                                DataUtils.toString(encryptTo), attachment.getMime());
+                            fileLength = encrypted.length();
+                            preMediaUri = Uri.fromFile(encrypted);
+                            encryptedTemp = true;
+                        }
                     }
                     finally {
                         DataUtils.close(in);
@@ -1368,6 +1418,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             }
 
             final Uri mediaUri = preMediaUri;
+            final EncryptedFile encrypted = preEncrypted;
+            final boolean deleteOriginal = encryptedTemp;
 
             // build a filename
             String filename = CompositeMessage.getFilename(attachment.getMime(), new Date());
@@ -1377,14 +1429,13 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             // media message - start upload service
             final String mime = attachment.getMime();
             final long databaseId = request.databaseId;
-            final boolean encrypt = message.getSecurityFlags() != Coder.SECURITY_CLEARTEXT;
             uploadService.getPostUrl(filename, fileLength, mime, new IUploadService.UrlCallback() {
                 @Override
                 public void callback(String putUrl, String getUrl) {
                     // start upload intent service
                     // delete original (actually it's the encrypted temp file) if we already encrypted it
                     UploadService.start(MessageCenterService.this, mediaUri,
-                        putUrl, getUrl, databaseId, mime, encrypt);
+                        putUrl, getUrl, databaseId, mime, deleteOriginal, encrypted);
                 }
             });
 
@@ -1671,16 +1722,26 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             // get server from account or preferences
             mServer = Kontalk.get().getEndpointServer();
 
+            // race the other servers of our network, unless a custom server is set
+            List<EndpointServer> candidates = (account != null && TextUtils.isEmpty(Preferences.getServerURI())) ?
+                account.getServerList() : null;
+
             if (mConnection == null) {
                 mHelper = new XMPPConnectionHelper(this, mServer, false);
             }
             else {
-                // reuse connection if the server is the same
-                KontalkConnection reuseConnection = mServer.equals(mConnection.getServer()) ?
-                        mConnection : null;
-                mHelper = new XMPPConnectionHelper(this, mServer, false, reuseConnection);
+                // reuse connection if the server is the same or one of the candidates
+                EndpointServer connServer = mConnection.getServer();
+                boolean reuse = mServer.equals(connServer) || (candidates != null &&
+                    mServer.getNetwork().equalsIgnoreCase(connServer.getNetwork()) &&
+                    candidates.contains(connServer));
+                mHelper = new XMPPConnectionHelper(this, mServer, false,
+                    reuse ? mConnection : null);
             }
 
+            if (candidates != null)
+                mHelper.setServerCandidates(candidates);
+
             mHelper.setListener(this);
             mHelper.start();
         }
@@ -1785,6 +1846,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     @Override
     public void authenticated(XMPPConnection connection, boolean resumed) {
         Log.v(TAG, "authenticated!");
+        StartupMetrics.authenticated();
 
         // add message ack listener
         if (mConnection.isSmEnabled()) {
@@ -2611,7 +2673,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                         InputStream in = null;
                         try {
                             in = getContentResolver().openInputStream(preMediaUri);
-                            File encrypted = MessageUtils.encryptFile(this, in, toGroup);
+                            File encrypted = MessageUtils.encryptFile(this, in, toGroup, mime);
                             fileLength = encrypted.length();
                             preMediaUri = Uri.fromFile(encrypted);
                         }
@@ -20,7 +20,9 @@ package org.kontalk.service.msgcenter;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.packet.ExtensionElement;
@@ -81,6 +83,7 @@ import org.kontalk.service.msgcenter.group.KontalkGroupController;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
 import org.kontalk.util.Preferences;
+import org.kontalk.util.SystemUtils;
 import org.kontalk.util.XMPPUtils;
 
 import static org.kontalk.crypto.DecryptException.DECRYPT_EXCEPTION_INVALID_TIMESTAMP;
@@ -92,8 +95,50 @@ import static org.kontalk.crypto.DecryptException.DECRYPT_EXCEPTION_INVALID_TIME
  */
 class MessageListener extends WakefulMessageCenterPacketListener {
 
+    /** Maximum number of plain messages to store in a single transaction. */
+    private static final int MAX_PENDING_MESSAGES = 50;
+
+    private final ReceivePipeline mPipeline;
+
+    /**
+     * Plain messages waiting to be stored together with the next ones.
+     * Used only by commit stages, which never run concurrently.
+     */
+    private final List<ParsedChatMessage> mPendingMessages = new ArrayList<>();
+
     public MessageListener(MessageCenterService instance) {
         super(instance, "RECV");
+        mPipeline = new ReceivePipeline(SystemUtils.createPartialWakeLock(instance,
+            Kontalk.TAG + "-RECV-PIPELINE", true), new ReceivePipeline.Commit() {
+                @Override
+                public void commit() {
+                    flushMessages();
+                }
+            });
+    }
+
+    /** Result of the parallel stage of receiving a chat message. */
+    private static final class ParsedChatMessage {
+        /** The message stanza, possibly the decrypted inner stanza. */
+        final Message stanza;
+        /** The message to be stored, null for delivery receipts. */
+        final CompositeMessage msg;
+        final DeliveryReceipt deliveryReceipt;
+        final boolean needAck;
+        /**
+         * Stanza ID of the message this is a reply to. The referenced message
+         * is looked up when committing, because it might be in the same backlog.
+         */
+        final String inReplyTo;
+
+        ParsedChatMessage(Message stanza, CompositeMessage msg, DeliveryReceipt deliveryReceipt,
+                boolean needAck, String inReplyTo) {
+            this.stanza = stanza;
+            this.msg = msg;
+            this.deliveryReceipt = deliveryReceipt;
+            this.needAck = needAck;
+            this.inReplyTo = inReplyTo;
+        }
     }
 
     private static final class GroupMessageProcessingResult {
@@ -172,32 +217,68 @@ class MessageListener extends WakefulMessageCenterPacketListener {
             ext.getJid().toString(), from.asBareJid().toString());
     }
 
+    /**
+     * Messages are decrypted in parallel and stored in the order they were
+     * received (e.g. when receiving the offline backlog).
+     */
     @Override
     protected void processWakefulStanza(Stanza packet) throws SmackException.NotConnectedException {
-        org.jivesoftware.smack.packet.Message m = (org.jivesoftware.smack.packet.Message) packet;
+        final org.jivesoftware.smack.packet.Message m = (org.jivesoftware.smack.packet.Message) packet;
 
         if (m.getType() == org.jivesoftware.smack.packet.Message.Type.chat) {
-            // a preliminary object is created here
-            // other info will be filled in by processChatMessage
-            ChatStateEvent chatStateEvent = processChatState(m);
-
-            // non-active chat states are not to be processed as messages
-            if (chatStateEvent == null || chatStateEvent.chatState == ChatState.active) {
-                chatStateEvent = processChatMessage(m, chatStateEvent);
-            }
+            mPipeline.submit(new ReceivePipeline.Task() {
+                @Override
+                public ReceivePipeline.Commit process() {
+                    // non-active chat states are not to be processed as messages
+                    final boolean isMessage = !isChatStateOnly(m);
+                    final ParsedChatMessage parsed = isMessage ? parseChatMessage(m) : null;
+
+                    return new ReceivePipeline.Commit() {
+                        @Override
+                        public void commit() throws Exception {
+                            // a preliminary object is created here
+                            // other info will be filled in by commitChatMessage
+                            ChatStateEvent chatStateEvent = processChatState(m);
+
+                            if (isMessage) {
+                                chatStateEvent = parsed != null ?
+                                    commitChatMessage(parsed, chatStateEvent) : null;
+                            }
 
-            if (chatStateEvent != null) {
-                // we can send the chat state event now
-                MessageCenterService.bus().post(chatStateEvent);
-            }
+                            if (chatStateEvent != null) {
+                                // we can send the chat state event now
+                                MessageCenterService.bus().post(chatStateEvent);
+                            }
+                        }
+                    };
+                }
+            });
         }
 
         // error message
         else if (m.getType() == org.jivesoftware.smack.packet.Message.Type.error) {
-            processErrorMessage(m);
+            // keep ordering with messages
+            mPipeline.submit(new ReceivePipeline.Task() {
+                @Override
+                public ReceivePipeline.Commit process() {
+                    return new ReceivePipeline.Commit() {
+                        @Override
+                        public void commit() {
+                            processErrorMessage(m);
+                        }
+                    };
+                }
+            });
         }
     }
 
+    /** Returns true if the message carries only a non-active chat state. */
+    private static boolean isChatStateOnly(Message m) {
+        ExtensionElement _chatstate = m.getExtension("http://jabber.org/protocol/chatstates");
+        return _chatstate instanceof ChatStateExtension &&
+            ((ChatStateExtension) _chatstate).getChatState() != ChatState.active;
+    }
+
     /**
      * Retrieve the group JID from a message. Must not be encrypted.
      * Used mainly for chat states.
@@ -242,13 +323,13 @@ class MessageListener extends WakefulMessageCenterPacketListener {
     }
 
     /**
-     * Process an incoming message packet.
+     * Parses an incoming message packet, decrypting it if necessary.
+     * This is the expensive part of receiving a message and it's run in
+     * parallel with other messages.
      * @param m the message
-     * @param chatStateEvent a chat state event that will be returned with missing information (e.g. group info in encrypted message)
-     * @return a chat state event to be posted, or null
+     * @return the parsed message, or null if it has to be discarded
      */
-    private ChatStateEvent processChatMessage(Message m, @Nullable ChatStateEvent chatStateEvent)
-            throws SmackException.NotConnectedException {
+    private ParsedChatMessage parseChatMessage(Message m) {
         // delayed deliver extension is the first the be processed
         // because it's used also in delivery receipts
         Date stamp = XMPPUtils.getStanzaDelay(m);
@@ -263,280 +344,343 @@ class MessageListener extends WakefulMessageCenterPacketListener {
 
         // delivery receipt
         if (deliveryReceipt != null) {
-            MessageUpdater.forMessage(getContext(), deliveryReceipt.getId(), false)
-                .setStatus(Messages.STATUS_RECEIVED, System.currentTimeMillis())
-                .commit();
+            return new ParsedChatMessage(m, null, deliveryReceipt, false, null);
         }
 
         // incoming message
-        else {
-            String msgId = m.getStanzaId();
-            if (msgId == null)
-                msgId = MessageUtils.messageId();
+        String msgId = m.getStanzaId();
+        if (msgId == null)
+            msgId = MessageUtils.messageId();
 
-            Jid from = m.getFrom();
+        Jid from = m.getFrom();
 
-            // check if user opted out of server messages
-            if (!Preferences.isServerMessagesEnabled(getContext()) &&
-                from.asBareJid().toString().equalsIgnoreCase(getServer().getNetwork())) {
-                Log.w(TAG, "user opted out of server messages, message will be ignored");
-                return null;
-            }
+        // check if user opted out of server messages
+        if (!Preferences.isServerMessagesEnabled(getContext()) &&
+            from.asBareJid().toString().equalsIgnoreCase(getServer().getNetwork())) {
+            Log.w(TAG, "user opted out of server messages, message will be ignored");
+            return null;
+        }
 
-            String body = m.getBody();
+        String body = m.getBody();
+
+        // create message
+        CompositeMessage msg = new CompositeMessage(
+            getContext(),
+            msgId,
+            serverTimestamp,
+            from.toString(),
+            false,
+            Coder.SECURITY_CLEARTEXT
+        );
+
+        // ack request might not be encrypted
+        boolean needAck = m.hasExtension(DeliveryReceiptRequest.ELEMENT, DeliveryReceipt.NAMESPACE);
+
+        ExtensionElement _encrypted = m.getExtension(E2EEncryption.ELEMENT_NAME, E2EEncryption.NAMESPACE);
+
+        if (_encrypted instanceof E2EEncryption) {
+            E2EEncryption mEnc = (E2EEncryption) _encrypted;
+            byte[] encryptedData = mEnc.getData();
+
+            // encrypted message
+            msg.setEncrypted(true);
+            msg.setSecurityFlags(Coder.SECURITY_BASIC);
+
+            if (encryptedData != null) {
+
+                // decrypt message
+                try {
+                    Message innerStanza = decryptMessage(msg, encryptedData);
+                    if (innerStanza != null) {
+                        // copy some attributes over
+                        innerStanza.setTo(m.getTo());
+                        innerStanza.setFrom(m.getFrom());
+                        innerStanza.setType(m.getType());
+                        m = innerStanza;
+
+                        if (!needAck) {
+                            // try the decrypted message
+                            needAck = m.hasExtension(DeliveryReceiptRequest.ELEMENT, DeliveryReceipt.NAMESPACE);
+                        }
+                    }
+                }
 
-            // create message
-            CompositeMessage msg = new CompositeMessage(
-                getContext(),
-                msgId,
-                serverTimestamp,
-                from.toString(),
-                false,
-                Coder.SECURITY_CLEARTEXT
-            );
+                catch (Exception exc) {
+                    Log.e(MessageCenterService.TAG, "decryption failed", exc);
 
-            // ack request might not be encrypted
-            boolean needAck = m.hasExtension(DeliveryReceiptRequest.ELEMENT, DeliveryReceipt.NAMESPACE);
+                    // raw component for encrypted data
+                    // reuse security flags
+                    msg.clearComponents();
+                    msg.addComponent(new RawComponent(encryptedData, true, msg.getSecurityFlags()));
+                }
 
-            ExtensionElement _encrypted = m.getExtension(E2EEncryption.ELEMENT_NAME, E2EEncryption.NAMESPACE);
+            }
+        }
+
+        else {
 
-            if (_encrypted instanceof E2EEncryption) {
-                E2EEncryption mEnc = (E2EEncryption) _encrypted;
-                byte[] encryptedData = mEnc.getData();
+            // use message body
+            if (body != null)
+                msg.addComponent(new TextComponent(body));
 
-                // encrypted message
-                msg.setEncrypted(true);
-                msg.setSecurityFlags(Coder.SECURITY_BASIC);
+            // old PGP signature
+            ExtensionElement _pgpSigned = m.getExtension(OpenPGPSignedMessage.ELEMENT_NAME, OpenPGPSignedMessage.NAMESPACE);
+            if (_pgpSigned instanceof OpenPGPSignedMessage) {
+                OpenPGPSignedMessage pgpSigned = (OpenPGPSignedMessage) _pgpSigned;
+                byte[] signedData = pgpSigned.getData();
 
-                if (encryptedData != null) {
+                // signed message
+                msg.setSecurityFlags(Coder.SECURITY_BASIC_SIGNED);
 
-                    // decrypt message
+                if (signedData != null) {
+                    // check signature
                     try {
-                        Message innerStanza = decryptMessage(msg, encryptedData);
-                        if (innerStanza != null) {
-                            // copy some attributes over
-                            innerStanza.setTo(m.getTo());
-                            innerStanza.setFrom(m.getFrom());
-                            innerStanza.setType(m.getType());
-                            m = innerStanza;
-
-                            if (!needAck) {
-                                // try the decrypted message
-                                needAck = m.hasExtension(DeliveryReceiptRequest.ELEMENT, DeliveryReceipt.NAMESPACE);
-                            }
-                        }
+                        checkSignedMessage(msg, pgpSigned.getData());
+                        // at this point our message should be filled with the verified body
                     }
 
                     catch (Exception exc) {
-                        Log.e(MessageCenterService.TAG, "decryption failed", exc);
-
-                        // raw component for encrypted data
-                        // reuse security flags
-                        msg.clearComponents();
-                        msg.addComponent(new RawComponent(encryptedData, true, msg.getSecurityFlags()));
+                        Log.e(MessageCenterService.TAG, "signature check failed", exc);
+                        // TODO what to do here?
+                        msg.setSecurityFlags(msg.getSecurityFlags() |
+                            Coder.SECURITY_ERROR_INVALID_SIGNATURE);
                     }
-
                 }
             }
 
-            else {
+        }
 
-                // use message body
-                if (body != null)
-                    msg.addComponent(new TextComponent(body));
+        // out of band data
+        ExtensionElement _media = m.getExtension(OutOfBandData.ELEMENT_NAME, OutOfBandData.NAMESPACE);
+        if (_media instanceof OutOfBandData) {
+            File previewFile = null;
+
+            OutOfBandData media = (OutOfBandData) _media;
+            String mime = media.getMime();
+            String fetchUrl = media.getUrl();
+            long length = media.getLength();
+            boolean encrypted = media.isEncrypted();
+
+            // bits-of-binary for preview
+            ExtensionElement _preview = m.getExtension(BitsOfBinary.ELEMENT_NAME, BitsOfBinary.NAMESPACE);
+            if (_preview instanceof BitsOfBinary) {
+                BitsOfBinary preview = (BitsOfBinary) _preview;
+                String previewMime = preview.getType();
+                if (previewMime == null)
+                    previewMime = MediaStorage.THUMBNAIL_MIME_NETWORK;
+
+                String filename = null;
+
+                if (ImageComponent.supportsMimeType(previewMime)) {
+                    filename = ImageComponent.buildMediaFilename(previewMime);
+                }
 
-                // old PGP signature
-                ExtensionElement _pgpSigned = m.getExtension(OpenPGPSignedMessage.ELEMENT_NAME, OpenPGPSignedMessage.NAMESPACE);
-                if (_pgpSigned instanceof OpenPGPSignedMessage) {
-                    OpenPGPSignedMessage pgpSigned = (OpenPGPSignedMessage) _pgpSigned;
-                    byte[] signedData = pgpSigned.getData();
+                try {
+                    if (filename != null) previewFile =
+                        MediaStorage.writeInternalMedia(getContext(),
+                            filename, preview.getContents());
+                }
+                catch (IOException e) {
+                    Log.w(MessageCenterService.TAG, "error storing thumbnail", e);
+                    // we are going to need a filename anyway
+                    previewFile = MediaStorage.getInternalMediaFile(getContext(), filename);
+                }
+            }
 
-                    // signed message
-                    msg.setSecurityFlags(Coder.SECURITY_BASIC_SIGNED);
+            MessageComponent<?> attachment;
 
-                    if (signedData != null) {
-                        // check signature
-                        try {
-                            checkSignedMessage(msg, pgpSigned.getData());
-                            // at this point our message should be filled with the verified body
-                        }
+            if (mime == null) {
+                // try to guess MIME from URL
+                mime = MediaStorage.getType(fetchUrl);
+            }
 
-                        catch (Exception exc) {
-                            Log.e(MessageCenterService.TAG, "signature check failed", exc);
-                            // TODO what to do here?
-                            msg.setSecurityFlags(msg.getSecurityFlags() |
-                                Coder.SECURITY_ERROR_INVALID_SIGNATURE);
-                        }
-                    }
+            if (ImageComponent.supportsMimeType(mime)) {
+                if (previewFile == null) {
+                    // no bits of binary, generate a filename anyway so the thumbnail will be generated
+                    // from the original file once downloaded
+                    String filename = ImageComponent.buildMediaFilename(mime);
+                    previewFile = MediaStorage.getInternalMediaFile(getContext(), filename);
                 }
 
+                msg.clearComponents();
+                // cleartext only for now
+                attachment = new ImageComponent(mime, previewFile, null, fetchUrl, length,
+                    encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
             }
 
-            // out of band data
-            ExtensionElement _media = m.getExtension(OutOfBandData.ELEMENT_NAME, OutOfBandData.NAMESPACE);
-            if (_media instanceof OutOfBandData) {
-                File previewFile = null;
-
-                OutOfBandData media = (OutOfBandData) _media;
-                String mime = media.getMime();
-                String fetchUrl = media.getUrl();
-                long length = media.getLength();
-                boolean encrypted = media.isEncrypted();
-
-                // bits-of-binary for preview
-                ExtensionElement _preview = m.getExtension(BitsOfBinary.ELEMENT_NAME, BitsOfBinary.NAMESPACE);
-                if (_preview instanceof BitsOfBinary) {
-                    BitsOfBinary preview = (BitsOfBinary) _preview;
-                    String previewMime = preview.getType();
-                    if (previewMime == null)
-                        previewMime = MediaStorage.THUMBNAIL_MIME_NETWORK;
-
-                    String filename = null;
-
-                    if (ImageComponent.supportsMimeType(previewMime)) {
-                        filename = ImageComponent.buildMediaFilename(previewMime);
-                    }
+            else if (VCardComponent.supportsMimeType(mime)) {
+                msg.clearComponents();
+                // cleartext only for now
+                attachment = new VCardComponent(previewFile, null, fetchUrl, length,
+                    encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+            }
 
-                    try {
-                        if (filename != null) previewFile =
-                            MediaStorage.writeInternalMedia(getContext(),
-                                filename, preview.getContents());
-                    }
-                    catch (IOException e) {
-                        Log.w(MessageCenterService.TAG, "error storing thumbnail", e);
-                        // we are going to need a filename anyway
-                        previewFile = MediaStorage.getInternalMediaFile(getContext(), filename);
-                    }
-                }
+            else if (AudioComponent.supportsMimeType(mime)) {
+                msg.clearComponents();
+                attachment = new AudioComponent(mime, null, fetchUrl, length,
+                    encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+            }
 
-                MessageComponent<?> attachment;
+            else {
+                msg.clearComponents();
+                attachment = new DefaultAttachmentComponent(mime, null, fetchUrl, length,
+                    encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+            }
 
-                if (mime == null) {
-                    // try to guess MIME from URL
-                    mime = MediaStorage.getType(fetchUrl);
-                }
+            // TODO other types
 
-                if (ImageComponent.supportsMimeType(mime)) {
-                    if (previewFile == null) {
-                        // no bits of binary, generate a filename anyway so the thumbnail will be generated
-                        // from the original file once downloaded
-                        String filename = ImageComponent.buildMediaFilename(mime);
-                        previewFile = MediaStorage.getInternalMediaFile(getContext(), filename);
-                    }
+            msg.addComponent(attachment);
 
-                    msg.clearComponents();
-                    // cleartext only for now
-                    attachment = new ImageComponent(mime, previewFile, null, fetchUrl, length,
-                        encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
-                }
+            // add a dummy body if none was found
+            /*
+            if (body == null) {
+                msg.addComponent(new TextComponent(CompositeMessage
+                    .getSampleTextContent((Class<? extends MessageComponent<?>>)
+                        attachment.getClass(), mime)));
+            }
+            */
+        }
 
-                else if (VCardComponent.supportsMimeType(mime)) {
-                    msg.clearComponents();
-                    // cleartext only for now
-                    attachment = new VCardComponent(previewFile, null, fetchUrl, length,
-                        encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
-                }
+        ExtensionElement _location = m.getExtension(UserLocation.ELEMENT_NAME, UserLocation.NAMESPACE);
+        if (_location instanceof UserLocation) {
+            UserLocation location = (UserLocation) _location;
+            msg.addComponent(new LocationComponent(location.getLatitude(),
+                location.getLongitude(), location.getText(), location.getStreet()));
+        }
 
-                else if (AudioComponent.supportsMimeType(mime)) {
-                    msg.clearComponents();
-                    attachment = new AudioComponent(mime, null, fetchUrl, length,
-                        encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
-                }
+        String inReplyTo = null;
+        ExtensionElement _fwd = m.getExtension(Forwarded.ELEMENT, Forwarded.NAMESPACE);
+        if (_fwd instanceof Forwarded) {
+            // we actually use only the stanza id for looking up the referenced message in our database.
+            // The forwarded stanza was included for compatibility with other XMPP clients.
+            // Although technically it's a waste of space, and the replied message will
+            // not be displayed if it is deleted
+            Forwarded fwd = (Forwarded) _fwd;
+
+            Stanza fwdMsg = fwd.getForwardedStanza();
+            if (fwdMsg != null)
+                inReplyTo = fwdMsg.getStanzaId();
+        }
 
-                else {
-                    msg.clearComponents();
-                    attachment = new DefaultAttachmentComponent(mime, null, fetchUrl, length,
-                        encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
-                }
+        return new ParsedChatMessage(m, msg, null, needAck, inReplyTo);
+    }
 
-                // TODO other types
+    /**
+     * Stores a parsed message. Messages are committed in the order they were
+     * received; plain messages are stored by {@link #flushMessages()}.
+     * @param parsed the parsed message
+     * @param chatStateEvent a chat state event that will be returned with missing information (e.g. group info in encrypted message)
+     * @return a chat state event to be posted, or null
+     */
+    private ChatStateEvent commitChatMessage(ParsedChatMessage parsed, @Nullable ChatStateEvent chatStateEvent)
+            throws SmackException.NotConnectedException {
+        Message m = parsed.stanza;
 
-                msg.addComponent(attachment);
+        // delivery receipt
+        if (parsed.deliveryReceipt != null) {
+            queueStatusUpdate(MessageUpdater.forMessage(getContext(), parsed.deliveryReceipt.getId(), false)
+                .setStatus(Messages.STATUS_RECEIVED, System.currentTimeMillis()));
+            return chatStateEvent;
+        }
 
-                // add a dummy body if none was found
-                /*
-                if (body == null) {
-                    msg.addComponent(new TextComponent(CompositeMessage
-                        .getSampleTextContent((Class<? extends MessageComponent<?>>)
-                            attachment.getClass(), mime)));
-                }
-                */
-            }
+        CompositeMessage msg = parsed.msg;
+        Jid from = m.getFrom();
 
-            ExtensionElement _location = m.getExtension(UserLocation.ELEMENT_NAME, UserLocation.NAMESPACE);
-            if (_location instanceof UserLocation) {
-                UserLocation location = (UserLocation) _location;
-                msg.addComponent(new LocationComponent(location.getLatitude(),
-                    location.getLongitude(), location.getText(), location.getStreet()));
-            }
+        // group chat
+        KontalkGroupManager.KontalkGroup group;
+        try {
+            group = KontalkGroupManager
+                .getInstanceFor(getConnection()).getGroup(m);
+        }
+        catch (XmppStringprepException e) {
+            Log.w(TAG, "error parsing JID: " + e.getCausingString(), e);
+            // report it because it's a big deal
+            ReportingManager.logException(e);
+            return null;
+        }
 
-            ExtensionElement _fwd = m.getExtension(Forwarded.ELEMENT, Forwarded.NAMESPACE);
-            if (_fwd instanceof Forwarded) {
-                // we actually use only the stanza id for looking up the referenced message in our database.
-                // The forwarded stanza was included for compatibility with other XMPP clients.
-                // Although technically it's a waste of space, and the replied message will
-                // not be displayed if it is deleted
-                Forwarded fwd = (Forwarded) _fwd;
-
-                Stanza fwdMsg = fwd.getForwardedStanza();
-                if (fwdMsg != null && fwdMsg.getStanzaId() != null) {
-                    ReferencedMessage referencedMsg = ReferencedMessage
-                        .load(getContext(), fwdMsg.getStanzaId());
-                    if (referencedMsg != null)
-                        msg.addComponent(new InReplyToComponent(referencedMsg));
-                }
-            }
+        // group commands and replies depend on messages stored before them
+        if (group != null || parsed.inReplyTo != null)
+            flushMessages();
 
-            // group chat
-            KontalkGroupManager.KontalkGroup group;
-            try {
-                group = KontalkGroupManager
-                    .getInstanceFor(getConnection()).getGroup(m);
-            }
-            catch (XmppStringprepException e) {
-                Log.w(TAG, "error parsing JID: " + e.getCausingString(), e);
-                // report it because it's a big deal
-                ReportingManager.logException(e);
+        if (group != null) {
+            GroupMessageProcessingResult result = processGroupMessage(group, m, msg, chatStateEvent);
+            if (!result.accept) {
+                // invalid group command
+                Log.w(TAG, "invalid or unauthorized group command");
                 return null;
             }
-
-            if (group != null) {
-                GroupMessageProcessingResult result = processGroupMessage(group, m, msg, chatStateEvent);
-                if (!result.accept) {
-                    // invalid group command
-                    Log.w(TAG, "invalid or unauthorized group command");
-                    return null;
-                }
-                else {
-                    chatStateEvent = result.chatStateEvent;
-                }
+            else {
+                chatStateEvent = result.chatStateEvent;
             }
+        }
 
-            if (msg.getComponents().size() == 0) {
-                Log.w(TAG, "message has no content, discarding");
-                return null;
-            }
+        if (parsed.inReplyTo != null) {
+            // earlier messages from the same sender are stored by now
+            ReferencedMessage referencedMsg = ReferencedMessage
+                .load(getContext(), parsed.inReplyTo);
+            if (referencedMsg != null)
+                msg.addComponent(new InReplyToComponent(referencedMsg));
+        }
 
-            // 1-to-1 message with a chat state
-            // set contact as typing if necessary
-            if (!msg.hasComponent(GroupComponent.class) && chatStateEvent != null) {
-                Contact.setTyping(from.toString(), chatStateEvent.chatState == ChatState.composing);
-            }
+        if (msg.getComponents().size() == 0) {
+            Log.w(TAG, "message has no content, discarding");
+            return null;
+        }
 
-            msg.setStatus(needAck ? Messages.STATUS_INCOMING : Messages.STATUS_CONFIRMED);
+        // 1-to-1 message with a chat state
+        // set contact as typing if necessary
+        if (!msg.hasComponent(GroupComponent.class) && chatStateEvent != null) {
+            Contact.setTyping(from.toString(), chatStateEvent.chatState == ChatState.composing);
+        }
 
-            Uri msgUri = Kontalk.get().getMessagesController().incoming(msg);
+        msg.setStatus(parsed.needAck ? Messages.STATUS_INCOMING : Messages.STATUS_CONFIRMED);
 
-            if (needAck) {
-                // send ack :)
-                sendReceipt(msgUri, msgId, from);
-            }
+        if (group == null && parsed.inReplyTo == null) {
+            // plain messages are stored together (e.g. the offline backlog)
+            mPendingMessages.add(parsed);
+            if (mPendingMessages.size() >= MAX_PENDING_MESSAGES)
+                flushMessages();
+            return chatStateEvent;
+        }
+
+        Uri msgUri = Kontalk.get().getMessagesController().incoming(msg);
+
+        if (parsed.needAck) {
+            // send ack :)
+            sendReceipt(msgUri, msg.getId(), from);
         }
 
         return chatStateEvent;
     }
 
+    /** Stores pending plain messages in a single transaction and acknowledges them. */
+    private void flushMessages() {
+        if (mPendingMessages.isEmpty())
+            return;
+
+        List<ParsedChatMessage> pending = new ArrayList<>(mPendingMessages);
+        mPendingMessages.clear();
+
+        List<CompositeMessage> msgs = new ArrayList<>(pending.size());
+        for (ParsedChatMessage parsed : pending)
+            msgs.add(parsed.msg);
+
+        Uri[] msgUris = Kontalk.get().getMessagesController().incoming(msgs);
+
+        for (int i = 0; i < msgUris.length; i++) {
+            ParsedChatMessage parsed = pending.get(i);
+            if (parsed.needAck) {
+                // send ack :)
+                sendReceipt(msgUris[i], parsed.msg.getId(), parsed.stanza.getFrom());
+            }
+        }
+    }
+
     private void processErrorMessage(Message m) {
+        // the message might be waiting to be stored
+        flushMessages();
+
         DeliveryReceipt deliveryReceipt = DeliveryReceipt.from(m);
 
         // delivery receipt error
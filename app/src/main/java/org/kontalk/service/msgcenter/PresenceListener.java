@@ -18,7 +18,14 @@
 
 package org.kontalk.service.msgcenter;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import org.jivesoftware.smack.packet.ExtensionElement;
 import org.jivesoftware.smack.packet.Presence;
@@ -31,6 +38,7 @@ import org.jxmpp.jid.Jid;
 import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -60,6 +68,20 @@ import org.kontalk.util.Preferences;
  */
 class PresenceListener extends MessageCenterPacketListener implements SubscribeListener {
 
+    /** Presences are collected for this time before being stored. */
+    private static final long PRESENCE_BATCH_DELAY = 250;
+
+    /** Presences waiting to be stored, by full JID. */
+    private final Map<String, Presence> mPendingPresences = new LinkedHashMap<>();
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushPresences();
+        }
+    };
+
     public PresenceListener(MessageCenterService instance) {
         super(instance);
     }
@@ -202,41 +224,74 @@ class PresenceListener extends MessageCenterPacketListener implements SubscribeL
             entry.getType() == RosterPacket.ItemType.both));
     }
 
-    private void handlePresence(final Presence p) {
-        queueTask(new Runnable() {
-            @Override
-            public void run() {
-                updateUsersDatabase(p);
-
-                // request the new key if fingerprint changed
-                String newFingerprint = PublicKeyPresence.getFingerprint(p);
-                if (newFingerprint != null) {
-                    boolean requestKey = false;
-                    String jid = p.getFrom().asBareJid().toString();
-                    PGPPublicKeyRing pubRing = Keyring.getPublicKey(getContext(),
-                        jid, MyUsers.Keys.TRUST_UNKNOWN);
-                    if (pubRing != null) {
-                        String oldFingerprint = PGP.getFingerprint(PGP.getMasterKey(pubRing));
-                        if (!newFingerprint.equalsIgnoreCase(oldFingerprint)) {
-                            // key has changed, request new one
-                            requestKey = true;
-                        }
-                    }
-                    else {
-                        // no key available, request one
-                        requestKey = true;
-                    }
+    private void handlePresence(Presence p) {
+        synchronized (mPendingPresences) {
+            // a newer presence from the same resource replaces the pending one
+            mPendingPresences.put(p.getFrom().toString(), p);
+            if (!mFlushScheduled) {
+                // if the service is stopping, try again with the next presence
+                mFlushScheduled = queueTask(mFlushTask, PRESENCE_BATCH_DELAY);
+            }
+        }
+    }
 
-                    if (requestKey) {
-                        MessageCenterService.bus()
-                            .post(new PublicKeyRequest(p.getFrom().asBareJid()));
-                    }
-                }
+    /** Writes all pending presences in a single transaction, then posts the events. */
+    @SuppressWarnings("WeakerAccess")
+    void flushPresences() {
+        List<Presence> presences;
+        synchronized (mPendingPresences) {
+            presences = new ArrayList<>(mPendingPresences.values());
+            mPendingPresences.clear();
+            mFlushScheduled = false;
+        }
 
+        Context ctx = getContext();
+        if (ctx == null || presences.isEmpty())
+            return;
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>(presences.size() * 2);
+        long[] timestamps = new long[presences.size()];
+        Set<String> jids = new HashSet<>(presences.size());
+        boolean fingerprints = false;
+        for (int i = 0; i < presences.size(); i++) {
+            Presence p = presences.get(i);
+            jids.add(p.getFrom().asBareJid().toString());
+            fingerprints |= PublicKeyPresence.getFingerprint(p) != null;
+            timestamps[i] = addUsersOperations(p, ops);
+        }
+
+        try {
+            ctx.getContentResolver().applyBatch(UsersProvider.AUTHORITY, ops);
+        }
+        catch (Exception e) {
+            Log.e(TAG, "error storing presence data", e);
+        }
+        if (fingerprints)
+            Keyring.fingerprintsChanged();
+
+        // compare with stored fingerprints without loading keys
+        Map<String, Keyring.LatestFingerprint> storedFingerprints =
+            Keyring.getLatestFingerprints(ctx, jids, MyUsers.Keys.TRUST_UNKNOWN);
+
+        for (int i = 0; i < presences.size(); i++) {
+            Presence p = presences.get(i);
+            Keyring.LatestFingerprint stored = storedFingerprints
+                .get(p.getFrom().asBareJid().toString().toLowerCase(Locale.US));
+
+            // request the new key if fingerprint changed or we don't have the key
+            String newFingerprint = PublicKeyPresence.getFingerprint(p);
+            if (newFingerprint != null && (stored == null || !stored.hasKey ||
+                    !newFingerprint.equalsIgnoreCase(stored.fingerprint))) {
                 MessageCenterService.bus()
-                    .post(createEvent(getContext(), p, getRosterEntry(p.getFrom()), null));
+                    .post(new PublicKeyRequest(p.getFrom().asBareJid()));
             }
-        });
+
+            String fingerprint = newFingerprint != null ? newFingerprint :
+                (stored != null ? stored.fingerprint : null);
+            MessageCenterService.bus()
+                .post(createEvent(p, getRosterEntry(p.getFrom()), null,
+                    new Date(timestamps[i]), fingerprint));
+        }
     }
 
     public static PresenceEvent createEvent(Context ctx, Presence p, RosterEntry entry, String id) {
@@ -262,6 +317,10 @@ class PresenceListener extends MessageCenterPacketListener implements SubscribeL
             fingerprint = Keyring.getFingerprint(ctx, jid, MyUsers.Keys.TRUST_UNKNOWN);
         }
 
+        return createEvent(p, entry, id, delayTime, fingerprint);
+    }
+
+    private static PresenceEvent createEvent(Presence p, RosterEntry entry, String id, Date delayTime, String fingerprint) {
         // subscription information
         String rosterName = null;
         boolean subscribedFrom = false;
@@ -290,8 +349,11 @@ class PresenceListener extends MessageCenterPacketListener implements SubscribeL
         }
     }
 
-    @SuppressWarnings("WeakerAccess")
-    int updateUsersDatabase(Presence p) {
+    /**
+     * Adds the operations for storing presence data to the users database.
+     * @return the last seen timestamp
+     */
+    private long addUsersOperations(Presence p, List<ContentProviderOperation> ops) {
         String jid = p.getFrom().asBareJid().toString();
 
         ContentValues values = new ContentValues(4);
@@ -325,12 +387,15 @@ class PresenceListener extends MessageCenterPacketListener implements SubscribeL
             String fingerprint = pkey.getFingerprint();
             if (fingerprint != null) {
                 // insert new key with empty key data
-                Keyring.setKey(getContext(), jid, fingerprint, new Date());
+                ops.add(Keyring.newFingerprintOperation(jid, fingerprint, new Date()));
             }
         }
 
-        return getContext().getContentResolver().update(Users.CONTENT_URI,
-            values, Users.JID + "=?", new String[] { jid });
+        ops.add(ContentProviderOperation.newUpdate(Users.CONTENT_URI)
+            .withValues(values)
+            .withSelection(Users.JID + "=?", new String[] { jid })
+            .build());
+        return timestamp;
     }
 
 }
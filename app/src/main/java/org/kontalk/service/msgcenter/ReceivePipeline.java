@@ -0,0 +1,199 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.annotation.SuppressLint;
+import android.os.PowerManager;
+import android.os.Process;
+
+import org.kontalk.Log;
+
+
+/**
+ * Processes incoming stanzas on a pool of worker threads sized to the
+ * available cores. Each task is split in two stages: the processing stage
+ * (e.g. decryption) runs in parallel with other tasks, while the commit stage
+ * runs after all previously submitted tasks have been committed.
+ * Commit stages are never run concurrently, and they run in the order tasks
+ * were submitted regardless of the sender: stanzas from different senders
+ * can depend on each other (e.g. a group creation and a message from a member).
+ * Commit stages may defer their writes (e.g. to store several messages in a
+ * single transaction): a flush stage runs whenever there is nothing left to
+ * commit.
+ * @author Daniele Ricci
+ */
+class ReceivePipeline {
+    private static final String TAG = MessageCenterService.TAG;
+
+    /** Idle worker threads are terminated after this many seconds. */
+    private static final int KEEP_ALIVE = 30;
+
+    interface Task {
+        /**
+         * Runs on a worker thread, in parallel with other tasks.
+         * @return the commit stage, or null if there is nothing to commit
+         */
+        Commit process() throws Exception;
+    }
+
+    interface Commit {
+        /** Runs after all previously submitted tasks have been committed. */
+        void commit() throws Exception;
+    }
+
+    private final class Job implements Runnable {
+        final Task task;
+
+        /** Guarded by {@link #mJobs}. */
+        boolean done;
+        /** Guarded by {@link #mJobs}. */
+        Commit commit;
+
+        Job(Task task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            Commit result = null;
+            try {
+                result = task.process();
+            }
+            catch (Throwable e) {
+                Log.e(TAG, "error processing stanza", e);
+            }
+
+            synchronized (mJobs) {
+                commit = result;
+                done = true;
+            }
+            drain();
+        }
+    }
+
+    private final ThreadPoolExecutor mWorkers;
+    /** Pending jobs, in submission order. */
+    private final ArrayDeque<Job> mJobs = new ArrayDeque<>();
+    /** True while a thread is committing jobs. Guarded by {@link #mJobs}. */
+    private boolean mDraining;
+    /** Jobs committed since the last flush. Guarded by {@link #mJobs}. */
+    private int mUnflushed;
+    private final Commit mFlush;
+    private final PowerManager.WakeLock mWakeLock;
+
+    /**
+     * @param wakeLock a reference counted wake lock, held while there are pending tasks
+     * @param flush runs after commit stages when there is nothing left to commit
+     */
+    ReceivePipeline(PowerManager.WakeLock wakeLock, Commit flush) {
+        mWakeLock = wakeLock;
+        mFlush = flush;
+
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        mWorkers = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "ReceivePipeline-" + mCount.incrementAndGet());
+                }
+            });
+        mWorkers.allowCoreThreadTimeOut(true);
+    }
+
+    /** Queues a task. Tasks are committed in the order they were submitted. */
+    @SuppressLint("WakelockTimeout")
+    void submit(Task task) {
+        Job job = new Job(task);
+        synchronized (mJobs) {
+            mJobs.add(job);
+        }
+
+        mWakeLock.acquire();
+        mWorkers.execute(job);
+    }
+
+    /**
+     * Commits all completed jobs at the head of the queue, then flushes if
+     * the queue is empty.
+     */
+    private void drain() {
+        while (true) {
+            Job next = null;
+            int flushed = 0;
+            synchronized (mJobs) {
+                // someone else is already committing, it will pick up our job
+                if (mDraining)
+                    return;
+
+                Job head = mJobs.peek();
+                if (head != null && head.done) {
+                    next = mJobs.poll();
+                }
+                else if (head == null && mUnflushed > 0) {
+                    flushed = mUnflushed;
+                    mUnflushed = 0;
+                }
+                else {
+                    return;
+                }
+
+                mDraining = true;
+            }
+
+            try {
+                if (next != null) {
+                    if (next.commit != null)
+                        next.commit.commit();
+                }
+                else if (mFlush != null) {
+                    mFlush.commit();
+                }
+            }
+            catch (Throwable e) {
+                Log.e(TAG, next != null ? "error committing stanza" : "error flushing stanzas", e);
+            }
+            finally {
+                synchronized (mJobs) {
+                    mDraining = false;
+                    // wake lock is released after flushing
+                    if (next != null)
+                        mUnflushed++;
+                }
+                for (int i = 0; i < flushed; i++)
+                    mWakeLock.release();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import org.kontalk.Log;
+import org.kontalk.provider.MessagesProvider;
+
+
+/**
+ * Write-behind queue for message status updates (server acks and delivery
+ * receipts). Updates are applied in order, in batches: each batch is a
+ * single transaction, with thread metadata refreshed once per thread and
+ * change notifications coalesced.
+ * @author Daniele Ricci
+ */
+class StatusUpdateQueue extends HandlerThread {
+    private static final String TAG = MessageCenterService.TAG;
+
+    /** Max time an update can wait in the queue. */
+    private static final long FLUSH_DELAY = 100;
+    /** Updates are written right away when this many are waiting. */
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private final Context mContext;
+    private Handler mHandler;
+    /** Set by {@link #close()}: updates are not queued anymore (guarded by this). */
+    private boolean mClosed;
+
+    // accessed only by this thread
+    private ArrayList<ContentProviderOperation> mPending = new ArrayList<>();
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    StatusUpdateQueue(Context context) {
+        super(StatusUpdateQueue.class.getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND);
+        mContext = context.getApplicationContext();
+    }
+
+    @Override
+    public synchronized void start() {
+        super.start();
+        // getLooper will block until ready
+        mHandler = new Handler(getLooper());
+    }
+
+    /** Queues an update for writing. */
+    void add(final ContentProviderOperation update) {
+        synchronized (this) {
+            if (!mClosed) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPending.add(update);
+                        if (mPending.size() >= MAX_BATCH_SIZE) {
+                            mHandler.removeCallbacks(mFlush);
+                            flush();
+                        }
+                        else if (mPending.size() == 1) {
+                            mHandler.postDelayed(mFlush, FLUSH_DELAY);
+                        }
+                    }
+                });
+                return;
+            }
+        }
+
+        // queue is closed, write directly
+        ArrayList<ContentProviderOperation> batch = new ArrayList<>(1);
+        batch.add(update);
+        apply(batch);
+    }
+
+    /**
+     * Writes all queued updates and stops the thread. Updates added after
+     * this call are written directly by the caller.
+     */
+    void close() {
+        synchronized (this) {
+            if (mClosed)
+                return;
+            mClosed = true;
+            // no update can be posted after this one
+            mHandler.removeCallbacks(mFlush);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                    quit();
+                }
+            });
+        }
+    }
+
+    private void flush() {
+        if (mPending.isEmpty())
+            return;
+
+        ArrayList<ContentProviderOperation> batch = mPending;
+        mPending = new ArrayList<>();
+        apply(batch);
+    }
+
+    private void apply(ArrayList<ContentProviderOperation> batch) {
+        try {
+            mContext.getContentResolver().applyBatch(MessagesProvider.AUTHORITY, batch);
+        }
+        catch (Exception e) {
+            Log.e(TAG, "error writing " + batch.size() + " status updates", e);
+        }
+    }
+
+}
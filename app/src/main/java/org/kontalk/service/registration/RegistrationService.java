@@ -1632,17 +1632,33 @@ public class RegistrationService extends Service implements XMPPConnectionHelper
     public static String fixNumber(Context context, String number, String myNumber, int lastResortCc)
         throws NumberParseException {
 
+        return fixNumber(number, myNumber, getSimRegionCode(context), lastResortCc);
+    }
+
+    static String fixNumber(String number, String myNumber, String myRegionCode, int lastResortCc)
+        throws NumberParseException {
+
+        return fixNumberForRegion(number, resolveRegionCode(myNumber, myRegionCode), lastResortCc);
+    }
+
+    /**
+     * Creates a normalizer for converting many numbers into E.164 format.
+     * The region code is resolved only once for the whole batch.
+     * @see #fixNumber(Context, String, String, int)
+     */
+    public static NumberNormalizer createNumberNormalizer(Context context, String myNumber, int lastResortCc) {
+        return new NumberNormalizer(resolveRegionCode(myNumber, getSimRegionCode(context)), lastResortCc);
+    }
+
+    private static String getSimRegionCode(Context context) {
         final TelephonyManager tm = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
         String myRegionCode = tm.getSimCountryIso();
         if (myRegionCode != null)
             myRegionCode = myRegionCode.toUpperCase(Locale.US);
-
-        return fixNumber(number, myNumber, myRegionCode, lastResortCc);
+        return myRegionCode;
     }
 
-    static String fixNumber(String number, String myNumber, String myRegionCode, int lastResortCc)
-        throws NumberParseException {
-
+    private static String resolveRegionCode(String myNumber, String myRegionCode) {
         PhoneNumberUtil util = PhoneNumberUtil.getInstance();
         try {
             if (myNumber != null) {
@@ -1654,7 +1670,13 @@ public class RegistrationService extends Service implements XMPPConnectionHelper
         catch (NumberParseException e) {
             // ehm :)
         }
+        return myRegionCode;
+    }
+
+    private static String fixNumberForRegion(String number, String myRegionCode, int lastResortCc)
+        throws NumberParseException {
 
+        PhoneNumberUtil util = PhoneNumberUtil.getInstance();
         Phonenumber.PhoneNumber parsedNum;
         try {
             parsedNum = util.parse(number, myRegionCode);
@@ -1679,6 +1701,26 @@ public class RegistrationService extends Service implements XMPPConnectionHelper
         return util.format(parsedNum, PhoneNumberUtil.PhoneNumberFormat.E164);
     }
 
+    /** Converts phone numbers into E.164 format using the same region code. */
+    public static final class NumberNormalizer {
+        private final String mRegionCode;
+        private final int mLastResortCc;
+
+        NumberNormalizer(String regionCode, int lastResortCc) {
+            mRegionCode = regionCode;
+            mLastResortCc = lastResortCc;
+        }
+
+        /** The region code used for numbers without a country code. */
+        public String getRegionCode() {
+            return mRegionCode;
+        }
+
+        public String fixNumber(String number) throws NumberParseException {
+            return fixNumberForRegion(number, mRegionCode, mLastResortCc);
+        }
+    }
+
     public static String formatForDisplay(Phonenumber.PhoneNumber phone) {
         return PhoneNumberUtil.getInstance()
             .format(phone, PhoneNumberUtil.PhoneNumberFormat.INTERNATIONAL);
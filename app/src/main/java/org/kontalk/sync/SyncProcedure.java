@@ -20,8 +20,10 @@ package org.kontalk.sync;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.greenrobot.eventbus.EventBus;
@@ -70,6 +72,8 @@ public class SyncProcedure {
     private static final int MAX_ROSTER_MATCH_SIZE = 500;
 
     private List<PresenceItem> mResponse;
+    /** Index of {@link #mResponse} by bare JID. */
+    private Map<BareJid, PresenceItem> mResponseIndex;
     private final WeakReference<Object> mNotifyTo;
 
     private final List<String> mJidList;
@@ -143,6 +147,7 @@ public class SyncProcedure {
     @Subscribe(sticky = true, threadMode = ThreadMode.BACKGROUND)
     public synchronized void onDisconnected(DisconnectedEvent event) {
         mResponse = null;
+        mResponseIndex = null;
         finish();
     }
 
@@ -186,12 +191,13 @@ public class SyncProcedure {
                     if (mResponse == null) {
                         // prepare list to be filled in with presence data
                         mResponse = new ArrayList<>(mRosterCount);
+                        mResponseIndex = new HashMap<>(mRosterCount * 2);
                     }
                     for (Jid jid : event.jids) {
                         PresenceItem p = new PresenceItem();
                         p.from = jid.asBareJid();
                         p.matched = true;
-                        mResponse.add(p);
+                        addPresenceItem(p);
                     }
                 }
 
@@ -230,12 +236,9 @@ public class SyncProcedure {
             if (event.jids != null) {
                 for (Jid jid : event.jids) {
                     // see if bare JID is present in roster response
-                    BareJid compare = jid.asBareJid();
-                    for (PresenceItem item : mResponse) {
-                        if (item.from.equals(compare)) {
-                            item.blocked = true;
-                            break;
-                        }
+                    PresenceItem item = findPresenceItem(jid.asBareJid());
+                    if (item != null) {
+                        item.blocked = true;
                     }
                 }
             }
@@ -271,15 +274,12 @@ public class SyncProcedure {
         if (mResponse != null) {
             if (IQ_KEYS_PACKET_ID.equals(event.id)) {
                 // see if bare JID is present in roster response
-                BareJid compare = event.jid.asBareJid();
-                for (PresenceItem item : mResponse) {
-                    if (item.from.equals(compare)) {
-                        item.publicKey = event.publicKey;
-
-                        // increment vcard count
-                        mPubkeyCount++;
-                        break;
-                    }
+                PresenceItem item = findPresenceItem(event.jid.asBareJid());
+                if (item != null) {
+                    item.publicKey = event.publicKey;
+
+                    // increment vcard count
+                    mPubkeyCount++;
                 }
 
                 // done with presence data and blocklist
@@ -290,25 +290,34 @@ public class SyncProcedure {
     }
 
     private void discardPresenceItem(BareJid jid) {
-        for (PresenceItem item : mResponse) {
-            if (item.from.equals(jid)) {
-                item.discarded = true;
-                return;
-            }
+        PresenceItem item = findPresenceItem(jid);
+        if (item != null) {
+            item.discarded = true;
         }
     }
 
     private PresenceItem getPresenceItem(BareJid jid) {
-        for (PresenceItem item : mResponse) {
-            if (item.from.equals(jid))
-                return item;
+        PresenceItem item = findPresenceItem(jid);
+        if (item == null) {
+            // add item if not found
+            item = new PresenceItem();
+            item.from = jid;
+            addPresenceItem(item);
         }
+        return item;
+    }
+
+    @Nullable
+    private PresenceItem findPresenceItem(BareJid jid) {
+        return mResponseIndex != null ? mResponseIndex.get(jid) : null;
+    }
 
-        // add item if not found
-        PresenceItem item = new PresenceItem();
-        item.from = jid;
+    private void addPresenceItem(PresenceItem item) {
         mResponse.add(item);
-        return item;
+        // first item wins, as it would have been with a linear lookup
+        if (!mResponseIndex.containsKey(item.from)) {
+            mResponseIndex.put(item.from, item);
+        }
     }
 
     private void requestPresenceData(String id) {
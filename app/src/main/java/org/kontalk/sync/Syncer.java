@@ -32,6 +32,7 @@ import android.accounts.OperationCanceledException;
 import android.annotation.TargetApi;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SyncResult;
@@ -112,12 +113,30 @@ public class Syncer {
         }
     }
 
+    /** A raw contact created by us, as found in the system contacts. */
+    private static final class RawContactEntry {
+        public final long id;
+        public final String displayName;
+        public final String number;
+
+        public RawContactEntry(long id, String displayName, String number) {
+            this.id = id;
+            this.displayName = displayName;
+            this.number = number;
+        }
+
+        public boolean matches(String displayName, String number) {
+            return TextUtils.equals(this.displayName, displayName) &&
+                TextUtils.equals(this.number, number);
+        }
+    }
+
     /**
      * The actual sync procedure.
-     * This one uses the slowest method ever: it first checks for every phone
-     * number in all contacts and it sends them to the server. Once a response
-     * is received, it deletes all the raw contacts created by us and then
-     * recreates only the ones the server has found a match for.
+     * It first checks for every phone number in all contacts and it sends
+     * them to the server. Once a response is received, it compares the
+     * matched contacts with the raw contacts created by us and inserts,
+     * updates or deletes only the ones that changed.
      */
     void performSync(Context context, Account account, String authority,
         ContentProviderClient provider, ContentProviderClient usersProvider,
@@ -180,7 +199,7 @@ public class Syncer {
 
         // empty contacts :-|
         if (jidList.size() == 0) {
-            // delete all Kontalk raw contacts
+            // delete all Kontalk raw contacts (including the ones marked as deleted)
             try {
                 syncResult.stats.numDeletes += deleteAll(account, provider);
             }
@@ -226,18 +245,25 @@ public class Syncer {
             if (res != null) {
                 ArrayList<ContentProviderOperation> operations =
                     new ArrayList<>();
-                // TODO operations.size() could be used instead (?)
-                int op = 0;
+                ArrayList<ContentProviderOperation> usersOperations =
+                    new ArrayList<>(res.size());
+                int inserts = 0;
+                int updates = 0;
 
-                // this is the time - delete all Kontalk raw contacts
+                // raw contacts currently in the system for our account
+                Map<String, RawContactEntry> rawContacts;
                 try {
-                    syncResult.stats.numDeletes += deleteAll(account, provider);
+                    rawContacts = queryRawContacts(account, provider, operations);
                 }
                 catch (Exception e) {
-                    Log.e(TAG, "contact delete error", e);
+                    Log.e(TAG, "contact query error", e);
                     syncResult.databaseError = true;
                     return;
                 }
+                // stale duplicates and deleted contacts found while querying
+                int deletes = operations.size();
+
+                // the profile is just one row, recreate it every time
                 try {
                     syncResult.stats.numDeletes += deleteProfile(account, provider);
                 }
@@ -246,6 +272,8 @@ public class Syncer {
                     syncResult.databaseError = true;
                 }
 
+                Map<String, String> displayNames = queryDisplayNames(provider);
+
                 ContentValues registeredValues = new ContentValues();
                 registeredValues.put(Users.REGISTERED, 1);
                 for (int i = 0; i < res.size(); i++) {
@@ -256,10 +284,23 @@ public class Syncer {
                     final RawPhoneNumberEntry data = lookupNumbers
                         .get(entry.from.getLocalpartOrThrow().toString());
                     if (data != null && data.lookupKey != null) {
-                        // add contact
-                        addContact(account,
-                                getDisplayName(provider, data.lookupKey, data.number),
-                                data.number, data.jid, operations, op++);
+                        String displayName = displayNames.get(data.lookupKey);
+                        if (displayName == null)
+                            displayName = getDisplayName(provider, data.lookupKey, data.number);
+
+                        RawContactEntry rawContact = rawContacts.remove(data.jid);
+                        if (rawContact == null) {
+                            // add contact
+                            addContact(account, displayName,
+                                data.number, data.jid, operations);
+                            inserts++;
+                        }
+                        else if (!rawContact.matches(displayName, data.number)) {
+                            // update contact
+                            updateContact(account, rawContact.id, displayName,
+                                data.number, operations);
+                            updates++;
+                        }
                     }
                     else {
                         syncResult.stats.numSkippedEntries++;
@@ -327,8 +368,11 @@ public class Syncer {
                         else {
                             origJid = entry.from.toString();
                         }
-                        usersProvider.update(Users.CONTENT_URI_OFFLINE, registeredValues,
-                            Users.JID + " = ?", new String[] { origJid });
+                        usersOperations.add(ContentProviderOperation
+                            .newUpdate(Users.CONTENT_URI_OFFLINE)
+                            .withValues(registeredValues)
+                            .withSelection(Users.JID + " = ?", new String[] { origJid })
+                            .build());
 
                         // clear data
                         registeredValues.remove(Users.DISPLAY_NAME);
@@ -341,7 +385,8 @@ public class Syncer {
                                 String displayName = myAccount.getDisplayName();
                                 addProfile(account, displayName,
                                     data.number, data.jid,
-                                    operations, op++);
+                                    operations);
+                                inserts++;
                             }
                         }
                     }
@@ -351,15 +396,32 @@ public class Syncer {
                     }
                 }
 
+                // raw contacts not matched anymore
+                for (RawContactEntry rawContact : rawContacts.values()) {
+                    deleteContact(account, rawContact.id, operations);
+                    deletes++;
+                }
+
+                try {
+                    if (usersOperations.size() > 0)
+                        usersProvider.applyBatch(usersOperations);
+                }
+                catch (Exception e) {
+                    Log.e(TAG, "error updating users database", e);
+                    // we shall continue here...
+                }
+
                 try {
                     if (operations.size() > 0)
                         provider.applyBatch(operations);
-                    syncResult.stats.numInserts += op;
-                    syncResult.stats.numEntries += op;
+                    syncResult.stats.numInserts += inserts;
+                    syncResult.stats.numUpdates += updates;
+                    syncResult.stats.numDeletes += deletes;
+                    syncResult.stats.numEntries += inserts + updates;
                 }
                 catch (Exception e) {
                     Log.w(TAG, "contact write error", e);
-                    syncResult.stats.numSkippedEntries += op;
+                    syncResult.stats.numSkippedEntries += inserts + updates;
                     /*
                      * We do not consider system contacts failure a fatal error.
                      * This is actually a workaround for systems with disabled permissions or
@@ -424,6 +486,67 @@ public class Syncer {
         return (displayName != null) ? displayName : defaultValue;
     }
 
+    /** Loads display names of all system contacts by lookup key with a single query. */
+    private Map<String, String> queryDisplayNames(ContentProviderClient client) {
+        Map<String, String> names = new HashMap<>();
+        Cursor c = null;
+        try {
+            c = client.query(ContactsContract.Contacts.CONTENT_URI,
+                new String[] { ContactsContract.Contacts.LOOKUP_KEY, ContactsContract.Contacts.DISPLAY_NAME },
+                null, null, null);
+            while (c.moveToNext()) {
+                String lookupKey = c.getString(0);
+                String displayName = c.getString(1);
+                if (lookupKey != null && displayName != null)
+                    names.put(lookupKey, displayName);
+            }
+        }
+        catch (Exception e) {
+            // we will fallback to single lookups
+            Log.w(TAG, "unable to query contact names", e);
+        }
+        finally {
+            if (c != null)
+                c.close();
+        }
+        return names;
+    }
+
+    /**
+     * Loads the raw contacts created by us, indexed by JID.
+     * Duplicate raw contacts for the same JID and raw contacts marked as
+     * deleted (e.g. by the user) are scheduled for deletion.
+     */
+    private Map<String, RawContactEntry> queryRawContacts(Account account, ContentProviderClient provider,
+            List<ContentProviderOperation> operations) throws RemoteException {
+        Map<String, RawContactEntry> entries = new HashMap<>();
+        Cursor c = provider.query(RawContacts.CONTENT_URI,
+            new String[] { RawContacts._ID, RAW_COLUMN_USERID, RAW_COLUMN_DISPLAY_NAME, RAW_COLUMN_PHONE,
+                RawContacts.DELETED },
+            RawContacts.ACCOUNT_NAME + " = ? AND " + RawContacts.ACCOUNT_TYPE + " = ?",
+            new String[] { account.name, account.type }, null);
+        if (c == null)
+            throw new RemoteException("query to raw contacts failed");
+
+        try {
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                String jid = c.getString(1);
+                // deleted raw contacts must be purged by us (as sync adapter)
+                if (jid == null || c.getInt(4) != 0 || entries.containsKey(jid)) {
+                    deleteContact(account, id, operations);
+                }
+                else {
+                    entries.put(jid, new RawContactEntry(id, c.getString(2), c.getString(3)));
+                }
+            }
+        }
+        finally {
+            c.close();
+        }
+        return entries;
+    }
+
     private int deleteAll(Account account, ContentProviderClient provider)
             throws RemoteException {
         return provider.delete(RawContacts.CONTENT_URI.buildUpon()
@@ -443,56 +566,79 @@ public class Syncer {
             .build(), null, null);
     }
 
-    /*
-    private int deleteContact(Account account, long rawContactId) {
-        Uri uri = ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId)
-            .buildUpon()
+    private void deleteContact(Account account, long rawContactId,
+            List<ContentProviderOperation> operations) {
+        operations.add(ContentProviderOperation.newDelete(syncAdapterUri(account,
+                ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId)))
+            .withYieldAllowed(true)
+            .build());
+    }
+
+    private void updateContact(Account account, long rawContactId, String username, String phone,
+            List<ContentProviderOperation> operations) {
+        if (Log.isDebug()) {
+            Log.d(TAG, "updating contact \"" + username + "\" <" + phone + ">");
+        }
+
+        operations.add(ContentProviderOperation.newUpdate(syncAdapterUri(account,
+                ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId)))
+            .withValue(RAW_COLUMN_DISPLAY_NAME, username)
+            .withValue(RAW_COLUMN_PHONE, phone)
+            .build());
+
+        final String selection = ContactsContract.Data.RAW_CONTACT_ID + " = ? AND " +
+            ContactsContract.Data.MIMETYPE + " = ?";
+        final String rawContactIdArg = String.valueOf(rawContactId);
+        operations.add(ContentProviderOperation.newUpdate(syncAdapterUri(account, ContactsContract.Data.CONTENT_URI))
+            .withSelection(selection, new String[] { rawContactIdArg,
+                ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE })
+            .withValue(ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME, username)
+            .build());
+        operations.add(ContentProviderOperation.newUpdate(syncAdapterUri(account, ContactsContract.Data.CONTENT_URI))
+            .withSelection(selection, new String[] { rawContactIdArg, Users.CONTENT_ITEM_TYPE })
+            .withValue(DATA_COLUMN_DISPLAY_NAME, username)
+            .withValue(DATA_COLUMN_PHONE, phone)
+            .withYieldAllowed(true)
+            .build());
+    }
+
+    private static Uri syncAdapterUri(Account account, Uri uri) {
+        return uri.buildUpon()
             .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
             .appendQueryParameter(RawContacts.ACCOUNT_NAME, account.name)
             .appendQueryParameter(RawContacts.ACCOUNT_TYPE, account.type)
             .build();
-        ContentProviderClient client = mContext.getContentResolver().acquireContentProviderClient(ContactsContract.AUTHORITY_URI);
-        try {
-            return client.delete(uri, null, null);
-        }
-        catch (RemoteException e) {
-            Log.e(TAG, "delete error", e);
-        }
-        finally {
-            client.release();
-        }
-
-        return -1;
     }
-    */
 
     private void addContact(Account account, String username, String phone, String jid,
-            List<ContentProviderOperation> operations, int index) {
+            List<ContentProviderOperation> operations) {
         if (Log.isDebug()) {
             Log.d(TAG, "adding contact \"" + username + "\" <" + phone + ">");
         }
 
         // create our RawContact
+        int rawContactIndex = operations.size();
         operations.add(insertRawContact(account, username, phone, jid,
             RawContacts.CONTENT_URI).build());
 
         // add contact data
-        addContactData(username, phone, operations, index);
+        addContactData(username, phone, operations, rawContactIndex);
     }
 
     @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
     private void addProfile(Account account, String username, String phone, String jid,
-            List<ContentProviderOperation> operations, int index) {
+            List<ContentProviderOperation> operations) {
         if (Log.isDebug()) {
             Log.d(TAG, "adding profile \"" + username + "\" <" + phone + ">");
         }
 
         // create our RawContact
+        int rawContactIndex = operations.size();
         operations.add(insertRawContact(account, username, phone, jid,
             ContactsContract.Profile.CONTENT_RAW_CONTACTS_URI).build());
 
         // add contact data
-        addContactData(username, phone, operations, index);
+        addContactData(username, phone, operations, rawContactIndex);
     }
 
     private ContentProviderOperation.Builder insertRawContact(Account account, String username, String phone, String jid, Uri uri) {
@@ -505,9 +651,8 @@ public class Syncer {
             .withValue(RAW_COLUMN_USERID, jid);
     }
 
-    private void addContactData(String username, String phone, List<ContentProviderOperation> operations, int index) {
+    private void addContactData(String username, String phone, List<ContentProviderOperation> operations, int opIndex) {
         ContentProviderOperation.Builder builder;
-        final int opIndex = index * 3;
 
         // create a Data record of common type 'StructuredName' for our RawContact
         builder = ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
@@ -56,7 +56,6 @@ import android.content.pm.ResolveInfo;
 import android.content.res.Configuration;
 import android.database.ContentObserver;
 import android.database.Cursor;
-import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDiskIOException;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
@@ -95,6 +94,7 @@ import org.kontalk.authenticator.MyAccount;
 import org.kontalk.crypto.Coder;
 import org.kontalk.data.Contact;
 import org.kontalk.data.Conversation;
+import org.kontalk.data.MessageListLoader;
 import org.kontalk.message.AttachmentComponent;
 import org.kontalk.message.AudioComponent;
 import org.kontalk.message.CompositeMessage;
@@ -154,14 +154,12 @@ public abstract class AbstractComposeFragment extends ListFragment implements
     AbsListView.MultiChoiceModeListener {
     static final String TAG = ComposeMessage.TAG;
 
-    private static final int MESSAGE_LIST_QUERY_TOKEN = 8720;
     private static final int CONVERSATION_QUERY_TOKEN = 8721;
-    private static final int MESSAGE_PAGE_QUERY_TOKEN = 8723;
 
     /**
      * How many messages to load per page.
      */
-    private static final int MESSAGE_PAGE_SIZE = 1000;
+    private static final int MESSAGE_PAGE_SIZE = 100;
 
     private static final int SELECT_ATTACHMENT_OPENABLE = 1;
     private static final int SELECT_ATTACHMENT_CONTACT = 2;
@@ -196,6 +194,7 @@ public abstract class AbstractComposeFragment extends ListFragment implements
     protected ReplyBar mReplyBar;
 
     MessageListQueryHandler mQueryHandler;
+    MessageListLoader mMessagesLoader;
     MessageListAdapter mListAdapter;
     /**
      * Header view for the list view: "previous messages" button.
@@ -317,10 +316,24 @@ public abstract class AbstractComposeFragment extends ListFragment implements
                 // disable button in the meantime
                 enableHeaderView(false);
                 // start query for the next page
-                startMessagesQuery(mQueryHandler.getLastId());
+                mMessagesLoader.loadPrevious();
             }
         });
         list.addHeaderView(mHeaderView, null, false);
+        list.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                // load the previous page as soon as the header is shown
+                if (firstVisibleItem == 0 && totalItemCount > 1 &&
+                        mHeaderView.getVisibility() == View.VISIBLE && mNextPageButton.isEnabled()) {
+                    mNextPageButton.performClick();
+                }
+            }
+        });
 
         // set custom background (if any)
         mBackground = getView().findViewById(R.id.background);
@@ -373,8 +386,8 @@ public abstract class AbstractComposeFragment extends ListFragment implements
         return view;
     }
 
-    private final MessageListAdapter.OnContentChangedListener mContentChangedListener = new MessageListAdapter.OnContentChangedListener() {
-        public void onContentChanged(MessageListAdapter adapter) {
+    private final MessageListLoader.OnContentChangedListener mContentChangedListener = new MessageListLoader.OnContentChangedListener() {
+        public void onContentChanged(MessageListLoader loader) {
             if (isVisible())
                 startQuery();
         }
@@ -386,6 +399,7 @@ public abstract class AbstractComposeFragment extends ListFragment implements
 
         setHasOptionsMenu(true);
         mQueryHandler = new MessageListQueryHandler(this);
+        mMessagesLoader = new MessageListLoader(getActivity(), new MessagesCallback(this));
         mHandler = new Handler();
 
         // list adapter creation is post-poned
@@ -610,8 +624,7 @@ public abstract class AbstractComposeFragment extends ListFragment implements
         if (mCheckedItemCount != 1)
             throw new IllegalStateException("checked items count must be exactly 1");
 
-        Cursor cursor = (Cursor) getListView().getItemAtPosition(getCheckedItemPosition());
-        return CompositeMessage.fromCursor(getActivity(), cursor);
+        return (CompositeMessage) getListView().getItemAtPosition(getCheckedItemPosition());
     }
 
     private int getCheckedItemPosition() {
@@ -635,8 +648,7 @@ public abstract class AbstractComposeFragment extends ListFragment implements
 
         for (int i = 0, c = getListView().getCount()+getListView().getHeaderViewsCount(); i < c; ++i) {
             if (checked.get(i)) {
-                Cursor cursor = (Cursor) getListView().getItemAtPosition(i);
-                CompositeMessage msg = CompositeMessage.fromCursor(getContext(), cursor);
+                CompositeMessage msg = (CompositeMessage) getListView().getItemAtPosition(i);
                 String userId = msg.getDirection() == Messages.DIRECTION_IN ?
                     msg.getSender() : Kontalk.get().getDefaultAccount().getSelfJID();
 
@@ -679,10 +691,11 @@ public abstract class AbstractComposeFragment extends ListFragment implements
         final List<CompositeMessage.DeleteMessageHolder> list = new LinkedList<>();
         for (int i = 0, c = getListView().getCount()+getListView().getHeaderViewsCount(); i < c; ++i) {
             if (checked.get(i)) {
-                Cursor cursor = (Cursor) getListView().getItemAtPosition(i);
                 // skip group command messages
-                if (!GroupCommandComponent.isCursor(cursor))
-                    list.add(new CompositeMessage.DeleteMessageHolder(cursor));
+                if (getListView().getAdapter().isEnabled(i)) {
+                    CompositeMessage msg = (CompositeMessage) getListView().getItemAtPosition(i);
+                    list.add(new CompositeMessage.DeleteMessageHolder(msg));
+                }
             }
         }
 
@@ -1534,19 +1547,16 @@ public abstract class AbstractComposeFragment extends ListFragment implements
     }
 
     void startMessagesQuery() {
-        CompositeMessage.startQuery(mQueryHandler, MESSAGE_LIST_QUERY_TOKEN,
-            threadId, isSearching() ? 0 : MESSAGE_PAGE_SIZE, 0);
-    }
-
-    void startMessagesQuery(long lastId) {
-        CompositeMessage.startQuery(mQueryHandler, MESSAGE_PAGE_QUERY_TOKEN,
-            threadId, isSearching() ? 0 : MESSAGE_PAGE_SIZE, lastId);
+        // loads the first page or refreshes the loaded messages
+        mMessagesLoader.load(threadId, isSearching() ? 0 : MESSAGE_PAGE_SIZE);
     }
 
     private void stopQuery() {
         hideHeaderView();
         if (mListAdapter != null)
-            mListAdapter.changeCursor(null);
+            mListAdapter.setMessages(null);
+        // the next load will fill the list again
+        mMessagesLoader.reset();
 
         if (mQueryHandler != null) {
             // be sure to cancel all queries
@@ -1929,9 +1939,9 @@ public abstract class AbstractComposeFragment extends ListFragment implements
                     Pattern.CASE_INSENSITIVE);
             }
 
-            mListAdapter = new MessageListAdapter(getActivity(), null,
+            mListAdapter = new MessageListAdapter(getActivity(),
                 highlight, getListView(), this);
-            mListAdapter.setOnContentChangedListener(mContentChangedListener);
+            mMessagesLoader.setOnContentChangedListener(mContentChangedListener);
             setListAdapter(mListAdapter);
         }
 
@@ -2368,6 +2378,7 @@ public abstract class AbstractComposeFragment extends ListFragment implements
     public void onDestroy() {
         super.onDestroy();
         stopQuery();
+        mMessagesLoader.close();
         if (mComposer != null) {
             mComposer.onDestroy();
         }
@@ -2385,12 +2396,12 @@ public abstract class AbstractComposeFragment extends ListFragment implements
 
     private void pauseContentListener() {
         if (mListAdapter != null)
-            mListAdapter.setOnContentChangedListener(null);
+            mMessagesLoader.setOnContentChangedListener(null);
     }
 
     private void resumeContentListener() {
         if (mListAdapter != null)
-            mListAdapter.setOnContentChangedListener(mContentChangedListener);
+            mMessagesLoader.setOnContentChangedListener(mContentChangedListener);
     }
 
     public final boolean isFinishing() {
@@ -2781,12 +2792,106 @@ public abstract class AbstractComposeFragment extends ListFragment implements
     }
 
     /**
-     * The conversation list query handler.
+     * Receives messages from the {@link MessageListLoader}.
+     */
+    private static final class MessagesCallback implements MessageListLoader.Callback {
+        private WeakReference<AbstractComposeFragment> mParent;
+
+        MessagesCallback(AbstractComposeFragment parent) {
+            mParent = new WeakReference<>(parent);
+        }
+
+        @Override
+        public void onMessagesLoaded(List<MessageListLoader.Row> messages, boolean hasMore) {
+            final AbstractComposeFragment parent = mParent.get();
+            if (parent == null || parent.isFinishing() || parent.mListAdapter == null)
+                return;
+
+            // no messages to show - exit
+            if (messages.size() == 0
+                && (parent.mConversation == null ||
+                // no draft
+                (parent.mConversation.getDraft() == null &&
+                    // no subscription request
+                    parent.mConversation.getRequestStatus() != Threads.REQUEST_WAITING &&
+                    // no text in compose entry
+                    parent.mComposer.getText().length() == 0 &&
+                    // no group chat
+                    !parent.mConversation.isGroupChat()))) {
+
+                Log.i(TAG, "no data to view - exit");
+
+                // close conversation
+                parent.closeConversation();
+
+            }
+            else {
+                // save reloading status for next time
+                Bundle args = parent.getArguments();
+
+                // see if we have to scroll to a specific message
+                int newSelectionPos = -1;
+
+                if (args != null && !args.getBoolean(ComposeMessage.EXTRA_RELOADING)) {
+                    long msgId = args.getLong(ComposeMessage.EXTRA_MESSAGE, -1);
+                    if (msgId > 0) {
+                        for (int i = 0; i < messages.size(); i++) {
+                            if (messages.get(i).getId() == msgId) {
+                                newSelectionPos = i;
+                                break;
+                            }
+                        }
+                    }
+
+                    args.putBoolean(ComposeMessage.EXTRA_RELOADING, true);
+                }
+
+                parent.mListAdapter.setMessages(messages);
+                if (newSelectionPos >= 0) {
+                    // +1 is for the header view
+                    final int pos = newSelectionPos + 1;
+                    parent.getListView().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            parent.scrollToPosition(pos);
+                        }
+                    });
+                }
+
+                if (newSelectionPos < 0 && hasMore)
+                    parent.showHeaderView();
+
+                parent.updateUI();
+            }
+        }
+
+        @Override
+        public void onPageLoaded(List<MessageListLoader.Row> messages, int added, boolean hasMore) {
+            AbstractComposeFragment parent = mParent.get();
+            if (parent == null || parent.isFinishing() || parent.mListAdapter == null)
+                return;
+
+            // there is no more data after this page
+            if (!hasMore)
+                parent.hideHeaderView();
+
+            if (added > 0) {
+                parent.mListAdapter.setMessages(messages);
+                // the new selection will be the next item after the new page
+                parent.getListView().setSelection(added);
+                parent.updateUI();
+            }
+
+            parent.enableHeaderView(true);
+        }
+    }
+
+    /**
+     * The conversation query handler.
      */
     private static final class MessageListQueryHandler extends AsyncQueryHandler {
         private WeakReference<AbstractComposeFragment> mParent;
         private boolean mCancel;
-        private long mLastId;
 
         MessageListQueryHandler(AbstractComposeFragment parent) {
             super(parent.getActivity().getApplicationContext().getContentResolver());
@@ -2810,115 +2915,14 @@ public abstract class AbstractComposeFragment extends ListFragment implements
                 mCancel = false;
                 if (parent != null) {
                     parent.unregisterPeerObserver();
-                    parent.mListAdapter.changeCursor(null);
+                    if (parent.mListAdapter != null)
+                        parent.mListAdapter.setMessages(null);
+                    parent.mMessagesLoader.reset();
                 }
                 return;
             }
 
             switch (token) {
-                case MESSAGE_LIST_QUERY_TOKEN:
-
-                    // no messages to show - exit
-                    if (cursor.getCount() == 0
-                        && (parent.mConversation == null ||
-                        // no draft
-                        (parent.mConversation.getDraft() == null &&
-                            // no subscription request
-                            parent.mConversation.getRequestStatus() != Threads.REQUEST_WAITING &&
-                            // no text in compose entry
-                            parent.mComposer.getText().length() == 0 &&
-                            // no group chat
-                            !parent.mConversation.isGroupChat()))) {
-
-                        Log.i(TAG, "no data to view - exit");
-
-                        // close conversation
-                        parent.closeConversation();
-
-                    }
-                    else {
-                        // first query - use last id of this new cursor
-                        if (cursor.getCount() > 0) {
-                            cursor.moveToFirst();
-                            mLastId = Conversation.getMessageId(cursor);
-                        }
-
-                        // save reloading status for next time
-                        Bundle args = parent.getArguments();
-
-                        // see if we have to scroll to a specific message
-                        int newSelectionPos = -1;
-
-                        if (args != null && !args.getBoolean(ComposeMessage.EXTRA_RELOADING)) {
-                            long msgId = args.getLong(ComposeMessage.EXTRA_MESSAGE, -1);
-                            if (msgId > 0) {
-                                cursor.moveToPosition(-1);
-                                while (cursor.moveToNext()) {
-                                    long curId = cursor.getLong(CompositeMessage.COLUMN_ID);
-                                    if (curId == msgId) {
-                                        newSelectionPos = cursor.getPosition();
-                                        break;
-                                    }
-                                }
-                            }
-
-                            args.putBoolean(ComposeMessage.EXTRA_RELOADING, true);
-                        }
-
-                        parent.mListAdapter.changeCursor(cursor);
-                        if (newSelectionPos >= 0) {
-                            // +1 is for the header view
-                            final int pos = newSelectionPos + 1;
-                            parent.getListView().post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    parent.scrollToPosition(pos);
-                                }
-                            });
-                        }
-
-                        if (newSelectionPos < 0 && cursor.getCount() >= MESSAGE_PAGE_SIZE)
-                            parent.showHeaderView();
-
-                        parent.updateUI();
-                    }
-
-                    break;
-
-                case MESSAGE_PAGE_QUERY_TOKEN:
-                    if (cursor.getCount() > 0) {
-                        int newSelectionPos = -1;
-
-                        // there is no more data after this page
-                        if (cursor.getCount() < MESSAGE_PAGE_SIZE)
-                            parent.hideHeaderView();
-
-                        // save last id of this new cursor
-                        cursor.moveToFirst();
-                        mLastId = Conversation.getMessageId(cursor);
-
-                        // join with the old cursor (if any)
-                        Cursor oldCursor = parent.mListAdapter.getCursor();
-                        if (oldCursor != null) {
-                            // the new selection will be the next item after this new cursor
-                            newSelectionPos = cursor.getCount();
-                            cursor = new MergeCursor(new Cursor[]{cursor, oldCursor});
-                        }
-
-                        parent.mListAdapter.swapCursor(cursor);
-                        if (newSelectionPos >= 0)
-                            parent.getListView().setSelection(newSelectionPos);
-
-                        parent.updateUI();
-                    }
-                    else {
-                        // this happens when the first page is exactly PAGE_SIZE big
-                        parent.hideHeaderView();
-                    }
-
-                    parent.enableHeaderView(true);
-                    break;
-
                 case CONVERSATION_QUERY_TOKEN:
                     if (cursor.moveToFirst()) {
                         parent.mConversation = Conversation.createFromCursor(
@@ -2939,14 +2943,7 @@ public abstract class AbstractComposeFragment extends ListFragment implements
 
         public synchronized void abort() {
             mCancel = true;
-            mLastId = 0;
-            cancelOperation(MESSAGE_LIST_QUERY_TOKEN);
             cancelOperation(CONVERSATION_QUERY_TOKEN);
-            cancelOperation(MESSAGE_PAGE_QUERY_TOKEN);
-        }
-
-        public long getLastId() {
-            return mLastId;
         }
 
     }
@@ -24,6 +24,7 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
@@ -38,7 +39,6 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
-import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
@@ -49,6 +49,9 @@ import android.graphics.Typeface;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import androidx.annotation.RequiresApi;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationCompat.BigPictureStyle;
@@ -75,8 +78,6 @@ import org.kontalk.data.Contact;
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.message.GroupCommandComponent;
 import org.kontalk.message.ImageComponent;
-import org.kontalk.message.LocationComponent;
-import org.kontalk.provider.MessagesProviderClient.GroupThreadContent;
 import org.kontalk.provider.MyMessages.Groups;
 import org.kontalk.provider.MyMessages.Messages;
 import org.kontalk.provider.MyMessages.Threads;
@@ -155,9 +156,19 @@ public class MessagingNotification {
         Groups.GROUP_JID,
         Groups.SUBJECT,
         Messages.TIMESTAMP,
+        Messages._ID,
     };
 
-    // mapped to MESSAGES_UNREAD_PROJECTION
+    /** Same as {@link #MESSAGES_UNREAD_PROJECTION}, with the body length in place of the body. */
+    private static final String[] MESSAGES_UNREAD_CHECK_PROJECTION;
+
+    static {
+        MESSAGES_UNREAD_CHECK_PROJECTION = MESSAGES_UNREAD_PROJECTION.clone();
+        MESSAGES_UNREAD_CHECK_PROJECTION[3] =
+            "length(" + Messages.BODY_CONTENT + ") AS " + Messages.BODY_CONTENT;
+    }
+
+    // mapped to MESSAGES_UNREAD_PROJECTION and MESSAGES_UNREAD_CHECK_PROJECTION
     private static final int COLUMN_MESSAGES_THREAD_ID = 0;
     private static final int COLUMN_MESSAGES_PEER = 1;
     private static final int COLUMN_MESSAGES_BODY_MIME = 2;
@@ -169,38 +180,17 @@ public class MessagingNotification {
     private static final int COLUMN_MESSAGES_GROUP_JID = 8;
     private static final int COLUMN_MESSAGES_GROUP_SUBJECT = 9;
     private static final int COLUMN_MESSAGES_TIMESTAMP = 10;
-
-    private static final String[] THREADS_UNREAD_PROJECTION =
-    {
-        Threads._ID,
-        Threads.PEER,
-        Threads.MIME,
-        Threads.CONTENT,
-        Threads.ENCRYPTED,
-        Threads.UNREAD,
-        Groups.GROUP_JID,
-        Groups.SUBJECT,
-        Threads.TIMESTAMP,
-    };
-
-    // mapped to THREADS_UNREAD_PROJECTION
-    private static final int COLUMN_THREADS_ID = 0;
-    private static final int COLUMN_THREADS_PEER = 1;
-    private static final int COLUMN_THREADS_MIME = 2;
-    private static final int COLUMN_THREADS_CONTENT = 3;
-    private static final int COLUMN_THREADS_ENCRYPTED = 4;
-    private static final int COLUMN_THREADS_UNREAD = 5;
-    private static final int COLUMN_THREADS_GROUP_JID = 6;
-    private static final int COLUMN_THREADS_GROUP_SUBJECT = 7;
-    private static final int COLUMN_THREADS_TIMESTAMP = 8;
+    private static final int COLUMN_MESSAGES_ID = 11;
 
     private static final String MESSAGES_UNREAD_SELECTION =
         Messages.NEW + " <> 0 AND " +
         Messages.DIRECTION + " = " + Messages.DIRECTION_IN;
 
-    /** Pending delayed notification update flag. */
-    @SuppressWarnings("WeakerAccess")
-    static volatile boolean sPending;
+    /** Delay for coalescing messages notification updates. */
+    private static final long UPDATE_DELAY = 500;
+
+    /** Messages notification thread. */
+    private static NotificationThread sThread;
 
     /** Temporary disable all notifications flag */
     private static volatile boolean sDisabled;
@@ -328,229 +318,320 @@ public class MessagingNotification {
         sDisabled = true;
     }
 
-    private static boolean supportsBigNotifications() {
-        return android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN;
-    }
-
     static boolean supportsDirectReply() {
         return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
     }
 
-    /** Starts messages notification updates in another thread. */
-    public static void delayedUpdateMessagesNotification(final Context context, final boolean isNew) {
-        if (!sPending) {
-            sPending = true;
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    updateMessagesNotification(context, isNew);
-                    sPending = false;
-                }
-            }).start();
+    private static synchronized NotificationThread getThread(Context context) {
+        if (sThread == null) {
+            sThread = new NotificationThread(context.getApplicationContext());
+            sThread.start();
         }
+        return sThread;
+    }
+
+    /**
+     * Notifies a new incoming message. Only new or changed messages will be
+     * loaded from the database (together with any other message received meanwhile).
+     * @param alert true to start notification alerts
+     */
+    public static void messageReceived(Context context, boolean alert) {
+        getThread(context).received(alert);
+    }
+
+    /** Removes a conversation from the messages notification after it has been marked as read. */
+    public static void threadRead(Context context, long threadId) {
+        getThread(context).threadRead(threadId);
+    }
+
+    /**
+     * Reloads all unread messages and updates the messages notification
+     * after a short delay. Multiple requests are coalesced into one update.
+     * @param isNew if true a new message has come (starts notification alerts)
+     */
+    public static void delayedUpdateMessagesNotification(Context context, boolean isNew) {
+        getThread(context).reload(isNew, UPDATE_DELAY);
     }
 
     /**
-     * Updates system notification for unread messages.
-     * @param context
+     * Reloads all unread messages and updates the messages notification
+     * as soon as possible.
      * @param isNew if true a new message has come (starts notification alerts)
      */
     public static void updateMessagesNotification(Context context, boolean isNew) {
-        // no default account. WTF?!?
-        MyAccount account = Kontalk.get().getDefaultAccount();
-        if (account == null) {
-            return;
-        }
+        getThread(context).reload(isNew, 0);
+    }
 
-        // if notifying new messages, wait a little bit
-        // to let all incoming messages come through
-        /*
-        FIXME this is useless because message are slow to arrive anyway
-        (time to receive packs, store messages in db, etc. wastes too much time
-        if (isNew) {
-            try {
-                Thread.sleep(500);
-            }
-            catch (InterruptedException e) {
-                // ignored
-            }
-        }
-        */
+    /**
+     * Thread owning the unread messages summary and posting the messages
+     * notification. Update requests are coalesced, so that a burst of incoming
+     * messages (e.g. after being offline) results in a single update.
+     */
+    private static final class NotificationThread extends HandlerThread {
+        private final Context mContext;
+        private Handler mHandler;
 
-        ContentResolver res = context.getContentResolver();
-        NotificationManagerCompat nm = NotificationManagerCompat.from(context);
+        // everything below is accessed only by this thread
+        private final UnreadSummary mSummary = new UnreadSummary();
+        private boolean mUpdatePending;
+        private boolean mAlert;
+        /** Summary version and paused peer of the last notification update. */
+        private long mNotifiedVersion = -1;
+        private String mNotifiedPaused;
 
-        String query = MESSAGES_UNREAD_SELECTION;
-        String[] args = null;
-        String[] proj;
-        String order;
-        Uri uri;
-        if (supportsBigNotifications()) {
-            uri = Messages.CONTENT_URI;
-            proj = MESSAGES_UNREAD_PROJECTION;
-            order = Messages.DEFAULT_SORT_ORDER;
-        }
-        else {
-            uri = Threads.CONTENT_URI;
-            proj = THREADS_UNREAD_PROJECTION;
-            order = Threads.INVERTED_SORT_ORDER;
+        private final Runnable mUpdate = new Runnable() {
+            @Override
+            public void run() {
+                boolean alert = mAlert;
+                mUpdatePending = false;
+                mAlert = false;
+                update(alert);
+            }
+        };
+
+        NotificationThread(Context context) {
+            super(MessagingNotification.class.getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND);
+            mContext = context;
         }
 
-        // is there a peer to not notify for?
-        final String paused = sPaused;
-        if (paused != null) {
-            query += " AND " + Messages.PEER + " <> ? AND " +
-                "(" + Groups.GROUP_JID + " IS NULL OR " + Groups.GROUP_JID + " <> ?)";
-            args = new String[] { paused, paused };
+        @Override
+        public synchronized void start() {
+            super.start();
+            // getLooper will block until ready
+            mHandler = new Handler(getLooper());
         }
 
-        Cursor c = res.query(uri, proj, query, args, order);
+        void received(final boolean alert) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // the update will pick up the new message
+                    schedule(alert, UPDATE_DELAY);
+                }
+            });
+        }
 
-        // this shouldn't happen, but who knows...
-        if (c == null) {
-            clearMessageNotification(context);
-            return;
+        void threadRead(final long threadId) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mSummary.removeThread(threadId))
+                        schedule(false, UPDATE_DELAY);
+                }
+            });
         }
 
-        // no unread messages - delete notification
-        int unread = c.getCount();
-        if (unread == 0) {
-            c.close();
-            clearMessageNotification(context);
-            return;
+        void reload(final boolean alert, final long delay) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mSummary.invalidate();
+                    schedule(alert, delay);
+                }
+            });
         }
 
-        // notifications are disabled
-        if (!Preferences.getNotificationsEnabled(context) || sDisabled) {
-            c.close();
-            return;
+        private void schedule(boolean alert, long delay) {
+            mAlert |= alert;
+            if (!mUpdatePending) {
+                mUpdatePending = true;
+                mHandler.postDelayed(mUpdate, delay);
+            }
+            else if (delay == 0) {
+                // anticipate the pending update
+                mHandler.removeCallbacks(mUpdate);
+                mHandler.post(mUpdate);
+            }
         }
 
-        NotificationCompat.Builder builder = new NotificationCompat
-            .Builder(context.getApplicationContext(), CHANNEL_INCOMING_MESSAGE);
-        Set<Uri> conversationIds = new HashSet<>(unread);
-        long latestTimestamp = 0;
+        private void update(boolean alert) {
+            // no default account. WTF?!?
+            MyAccount account = Kontalk.get().getDefaultAccount();
+            if (account == null) {
+                return;
+            }
 
-        if (supportsBigNotifications()) {
-            NotificationGenerator ngen = new NotificationGenerator(context, builder);
-
-            long id = 0;
-            while (c.moveToNext()) {
-                // thread_id for PendingIntent
-                id = c.getLong(COLUMN_MESSAGES_THREAD_ID);
-                String peer = c.getString(COLUMN_MESSAGES_PEER);
-                String mime = c.getString(COLUMN_MESSAGES_BODY_MIME);
-                byte[] content = c.getBlob(COLUMN_MESSAGES_BODY_CONTENT);
-                String attMime = c.getString(COLUMN_MESSAGES_ATTACHMENT_MIME);
-                String attPreviewPath = c.getString(COLUMN_MESSAGES_ATTACHMENT_PREVIEW_PATH);
-                boolean encrypted = c.getInt(COLUMN_MESSAGES_ENCRYPTED) != 0;
-                String groupJid = c.getString(COLUMN_MESSAGES_GROUP_JID);
-                String groupSubject = c.getString(COLUMN_MESSAGES_GROUP_SUBJECT);
-                long timestamp = c.getLong(COLUMN_MESSAGES_TIMESTAMP);
-
-                if (!c.isNull(COLUMN_MESSAGES_GEO_LATITUDE)) {
-                    content = context.getString(R.string.notification_location).getBytes();
+            if (!mSummary.isLoaded()) {
+                if (!load(MESSAGES_UNREAD_SELECTION)) {
+                    // this shouldn't happen, but who knows...
+                    clearMessageNotification(mContext);
+                    return;
                 }
-
-                // store conversation id for intents
-                conversationIds.add(ContentUris.withAppendedId(Threads.CONTENT_URI, id));
-
-                Uri attPreview = attPreviewPath != null ? Uri.fromFile(new File(attPreviewPath)) : null;
-                ngen.addMessage(peer, mime, content, attMime, attPreview, encrypted, timestamp, groupJid, groupSubject);
-                latestTimestamp = Math.max(latestTimestamp, timestamp);
             }
-            c.close();
+            else {
+                reconcile();
+            }
 
-            int convCount = ngen.build(account, unread, conversationIds.iterator().next());
+            // nothing changed since last time
+            final String paused = sPaused;
+            if (!alert && mSummary.getVersion() == mNotifiedVersion &&
+                    TextUtils.equals(paused, mNotifiedPaused)) {
+                return;
+            }
 
-            builder.setSmallIcon(R.drawable.ic_stat_notify);
-            builder.setVisibility(NotificationCompat.VISIBILITY_PRIVATE);
+            List<UnreadSummary.UnreadMessage> messages = mSummary.getMessages(paused);
 
-            Intent ni;
-            // more than one unread conversation - open conversations list
-            if (convCount > 1) {
-                ni = new Intent(context, ConversationsActivity.class);
-                ni.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
-                    | Intent.FLAG_ACTIVITY_SINGLE_TOP
-                    | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+            // no unread messages - delete notification
+            if (messages.isEmpty()) {
+                clearMessageNotification(mContext);
+            }
+            // notifications are disabled
+            else if (!Preferences.getNotificationsEnabled(mContext) || sDisabled) {
+                return;
             }
-            // one unread conversation - open compose message on that thread
             else {
-                ni = ComposeMessage.fromConversation(context, id);
+                showMessagesNotification(mContext, account, messages, alert);
             }
-            PendingIntent pi = createPendingIntent(context, ni);
 
-            builder.setContentIntent(pi);
+            mNotifiedVersion = mSummary.getVersion();
+            mNotifiedPaused = paused;
         }
 
-        else {
-            // loop all threads and accumulate them
-            MessageAccumulator accumulator = new MessageAccumulator(context);
-            while (c.moveToNext()) {
-                long threadId = c.getLong(COLUMN_THREADS_ID);
-                String peer = c.getString(COLUMN_THREADS_PEER);
-                String mime = c.getString(COLUMN_THREADS_MIME);
-                String content = c.getString(COLUMN_THREADS_CONTENT);
-                boolean encrypted = c.getInt(COLUMN_THREADS_ENCRYPTED) != 0;
-                int unreadCount = c.getInt(COLUMN_THREADS_UNREAD);
-                String groupJid = c.getString(COLUMN_THREADS_GROUP_JID);
-                String groupSubject = c.getString(COLUMN_THREADS_GROUP_SUBJECT);
-                long timestamp = c.getLong(COLUMN_THREADS_TIMESTAMP);
-
-                if (encrypted) {
-                    content = context.getString(R.string.text_encrypted);
+        /**
+         * Checks the summary against the unread messages in the database,
+         * without loading any body. Messages that were read or deleted are
+         * dropped; new messages and messages that changed in any way
+         * (e.g. decrypted) are loaded again.
+         */
+        private void reconcile() {
+            Cursor c = mContext.getContentResolver().query(Messages.CONTENT_URI,
+                MESSAGES_UNREAD_CHECK_PROJECTION, MESSAGES_UNREAD_SELECTION, null, null);
+            if (c == null)
+                return;
+
+            Set<Long> unread = new HashSet<>(c.getCount());
+            List<Long> changed = new ArrayList<>();
+            try {
+                while (c.moveToNext()) {
+                    long id = c.getLong(COLUMN_MESSAGES_ID);
+                    unread.add(id);
+                    UnreadSummary.UnreadMessage msg = mSummary.get(id);
+                    if (msg == null || isChanged(msg, c))
+                        changed.add(id);
                 }
-                else if (GroupCommandComponent.supportsMimeType(mime)) {
-                    // content is in a special format
-                    GroupThreadContent parsed = GroupThreadContent.parseIncoming(content);
-                    try {
-                        peer = parsed.sender;
-                        content = GroupCommandComponent.getTextContent(context, parsed.command, true);
-                    }
-                    catch (UnsupportedOperationException e) {
-                        // TODO using another string
-                        content = context.getString(R.string.peer_unknown);
-                    }
+            }
+            finally {
+                c.close();
+            }
+
+            mSummary.retain(unread);
+            if (changed.size() > 0) {
+                load(MESSAGES_UNREAD_SELECTION + " AND " + Messages._ID +
+                    " IN (" + TextUtils.join(",", changed) + ")");
+            }
+        }
+
+        /** Compares a summary message with a row from {@link #MESSAGES_UNREAD_CHECK_PROJECTION}. */
+        private static boolean isChanged(UnreadSummary.UnreadMessage msg, Cursor c) {
+            boolean hasContent = !c.isNull(COLUMN_MESSAGES_BODY_CONTENT);
+            return msg.threadId != c.getLong(COLUMN_MESSAGES_THREAD_ID) ||
+                !TextUtils.equals(msg.peer, c.getString(COLUMN_MESSAGES_PEER)) ||
+                !TextUtils.equals(msg.mime, c.getString(COLUMN_MESSAGES_BODY_MIME)) ||
+                (msg.content != null) != hasContent ||
+                (hasContent && msg.content.length != c.getLong(COLUMN_MESSAGES_BODY_CONTENT)) ||
+                !TextUtils.equals(msg.attMime, c.getString(COLUMN_MESSAGES_ATTACHMENT_MIME)) ||
+                !TextUtils.equals(msg.attPreviewPath, c.getString(COLUMN_MESSAGES_ATTACHMENT_PREVIEW_PATH)) ||
+                msg.location == c.isNull(COLUMN_MESSAGES_GEO_LATITUDE) ||
+                msg.encrypted != (c.getInt(COLUMN_MESSAGES_ENCRYPTED) != 0) ||
+                !TextUtils.equals(msg.groupJid, c.getString(COLUMN_MESSAGES_GROUP_JID)) ||
+                !TextUtils.equals(msg.groupSubject, c.getString(COLUMN_MESSAGES_GROUP_SUBJECT)) ||
+                msg.timestamp != c.getLong(COLUMN_MESSAGES_TIMESTAMP);
+        }
+
+        /**
+         * Loads unread messages into the summary. If the summary is not loaded,
+         * it will be replaced, otherwise messages will be added to it or
+         * replace the cached ones.
+         * @return false if the query failed
+         */
+        private boolean load(String selection) {
+            Cursor c = mContext.getContentResolver().query(Messages.CONTENT_URI,
+                MESSAGES_UNREAD_PROJECTION, selection, null, Messages.DEFAULT_SORT_ORDER);
+            if (c == null)
+                return false;
+
+            try {
+                List<UnreadSummary.UnreadMessage> messages = new ArrayList<>(c.getCount());
+                while (c.moveToNext()) {
+                    messages.add(new UnreadSummary.UnreadMessage(
+                        c.getLong(COLUMN_MESSAGES_ID),
+                        c.getLong(COLUMN_MESSAGES_THREAD_ID),
+                        c.getString(COLUMN_MESSAGES_PEER),
+                        c.getString(COLUMN_MESSAGES_BODY_MIME),
+                        c.getBlob(COLUMN_MESSAGES_BODY_CONTENT),
+                        c.getString(COLUMN_MESSAGES_ATTACHMENT_MIME),
+                        c.getString(COLUMN_MESSAGES_ATTACHMENT_PREVIEW_PATH),
+                        !c.isNull(COLUMN_MESSAGES_GEO_LATITUDE),
+                        c.getInt(COLUMN_MESSAGES_ENCRYPTED) != 0,
+                        c.getString(COLUMN_MESSAGES_GROUP_JID),
+                        c.getString(COLUMN_MESSAGES_GROUP_SUBJECT),
+                        c.getLong(COLUMN_MESSAGES_TIMESTAMP)));
                 }
-                else if (LocationComponent.supportsMimeType(mime)) {
-                    content = context.getString(R.string.notification_location);
+
+                if (mSummary.isLoaded()) {
+                    for (UnreadSummary.UnreadMessage msg : messages)
+                        mSummary.put(msg);
                 }
-                else if (content == null) {
-                    content = CompositeMessage.getSampleTextContent(mime);
+                else {
+                    mSummary.load(messages);
                 }
-
-                accumulator.accumulate(
-                    threadId,
-                    peer,
-                    content,
-                    unreadCount,
-                    // group data
-                    groupJid,
-                    groupSubject
-                );
-                // actually we don't need to check for max since conversations were selected
-                // in timestamp order, but whatever...
-                latestTimestamp = Math.max(latestTimestamp, timestamp);
-                conversationIds.add(ContentUris.withAppendedId(Threads.CONTENT_URI, threadId));
+                return true;
             }
-            c.close();
-
-            builder.setTicker(accumulator.getTicker());
-            Contact contact = accumulator.getContact();
-            if (contact != null) {
-                // setLargeIcon will resize the icon
-                Bitmap avatar = contact.getAvatarBitmap(context, false);
-                builder.setLargeIcon(avatar);
+            finally {
+                c.close();
             }
-            builder.setNumber(accumulator.unreadCount);
-            builder.setSmallIcon(R.drawable.ic_stat_notify);
-            builder.setContentTitle(accumulator.getTitle());
-            builder.setContentText(accumulator.getText());
-            builder.setContentIntent(accumulator.getPendingIntent());
-
-            // overwrite thread count with message count (used for badges later)
-            unread = accumulator.unreadCount;
         }
+    }
+
+    /** Builds and posts the messages notification for the given unread messages. */
+    private static void showMessagesNotification(Context context, MyAccount account,
+            List<UnreadSummary.UnreadMessage> messages, boolean isNew) {
+        NotificationManagerCompat nm = NotificationManagerCompat.from(context);
+
+        int unread = messages.size();
+        NotificationCompat.Builder builder = new NotificationCompat
+            .Builder(context.getApplicationContext(), CHANNEL_INCOMING_MESSAGE);
+        Set<Uri> conversationIds = new HashSet<>(unread);
+        long latestTimestamp = 0;
+
+        NotificationGenerator ngen = new NotificationGenerator(context, builder);
+
+        long id = 0;
+        for (UnreadSummary.UnreadMessage msg : messages) {
+            // thread_id for PendingIntent
+            id = msg.threadId;
+            byte[] content = msg.location ?
+                context.getString(R.string.notification_location).getBytes() : msg.content;
+
+            // store conversation id for intents
+            conversationIds.add(ContentUris.withAppendedId(Threads.CONTENT_URI, id));
+
+            Uri attPreview = msg.attPreviewPath != null ? Uri.fromFile(new File(msg.attPreviewPath)) : null;
+            ngen.addMessage(msg.peer, msg.mime, content, msg.attMime, attPreview, msg.encrypted,
+                msg.timestamp, msg.groupJid, msg.groupSubject);
+            latestTimestamp = Math.max(latestTimestamp, msg.timestamp);
+        }
+
+        int convCount = ngen.build(account, unread, conversationIds.iterator().next());
+
+        builder.setSmallIcon(R.drawable.ic_stat_notify);
+        builder.setVisibility(NotificationCompat.VISIBILITY_PRIVATE);
+
+        Intent ni;
+        // more than one unread conversation - open conversations list
+        if (convCount > 1) {
+            ni = new Intent(context, ConversationsActivity.class);
+            ni.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
+                | Intent.FLAG_ACTIVITY_SINGLE_TOP
+                | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        }
+        // one unread conversation - open compose message on that thread
+        else {
+            ni = ComposeMessage.fromConversation(context, id);
+        }
+        PendingIntent pi = createPendingIntent(context, ni);
+
+        builder.setContentIntent(pi);
 
         // shouldn't happen, but let's check it anyway
         if (latestTimestamp > 0)
@@ -577,18 +658,6 @@ public class MessagingNotification {
         ShortcutBadger.applyCount(context, unread);
 
         nm.notify(NOTIFICATION_ID_MESSAGES, notification);
-
-        /* TODO take this from configuration
-        boolean quickReply = false;
-        if (isNew && quickReply) {
-            Intent i = new Intent(context.getApplicationContext(), QuickReplyActivity.class);
-            i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_MULTIPLE_TASK);
-            i.putExtra("org.kontalk.quickreply.FROM", accumulator.getLastMessagePeer());
-            i.putExtra("org.kontalk.quickreply.MESSAGE", accumulator.getLastMessageText());
-            i.putExtra("org.kontalk.quickreply.OPEN_INTENT", accumulator.getLastMessagePendingIntent());
-            context.startActivity(i);
-        }
-        */
     }
 
     /** Adds proper alerts to the notification. */
@@ -1130,127 +1199,4 @@ public class MessagingNotification {
             .getPendingIntent(NOTIFICATION_ID_MESSAGES,
                 PendingIntent.FLAG_UPDATE_CURRENT);
     }
-
-    /**
-     * This class accumulates all incoming unread threads and returns
-     * well-formed data to be used in a {@link Notification}.
-     * Used only for legacy notifications (pre-JB).
-     */
-    private static final class MessageAccumulator {
-        static final class ConversationStub {
-            public long id;
-            public String peer;
-            public String content;
-            public String groupJid;
-            public String groupSubject;
-        }
-
-        private ConversationStub conversation;
-        private int convCount;
-        int unreadCount;
-        private Context mContext;
-        private Contact mContact;
-
-        public MessageAccumulator(Context context) {
-            mContext = context;
-        }
-
-        /** Adds a conversation thread to the accumulator. */
-        public void accumulate(long id, String peer, String content, int unread, String groupJid, String groupSubject) {
-            // check old accumulated conversation
-            if (conversation != null) {
-                if (!conversation.peer.equalsIgnoreCase(peer))
-                    convCount++;
-            }
-            // no previous conversation - start counting
-            else {
-                convCount = 1;
-                conversation = new ConversationStub();
-            }
-
-            conversation.id = id;
-            conversation.peer = peer;
-            conversation.content = content;
-            conversation.groupJid = groupJid;
-            conversation.groupSubject = groupSubject;
-
-            unreadCount += unread;
-        }
-
-        private void cacheContact() {
-            mContact = Contact.findByUserId(mContext, conversation.peer);
-        }
-
-        public Contact getContact() {
-            return mContact;
-        }
-
-        /** Returns the text that should be used as a ticker in the notification. */
-        public CharSequence getTicker() {
-            cacheContact();
-            String peer = (mContact != null) ? mContact.getDisplayName() :
-                mContext.getString(R.string.peer_unknown);
-                // debug mode -- conversation.peer;
-
-            // append group subject to contact name if any
-            if (conversation.groupJid != null) {
-                peer = mContext.getResources().getString(R.string.notification_group_title,
-                    peer, (TextUtils.isEmpty(conversation.groupSubject) ?
-                        mContext.getString(R.string.group_untitled) : conversation.groupSubject));
-            }
-
-            SpannableStringBuilder buf = new SpannableStringBuilder();
-            buf.append(peer).append(':').append(' ');
-            buf.setSpan(new StyleSpan(Typeface.BOLD), 0, buf.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            buf.append(conversation.content);
-
-            return buf;
-        }
-
-        /** Returns the text that should be used as the notification title. */
-        public String getTitle() {
-            if (convCount > 1) {
-                return mContext.getString(R.string.new_messages);
-            }
-            else {
-                cacheContact();
-                String peer = (mContact != null) ? mContact.getDisplayName() :
-                    mContext.getString(R.string.peer_unknown);
-                    // debug mode -- conversation.peer;
-
-                // append group subject to contact name if any
-                if (conversation.groupJid != null) {
-                    peer = mContext.getResources().getString(R.string.notification_group_title,
-                        peer, (TextUtils.isEmpty(conversation.groupSubject) ?
-                            mContext.getString(R.string.group_untitled) : conversation.groupSubject));
-                }
-
-                return peer;
-            }
-        }
-
-        /** Returns the text that should be used as the notification text. */
-        public String getText() {
-            return (unreadCount > 1) ?
-                    mContext.getResources().getQuantityString(R.plurals.unread_messages, unreadCount, unreadCount)
-                    : conversation.content;
-        }
-
-        /** Builds a {@link PendingIntent} to be used in the notification. */
-        public PendingIntent getPendingIntent() {
-            Intent ni;
-            // more than one unread conversation - open ConversationList
-            if (convCount > 1) {
-                ni = new Intent(mContext, ConversationsActivity.class);
-                ni.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
-                    | Intent.FLAG_ACTIVITY_SINGLE_TOP
-                    | Intent.FLAG_ACTIVITY_CLEAR_TOP);
-            }
-            // one unread conversation - open ComposeMessage on that peer
-            else {
-                ni = ComposeMessage.fromConversation(mContext, conversation.id);
-            }
-            return createPendingIntent(mContext, ni);
-        }
-    }
 }
@@ -112,7 +112,7 @@ public class QuickReplyActivity extends ToolbarActivity {
 
     public void markRead(View view) {
         MessagesProviderClient.markThreadAsRead(this, mConversation.getRecipient());
-        MessagingNotification.delayedUpdateMessagesNotification(this, false);
+        MessagingNotification.threadRead(this, mConversation.getThreadId());
         finish();
     }
 
@@ -21,42 +21,74 @@ package org.kontalk.ui;
 import org.kontalk.R;
 import org.kontalk.data.SearchItem;
 import org.kontalk.ui.adapter.SearchListAdapter;
+import org.kontalk.ui.model.SearchViewModel;
 import org.kontalk.ui.view.SearchListItem;
 
-import android.app.Activity;
 import android.content.Intent;
-import android.database.Cursor;
 import android.os.Bundle;
-import androidx.fragment.app.ListFragment;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.fragment.app.Fragment;
+import androidx.lifecycle.Observer;
+import androidx.lifecycle.ViewModelProvider;
+import androidx.paging.PagedList;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ListView;
 
 
 /**
  * A basic search fragment for the entire database.
+ * Results are loaded in pages, in the background.
  * @author Daniele Ricci
  */
-public class SearchFragment extends ListFragment {
+public class SearchFragment extends Fragment implements SearchListAdapter.OnItemClickListener {
 
-    private Cursor mCursor;
     private String mQuery;
+    private SearchViewModel mViewModel;
     private SearchListAdapter mListAdapter;
+    private View mEmptyView;
 
     @Override
-    public View onCreateView(LayoutInflater inflater, ViewGroup container,
-            Bundle savedInstanceState) {
-        View view = inflater.inflate(R.layout.search_list, container, false);
+    public void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mViewModel = new ViewModelProvider(this).get(SearchViewModel.class);
+    }
 
-        // TODO empty list text view?
+    @Override
+    public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container,
+            Bundle savedInstanceState) {
+        return inflater.inflate(R.layout.search_list, container, false);
+    }
 
-        return view;
+    @Override
+    public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+
+        mEmptyView = view.findViewById(android.R.id.empty);
+
+        mListAdapter = new SearchListAdapter(view.getContext());
+        mListAdapter.setItemListener(this);
+
+        RecyclerView list = view.findViewById(android.R.id.list);
+        list.setLayoutManager(new LinearLayoutManager(view.getContext(),
+            LinearLayoutManager.VERTICAL, false));
+        list.setAdapter(mListAdapter);
+
+        mViewModel.getData().observe(getViewLifecycleOwner(), new Observer<PagedList<SearchItem>>() {
+            @Override
+            public void onChanged(@Nullable PagedList<SearchItem> results) {
+                mListAdapter.submitList(results);
+                mEmptyView.setVisibility(results != null && results.size() > 0 ?
+                    View.GONE : View.VISIBLE);
+            }
+        });
     }
 
     @Override
-    public void onListItemClick(ListView l, View v, int position, long id) {
-        SearchListItem item = (SearchListItem) v;
+    public void onItemClick(SearchListItem item, int position) {
         long msgId = item.getSearchItem().getMessageId();
         long threadId = item.getSearchItem().getThreadId();
         Intent i = ComposeMessage.fromConversation(getActivity(), threadId);
@@ -67,17 +99,7 @@ public class SearchFragment extends ListFragment {
 
     public void setQuery(String query) {
         mQuery = query;
-
-        Activity parent = getActivity();
-        if (parent != null) {
-            mCursor = SearchItem.query(parent, mQuery);
-            if (mCursor != null)
-                getActivity().startManagingCursor(mCursor);
-
-            mListAdapter = new SearchListAdapter(parent, mCursor);
-            // TODO mListAdapter.setOnContentChangedListener(mContentChangedListener);
-            setListAdapter(mListAdapter);
-        }
+        mViewModel.setQuery(requireContext(), query);
     }
 
 }
@@ -0,0 +1,179 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+
+/**
+ * In-memory copy of the unread incoming messages, grouped by thread.
+ * It is loaded once from the database and then reconciled with the unread
+ * messages on every update, so that the messages notification doesn't need
+ * to load all unread messages (with their bodies) every time.
+ * Not thread-safe: it's meant to be used by the notification thread only.
+ * @author Daniele Ricci
+ */
+final class UnreadSummary {
+
+    static final class UnreadMessage {
+        final long id;
+        final long threadId;
+        final String peer;
+        final String mime;
+        final byte[] content;
+        final String attMime;
+        final String attPreviewPath;
+        final boolean location;
+        final boolean encrypted;
+        final String groupJid;
+        final String groupSubject;
+        final long timestamp;
+
+        UnreadMessage(long id, long threadId, String peer, String mime, byte[] content,
+                String attMime, String attPreviewPath, boolean location, boolean encrypted,
+                String groupJid, String groupSubject, long timestamp) {
+            this.id = id;
+            this.threadId = threadId;
+            this.peer = peer;
+            this.mime = mime;
+            this.content = content;
+            this.attMime = attMime;
+            this.attPreviewPath = attPreviewPath;
+            this.location = location;
+            this.encrypted = encrypted;
+            this.groupJid = groupJid;
+            this.groupSubject = groupSubject;
+            this.timestamp = timestamp;
+        }
+
+        /** Returns true if this message comes from the given user or group JID. */
+        boolean isFrom(String jid) {
+            return jid != null && (jid.equalsIgnoreCase(peer) || jid.equalsIgnoreCase(groupJid));
+        }
+    }
+
+    /** Unread messages by thread ID, in message ID order. */
+    private final Map<Long, TreeMap<Long, UnreadMessage>> mThreads = new HashMap<>();
+    private boolean mLoaded;
+    /** Incremented on every actual change. */
+    private long mVersion;
+
+    boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /** Drops everything: the next update will have to reload from the database. */
+    void invalidate() {
+        mThreads.clear();
+        mLoaded = false;
+        mVersion++;
+    }
+
+    /** Replaces all data with a full list of unread messages. */
+    void load(List<UnreadMessage> messages) {
+        mThreads.clear();
+        for (UnreadMessage msg : messages)
+            put(msg);
+        mLoaded = true;
+        mVersion++;
+    }
+
+    /** Adds an unread message, replacing the cached copy if any. */
+    void put(UnreadMessage msg) {
+        UnreadMessage old = get(msg.id);
+        if (old != null && old.threadId != msg.threadId)
+            remove(old);
+
+        TreeMap<Long, UnreadMessage> thread = mThreads.get(msg.threadId);
+        if (thread == null) {
+            thread = new TreeMap<>();
+            mThreads.put(msg.threadId, thread);
+        }
+        thread.put(msg.id, msg);
+        mVersion++;
+    }
+
+    /** Returns the cached copy of a message, or null if it's not in the summary. */
+    UnreadMessage get(long id) {
+        for (TreeMap<Long, UnreadMessage> thread : mThreads.values()) {
+            UnreadMessage msg = thread.get(id);
+            if (msg != null)
+                return msg;
+        }
+        return null;
+    }
+
+    private void remove(UnreadMessage msg) {
+        TreeMap<Long, UnreadMessage> thread = mThreads.get(msg.threadId);
+        thread.remove(msg.id);
+        if (thread.isEmpty())
+            mThreads.remove(msg.threadId);
+    }
+
+    /** Drops all messages not in the given set (e.g. read or deleted). */
+    void retain(Set<Long> ids) {
+        boolean changed = false;
+        Iterator<TreeMap<Long, UnreadMessage>> threads = mThreads.values().iterator();
+        while (threads.hasNext()) {
+            TreeMap<Long, UnreadMessage> thread = threads.next();
+            if (thread.keySet().retainAll(ids))
+                changed = true;
+            if (thread.isEmpty())
+                threads.remove();
+        }
+        if (changed)
+            mVersion++;
+    }
+
+    /** Removes all messages of a thread. Returns false if the thread had no unread messages. */
+    boolean removeThread(long threadId) {
+        if (mThreads.remove(threadId) != null) {
+            mVersion++;
+            return true;
+        }
+        return false;
+    }
+
+    /** A number that changes whenever the summary changes. */
+    long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns all unread messages in message ID order (i.e. the order they
+     * were received), skipping messages from the given JID, if any.
+     */
+    List<UnreadMessage> getMessages(String skipJid) {
+        TreeMap<Long, UnreadMessage> sorted = new TreeMap<>();
+        for (TreeMap<Long, UnreadMessage> thread : mThreads.values()) {
+            for (UnreadMessage msg : thread.values()) {
+                if (!msg.isFrom(skipJid))
+                    sorted.put(msg.id, msg);
+            }
+        }
+        return new ArrayList<>(sorted.values());
+    }
+
+}
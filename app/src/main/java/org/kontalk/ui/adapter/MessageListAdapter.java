@@ -18,39 +18,37 @@
 
 package org.kontalk.ui.adapter;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.regex.Pattern;
 
 import android.content.Context;
-import android.database.Cursor;
-import androidx.cursoradapter.widget.CursorAdapter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AbsListView.RecyclerListener;
+import android.widget.BaseAdapter;
 import android.widget.ListView;
 
-import org.kontalk.Log;
 import org.kontalk.R;
+import org.kontalk.data.MessageListLoader;
 import org.kontalk.message.CompositeMessage;
-import org.kontalk.message.GroupCommandComponent;
-import org.kontalk.ui.ComposeMessage;
 import org.kontalk.ui.view.AudioPlayerControl;
 import org.kontalk.ui.view.MessageListItem;
-import org.kontalk.util.MessageUtils;
 
 
-public class MessageListAdapter extends CursorAdapter {
-
-    private static final String TAG = ComposeMessage.TAG;
+public class MessageListAdapter extends BaseAdapter {
 
+    private final Context mContext;
     private final LayoutInflater mFactory;
     private final Pattern mHighlight;
-    private OnContentChangedListener mOnContentChangedListener;
 
     private AudioPlayerControl mAudioPlayerControl;
 
-    public MessageListAdapter(Context context, Cursor cursor, Pattern highlight, ListView list, AudioPlayerControl audioPlayerControl) {
-        super(context, cursor, false);
+    private List<MessageListLoader.Row> mMessages = Collections.emptyList();
+
+    public MessageListAdapter(Context context, Pattern highlight, ListView list, AudioPlayerControl audioPlayerControl) {
+        mContext = context;
         mFactory = LayoutInflater.from(context);
         mHighlight = highlight;
         mAudioPlayerControl = audioPlayerControl;
@@ -64,56 +62,76 @@ public class MessageListAdapter extends CursorAdapter {
         });
     }
 
-    @Override
-    public void bindView(View view, Context context, Cursor cursor) {
-        if (!(view instanceof MessageListItem)) {
-            Log.e(TAG, "unexpected bound view: " + view);
-            return;
+    /** Replaces the messages, null to clear the list. */
+    public void setMessages(List<MessageListLoader.Row> messages) {
+        if (messages == null) {
+            mMessages = Collections.emptyList();
+            notifyDataSetInvalidated();
         }
+        else {
+            mMessages = messages;
+            notifyDataSetChanged();
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return mMessages.size();
+    }
+
+    @Override
+    public CompositeMessage getItem(int position) {
+        return mMessages.get(position).message;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mMessages.get(position).getId();
+    }
 
-        MessageListItem headerView = (MessageListItem) view;
-        CompositeMessage msg = CompositeMessage.fromCursor(context, cursor);
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        MessageListLoader.Row row = mMessages.get(position);
+        MessageListItem view = (MessageListItem) convertView;
+        if (view == null) {
+            view = (MessageListItem) mFactory
+                .inflate(R.layout.message_list_item, parent, false);
+            view.afterInflate(row.direction, row.event, row.groupChat);
+        }
 
         long previousTimestamp = -1;
         int previousItemType = -1;
         String previousPeer = null;
-        if (cursor.moveToPrevious()) {
-            previousTimestamp = MessageUtils.getMessageTimestamp(cursor);
-            previousPeer = MessageUtils.getMessagePeer(cursor);
-            previousItemType = getItemViewType(cursor);
+        if (position > 0) {
+            MessageListLoader.Row previous = mMessages.get(position - 1);
+            previousTimestamp = previous.timestamp;
+            previousPeer = previous.peer;
+            previousItemType = previous.getItemViewType();
         }
-        cursor.moveToNext();
 
-        headerView.bind(context, msg, mHighlight, getItemViewType(cursor),
+        view.bind(mContext, row.message, mHighlight, row.getItemViewType(),
             previousItemType, previousTimestamp, previousPeer, mAudioPlayerControl);
+        return view;
     }
 
     @Override
     public boolean isEnabled(int position) {
-        return !isEvent((Cursor) getItem(position));
+        return !mMessages.get(position).event;
     }
 
-    private boolean isEvent(Cursor cursor) {
-        String mime = cursor.getString(CompositeMessage.COLUMN_BODY_MIME);
-        return (GroupCommandComponent.supportsMimeType(mime));
-    }
-
-    private boolean isGroupChat(Cursor cursor) {
-        return cursor.getString(CompositeMessage.COLUMN_GROUP_JID) != null;
-    }
-
-    private int getItemViewType(Cursor cursor) {
-        int type = cursor.getInt(CompositeMessage.COLUMN_DIRECTION);
-        // MyMessages.DIRECTION_* OR-ed with 2 for group events
-        if (isEvent(cursor))
-            type |= 2;
-        return type;
+    @Override
+    public boolean areAllItemsEnabled() {
+        return false;
     }
 
     @Override
     public int getItemViewType(int position) {
-        Cursor c = (Cursor) getItem(position);
-        return getItemViewType(c);
+        return mMessages.get(position).getItemViewType();
     }
 
     @Override
@@ -123,30 +141,4 @@ public class MessageListAdapter extends CursorAdapter {
         return 4;
     }
 
-    @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        int type = cursor.getInt(CompositeMessage.COLUMN_DIRECTION);
-        boolean event = isEvent(cursor);
-        boolean groupChat = isGroupChat(cursor);
-        MessageListItem view = (MessageListItem) mFactory
-            .inflate(R.layout.message_list_item, parent, false);
-        view.afterInflate(type, event, groupChat);
-        return view;
-    }
-
-    public interface OnContentChangedListener {
-        void onContentChanged(MessageListAdapter adapter);
-    }
-
-    public void setOnContentChangedListener(OnContentChangedListener l) {
-        mOnContentChangedListener = l;
-    }
-
-    @Override
-    protected void onContentChanged() {
-        Cursor c = getCursor();
-        if (c != null && !c.isClosed() && mOnContentChangedListener != null) {
-            mOnContentChangedListener.onContentChanged(this);
-        }
-    }
 }
@@ -18,62 +18,87 @@
 
 package org.kontalk.ui.adapter;
 
+import androidx.annotation.NonNull;
+import androidx.paging.PagedListAdapter;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
 import android.content.Context;
-import android.database.Cursor;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
 
-import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.data.SearchItem;
-import org.kontalk.ui.SearchActivity;
 import org.kontalk.ui.view.SearchListItem;
 
 
-public class SearchListAdapter extends CursorAdapter {
+public class SearchListAdapter extends PagedListAdapter<SearchItem, SearchListAdapter.SearchViewHolder> {
 
-    private static final String TAG = SearchActivity.TAG;
+    private static final DiffUtil.ItemCallback<SearchItem> sDiffCallback = new DiffUtil.ItemCallback<SearchItem>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull SearchItem oldItem, @NonNull SearchItem newItem) {
+            return oldItem.getMessageId() == newItem.getMessageId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull SearchItem oldItem, @NonNull SearchItem newItem) {
+            // results are never refreshed
+            return oldItem.getMessageId() == newItem.getMessageId();
+        }
+    };
 
     private final LayoutInflater mFactory;
-    private OnContentChangedListener mOnContentChangedListener;
+    private OnItemClickListener mItemListener;
 
-    public SearchListAdapter(Context context, Cursor cursor) {
-        super(context, cursor, false);
+    public SearchListAdapter(Context context) {
+        super(sDiffCallback);
         mFactory = LayoutInflater.from(context);
     }
 
-    @Override
-    public void bindView(View view, Context context, Cursor cursor) {
-        if (!(view instanceof SearchListItem)) {
-            Log.e(TAG, "Unexpected bound view: " + view);
-            return;
-        }
+    public void setItemListener(OnItemClickListener itemListener) {
+        mItemListener = itemListener;
+    }
 
-        SearchListItem headerView = (SearchListItem) view;
-        SearchItem found = SearchItem.fromCursor(context, cursor);
-        headerView.bind(context, found);
+    @NonNull
+    @Override
+    public SearchViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        return new SearchViewHolder((SearchListItem) mFactory
+            .inflate(R.layout.search_list_item, parent, false), mItemListener);
     }
 
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        return mFactory.inflate(R.layout.search_list_item, parent, false);
+    public void onBindViewHolder(@NonNull SearchViewHolder holder, int position) {
+        SearchItem found = getItem(position);
+        if (found != null) {
+            ((SearchListItem) holder.itemView).bind(mFactory.getContext(), found);
+        }
     }
 
-    public interface OnContentChangedListener {
-        void onContentChanged(SearchListAdapter adapter);
+    @Override
+    public void onViewRecycled(@NonNull SearchViewHolder holder) {
+        ((SearchListItem) holder.itemView).unbind();
     }
 
-    public void setOnContentChangedListener(OnContentChangedListener l) {
-        mOnContentChangedListener = l;
+    public interface OnItemClickListener {
+        void onItemClick(SearchListItem item, int position);
     }
 
-    @Override
-    protected void onContentChanged() {
-        Cursor c = getCursor();
-        if (c != null && !c.isClosed() && mOnContentChangedListener != null) {
-            mOnContentChangedListener.onContentChanged(this);
+    static class SearchViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+
+        private final OnItemClickListener mListener;
+
+        SearchViewHolder(SearchListItem itemView, OnItemClickListener listener) {
+            super(itemView);
+            mListener = listener;
+            itemView.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View v) {
+            if (mListener != null) {
+                mListener.onItemClick((SearchListItem) itemView, getAdapterPosition());
+            }
         }
     }
+
 }
@@ -0,0 +1,76 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui.model;
+
+import androidx.annotation.UiThread;
+import androidx.arch.core.util.Function;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.Transformations;
+import androidx.lifecycle.ViewModel;
+import androidx.paging.LivePagedListBuilder;
+import androidx.paging.PagedList;
+import android.content.Context;
+
+import org.kontalk.data.SearchDataSourceFactory;
+import org.kontalk.data.SearchItem;
+
+
+public class SearchViewModel extends ViewModel {
+
+    private static final int PAGE_SIZE = 30;
+
+    private final MutableLiveData<SearchDataSourceFactory> mSearch = new MutableLiveData<>();
+    private final LiveData<PagedList<SearchItem>> mData;
+
+    public SearchViewModel() {
+        final PagedList.Config config = new PagedList.Config.Builder()
+            .setPageSize(PAGE_SIZE)
+            .setEnablePlaceholders(false)
+            .build();
+        mData = Transformations.switchMap(mSearch, new Function<SearchDataSourceFactory, LiveData<PagedList<SearchItem>>>() {
+            @Override
+            public LiveData<PagedList<SearchItem>> apply(SearchDataSourceFactory factory) {
+                return new LivePagedListBuilder<>(factory, config).build();
+            }
+        });
+    }
+
+    /** Starts a new search, canceling the previous one. */
+    @UiThread
+    public void setQuery(Context context, String query) {
+        SearchDataSourceFactory previous = mSearch.getValue();
+        // switch first, so the previous search won't be reloaded
+        mSearch.setValue(new SearchDataSourceFactory(context.getApplicationContext(), query));
+        if (previous != null)
+            previous.invalidate();
+    }
+
+    public LiveData<PagedList<SearchItem>> getData() {
+        return mData;
+    }
+
+    @Override
+    protected void onCleared() {
+        SearchDataSourceFactory search = mSearch.getValue();
+        if (search != null)
+            search.invalidate();
+    }
+
+}
@@ -19,15 +19,18 @@
 package org.kontalk.ui.prefs;
 
 import java.io.File;
+import java.io.IOException;
 
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import androidx.preference.Preference;
 import android.util.AttributeSet;
 
+import org.kontalk.Kontalk;
 import org.kontalk.Log;
 import org.kontalk.R;
 import org.kontalk.util.MediaStorage;
@@ -38,6 +41,7 @@ import org.kontalk.util.MediaStorage;
  * @author Daniele Ricci
  */
 public class SendDebugLogPreference extends Preference {
+    private static final String TAG = Kontalk.TAG;
 
     public SendDebugLogPreference(Context context) {
         super(context);
@@ -59,20 +63,45 @@ public class SendDebugLogPreference extends Preference {
     @Override
     protected void onClick() {
         super.onClick();
-        sendDebugLog(getContext());
+        // merging the log segments takes a while
+        new ExportLogTask(getContext()).execute();
     }
 
-    private void sendDebugLog(Context context) {
-        File file = Log.getLogFile();
-        if (file != null && file.isFile()) {
-            Intent i = new Intent(Intent.ACTION_SEND);
-            i.setType("text/plain");
-            i.putExtra(Intent.EXTRA_EMAIL, new String[] { context.getString(R.string.mailto) });
-            i.putExtra(Intent.EXTRA_SUBJECT, "Kontalk debug log");
-            Uri uri = MediaStorage.getWorldReadableUri(context,
-                Uri.fromFile(file), i);
-            i.putExtra(Intent.EXTRA_STREAM, uri);
-            context.startActivity(i);
+    private static void sendDebugLog(Context context, File file) {
+        Intent i = new Intent(Intent.ACTION_SEND);
+        i.setType("text/plain");
+        i.putExtra(Intent.EXTRA_EMAIL, new String[] { context.getString(R.string.mailto) });
+        i.putExtra(Intent.EXTRA_SUBJECT, "Kontalk debug log");
+        Uri uri = MediaStorage.getWorldReadableUri(context,
+            Uri.fromFile(file), i);
+        i.putExtra(Intent.EXTRA_STREAM, uri);
+        context.startActivity(i);
+    }
+
+    private static final class ExportLogTask extends AsyncTask<Void, Void, File> {
+
+        private final Context mContext;
+
+        ExportLogTask(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        protected File doInBackground(Void... params) {
+            try {
+                // merge all log segments
+                return Log.exportLogFile();
+            }
+            catch (IOException e) {
+                Log.w(TAG, "unable to export debug log", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(File file) {
+            if (file != null && file.isFile())
+                sendDebugLog(mContext, file);
         }
     }
 
@@ -19,9 +19,7 @@
 package org.kontalk.ui.view;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.util.regex.Pattern;
 
@@ -57,6 +55,11 @@ public class ImageContentView extends FrameLayout
     private ImageView mContent;
     private TextView mPlaceholder;
 
+    /** Thumbnail currently shown. */
+    private ThumbnailCache.Entry mThumbnail;
+    /** Thumbnail being loaded. */
+    private LoadThumbnailTask mLoadTask;
+
     public ImageContentView(Context context) {
         super(context);
     }
@@ -80,8 +83,29 @@ public class ImageContentView extends FrameLayout
     public void bind(long messageId, ImageComponent component, Pattern highlight) {
         mComponent = component;
 
-        Bitmap bitmap = getBitmap();
-        showBitmap(bitmap);
+        /*
+         * local_uri is used for referencing the original media.
+         * preview_uri is used to load the media thumbnail.
+         * If preview_uri is null or cannot be found, a thumbnail is
+         * generated on the fly from local_uri - if possible.
+         */
+        File previewFile = component.getPreviewFile();
+        if (previewFile != null) {
+            int width = getThumbnailWidth();
+            ThumbnailCache.Entry thumbnail = ThumbnailCache.getInstance()
+                .acquire(ThumbnailCache.key(previewFile, width));
+            if (thumbnail != null) {
+                showThumbnail(thumbnail);
+            }
+            else {
+                // keep the placeholder until the thumbnail is loaded
+                showBitmap(null);
+                loadThumbnail(previewFile, width, false);
+            }
+        }
+        else {
+            showBitmap(null);
+        }
     }
 
     @Override
@@ -112,55 +136,79 @@ public class ImageContentView extends FrameLayout
         }
     }
 
-    Bitmap loadPreview(File previewFile) throws IOException {
-        InputStream in = new FileInputStream(previewFile);
-        Bitmap bitmap = MediaStorage.loadBitmapSimple(in);
-        in.close();
-        return bitmap;
+    /** Thumbnails are decoded to the view width (or the screen width if not laid out yet). */
+    private int getThumbnailWidth() {
+        int width = getWidth();
+        return width > 0 ? width : getResources().getDisplayMetrics().widthPixels;
+    }
+
+    void showThumbnail(ThumbnailCache.Entry thumbnail) {
+        releaseThumbnail();
+        mThumbnail = thumbnail;
+        showBitmap(thumbnail.bitmap);
+    }
+
+    private void releaseThumbnail() {
+        if (mThumbnail != null) {
+            // the bitmap might be reused after this
+            mContent.setImageBitmap(null);
+            ThumbnailCache.getInstance().release(mThumbnail);
+            mThumbnail = null;
+        }
+    }
+
+    private void loadThumbnail(File previewFile, int width, boolean generated) {
+        cancelLoad();
+        mLoadTask = new LoadThumbnailTask(this, previewFile, width, generated);
+        mLoadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void cancelLoad() {
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
+    }
+
+    void onThumbnailLoaded(LoadThumbnailTask task, ThumbnailCache.Entry thumbnail) {
+        if (task == mLoadTask) {
+            mLoadTask = null;
+            showThumbnail(thumbnail);
+        }
+        else {
+            ThumbnailCache.getInstance().release(thumbnail);
+        }
     }
 
-    private Bitmap getBitmap() {
+    void onThumbnailError(LoadThumbnailTask task, final File previewFile, final int width, boolean generated) {
+        if (task != mLoadTask)
+            return;
+        mLoadTask = null;
+
+        if (generated) {
+            // since at this point anything can happen, just ignore any errors
+            Log.w(TAG, "unable to load generated thumbnail");
+            return;
+        }
+
+        Log.w(TAG, "unable to load thumbnail, generating one");
+
         /*
-         * local_uri is used for referencing the original media.
-         * preview_uri is used to load the media thumbnail.
-         * If preview_uri is null or cannot be found, a thumbnail is
-         * generated on the fly from local_uri - if possible.
+         * unable to load preview - generate thumbnail
+         * Of course a thumbnail can be generated only if the image has
+         * already been downloaded.
          */
-
-        File previewFile = mComponent.getPreviewFile();
         Uri localUri = mComponent.getLocalUri();
-        try {
-            // preview path
-            if (previewFile != null) {
-                // load from file - we know it's a file uri
-                return loadPreview(previewFile);
-            }
-        }
-        catch (Exception e) {
-            Log.w(TAG, "unable to load thumbnail, generating one");
-
-            /*
-             * unable to load preview - generate thumbnail
-             * Of course a thumbnail can be generated only if the image has
-             * already been downloaded.
-             */
-            if (localUri != null) {
-                new GenerateThumbnailTask(getContext(), localUri, previewFile, new ThumbnailListener() {
-                    @Override
-                    public void onThumbnailGenerated(File previewFile) {
-                        try {
-                            Bitmap bitmap = loadPreview(previewFile);
-                            showBitmap(bitmap);
-                        }
-                        catch (IOException e) {
-                            // since at this point anything can happen, just ignore any errors
-                            Log.w(TAG, "unable to load generated thumbnail", e);
-                        }
-                    }
-                }).execute();
-            }
+        if (localUri != null) {
+            new GenerateThumbnailTask(getContext(), localUri, previewFile, new ThumbnailListener() {
+                @Override
+                public void onThumbnailGenerated(File generatedFile) {
+                    // still showing the same image
+                    if (mComponent != null && previewFile.equals(mComponent.getPreviewFile()))
+                        loadThumbnail(generatedFile, width, true);
+                }
+            }).execute();
         }
-        return null;
     }
 
     @Override
@@ -180,6 +228,8 @@ public class ImageContentView extends FrameLayout
     }
 
     private void clear() {
+        cancelLoad();
+        releaseThumbnail();
         mComponent = null;
         mContent.setImageBitmap(null);
     }
@@ -189,6 +239,62 @@ public class ImageContentView extends FrameLayout
             parent, false);
     }
 
+    /**
+     * Decodes a thumbnail in the background and puts it in the cache.
+     * A cancelled task still caches its result, but doesn't show it.
+     */
+    final static class LoadThumbnailTask extends AsyncTask<Void, Void, Bitmap> {
+        private final WeakReference<ImageContentView> mView;
+        private final File mPreviewFile;
+        private final int mWidth;
+        /** True if the thumbnail was just generated (i.e. don't try again). */
+        private final boolean mGenerated;
+        private IOException mError;
+
+        LoadThumbnailTask(ImageContentView view, File previewFile, int width, boolean generated) {
+            mView = new WeakReference<>(view);
+            mPreviewFile = previewFile;
+            mWidth = width;
+            mGenerated = generated;
+        }
+
+        @Override
+        protected Bitmap doInBackground(Void... params) {
+            if (isCancelled())
+                return null;
+
+            try {
+                return ThumbnailCache.getInstance().decode(mPreviewFile, mWidth);
+            }
+            catch (IOException e) {
+                mError = e;
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap bitmap) {
+            ImageContentView view = mView.get();
+            if (bitmap != null) {
+                ThumbnailCache.Entry thumbnail = ThumbnailCache.getInstance()
+                    .put(ThumbnailCache.key(mPreviewFile, mWidth), bitmap, view != null);
+                if (view != null)
+                    view.onThumbnailLoaded(this, thumbnail);
+            }
+            else if (mError != null && view != null) {
+                view.onThumbnailError(this, mPreviewFile, mWidth, mGenerated);
+            }
+        }
+
+        @Override
+        protected void onCancelled(Bitmap bitmap) {
+            if (bitmap != null) {
+                ThumbnailCache.getInstance()
+                    .put(ThumbnailCache.key(mPreviewFile, mWidth), bitmap, false);
+            }
+        }
+    }
+
     interface ThumbnailListener {
         void onThumbnailGenerated(File previewFile);
     }
@@ -22,6 +22,10 @@ import org.kontalk.data.SearchItem;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.graphics.Typeface;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
 import android.util.AttributeSet;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
@@ -58,7 +62,19 @@ public class SearchListItem extends RelativeLayout {
     public final void bind(Context context, final SearchItem found) {
         mFound = found;
         mText1.setText(found.getUserDisplayName());
-        mText2.setText(found.getText());
+
+        int[] highlights = found.getHighlights();
+        if (highlights.length > 0) {
+            SpannableString text = new SpannableString(found.getText());
+            for (int i = 0; i < highlights.length; i += 2) {
+                text.setSpan(new StyleSpan(Typeface.BOLD), highlights[i], highlights[i + 1],
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+            mText2.setText(text);
+        }
+        else {
+            mText2.setText(found.getText());
+        }
     }
 
     public final void unbind() {
@@ -0,0 +1,210 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui.view;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import androidx.collection.LruCache;
+import androidx.core.graphics.BitmapCompat;
+
+import org.kontalk.util.DataUtils;
+
+
+/**
+ * Memory cache for media thumbnails shown in the message list.
+ * Bitmaps are keyed by preview file and target width. Entries are reference
+ * counted by the views showing them: when an entry is evicted and no view is
+ * using it anymore, its bitmap is kept for being reused by the next decode.
+ * Cache access is meant for the main thread only; {@link #decode} can be
+ * called from any thread.
+ * @author Daniele Ricci
+ */
+final class ThumbnailCache {
+
+    /** Max number of bitmaps kept for reuse. */
+    private static final int MAX_REUSABLE = 4;
+
+    static final class Entry {
+        final Bitmap bitmap;
+        int refs;
+        boolean removed;
+
+        Entry(Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+    }
+
+    private static ThumbnailCache sInstance;
+
+    private final LruCache<String, Entry> mCache;
+    private final LinkedList<SoftReference<Bitmap>> mReusable = new LinkedList<>();
+
+    private ThumbnailCache(int maxSize) {
+        mCache = new LruCache<String, Entry>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Entry value) {
+                return BitmapCompat.getAllocationByteCount(value.bitmap);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Entry oldValue, Entry newValue) {
+                oldValue.removed = true;
+                if (oldValue.refs == 0)
+                    addReusable(oldValue.bitmap);
+            }
+        };
+    }
+
+    static ThumbnailCache getInstance() {
+        if (sInstance == null) {
+            // an eighth of the available memory
+            sInstance = new ThumbnailCache((int) Math.min(Integer.MAX_VALUE,
+                Runtime.getRuntime().maxMemory() / 8));
+        }
+        return sInstance;
+    }
+
+    static String key(File file, int width) {
+        return file.getPath() + '#' + width;
+    }
+
+    /** Returns the cached entry for the given key and retains it, or null if not found. */
+    Entry acquire(String key) {
+        Entry entry = mCache.get(key);
+        if (entry != null)
+            entry.refs++;
+        return entry;
+    }
+
+    /** Caches a bitmap, optionally retaining it. */
+    Entry put(String key, Bitmap bitmap, boolean acquire) {
+        Entry entry = new Entry(bitmap);
+        // retain before putting, the entry could be evicted right away
+        if (acquire)
+            entry.refs++;
+        mCache.put(key, entry);
+        return entry;
+    }
+
+    /** Releases an entry retained by {@link #acquire} or {@link #put}. */
+    void release(Entry entry) {
+        if (--entry.refs == 0 && entry.removed)
+            addReusable(entry.bitmap);
+    }
+
+    private void addReusable(Bitmap bitmap) {
+        if (!bitmap.isMutable() || bitmap.isRecycled())
+            return;
+
+        synchronized (mReusable) {
+            mReusable.addFirst(new SoftReference<>(bitmap));
+            if (mReusable.size() > MAX_REUSABLE)
+                mReusable.removeLast();
+        }
+    }
+
+    /** Takes a reusable bitmap suitable for decoding an image of the given size. */
+    private Bitmap takeReusable(BitmapFactory.Options options) {
+        synchronized (mReusable) {
+            Iterator<SoftReference<Bitmap>> it = mReusable.iterator();
+            while (it.hasNext()) {
+                Bitmap candidate = it.next().get();
+                if (candidate == null || candidate.isRecycled()) {
+                    it.remove();
+                }
+                else if (canReuse(candidate, options)) {
+                    it.remove();
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean canReuse(Bitmap candidate, BitmapFactory.Options options) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+            int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+            // we always decode in RGB_565
+            return candidate.getAllocationByteCount() >= width * height * 2;
+        }
+        // older versions require the exact same size and no scaling
+        return candidate.getWidth() == options.outWidth &&
+            candidate.getHeight() == options.outHeight &&
+            options.inSampleSize == 1;
+    }
+
+    /** Largest power of two that keeps the image at least as wide as requested. */
+    static int sampleSize(int width, int reqWidth) {
+        int sampleSize = 1;
+        if (reqWidth > 0) {
+            while (width / (sampleSize * 2) >= reqWidth)
+                sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Decodes an image file, downsampling it to the given width.
+     * @return the decoded bitmap, or null if the file could not be decoded
+     * @throws IOException if the file could not be read
+     */
+    Bitmap decode(File file, int width) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeFile(file, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(options.outWidth, width);
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inMutable = true;
+        options.inBitmap = takeReusable(options);
+
+        try {
+            return decodeFile(file, options);
+        }
+        catch (IllegalArgumentException e) {
+            // bitmap could not be reused after all
+            options.inBitmap = null;
+            return decodeFile(file, options);
+        }
+    }
+
+    private static Bitmap decodeFile(File file, BitmapFactory.Options options) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        }
+        finally {
+            DataUtils.close(in);
+        }
+    }
+
+}
@@ -79,7 +79,23 @@ public class HTPPFileUploadConnection implements UploadConnection {
         InputStream inMessage = null;
         try {
             inMessage = mContext.getContentResolver().openInputStream(uri);
+            return upload(inMessage, length, mime, listener);
+        }
+        finally {
+            if (inMessage != null) {
+                try {
+                    inMessage.close();
+                }
+                catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+    }
 
+    @Override
+    public String upload(InputStream inMessage, long length, String mime, ProgressListener listener) throws IOException {
+        try {
             // http request!
             boolean acceptAnyCertificate = Preferences.getAcceptAnyCertificate(mContext);
             currentRequest = prepareMessage(length, mime, acceptAnyCertificate);
@@ -100,14 +116,6 @@ public class HTPPFileUploadConnection implements UploadConnection {
         finally {
             currentRequest.disconnect();
             currentRequest = null;
-            if (inMessage != null) {
-                try {
-                    inMessage.close();
-                }
-                catch (Exception e) {
-                    // ignore
-                }
-            }
         }
     }
 
@@ -19,6 +19,7 @@
 package org.kontalk.upload;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import android.net.Uri;
 
@@ -36,4 +37,8 @@ public interface UploadConnection {
     String upload(Uri uri, long length, String mime, ProgressListener listener)
         throws IOException;
 
+    /** Uploads length bytes from the given stream. The stream is not closed. */
+    String upload(InputStream in, long length, String mime, ProgressListener listener)
+        throws IOException;
+
 }
@@ -0,0 +1,253 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Writes log lines to a {@link RotatingFileWriter} from a background thread.
+ * Callers just put preformatted lines into a bounded lock-free ring buffer;
+ * the writer thread drains it and flushes once per batch.
+ * When the buffer is full, new lines are dropped and the number of dropped
+ * lines is written to the log as soon as there is room again.
+ * {@link #flush()} waits for the queued lines to reach the file, e.g. before
+ * crashing or exporting the log.
+ * @author Daniele Ricci
+ */
+public class AsyncLogWriter implements Closeable, Flushable {
+
+    /** Ring buffer capacity (must be a power of two). */
+    private static final int CAPACITY = 8192;
+    /** Max time a line can wait in the buffer. */
+    private static final long FLUSH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(500);
+    /** Max time {@link #flush()} will wait for the writer. */
+    private static final long FLUSH_TIMEOUT = TimeUnit.SECONDS.toMillis(2);
+    /** How often {@link #flush()} wakes up the writer while waiting. */
+    private static final long FLUSH_POLL = 10;
+
+    private final RotatingFileWriter mWriter;
+    private final AtomicReferenceArray<String> mSlots;
+    private final int mMask;
+    /** Wake up the writer when this many lines are waiting. */
+    private final int mBatchSize;
+
+    /** Next slot to be claimed by producers. */
+    private final AtomicLong mTail = new AtomicLong();
+    /** Next slot to be consumed by the writer. */
+    private volatile long mHead;
+    private final AtomicLong mDropped = new AtomicLong();
+    /** Dropped lines already reported in the log (writer thread only). */
+    private long mReportedDropped;
+    /** Lines before this slot have been written and flushed. */
+    private long mFlushed;
+    private final Object mFlushLock = new Object();
+
+    private final Thread mThread;
+    private volatile boolean mRunning;
+    /** Set by {@link #close()} and {@link #abort()}. */
+    private volatile boolean mClosed;
+    /** Set on I/O errors. */
+    private volatile boolean mFailed;
+
+    public AsyncLogWriter(File logFile) throws IOException {
+        this(new RotatingFileWriter(logFile), CAPACITY);
+        start();
+    }
+
+    AsyncLogWriter(RotatingFileWriter writer, int capacity) {
+        if (Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity must be a power of two");
+
+        mWriter = writer;
+        mSlots = new AtomicReferenceArray<>(capacity);
+        mMask = capacity - 1;
+        mBatchSize = Math.max(1, capacity / 4);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "AsyncLogWriter");
+        mThread.setDaemon(true);
+    }
+
+    void start() {
+        mRunning = true;
+        mThread.start();
+    }
+
+    /**
+     * Queues a line for writing. Never blocks.
+     * @return false if the writer is not usable anymore (closed or I/O error)
+     */
+    public boolean println(String line) {
+        if (mClosed || mFailed)
+            return false;
+
+        long tail;
+        do {
+            tail = mTail.get();
+            if (tail - mHead >= mSlots.length()) {
+                // buffer full: drop the line
+                mDropped.incrementAndGet();
+                return true;
+            }
+        }
+        while (!mTail.compareAndSet(tail, tail + 1));
+
+        mSlots.lazySet((int) tail & mMask, line);
+
+        if (tail - mHead == mBatchSize)
+            LockSupport.unpark(mThread);
+        return true;
+    }
+
+    /** Total number of lines dropped because the buffer was full. */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    private void writeLoop() {
+        try {
+            while (mRunning) {
+                // sleep only when there is nothing to write
+                if (!drain())
+                    LockSupport.parkNanos(this, FLUSH_INTERVAL);
+            }
+            // last lines before closing
+            drain();
+        }
+        catch (IOException e) {
+            mFailed = true;
+            DataUtils.close(mWriter);
+        }
+        finally {
+            synchronized (mFlushLock) {
+                mFlushLock.notifyAll();
+            }
+        }
+    }
+
+    /** Writes all published lines, then flushes. Returns true if anything was written. */
+    private boolean drain() throws IOException {
+        boolean written = false;
+        long head = mHead;
+        while (true) {
+            int index = (int) head & mMask;
+            String line = mSlots.get(index);
+            if (line == null) {
+                // empty, or claimed but not yet published
+                break;
+            }
+            mSlots.lazySet(index, null);
+            mHead = ++head;
+            mWriter.println(line);
+            written = true;
+        }
+
+        long dropped = mDropped.get();
+        if (dropped > mReportedDropped) {
+            mWriter.println("*** " + (dropped - mReportedDropped) + " log lines dropped ***");
+            mReportedDropped = dropped;
+            written = true;
+        }
+
+        if (written) {
+            mWriter.flush();
+            synchronized (mFlushLock) {
+                mFlushed = head;
+                mFlushLock.notifyAll();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Waits until all the lines queued so far are written to the file.
+     * Gives up after a while so it can be safely called while crashing.
+     */
+    @Override
+    public void flush() throws IOException {
+        long target = mTail.get();
+        long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT;
+        boolean interrupted = false;
+        synchronized (mFlushLock) {
+            while (mFlushed < target && !mFailed && mThread.isAlive()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    break;
+
+                // don't wait for the writer to wake up by itself
+                LockSupport.unpark(mThread);
+                try {
+                    mFlushLock.wait(Math.min(remaining, FLUSH_POLL));
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (mFailed)
+            throw new IOException("log writer failed");
+    }
+
+    private void stop() {
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        boolean interrupted = false;
+        while (mThread.isAlive()) {
+            try {
+                mThread.join();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /** Writes all queued lines and closes the file. */
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        stop();
+        if (!mFailed)
+            mWriter.close();
+    }
+
+    /** Stops writing and deletes the file. */
+    public void abort() throws IOException {
+        mClosed = true;
+        stop();
+        if (!mFailed)
+            mWriter.abort();
+    }
+
+}
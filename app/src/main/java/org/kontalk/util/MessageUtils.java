@@ -60,6 +60,7 @@ import org.kontalk.Kontalk;
 import org.kontalk.R;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.EncryptedFile;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.data.Contact;
 import org.kontalk.message.AttachmentComponent;
@@ -574,7 +575,27 @@ public final class MessageUtils {
         return StringUtils.randomString(30);
     }
 
-    public static File encryptFile(Context context, InputStream in, String[] users)
+    /**
+     * Prepares a media file to be encrypted while uploading.
+     * @param in the media data, read once to sign it
+     * @param mime MIME type of the media, used to choose compression
+     * @return the prepared file, or null if the media must be compressed
+     * (use {@link #encryptFile(Context, InputStream, String[], String)} then)
+     */
+    public static EncryptedFile prepareEncryptFile(Context context, InputStream in, String[] users, String mime)
+            throws GeneralSecurityException, IOException, PGPException {
+        PersonalKey key = Kontalk.get().getPersonalKey();
+        EndpointServer server = Kontalk.get().getEndpointServer();
+        Coder coder = Keyring.getEncryptCoder(context, server, key, users);
+        return coder.prepareEncryptFile(in, mime);
+    }
+
+    /**
+     * Encrypts a media file to a temporary file in the cache directory,
+     * which will be deleted after uploading.
+     * @param mime MIME type of the media, used to choose compression
+     */
+    public static File encryptFile(Context context, InputStream in, String[] users, String mime)
             throws GeneralSecurityException, IOException, PGPException {
         PersonalKey key = Kontalk.get().getPersonalKey();
         EndpointServer server = Kontalk.get().getEndpointServer();
@@ -582,9 +603,17 @@ public final class MessageUtils {
         // create a temporary file to store encrypted data
         File temp = File.createTempFile("media", null, context.getCacheDir());
         FileOutputStream out = new FileOutputStream(temp);
-        coder.encryptFile(in, out);
-        // close encrypted file
-        out.close();
+        boolean success = false;
+        try {
+            coder.encryptFile(in, out, mime);
+            success = true;
+        }
+        finally {
+            // close encrypted file
+            out.close();
+            if (!success)
+                temp.delete();
+        }
         return temp;
     }
 
@@ -19,6 +19,7 @@
 package org.kontalk.util;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -27,6 +28,7 @@ import java.net.HttpURLConnection;
 
 import androidx.annotation.NonNull;
 
+import org.kontalk.service.DownloadDecryptor;
 import org.kontalk.service.DownloadListener;
 
 
@@ -37,15 +39,26 @@ public class ProgressOutputStreamEntity {
     private final String mUrl;
     private final File mFile;
     private final DownloadListener mListener;
+    private final DownloadDecryptor mDecryptor;
     private final long mPublishDelay;
 
     public ProgressOutputStreamEntity(HttpURLConnection parent,
             String url, File file, final DownloadListener listener,
             final long publishDelay) {
+        this(parent, url, file, listener, null, publishDelay);
+    }
+
+    /**
+     * @param decryptor if not null, data will be decrypted while being read
+     */
+    public ProgressOutputStreamEntity(HttpURLConnection parent,
+            String url, File file, final DownloadListener listener,
+            DownloadDecryptor decryptor, final long publishDelay) {
         mParent = parent;
         mUrl = url;
         mFile = file;
         mListener = listener;
+        mDecryptor = decryptor;
         mPublishDelay = publishDelay;
     }
 
@@ -69,13 +82,77 @@ public class ProgressOutputStreamEntity {
         }
     }
 
+    private void _decryptTo(OutputStream outstream) throws IOException {
+        // progress is measured on downloaded (i.e. encrypted) data
+        InputStream instream = new CountingInputStream(mParent.getInputStream(),
+            mUrl, mFile, mListener, mParent.getContentLength(), mPublishDelay);
+        try {
+            mDecryptor.decrypt(instream, outstream);
+        }
+        finally {
+            try {
+                instream.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
     public void writeTo(OutputStream outstream) throws IOException {
         mListener.start(mUrl, mFile, mParent.getContentLength());
-        _writeTo(new CountingOutputStream(outstream, mUrl, mFile, mListener, mParent.getContentLength(), mPublishDelay));
+        if (mDecryptor != null) {
+            _decryptTo(outstream);
+        }
+        else {
+            _writeTo(new CountingOutputStream(outstream, mUrl, mFile, mListener, mParent.getContentLength(), mPublishDelay));
+        }
         String mime = mParent.getContentType();
         mListener.completed(mUrl, mime, mFile);
     }
 
+    private static final class CountingInputStream extends FilterInputStream {
+        private final DownloadListener listener;
+        private final String url;
+        private final File file;
+        private final StepTimer publishTimer;
+        private final long size;
+        private long transferred;
+
+        CountingInputStream(final InputStream in,
+                final String url, final File file, final DownloadListener listener,
+                long size, long publishDelay) {
+            super(in);
+            this.url = url;
+            this.file = file;
+            this.listener = listener;
+            this.size = size;
+            this.publishTimer = new StepTimer(publishDelay);
+            this.transferred = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                publishProgress(1);
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            int l = in.read(b, off, len);
+            if (l > 0)
+                publishProgress(l);
+            return l;
+        }
+
+        private void publishProgress(long add) {
+            this.transferred += add;
+            if (this.transferred >= this.size || publishTimer.isStep(true))
+                this.listener.progress(url, file, this.transferred);
+        }
+    }
+
     private static final class CountingOutputStream extends FilterOutputStream {
         private final DownloadListener listener;
         private final String url;
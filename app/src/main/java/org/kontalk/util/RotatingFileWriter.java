@@ -18,18 +18,36 @@
 
 package org.kontalk.util;
 
-import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.Flushable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 
 /**
  * A simplified FileWriter capable of rotating a file after a given
  * amount of bytes have been written to the underlying file.
+ * The current file is rolled over into numbered segments
+ * (e.g. <code>file.log.1</code>, <code>file.log.2</code>, ...): rotating is
+ * just a rename, and the oldest segment is deleted when there are too many.
+ * Closed segments can optionally be compressed in the background.
+ * Use {@link #openLog(File)} to read all segments in order.
  * @author Daniele Ricci
  */
 public class RotatingFileWriter implements Flushable, Closeable {
@@ -37,28 +55,40 @@ public class RotatingFileWriter implements Flushable, Closeable {
     private static final String LINE_SEPARATOR = System.getProperty("line.separator");
 
     /** Rotate at this amount of bytes. */
-    private static final long ROTATE_AT = 1048576;
-    /** How many old lines to delete when rotating. */
-    private static final int DELETE_OLD = 100;
+    private static final long SEGMENT_SIZE = 262144;
+    /** How many closed segments to keep. */
+    private static final int MAX_SEGMENTS = 4;
+
+    private static final String GZIP_EXTENSION = ".gz";
+
+    /** Compresses closed segments. */
+    private static ExecutorService sCompressor;
 
     private final long mRotateAt;
-    private final long mDeleteOld;
+    private final int mMaxSegments;
+    private final boolean mCompress;
     private final File mLogFile;
     private FileWriter mWriter;
     /** Caches the amount of bytes written in the current file. */
     private long mSize;
+    /** Sequence number of the last closed segment. */
+    private long mSequence;
 
     public RotatingFileWriter(File logFile) throws IOException {
-        this(logFile, ROTATE_AT, DELETE_OLD);
+        this(logFile, SEGMENT_SIZE, MAX_SEGMENTS, true);
     }
 
-    public RotatingFileWriter(File logFile, long rotateAt, int deleteOld) throws IOException {
+    public RotatingFileWriter(File logFile, long rotateAt, int maxSegments, boolean compress) throws IOException {
         super();
         mLogFile = logFile;
         mWriter = new FileWriter(logFile, true);
         mSize = mLogFile.length();
         mRotateAt = rotateAt;
-        mDeleteOld = deleteOld;
+        mMaxSegments = maxSegments;
+        mCompress = compress;
+
+        List<Long> segments = listSegments(logFile);
+        mSequence = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
     }
 
     @Override
@@ -72,10 +102,14 @@ public class RotatingFileWriter implements Flushable, Closeable {
         mWriter = null;
     }
 
+    /** Closes the writer and deletes the file and all of its segments. */
     @SuppressWarnings("ResultOfMethodCallIgnored")
     public synchronized void abort() throws IOException {
         close();
         mLogFile.delete();
+        for (long sequence : listSegments(mLogFile)) {
+            deleteSegment(mLogFile, sequence);
+        }
     }
 
     private void write(String str) throws IOException {
@@ -105,46 +139,145 @@ public class RotatingFileWriter implements Flushable, Closeable {
             mWriter.close();
             if (!rotate())
                 throw new IOException("Unable to rotate log file");
-            mWriter = new FileWriter(mLogFile, true);
+            mWriter = new FileWriter(mLogFile, false);
+            mSize = 0;
         }
     }
 
-    private boolean rotate() throws IOException {
-        // rename the current file
-        File oldFile = new File(mLogFile.toString() + ".old");
-        File newFile = new File(mLogFile.toString());
-        if (newFile.renameTo(oldFile)) {
-            BufferedReader oldLog = null;
-            FileWriter rotatedLog = null;
-            try {
-                // open the old file and start writing lines
-                oldLog = new BufferedReader(new FileReader(oldFile));
-                rotatedLog = new FileWriter(mLogFile.toString());
-                long lineCount = 0;
-                String line;
-                while ((line = oldLog.readLine()) != null) {
-                    lineCount++;
-                    // skip up to DELETE_OLD lines, then start writing lines
-                    if (lineCount > mDeleteOld) {
-                        rotatedLog.write(line);
-                        rotatedLog.write(LINE_SEPARATOR);
+    private boolean rotate() {
+        final File segment = getSegmentFile(mLogFile, mSequence + 1, false);
+        if (!mLogFile.renameTo(segment)) {
+            // we couldn't rename the old log file
+            // we just delete it to make space for a new one
+            return mLogFile.delete();
+        }
+        mSequence++;
+
+        // delete the oldest segment (there might be more after a configuration change)
+        for (long sequence : listSegments(mLogFile)) {
+            if (sequence > mSequence - mMaxSegments)
+                break;
+            deleteSegment(mLogFile, sequence);
+        }
+
+        if (mCompress) {
+            getCompressor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    compress(segment);
+                }
+            });
+        }
+        return true;
+    }
+
+    private static synchronized ExecutorService getCompressor() {
+        if (sCompressor == null) {
+            sCompressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "RotatingFileWriter-gzip");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        }
+        return sCompressor;
+    }
+
+    /** Compresses a closed segment. The uncompressed segment is kept if anything goes wrong. */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private static void compress(File segment) {
+        File temp = new File(segment.getPath() + GZIP_EXTENSION + ".tmp");
+        File compressed = new File(segment.getPath() + GZIP_EXTENSION);
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new FileInputStream(segment);
+            out = new GZIPOutputStream(new FileOutputStream(temp));
+            DataUtils.copy(in, out);
+            out.close();
+            out = null;
+            // readers look for the uncompressed segment first
+            if (temp.renameTo(compressed))
+                segment.delete();
+            else
+                temp.delete();
+        }
+        catch (IOException e) {
+            // segment was probably deleted in the meantime
+            temp.delete();
+        }
+        finally {
+            DataUtils.close(in);
+            DataUtils.close(out);
+        }
+    }
+
+    private static File getSegmentFile(File logFile, long sequence, boolean compressed) {
+        return new File(logFile.getPath() + "." + sequence + (compressed ? GZIP_EXTENSION : ""));
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private static void deleteSegment(File logFile, long sequence) {
+        getSegmentFile(logFile, sequence, false).delete();
+        getSegmentFile(logFile, sequence, true).delete();
+    }
+
+    /** Returns the sequence numbers of the segments of the given file, oldest first. */
+    static List<Long> listSegments(File logFile) {
+        List<Long> segments = new ArrayList<>();
+        File dir = logFile.getAbsoluteFile().getParentFile();
+        String[] names = dir != null ? dir.list() : null;
+        if (names != null) {
+            Pattern pattern = Pattern.compile(Pattern.quote(logFile.getName()) +
+                "\\.(\\d+)(" + Pattern.quote(GZIP_EXTENSION) + ")?");
+            for (String name : names) {
+                Matcher m = pattern.matcher(name);
+                if (m.matches()) {
+                    try {
+                        Long sequence = Long.parseLong(m.group(1));
+                        if (!segments.contains(sequence))
+                            segments.add(sequence);
+                    }
+                    catch (NumberFormatException ignored) {
                     }
                 }
             }
-            finally {
-                DataUtils.close(oldLog);
-                DataUtils.close(rotatedLog);
-                oldFile.delete();
-            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
 
-            mSize = mLogFile.length();
-            return true;
+    /**
+     * Opens a stream reading the whole log in order: all segments from the
+     * oldest, then the current file.
+     */
+    public static InputStream openLog(File logFile) {
+        List<InputStream> streams = new ArrayList<>();
+        for (long sequence : listSegments(logFile)) {
+            try {
+                streams.add(new FileInputStream(getSegmentFile(logFile, sequence, false)));
+            }
+            catch (IOException e) {
+                try {
+                    // segment has been compressed
+                    streams.add(new GZIPInputStream(new FileInputStream(
+                        getSegmentFile(logFile, sequence, true))));
+                }
+                catch (IOException e2) {
+                    // segment deleted in the meantime, skip it
+                }
+            }
         }
-        else {
-            // we couldn't rename the old log file
-            // we just delete it to make space for a new one
-            return mLogFile.delete();
+        try {
+            streams.add(new FileInputStream(logFile));
+        }
+        catch (IOException e) {
+            // no current file
         }
+        return new SequenceInputStream(Collections.enumeration(streams));
     }
 
 }
@@ -0,0 +1,75 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import android.os.SystemClock;
+
+import org.kontalk.Log;
+
+
+/**
+ * Measures the time from process start to the first authenticated
+ * connection, along with the time spent unlocking the personal key.
+ * Uses {@link SystemClock#elapsedRealtime()}.
+ * @author Daniele Ricci
+ */
+public final class StartupMetrics {
+    private static final String TAG = StartupMetrics.class.getSimpleName();
+
+    private static long sStartTime;
+    private static long sKeyLoadTime = -1;
+    private static boolean sKeyCached;
+    private static boolean sReported;
+
+    private StartupMetrics() {
+    }
+
+    /** Marks the process start. To be called from {@code Application.onCreate()}. */
+    public static synchronized void start() {
+        sStartTime = SystemClock.elapsedRealtime();
+        sKeyLoadTime = -1;
+        sKeyCached = false;
+        sReported = false;
+    }
+
+    /** Records the time spent loading the personal key. Only the first load is recorded. */
+    public static synchronized void keyLoaded(long elapsed, boolean cached) {
+        if (sKeyLoadTime < 0) {
+            sKeyLoadTime = elapsed;
+            sKeyCached = cached;
+        }
+    }
+
+    /** Logs the startup time on the first authentication after process start. */
+    public static synchronized void authenticated() {
+        if (sReported || sStartTime == 0)
+            return;
+        sReported = true;
+
+        long elapsed = SystemClock.elapsedRealtime() - sStartTime;
+        if (sKeyLoadTime >= 0) {
+            Log.i(TAG, "startup: authenticated in " + elapsed + " ms (personal key loaded in " +
+                sKeyLoadTime + " ms, cached: " + sKeyCached + ")");
+        }
+        else {
+            Log.i(TAG, "startup: authenticated in " + elapsed + " ms");
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ServerRankingTest {
+
+    private EndpointServer mServer1;
+    private EndpointServer mServer2;
+    private EndpointServer mServer3;
+    private ServerRanking mRanking;
+
+    @Before
+    public void setUp() {
+        mServer1 = new EndpointServer("beta.kontalk.net|s1.kontalk.net");
+        mServer2 = new EndpointServer("beta.kontalk.net|s2.kontalk.net");
+        mServer3 = new EndpointServer("beta.kontalk.net|s3.kontalk.net");
+        mRanking = new ServerRanking();
+    }
+
+    @Test
+    public void testUnknownKeepsOrder() {
+        List<EndpointServer> ranked = mRanking.rank(Arrays.asList(mServer1, mServer2, mServer3), 3, 0);
+        assertEquals(Arrays.asList(mServer1, mServer2, mServer3), ranked);
+    }
+
+    @Test
+    public void testLatency() {
+        mRanking.success(mServer1, 900);
+        mRanking.success(mServer3, 100);
+        List<EndpointServer> ranked = mRanking.rank(Arrays.asList(mServer1, mServer2, mServer3), 2, 0);
+        assertEquals(Arrays.asList(mServer3, mServer1), ranked);
+    }
+
+    @Test
+    public void testFailures() {
+        long now = 1000000;
+        mRanking.success(mServer1, 100);
+        mRanking.failure(mServer1, now);
+        List<EndpointServer> ranked = mRanking.rank(Arrays.asList(mServer1, mServer2), 2, now);
+        assertEquals(Arrays.asList(mServer2, mServer1), ranked);
+
+        // failure forgotten after a while
+        ranked = mRanking.rank(Arrays.asList(mServer1, mServer2), 2,
+            now + ServerRanking.FAILURE_EXPIRATION);
+        assertEquals(Arrays.asList(mServer1, mServer2), ranked);
+
+        // success resets failures
+        mRanking.failure(mServer1, now);
+        mRanking.success(mServer1, 100);
+        assertEquals(100, mRanking.score(mServer1, now));
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.bouncycastle.openpgp.PGPCompressedData;
+import org.bouncycastle.openpgp.PGPCompressedDataGenerator;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class CompressionPolicyTest {
+
+    private static final int PAYLOAD_SIZE = 64 * 1024;
+
+    @Test
+    public void testForMime() {
+        assertEquals(PGPCompressedData.ZIP, CompressionPolicy.forMime("text/plain"));
+        assertEquals(PGPCompressedData.ZIP, CompressionPolicy.forMime("application/xmpp+xml"));
+        assertEquals(PGPCompressedData.UNCOMPRESSED, CompressionPolicy.forMime("image/jpeg"));
+        assertEquals(PGPCompressedData.UNCOMPRESSED, CompressionPolicy.forMime("video/mp4"));
+        assertEquals(PGPCompressedData.UNCOMPRESSED, CompressionPolicy.forMime("audio/ogg"));
+        assertEquals(PGPCompressedData.UNCOMPRESSED, CompressionPolicy.forMime("application/zip"));
+        assertEquals(-1, CompressionPolicy.forMime("application/octet-stream"));
+        assertEquals(-1, CompressionPolicy.forMime(null));
+    }
+
+    @Test
+    public void testEntropyProbe() {
+        byte[] text = textPayload(CompressionPolicy.PROBE_SIZE);
+        byte[] random = randomPayload(CompressionPolicy.PROBE_SIZE);
+
+        assertTrue(CompressionPolicy.entropy(text, 0, text.length) < CompressionPolicy.ENTROPY_THRESHOLD);
+        assertTrue(CompressionPolicy.entropy(random, 0, random.length) > CompressionPolicy.ENTROPY_THRESHOLD);
+
+        assertEquals(PGPCompressedData.ZIP, CompressionPolicy.select(null, text, text.length));
+        assertEquals(PGPCompressedData.UNCOMPRESSED, CompressionPolicy.select(null, random, random.length));
+        // MIME type wins over the probe
+        assertEquals(PGPCompressedData.ZIP, CompressionPolicy.select("text/plain", random, random.length));
+        // too little data to probe
+        assertEquals(PGPCompressedData.ZIP, CompressionPolicy.select(null, random, 16));
+    }
+
+    @Test
+    public void testSelectedIsSmaller() throws Exception {
+        byte[] text = textPayload(PAYLOAD_SIZE);
+        assertEquals(PGPCompressedData.ZIP, CompressionPolicy.select(null, text, text.length));
+        assertTrue(compress(PGPCompressedData.ZIP, text) < compress(PGPCompressedData.UNCOMPRESSED, text));
+
+        // stands for JPEG, MP4, Opus and ZIP data
+        byte[] media = randomPayload(PAYLOAD_SIZE);
+        assertEquals(PGPCompressedData.UNCOMPRESSED, CompressionPolicy.select(null, media, media.length));
+        assertTrue(compress(PGPCompressedData.UNCOMPRESSED, media) <= compress(PGPCompressedData.ZIP, media));
+    }
+
+    private static int compress(int algorithm, byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 1024);
+        PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(algorithm);
+        OutputStream compressedOut = compGen.open(out, new byte[1 << 16]);
+        compressedOut.write(data);
+        compGen.close();
+        return out.size();
+    }
+
+    private static byte[] textPayload(int size) {
+        byte[] words = ("Lorem ipsum dolor sit amet, consectetur adipiscing elit, " +
+            "sed do eiusmod tempor incididunt ut labore et dolore magna aliqua. ").getBytes();
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = words[i % words.length];
+        return data;
+    }
+
+    private static byte[] randomPayload(int size) {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.kontalk.client.EndpointServer;
+import org.kontalk.util.XMPPUtils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class PGPCoderTest {
+
+    private static final String NETWORK = "kontalk.net";
+    private static final String PASSPHRASE = "test";
+
+    private static final int FILE_SIZE = 256 * 1024;
+
+    private static EndpointServer sServer;
+    private static PersonalKey sKey;
+    private static PGPPublicKeyRing sPublicKey;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        PGP.registerProvider();
+        sServer = new EndpointServer(NETWORK);
+
+        // the key needs a user ID for CPIM headers
+        PersonalKey key = PersonalKey.create(new Date());
+        PGP.PGPKeyPairRing ring = key.storeNetwork("test", NETWORK, "Test", PASSPHRASE);
+        sKey = PersonalKey.load(ring.secretKey, ring.publicKey, PASSPHRASE, null);
+        sPublicKey = ring.publicKey;
+    }
+
+    private static PGPCoder encryptCoder() {
+        return new PGPCoder(sServer, sKey, new PGPPublicKeyRing[] { sPublicKey });
+    }
+
+    private static PGPCoder decryptCoder() {
+        return new PGPCoder(sServer, sKey, sPublicKey);
+    }
+
+    @Test
+    public void testText() throws Exception {
+        byte[] encrypted = encryptCoder().encryptText("Hello world");
+        Coder.DecryptOutput out = decryptCoder().decryptText(encrypted, true);
+        assertEquals("Hello world", out.cleartext);
+        assertTrue(out.errors.isEmpty());
+    }
+
+    @Test
+    public void testStanza() throws Exception {
+        // buffers are reused by consecutive operations of the same coder
+        PGPCoder encrypt = encryptCoder();
+        PGPCoder decrypt = decryptCoder();
+        for (int i = 0; i < 3; i++) {
+            String stanza = "<message type='chat'><body>Hello " + i + "</body></message>";
+            Coder.DecryptOutput out = decrypt.decryptText(encrypt.encryptStanza(stanza), true);
+            assertEquals(XMPPUtils.XML_XMPP_TYPE, out.mime);
+            assertTrue(out.cleartext.contains(stanza));
+            assertTrue(out.errors.isEmpty());
+        }
+    }
+
+    @Test
+    public void testEncryptionContext() throws Exception {
+        PGPParsedKeyRing ring = new PGPParsedKeyRing(sPublicKey);
+        EncryptionContext context = new EncryptionContext(NETWORK, new PGPParsedKeyRing[] { ring, ring });
+        assertEquals(2, context.size());
+        assertEquals(ring.getUserId(NETWORK), context.getUserIds()[0]);
+
+        // the same context is reused for consecutive messages
+        for (int i = 0; i < 3; i++) {
+            byte[] encrypted = new PGPCoder(sServer, sKey, context).encryptText("Hello " + i);
+            assertEquals("Hello " + i, decryptCoder().decryptText(encrypted, true).cleartext);
+        }
+    }
+
+    @Test
+    public void testFile() throws Exception {
+        byte[] data = randomData(FILE_SIZE);
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        encryptCoder().encryptFile(new ByteArrayInputStream(data), encrypted);
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        List<DecryptException> errors = new ArrayList<>();
+        decryptCoder().decryptFile(new ByteArrayInputStream(encrypted.toByteArray()),
+            true, decrypted, errors);
+        assertArrayEquals(data, decrypted.toByteArray());
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void testFileWithMime() throws Exception {
+        // compression is chosen from the MIME type
+        byte[] data = randomData(FILE_SIZE);
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        encryptCoder().encryptFile(new ByteArrayInputStream(data), encrypted, "image/jpeg");
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        List<DecryptException> errors = new ArrayList<>();
+        decryptCoder().decryptFile(new ByteArrayInputStream(encrypted.toByteArray()),
+            true, decrypted, errors);
+        assertArrayEquals(data, decrypted.toByteArray());
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void testPreparedFile() throws Exception {
+        // length must be exact around the packet length encoding limits
+        for (int size : new int[] { 0, 191, 192, 8383, 8384, FILE_SIZE }) {
+            byte[] data = randomData(size);
+            EncryptedFile prepared = encryptCoder()
+                .prepareEncryptFile(new ByteArrayInputStream(data), "image/jpeg");
+
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            InputStream in = prepared.open(new ByteArrayInputStream(data));
+            byte[] buf = new byte[1000];
+            int len;
+            while ((len = in.read(buf)) > 0)
+                encrypted.write(buf, 0, len);
+            assertEquals(prepared.getLength(), encrypted.size());
+
+            ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+            List<DecryptException> errors = new ArrayList<>();
+            decryptCoder().decryptFile(new ByteArrayInputStream(encrypted.toByteArray()),
+                true, decrypted, errors);
+            assertArrayEquals(data, decrypted.toByteArray());
+            assertTrue(errors.isEmpty());
+        }
+    }
+
+    @Test
+    public void testPreparedFileCompressed() throws Exception {
+        // compressible data can't be prepared
+        byte[] data = new byte[FILE_SIZE];
+        assertNull(encryptCoder().prepareEncryptFile(new ByteArrayInputStream(data), "text/plain"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testPreparedFileChanged() throws Exception {
+        byte[] data = randomData(FILE_SIZE);
+        EncryptedFile prepared = encryptCoder()
+            .prepareEncryptFile(new ByteArrayInputStream(data), "image/jpeg");
+
+        InputStream in = prepared.open(new ByteArrayInputStream(data, 0, FILE_SIZE / 2));
+        byte[] buf = new byte[1000];
+        while (in.read(buf) > 0) {
+            // the stream must fail before the end
+        }
+    }
+
+    private static byte[] randomData(int size) {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.data;
+
+import org.junit.Test;
+
+import org.kontalk.provider.MyMessages.Messages.Fulltext;
+
+import static org.junit.Assert.*;
+
+
+public class SearchItemTest {
+
+    @Test
+    public void testMatchQuery() {
+        assertNull(SearchItem.toMatchQuery(null));
+        assertNull(SearchItem.toMatchQuery("   "));
+        assertEquals("\"hello\"*", SearchItem.toMatchQuery("hello"));
+        assertEquals("\"hello\"* \"wor\"*", SearchItem.toMatchQuery("  hello   wor "));
+        // search syntax is quoted
+        assertEquals("\"say\"* \"\"\"hi\"\"\"* \"OR\"*", SearchItem.toMatchQuery("say \"hi\" OR"));
+    }
+
+    @Test
+    public void testParseSnippet() {
+        StringBuilder text = new StringBuilder();
+        int[] highlights = SearchItem.parseSnippet("say " +
+            Fulltext.HIGHLIGHT_START + "hello" + Fulltext.HIGHLIGHT_END + " to the " +
+            Fulltext.HIGHLIGHT_START + "world" + Fulltext.HIGHLIGHT_END, text);
+        assertEquals("say hello to the world", text.toString());
+        assertArrayEquals(new int[] { 4, 9, 17, 22 }, highlights);
+
+        text = new StringBuilder();
+        assertEquals(0, SearchItem.parseSnippet("no match", text).length);
+        assertEquals("no match", text.toString());
+    }
+
+}
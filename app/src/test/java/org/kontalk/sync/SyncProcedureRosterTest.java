@@ -0,0 +1,180 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.sync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.greenrobot.eventbus.EventBus;
+import org.greenrobot.eventbus.Subscribe;
+import org.greenrobot.eventbus.ThreadMode;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.packet.StanzaError;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.jxmpp.jid.BareJid;
+import org.jxmpp.jid.Jid;
+import org.jxmpp.jid.impl.JidCreate;
+
+import org.kontalk.service.msgcenter.MessageCenterService;
+import org.kontalk.service.msgcenter.event.BlocklistEvent;
+import org.kontalk.service.msgcenter.event.ConnectedEvent;
+import org.kontalk.service.msgcenter.event.LastActivityEvent;
+import org.kontalk.service.msgcenter.event.LastActivityRequest;
+import org.kontalk.service.msgcenter.event.PresenceEvent;
+import org.kontalk.service.msgcenter.event.PresenceRequest;
+import org.kontalk.service.msgcenter.event.PublicKeyEvent;
+import org.kontalk.service.msgcenter.event.RosterMatchEvent;
+import org.kontalk.service.msgcenter.event.RosterMatchRequest;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Feeds a sync procedure with a roster split in several match requests and
+ * checks that every event ends up in the response item of its own contact.
+ */
+public class SyncProcedureRosterTest {
+
+    private static final int CONTACTS = 1200;
+    /** Contacts in the roster but not matched by the server. */
+    private static final int NOT_MATCHED = 100;
+    /** One contact every BLOCKED is in the blocklist. */
+    private static final int BLOCKED = 7;
+
+    private EventBus mBus = MessageCenterService.bus();
+    private RequestListener mListener;
+
+    @Before
+    public void setUp() {
+        mListener = new RequestListener();
+        mBus.register(mListener);
+    }
+
+    @After
+    public void tearDown() {
+        mBus.unregister(mListener);
+    }
+
+    @Test
+    public void testLargeRoster() {
+        List<String> jidList = new ArrayList<>(CONTACTS);
+        Jid[] jids = new Jid[CONTACTS];
+        for (int i = 0; i < CONTACTS; i++) {
+            jidList.add("user" + i + "@prime.kontalk.net");
+            jids[i] = JidCreate.bareFromOrThrowUnchecked(jidList.get(i));
+        }
+
+        SyncProcedure sync = new SyncProcedure(jidList, this);
+        sync.onConnected(new ConnectedEvent());
+        assertTrue(mListener.rosterMatchRequests.size() > 1);
+
+        // roster match replies, the last contacts are not matched
+        Set<String> notMatched = new HashSet<>(jidList.subList(CONTACTS - NOT_MATCHED, CONTACTS));
+        for (RosterMatchRequest request : mListener.rosterMatchRequests) {
+            List<Jid> part = new ArrayList<>(request.userIds.length);
+            for (String userId : request.userIds) {
+                if (!notMatched.contains(userId))
+                    part.add(JidCreate.bareFromOrThrowUnchecked(userId));
+            }
+            sync.onRosterMatch(new RosterMatchEvent(part.toArray(new Jid[0]), request.id));
+        }
+
+        List<Jid> blocked = new ArrayList<>();
+        for (int i = 0; i < CONTACTS; i++) {
+            sync.onPresence(new PresenceEvent(jids[i], Presence.Type.available, Presence.Mode.available,
+                0, "status" + i, null, jids[i].getLocalpartOrNull().toString(), true, true,
+                null, mListener.presenceId));
+            if (i < CONTACTS - NOT_MATCHED) {
+                sync.onPublicKey(new PublicKeyEvent(jids[i], publicKey(i),
+                    SyncProcedure.IQ_KEYS_PACKET_ID));
+            }
+            if (i % BLOCKED == 0)
+                blocked.add(jids[i]);
+        }
+        sync.onBlocklist(new BlocklistEvent(blocked.toArray(new Jid[0]),
+            SyncProcedure.IQ_BLOCKLIST_PACKET_ID));
+
+        // only the contacts not matched are verified through last activity
+        assertEquals(NOT_MATCHED, mListener.lastActivityIds.size());
+        for (Map.Entry<Jid, String> request : mListener.lastActivityIds.entrySet()) {
+            sync.onLastActivity(new LastActivityEvent(new XMPPException.XMPPErrorException(null,
+                StanzaError.getBuilder(StanzaError.Condition.item_not_found).build()),
+                request.getKey(), request.getValue()));
+        }
+
+        List<SyncProcedure.PresenceItem> response = sync.getResponse();
+        assertEquals(CONTACTS, response.size());
+
+        Map<BareJid, SyncProcedure.PresenceItem> items = new HashMap<>();
+        for (SyncProcedure.PresenceItem item : response)
+            assertNull("duplicate item " + item.from, items.put(item.from, item));
+
+        for (int i = 0; i < CONTACTS; i++) {
+            SyncProcedure.PresenceItem item = items.get(jids[i].asBareJid());
+            assertNotNull(item);
+            assertTrue(item.presence);
+            assertEquals("status" + i, item.status);
+            assertEquals(jids[i].getLocalpartOrNull().toString(), item.rosterName);
+            assertEquals(i % BLOCKED == 0, item.blocked);
+
+            boolean matched = i < CONTACTS - NOT_MATCHED;
+            assertEquals(matched, item.matched);
+            assertEquals(!matched, item.discarded);
+            if (matched)
+                assertTrue(Arrays.equals(publicKey(i), item.publicKey));
+            else
+                assertNull(item.publicKey);
+        }
+    }
+
+    private static byte[] publicKey(int index) {
+        return new byte[] { (byte) (index >> 8), (byte) index, 1, 2, 3 };
+    }
+
+    /** Collects the request ids generated by the sync procedure. */
+    public static class RequestListener {
+        final List<RosterMatchRequest> rosterMatchRequests = new ArrayList<>();
+        final Map<Jid, String> lastActivityIds = new HashMap<>();
+        String presenceId;
+
+        @Subscribe(threadMode = ThreadMode.POSTING)
+        public void onRosterMatchRequest(RosterMatchRequest request) {
+            rosterMatchRequests.add(request);
+        }
+
+        @Subscribe(threadMode = ThreadMode.POSTING)
+        public void onPresenceRequest(PresenceRequest request) {
+            presenceId = request.id;
+        }
+
+        @Subscribe(threadMode = ThreadMode.POSTING)
+        public void onLastActivityRequest(LastActivityRequest request) {
+            lastActivityIds.put(request.jid, request.id);
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.ui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class UnreadSummaryTest {
+
+    private static final String ALICE = "alice@kontalk.net";
+    private static final String BOB = "bob@kontalk.net";
+    private static final String GROUP = "group@kontalk.net";
+
+    private static UnreadSummary.UnreadMessage message(long id, long threadId, String peer, String groupJid) {
+        return new UnreadSummary.UnreadMessage(id, threadId, peer, "text/plain",
+            ("message " + id).getBytes(), null, null, false, false, groupJid, null, id * 1000);
+    }
+
+    private static List<Long> ids(List<UnreadSummary.UnreadMessage> messages) {
+        List<Long> ids = new ArrayList<>(messages.size());
+        for (UnreadSummary.UnreadMessage msg : messages)
+            ids.add(msg.id);
+        return ids;
+    }
+
+    @Test
+    public void testIncremental() {
+        UnreadSummary summary = new UnreadSummary();
+        assertFalse(summary.isLoaded());
+
+        summary.load(Arrays.asList(message(1, 1, ALICE, null), message(3, 2, BOB, null)));
+        assertTrue(summary.isLoaded());
+        long version = summary.getVersion();
+
+        // messages are returned in receive order across threads
+        summary.put(message(2, 1, ALICE, null));
+        assertEquals(Arrays.asList(1L, 2L, 3L), ids(summary.getMessages(null)));
+        assertNotEquals(version, summary.getVersion());
+
+        // changed messages replace the cached copy
+        version = summary.getVersion();
+        UnreadSummary.UnreadMessage decrypted = new UnreadSummary.UnreadMessage(2, 1, ALICE,
+            "text/plain", "decrypted".getBytes(), null, null, false, false, null, null, 2000);
+        summary.put(decrypted);
+        assertSame(decrypted, summary.get(2));
+        assertEquals(Arrays.asList(1L, 2L, 3L), ids(summary.getMessages(null)));
+        assertNotEquals(version, summary.getVersion());
+
+        assertTrue(summary.removeThread(1));
+        assertFalse(summary.removeThread(1));
+        assertEquals(Arrays.asList(3L), ids(summary.getMessages(null)));
+
+        summary.invalidate();
+        assertFalse(summary.isLoaded());
+        assertTrue(summary.getMessages(null).isEmpty());
+    }
+
+    @Test
+    public void testRetain() {
+        UnreadSummary summary = new UnreadSummary();
+        summary.load(Arrays.asList(
+            message(1, 1, ALICE, null),
+            message(2, 1, ALICE, null),
+            message(3, 2, BOB, null)));
+
+        // nothing was read or deleted
+        long version = summary.getVersion();
+        summary.retain(new HashSet<>(Arrays.asList(1L, 2L, 3L, 4L)));
+        assertEquals(version, summary.getVersion());
+
+        // a message and a whole thread were deleted
+        summary.retain(new HashSet<>(Arrays.asList(2L)));
+        assertEquals(Arrays.asList(2L), ids(summary.getMessages(null)));
+        assertNull(summary.get(3));
+        assertFalse(summary.removeThread(2));
+        assertNotEquals(version, summary.getVersion());
+    }
+
+    @Test
+    public void testPaused() {
+        UnreadSummary summary = new UnreadSummary();
+        summary.load(Arrays.asList(
+            message(1, 1, ALICE, null),
+            message(2, 2, BOB, null),
+            message(3, 3, ALICE, GROUP),
+            message(4, 3, BOB, GROUP)));
+
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), ids(summary.getMessages(null)));
+        assertEquals(Arrays.asList(2L, 4L), ids(summary.getMessages(ALICE.toUpperCase())));
+        assertEquals(Arrays.asList(1L, 2L), ids(summary.getMessages(GROUP)));
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2020 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class AsyncLogWriterTest {
+
+    private static final int THREADS = 4;
+    private static final int LINES = 5000;
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        File f = File.createTempFile("log", null);
+        final AsyncLogWriter w = new AsyncLogWriter(new RotatingFileWriter(f, Long.MAX_VALUE, 0, false), 1024);
+        w.start();
+
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < LINES; j++)
+                        assertTrue(w.println(thread + ":" + j));
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        w.close();
+        assertFalse(w.println("closed"));
+
+        List<String> lines = readLines(f);
+        int written = 0;
+        int[] last = new int[THREADS];
+        for (int i = 0; i < THREADS; i++)
+            last[i] = -1;
+        for (String line : lines) {
+            if (line.startsWith("***"))
+                continue;
+            String[] parts = line.split(":");
+            int thread = Integer.parseInt(parts[0]);
+            int seq = Integer.parseInt(parts[1]);
+            // lines from the same thread are never reordered
+            assertTrue(seq > last[thread]);
+            last[thread] = seq;
+            written++;
+        }
+        assertEquals(THREADS * LINES, written + w.getDropped());
+        f.delete();
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void testOverflow() throws Exception {
+        File f = File.createTempFile("log", null);
+        AsyncLogWriter w = new AsyncLogWriter(new RotatingFileWriter(f, Long.MAX_VALUE, 0, false), 4);
+        // writer not started yet: the buffer will fill up
+        for (int i = 0; i < 10; i++)
+            assertTrue(w.println("line " + i));
+        assertEquals(6, w.getDropped());
+
+        w.start();
+        w.close();
+
+        List<String> lines = readLines(f);
+        assertEquals(5, lines.size());
+        // oldest lines are kept
+        assertEquals("line 0", lines.get(0));
+        assertEquals("line 3", lines.get(3));
+        assertEquals("*** 6 log lines dropped ***", lines.get(4));
+        f.delete();
+    }
+
+    @Test
+    public void testFlush() throws Exception {
+        File f = File.createTempFile("log", null);
+        AsyncLogWriter w = new AsyncLogWriter(new RotatingFileWriter(f, Long.MAX_VALUE, 0, false), 1024);
+        w.start();
+
+        // fewer lines than a batch: the writer would wait for its timeout
+        for (int i = 0; i < 10; i++)
+            assertTrue(w.println("line " + i));
+        w.flush();
+
+        // lines are in the file while the writer is still open
+        List<String> lines = readLines(f);
+        assertEquals(10, lines.size());
+        assertEquals("line 9", lines.get(9));
+
+        w.close();
+        // nothing to wait for after close
+        w.flush();
+        f.delete();
+    }
+
+    private static List<String> readLines(File f) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader r = new BufferedReader(new FileReader(f));
+        try {
+            String line;
+            while ((line = r.readLine()) != null)
+                lines.add(line);
+        }
+        finally {
+            r.close();
+        }
+        return lines;
+    }
+
+}
@@ -18,7 +18,10 @@
 
 package org.kontalk.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
 
 import org.jivesoftware.smack.util.StringUtils;
 import org.junit.Test;
@@ -28,34 +31,98 @@ import static org.junit.Assert.*;
 
 public class RotatingFileWriterTest {
 
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
     @SuppressWarnings("ResultOfMethodCallIgnored")
     @Test
     public void testRotate() throws Exception {
-        int lineSepLen = System.getProperty("line.separator").length();
-        File f = File.createTempFile("log", null);
-        RotatingFileWriter w = new RotatingFileWriter(f, 3000, 2);
-        w.println(StringUtils.randomString(512));
-        w.println(StringUtils.randomString(512));
-        w.println(StringUtils.randomString(512));
-        w.println(StringUtils.randomString(512));
-        w.flush();
-        assertEquals((512*4)+(lineSepLen*4), f.length());
-        w.println(StringUtils.randomString(512));
-        w.flush();
-        assertEquals((512*5)+(lineSepLen*5), f.length());
-        w.println(StringUtils.randomString(512));
-        // rotation threshold
-        w.flush();
-        assertEquals((512*4)+(lineSepLen*4), f.length());
-        w.println(StringUtils.randomString(512));
+        File dir = createTempDir();
+        File f = new File(dir, "test.log");
+        RotatingFileWriter w = new RotatingFileWriter(f, 3000, 2, false);
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 18; i++) {
+            String line = StringUtils.randomString(512);
+            w.println(line);
+            // the first segment will be deleted
+            if (i >= 6)
+                expected.append(line).append(LINE_SEPARATOR);
+
+            if (i == 5) {
+                // rotation threshold
+                w.flush();
+                assertEquals(0, f.length());
+                assertEquals(Arrays.asList(1L), RotatingFileWriter.listSegments(f));
+            }
+        }
+        w.println("last");
+        expected.append("last").append(LINE_SEPARATOR);
         w.flush();
-        assertEquals((512*5)+(lineSepLen*5), f.length());
-        w.println(StringUtils.randomString(512));
-        // rotation threshold
+
+        assertEquals(Arrays.asList(2L, 3L), RotatingFileWriter.listSegments(f));
+        assertEquals(expected.toString(), readLog(f));
+
+        w.abort();
+        assertEquals(0, dir.list().length);
+        dir.delete();
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void testCompress() throws Exception {
+        File dir = createTempDir();
+        File f = new File(dir, "test.log");
+        RotatingFileWriter w = new RotatingFileWriter(f, 1000, 4, true);
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 3; i++) {
+            String line = StringUtils.randomString(512);
+            w.println(line);
+            expected.append(line).append(LINE_SEPARATOR);
+        }
         w.flush();
-        assertEquals((512*4)+(lineSepLen*4), f.length());
+
+        // wait for background compression
+        File compressed = new File(dir, "test.log.1.gz");
+        for (int i = 0; i < 50 && !compressed.isFile(); i++)
+            Thread.sleep(100);
+        assertTrue(compressed.isFile());
+        assertFalse(new File(dir, "test.log.1").exists());
+
+        // a new writer continues the sequence
         w.close();
-        f.delete();
+        w = new RotatingFileWriter(f, 1000, 4, false);
+        for (int i = 0; i < 2; i++) {
+            String line = StringUtils.randomString(512);
+            w.println(line);
+            expected.append(line).append(LINE_SEPARATOR);
+        }
+        w.flush();
+        assertEquals(Arrays.asList(1L, 2L), RotatingFileWriter.listSegments(f));
+        assertEquals(expected.toString(), readLog(f));
+
+        w.abort();
+        dir.delete();
+    }
+
+    private static String readLog(File f) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = RotatingFileWriter.openLog(f);
+        try {
+            DataUtils.copy(in, out);
+        }
+        finally {
+            in.close();
+        }
+        return out.toString();
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private static File createTempDir() throws Exception {
+        File dir = File.createTempFile("log", null);
+        dir.delete();
+        dir.mkdir();
+        return dir;
     }
 
 }